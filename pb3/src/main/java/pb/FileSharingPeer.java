@@ -13,6 +13,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Logger;
 
 import org.apache.commons.cli.CommandLine;
@@ -29,6 +31,9 @@ import pb.managers.IOThread;
 import pb.managers.PeerManager;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.Delivery;
+import pb.utils.Cancellable;
+import pb.utils.ThreadMode;
 import pb.utils.Utils;
 
 /**
@@ -57,12 +62,12 @@ public class FileSharingPeer {
 	
 	/**
 	 * Emitted when a peer is sending a chunk of a file to another peer.
-	 * The single argument is a string that is a Base64 encoded byte array
-	 * that represents the chunk of the file. If the argument
-	 * is the empty string "" then it indicates there are no more
-	 * chunks to receive.
+	 * The single argument is the chunk of the file, as a byte array if the
+	 * peers agreed to typed event arguments, else as a string that is the
+	 * Base64 encoded byte array. If the argument is the empty string ""
+	 * then it indicates there are no more chunks to receive.
 	 * <ul>
-	 * <li>{@code args[0] instanceof String}
+	 * <li>{@code args[0] instanceof byte[] || args[0] instanceof String}
 	 * </ul>
 	 */
 	private static final String fileContents = "FILE_CONTENTS";
@@ -97,42 +102,55 @@ public class FileSharingPeer {
 	private static int chunkSize=Utils.chunkSize;
 	
 	/**
-	 * buffer for file reading
+	 * kind of thread to use for the peer's managers and endpoints
 	 */
-	private static byte[] buffer = new byte[chunkSize];
+	private static ThreadMode threadMode=ThreadMode.PLATFORM;
 	
 	/**
-	 * Read up to chunkSize bytes of a file and send to client.
-	 * If we have not reached the end of the file then set a timeout
-	 * to read some more bytes. Since this is using the timer thread
-	 * we have the danger that the transmission will block and that
-	 * this will block all the other timeouts. We could either use another
-	 * thread for each file transfer or else allow for buffering of
-	 * outgoing messages at the endpoint, to overcome this issue.
+	 * Read chunks of a file and send them to the client, for as long as the
+	 * endpoint is writable. When it stops being writable, because the client
+	 * is not keeping up, the transfer pauses until {@link Endpoint#writableChanged}
+	 * says it is writable again, rather than pacing itself with a timer. The
+	 * stream is the lock for the transfer, since it may be resumed on the
+	 * timer thread.
 	 * @param in the file input stream
 	 * @param endpoint the endpoint to send the file
+	 * @param done set once the whole file has been sent, or it failed
 	 */
-	public static void continueTransmittingFile(InputStream in,Endpoint endpoint) {
-		try {
-			int read = in.read(buffer);
-			if(read==-1) {
-				endpoint.emit(fileContents, ""); // signals no more bytes in file
-				in.close();
-			} else {
-				endpoint.emit(fileContents, new String(Base64.encodeBase64(
-						Arrays.copyOfRange(buffer, 0, read)),
-						StandardCharsets.US_ASCII));
-				if(read<chunkSize) {
-					endpoint.emit(fileContents, "");
-					in.close();
-				} else {
-					Utils.getInstance().setTimeout(()->{
-						continueTransmittingFile(in,endpoint);
-					},100); // limit throughput to about 160kB/s, hopefully your bandwidth can keep up :-)
+	public static void continueTransmittingFile(InputStream in,Endpoint endpoint,
+			AtomicBoolean done) {
+		synchronized(in) {
+			if(done.get()) return;
+			// transfers to different peers can run at the same time
+			byte[] buffer = new byte[chunkSize];
+			try {
+				while(endpoint.isWritable()) {
+					int read = in.read(buffer);
+					if(read==-1) {
+						endpoint.emit(fileContents, ""); // signals no more bytes in file
+						done.set(true);
+						in.close();
+						return;
+					}
+					byte[] chunk = Arrays.copyOfRange(buffer, 0, read);
+					if(endpoint.getEventArgs()) {
+						endpoint.emit(fileContents, chunk);
+					} else {
+						endpoint.emit(fileContents, new String(Base64.encodeBase64(chunk),
+								StandardCharsets.US_ASCII));
+					}
+					if(read<chunkSize) {
+						endpoint.emit(fileContents, "");
+						done.set(true);
+						in.close();
+						return;
+					}
 				}
+				// paused until the endpoint is writable again
+			} catch (IOException e) {
+				done.set(true);
+				endpoint.emit(fileError,e.toString());
 			}
-		} catch (IOException e) {
-			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
@@ -145,30 +163,35 @@ public class FileSharingPeer {
 	public static void startTransmittingFile(String filename,Endpoint endpoint) {
 		try {
 			InputStream in = new FileInputStream(filename);
-			continueTransmittingFile(in,endpoint);
+			AtomicBoolean done = new AtomicBoolean(false);
+			// removed once the file is sent, so transfers don't pile up callbacks
+			AtomicReference<Cancellable> resume = new AtomicReference<>();
+			resume.set(endpoint.subscribe(Endpoint.writableChanged, (args)->{
+				if((Boolean)args[0]) continueTransmittingFile(in,endpoint,done);
+				if(done.get() && resume.get()!=null) resume.get().cancel();
+			}));
+			continueTransmittingFile(in,endpoint,done);
+			if(done.get()) resume.get().cancel();
 		} catch (FileNotFoundException e) {
 			endpoint.emit(fileError,e.toString());
 		}
 	}
 	
 	/**
-	 * Emit a filename as an index update if possible, close when all done.
+	 * Emit each filename as an index update, close when all done.
 	 * @param filenames
 	 * @param endpoint
 	 */
 	public static void emitIndexUpdate(String peerport,List<String> filenames,Endpoint endpoint,
 			ClientManager clientManager) {
-		if(filenames.size()==0) {
-			clientManager.shutdown(); // no more index updates to do
-		} else {
-			String filename=filenames.remove(0);
+		for(String filename : filenames) {
 			log.info("Sending index update: "+peerport+":"+filename);
 			// an index update has the format: host:port:filename
 			endpoint.emit(IndexServer.indexUpdate, peerport+":"+filename);
-			Utils.getInstance().setTimeout(()->{
-				emitIndexUpdate(peerport,filenames,endpoint,clientManager);
-			}, 100); // send 10 index updates per second, this shouldn't kill the bandwidth :-]
 		}
+		// the session stop goes behind the updates, so the index server
+		// has them all before the session stops
+		clientManager.shutdown(); // no more index updates to do
 	}
 	
 	/**
@@ -217,7 +240,10 @@ public class FileSharingPeer {
 		for(String file : files) {
 			filenames.add(file);
 		}
-        PeerManager peerManager = new PeerManager(peerPort);
+        PeerManager peerManager = new PeerManager(peerPort,threadMode);
+        // an update per file, they don't each need a reply
+        peerManager.getEndpointConfig().setEventDelivery(IndexServer.indexUpdate, Delivery.WINDOWED)
+        	.setEventBatchDelay(5);
         peerManager.on(PeerManager.peerStarted, (args)->{
         	Endpoint endpoint = (Endpoint)args[0];
         	System.out.println("Connection from peer: "+endpoint.getOtherEndpointId());
@@ -280,8 +306,9 @@ public class FileSharingPeer {
 			clientManager.on(PeerManager.peerStarted, (args)->{
 				Endpoint endpoint = (Endpoint)args[0];
 				endpoint.on(fileContents,(args2)->{
-					String chunk = (String) args2[0];
-					if(chunk.length()==0) {
+					byte[] chunk = args2[0] instanceof byte[] ? (byte[]) args2[0]
+							: Base64.decodeBase64((String) args2[0]);
+					if(args2[0] instanceof String && chunk.length==0) {
 						// file download complete
 						try {
 							out.close();
@@ -291,9 +318,9 @@ public class FileSharingPeer {
 						clientManager.shutdown();
 					} else {
 						try {
-							out.write(Base64.decodeBase64(chunk));
+							out.write(chunk);
 						} catch (IOException e) {
-							System.out.println("Error writing file chunk: "+chunk);
+							System.out.println("Error writing file chunk of "+chunk.length+" bytes");
 						}
 					}
 				}).on(fileError, (args2)->{
@@ -329,7 +356,7 @@ public class FileSharingPeer {
 	private static void queryFiles(String[] keywords) throws UnknownHostException, InterruptedException {
 		String query = String.join(",",keywords);
 		// connect to the index server and tell it the files we are sharing
-		PeerManager peerManager = new PeerManager(peerPort);
+		PeerManager peerManager = new PeerManager(peerPort,threadMode);
         ClientManager clientManager = peerManager.connect(indexServerPort, host);
         clientManager.on(PeerManager.peerStarted, (args)->{
 			Endpoint endpoint = (Endpoint)args[0];
@@ -389,6 +416,7 @@ public class FileSharingPeer {
         options.addOption("port",true,"peer server port, an integer");
         options.addOption("host",true,"index server hostname, a string");
         options.addOption("indexServerPort",true,"index server port, an integer");
+        options.addOption("virtual",false,"use virtual threads for connections");
         Option optionShare = new Option("share",true,"list of files to share");
         optionShare.setArgs(Option.UNLIMITED_VALUES);
         options.addOption(optionShare);
@@ -428,6 +456,10 @@ public class FileSharingPeer {
         	host = cmd.getOptionValue("host");
         }
         
+        if(cmd.hasOption("virtual")) {
+        	threadMode = ThreadMode.VIRTUAL;
+        }
+        
         
         // start up the client
         log.info("PB Peer starting up");
@@ -22,6 +22,8 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.Delivery;
+import pb.utils.ThreadMode;
 import pb.utils.Utils;
 
 /**
@@ -126,39 +128,35 @@ public class IndexServer {
 	}
 	
 	/**
-	 * Transmit a response for each hit. Return the peer that has the file
-	 * and that was the most recently seen, to try and make sure its still
-	 * online.
+	 * Transmit a response for each hit, then a blank response. Return the
+	 * peer that has the file and that was the most recently seen, to try
+	 * and make sure its still online. The responses go back to back, and
+	 * the event protocol batches them.
 	 * @param hits
 	 * @param client
 	 */
 	private static void transmitHits(List<String> hits,Endpoint client) {
-		if(hits.isEmpty()) {
-			log.info("Sending blank query response");
-			client.emit(queryResponse, "");
-			return;
-		}
-		String hit = hits.remove(0);
-		synchronized(keyValueMap) {
-			synchronized(lastTimeSeen) {
-				if(keyValueMap.containsKey(hit)) {
-					List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
-					Collections.sort(peers,
-					new Comparator<String>() {
-						@Override
-						public int compare(String o1, String o2) {
-							// sort largest to smallest
-							return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
-						}
-					});
-					log.info("Sending query response: "+peers.get(0)+":"+hit);
-					client.emit(queryResponse, peers.get(0)+":"+hit);
+		for(String hit : hits) {
+			synchronized(keyValueMap) {
+				synchronized(lastTimeSeen) {
+					if(keyValueMap.containsKey(hit)) {
+						List<String> peers = new ArrayList<String>(keyValueMap.get(hit));
+						Collections.sort(peers,
+						new Comparator<String>() {
+							@Override
+							public int compare(String o1, String o2) {
+								// sort largest to smallest
+								return lastTimeSeen.get(o2).compareTo(lastTimeSeen.get(o1));
+							}
+						});
+						log.info("Sending query response: "+peers.get(0)+":"+hit);
+						client.emit(queryResponse, peers.get(0)+":"+hit);
+					}
 				}
 			}
 		}
-		Utils.getInstance().setTimeout(()->{
-			transmitHits(hits,client);
-		}, 100); // transmit 10 hits per second... no real bandwidth control here.
+		log.info("Sending blank query response");
+		client.emit(queryResponse, "");
 	}
 	
 	/**
@@ -203,7 +201,7 @@ public class IndexServer {
 		System.exit(-1);
 	}
 	
-	public static void main( String[] args ) throws IOException
+	public static void main( String[] args ) throws IOException, InterruptedException
     {
     	// set a nice log format
 		System.setProperty("java.util.logging.SimpleFormatter.format",
@@ -213,6 +211,9 @@ public class IndexServer {
         Options options = new Options();
         options.addOption("port",true,"server port, an integer");
         options.addOption("password",true,"password for server");
+        options.addOption("nio",false,"use event loops rather than a thread per connection");
+        options.addOption("virtual",false,"use virtual threads for connections");
+        options.addOption("async",false,"run event callbacks off the connection threads");
         
        
         CommandLineParser parser = new DefaultParser();
@@ -236,9 +237,20 @@ public class IndexServer {
         ServerManager serverManager;
         
         if(cmd.hasOption("password")) {
-        	serverManager = new ServerManager(port,cmd.getOptionValue("password"));
+        	serverManager = new ServerManager(port,cmd.getOptionValue("password"),cmd.hasOption("nio"));
         } else {
-        	serverManager = new ServerManager(port);
+        	serverManager = new ServerManager(port,cmd.hasOption("nio"));
+        }
+        if(cmd.hasOption("virtual")) {
+        	serverManager.setThreadMode(ThreadMode.VIRTUAL);
+        }
+        // a response per matching file, they don't each need a reply
+        serverManager.getEndpointConfig().setEventDelivery(queryResponse, Delivery.WINDOWED)
+        	.setEventBatchDelay(5);
+        if(cmd.hasOption("async")) {
+        	// queries scan the whole index, which would hold up reading
+        	serverManager.getEndpointConfig().setCallbackExecutor(
+        			serverManager.getThreadMode().sharedExecutor("IndexCallback"));
         }
         
         // event handlers
@@ -281,7 +293,9 @@ public class IndexServer {
         // start up the server
         log.info("PB Index Server starting up");
         serverManager.start();
-        
+        // virtual threads won't keep the JVM running, so wait here
+        serverManager.join();
+        Utils.getInstance().cleanUp();
     }
 
 }
@@ -18,6 +18,7 @@ import org.apache.commons.cli.ParseException;
 import pb.managers.IOThread;
 import pb.managers.ServerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.utils.ThreadMode;
 import pb.utils.Utils;
 
 /**
@@ -106,6 +107,8 @@ public class WhiteboardServer {
         Options options = new Options();
         options.addOption("port", true, "server port, an integer");
         options.addOption("password", true, "password for server");
+        options.addOption("nio", false, "use event loops rather than a thread per connection");
+        options.addOption("virtual", false, "use virtual threads for connections");
 
 
         CommandLineParser parser = new DefaultParser();
@@ -129,10 +132,15 @@ public class WhiteboardServer {
         ServerManager serverManager;
 
         if (cmd.hasOption("password")) {
-            serverManager = new ServerManager(port, cmd.getOptionValue("password"));
+            serverManager = new ServerManager(port, cmd.getOptionValue("password"), cmd.hasOption("nio"));
         } else {
-            serverManager = new ServerManager(port);
+            serverManager = new ServerManager(port, cmd.hasOption("nio"));
         }
+        if (cmd.hasOption("virtual")) {
+            serverManager.setThreadMode(ThreadMode.VIRTUAL);
+        }
+        // a new peer is sent every shared board at once, in batches
+        serverManager.getEndpointConfig().setEventBatchDelay(5);
 
         /**
          * TODO: Put some server related code here.
@@ -163,9 +171,12 @@ public class WhiteboardServer {
                     }
                 }
             });
-            // emit all the shared board to new connected peer.
-            for (String data : sharingBoards) {
-                endpoint.emit(WhiteboardServer.sharingBoard, data);
+            // emit all the shared board to new connected peer, unless it
+            // resumed its session and so has them already
+            if (!endpoint.isSessionResumed()) {
+                for (String data : sharingBoards) {
+                    endpoint.emit(WhiteboardServer.sharingBoard, data);
+                }
             }
             connectedPeers.put(endpoint.getOtherEndpointId(), endpoint);
         }).on(ServerManager.sessionStopped,(eventArgs)->{
@@ -4,6 +4,7 @@ import pb.WhiteboardServer;
 import pb.managers.ClientManager;
 import pb.managers.PeerManager;
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.Delivery;
 
 import java.awt.BorderLayout;
 import java.awt.Color;
@@ -22,6 +23,7 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Logger;
 
 import javax.swing.BoxLayout;
@@ -224,6 +226,13 @@ public class WhiteboardApp {
 		peerport = whiteboardServerHost + ":" + peerPort;
 		// TODO
 		PeerManager peerManager = new PeerManager(peerPort);
+		// repainting is slow, so don't do it on the threads reading the peers
+		peerManager.getEndpointConfig().setCallbackExecutor(ForkJoinPool.commonPool());
+		// an update per stroke, they don't each need a reply
+		for(String eventName : new String[] {boardPathUpdate,boardPathAccepted,boardUndoUpdate,
+				boardUndoAccepted,boardClearUpdate,boardClearAccepted}) {
+			peerManager.getEndpointConfig().setEventDelivery(eventName, Delivery.WINDOWED);
+		}
 		this.peerManager = peerManager;
 		peerManager.on(PeerManager.peerStarted, (args) -> {
 			Endpoint endpoint = (Endpoint)args[0];
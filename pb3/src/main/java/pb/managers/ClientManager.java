@@ -13,6 +13,7 @@ import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.event.ReplayBuffer;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
@@ -20,6 +21,9 @@ import pb.protocols.session.SessionProtocol;
 
 /**
  * Manages the connection to the server and the client's state.
+ * The endpoint runs on the same kind of thread as the client
+ * manager, which can be chosen using
+ * {@link #setThreadMode(pb.utils.ThreadMode)} before it is started.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -68,6 +72,12 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private SessionProtocol sessionProtocol;
 	
+	/**
+	 * The replay buffer of the session, if it can be resumed when the
+	 * client reconnects.
+	 */
+	private volatile ReplayBuffer replayBuffer=null;
+	
 	/**
 	 * The socket for this client.
 	 */
@@ -170,6 +180,8 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void endpointReady(Endpoint endpoint) {
 		log.info("connection with server established");
+		// try to resume the session of the last connection
+		endpoint.setReplayBuffer(replayBuffer, false);
 		sessionProtocol = new SessionProtocol(endpoint,this);
 		try {
 			// we need to add it to the endpoint before starting it
@@ -253,6 +265,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStarted(Endpoint endpoint) {
 		log.info("session has started with server");
+		replayBuffer=endpoint.getReplayBuffer();
 		
 		EventProtocol eventProtocol = new EventProtocol(endpoint,this);
 		try {
@@ -265,6 +278,14 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 		localEmit(sessionStarted,endpoint);
 	}
 
+	/**
+	 * Only the server resumes sessions.
+	 */
+	@Override
+	public ReplayBuffer resumeSession(Endpoint endpoint, String sessionToken, long lastSeq) {
+		return null;
+	}
+
 	/**
 	 * The session protocol is indicating that the session has stopped. 
 	 * @param endpoint
@@ -272,6 +293,7 @@ public class ClientManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with server");
+		replayBuffer=null;
 		localEmit(sessionStopped,endpoint);
 		endpoint.close(); // this will stop all the protocols as well
 	}
@@ -2,11 +2,20 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
 
+import pb.managers.endpoint.EventLoopGroup;
+import pb.managers.endpoint.ISelectionHandler;
+import pb.utils.Worker;
+
 /**
  * Listen for connections on a given port number and pass them to the
  * {@link pb.managers.ServerManager} using
@@ -14,17 +23,34 @@ import java.util.logging.Logger;
  * {@link pb.managers.ServerManager} is responsible for creating a thread for this
  * connection, else the IOThread will not accept any more connections until this
  * connection is finished.
+ * <br/>
+ * When given an {@link pb.managers.endpoint.EventLoopGroup}, the IOThread
+ * instead accepts connections on one of the event loops, using a non-blocking
+ * server socket channel, and passes them to the ServerManager using
+ * {@link pb.managers.ServerManager#acceptClient(SocketChannel)}. The thread
+ * itself then just waits to be shut down.
+ * <br/>
+ * The IOThread runs on the same kind of thread as the ServerManager, see
+ * {@link pb.utils.ThreadMode}.
  * 
  * @see {@link pb.managers.ServerManager}
+ * @see {@link pb.managers.endpoint.EventLoopGroup}
  * @author aaron
  *
  */
-public class IOThread extends Thread {
+public class IOThread extends Worker {
 	private static Logger log = Logger.getLogger(IOThread.class.getName());
 	private ServerSocket serverSocket=null;
+	private ServerSocketChannel serverChannel=null;
+	private EventLoopGroup eventLoops=null;
 	private int port;
 	private ServerManager serverManager;
 	
+	/**
+	 * Released when the io thread is shut down, when using event loops.
+	 */
+	private final CountDownLatch shutDownLatch = new CountDownLatch(1);
+	
 	/**
 	 * Emitted when the io thread has started. The argument
 	 * provides the io thread's Internet address in the 
@@ -47,6 +73,28 @@ public class IOThread extends Thread {
 		this.port=port;
 		this.serverManager=serverManager;
 		setName("IOThread");
+		setThreadMode(serverManager.getThreadMode());
+		start();
+	}
+	
+	/**
+	 * Initialise the IOThread with a port number to listen on, a reference
+	 * to the {@link pb.managers.ServerManager} and event loops to accept
+	 * connections on.
+	 * @param port to listen on
+	 * @param serverManager to send connections to
+	 * @param eventLoops to accept connections on
+	 * @throws IOException whenever the server socket channel can't be created
+	 */
+	public IOThread(int port, ServerManager serverManager, EventLoopGroup eventLoops) throws IOException{
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port)); // let's throw this since its potentially unrecoverable
+		serverSocket = serverChannel.socket();
+		this.eventLoops=eventLoops;
+		this.port=port;
+		this.serverManager=serverManager;
+		setName("IOThread");
+		setThreadMode(serverManager.getThreadMode());
 		start();
 	}
 	
@@ -60,6 +108,7 @@ public class IOThread extends Thread {
 			} catch (IOException e) {
 				log.warning("exception closing server socket: "+e.getMessage());
 			}
+		shutDownLatch.countDown();
 		interrupt();
 	}
 	
@@ -75,6 +124,23 @@ public class IOThread extends Thread {
 			log.severe("Could not get address of local host, continuing anyway, assuming 127.0.0.1");
 			serverManager.emit(ioThread,"127.0.0.1:"+port);
 		}
+		if(eventLoops!=null) {
+			acceptOnEventLoop();
+		} else {
+			acceptOnThisThread();
+		}
+		log.info("IOThread terminating");
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			log.warning("exception closing server socket: "+e.getMessage());
+		}
+	}
+	
+	/**
+	 * Blocking accept connections until shut down.
+	 */
+	private void acceptOnThisThread() {
 		while(!isInterrupted() && !serverSocket.isClosed()){
 			Socket clientSocket;
 			try {
@@ -85,11 +151,37 @@ public class IOThread extends Thread {
 				log.warning("exception accepting connection: "+e.getMessage());
 			} 
 		}
-		log.info("IOThread terminating");
+	}
+	
+	/**
+	 * Accept connections on an event loop until shut down.
+	 */
+	private void acceptOnEventLoop() {
 		try {
-			serverSocket.close();
+			eventLoops.next().register(serverChannel, SelectionKey.OP_ACCEPT, new ISelectionHandler() {
+				@Override
+				public void registered(SelectionKey key) {
+					
+				}
+
+				@Override
+				public void selected(SelectionKey key) {
+					SocketChannel clientChannel;
+					try {
+						while((clientChannel=serverChannel.accept())!=null) {
+							log.info("Received connection from "+clientChannel.socket().getInetAddress());
+							serverManager.acceptClient(clientChannel);
+						}
+					} catch (IOException e) {
+						log.warning("exception accepting connection: "+e.getMessage());
+					}
+				}
+			});
+			shutDownLatch.await();
 		} catch (IOException e) {
-			log.warning("exception closing server socket: "+e.getMessage());
+			log.warning("exception registering server socket channel: "+e.getMessage());
+		} catch (InterruptedException e) {
+			// we are shutting down
 		}
 	}
 }
@@ -2,6 +2,7 @@ package pb.managers;
 
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EndpointConfig;
 import pb.managers.endpoint.IEndpointHandler;
 import pb.protocols.IProtocolHandler;
 import pb.protocols.Protocol;
@@ -17,6 +18,28 @@ import pb.utils.Eventable;
  */
 public class Manager extends Eventable implements IProtocolHandler, IEndpointHandler{
 	
+	/**
+	 * Settings for the endpoints of this manager.
+	 */
+	private volatile EndpointConfig endpointConfig = new EndpointConfig();
+	
+	/**
+	 * 
+	 * @return the settings for the endpoints of this manager
+	 */
+	public EndpointConfig getEndpointConfig() {
+		return endpointConfig;
+	}
+	
+	/**
+	 * Use different settings for the endpoints of this manager. Only
+	 * endpoints created after this is called will use them.
+	 * @param endpointConfig
+	 */
+	public void setEndpointConfig(EndpointConfig endpointConfig) {
+		this.endpointConfig = endpointConfig;
+	}
+	
 	/**
 	 * Shut this manager down, closing all connections gracefully where possible.
 	 */
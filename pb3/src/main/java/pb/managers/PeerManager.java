@@ -6,11 +6,15 @@ import java.util.Set;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.utils.ThreadMode;
 
 
 
 /**
  * The Peer Manager manages both a number of ClientManagers and a ServerManager.
+ * The client managers, the server manager and all of their endpoints run on
+ * the same kind of thread as the peer manager, see {@link pb.utils.ThreadMode},
+ * and use the same {@link pb.managers.endpoint.EndpointConfig}.
  * @author aaron
  *
  */
@@ -88,6 +92,18 @@ public class PeerManager extends Manager {
 		this.myServerPort=myServerPort;
 	}
 	
+	/**
+	 * Initialize with a port for the server manager for this peer
+	 * to use, and the kind of thread to use for everything that this
+	 * peer manager starts.
+	 * @param myServerPort
+	 * @param threadMode
+	 */
+	public PeerManager(int myServerPort, ThreadMode threadMode) {
+		this(myServerPort);
+		setThreadMode(threadMode);
+	}
+	
 	/**
 	 * 
 	 * @return the server manager for this peer
@@ -107,6 +123,8 @@ public class PeerManager extends Manager {
 	 */
 	public ClientManager connect(int serverPort,String host) throws UnknownHostException, InterruptedException {
 		ClientManager clientManager = new ClientManager(host,serverPort);
+		clientManager.setThreadMode(getThreadMode());
+		clientManager.setEndpointConfig(getEndpointConfig());
 		clientManagers.add(clientManager);
 		clientManager.on(ClientManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -139,6 +157,8 @@ public class PeerManager extends Manager {
 	public void run() {
 		// initialize a server manager for other peers to connect to
 		serverManager=new ServerManager(myServerPort);
+		serverManager.setThreadMode(getThreadMode());
+		serverManager.setEndpointConfig(getEndpointConfig());
 		// setup the callbacks for when another peer connects to this peer
 		serverManager.on(ServerManager.sessionStarted, (args)->{
 			Endpoint client = (Endpoint)args[0];
@@ -2,24 +2,33 @@ package pb.managers;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.channels.SocketChannel;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.EventLoopGroup;
 import pb.managers.endpoint.ProtocolAlreadyRunning;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Protocol;
 import pb.protocols.event.EventProtocol;
 import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.event.ReplayBuffer;
 import pb.protocols.keepalive.IKeepAliveProtocolHandler;
 import pb.protocols.keepalive.KeepAliveProtocol;
 import pb.protocols.session.ISessionProtocolHandler;
 import pb.protocols.session.SessionProtocol;
+import pb.utils.Utils;
 
 
 /**
  * Manages all of the clients for the server and the server's state.
+ * The io thread and the endpoints run on the same kind of thread as the
+ * server manager, which can be chosen using
+ * {@link #setThreadMode(pb.utils.ThreadMode)} before it is started.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.IOThread}
@@ -105,6 +114,12 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private final Set<Endpoint> liveEndpoints;
 	
+	/**
+	 * The replay buffers of resumable sessions by their tokens, kept for a
+	 * while after their connections close so that the clients can resume them.
+	 */
+	private final Map<String,ReplayBuffer> sessions=new ConcurrentHashMap<>();
+	
 	/**
 	 * The port for this server.
 	 */
@@ -125,12 +140,35 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 */
 	private String password=null;
 	
+	/**
+	 * Whether to run the io thread and endpoints on event loops, rather
+	 * than a thread per connection.
+	 */
+	private final boolean useEventLoops;
+	
+	/**
+	 * The event loops, if they are being used.
+	 */
+	private EventLoopGroup eventLoops=null;
+	
 	/**
 	 * Initialise the ServerManager with a port number for the io thread to listen on.
 	 * @param port to use when creating the io thread
 	 */
 	public ServerManager(int port) {
+		this(port,false);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * and whether to use event loops.
+	 * @param port to use when creating the io thread
+	 * @param useEventLoops true to run the endpoints on a small fixed pool of
+	 * event loops, false to use a thread per connection
+	 */
+	public ServerManager(int port,boolean useEventLoops) {
 		this.port=port;
+		this.useEventLoops=useEventLoops;
 		liveEndpoints=new HashSet<>();
 		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
@@ -142,10 +180,20 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	 * @param password to use by admin clients
 	 */
 	public ServerManager(int port,String password) {
-		this.port=port;
-		liveEndpoints=new HashSet<>();
+		this(port,password,false);
+	}
+	
+	/**
+	 * Initialise the ServerManager with a port number for the io thread to listen on,
+	 * a password and whether to use event loops.
+	 * @param port to use when creating the io thread
+	 * @param password to use by admin clients
+	 * @param useEventLoops true to run the endpoints on a small fixed pool of
+	 * event loops, false to use a thread per connection
+	 */
+	public ServerManager(int port,String password,boolean useEventLoops) {
+		this(port,useEventLoops);
 		this.password = password;
-		setName("ServerManager"); // name the thread, urgh simple log can't print it :-(
 	}
 	
 	/**
@@ -190,9 +238,15 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		// when the IO thread terminates, and all endpoints have terminated,
 		// then the server will terminate
 		try {
-			ioThread = new IOThread(port,this);
+			if(useEventLoops) {
+				eventLoops = new EventLoopGroup();
+				ioThread = new IOThread(port,this,eventLoops);
+			} else {
+				ioThread = new IOThread(port,this);
+			}
 		} catch (IOException e1) {
 			log.severe("could not start the io thread");
+			if(eventLoops!=null) eventLoops.shutDown();
 			return;
 		}
 		
@@ -258,6 +312,7 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 				});
 			}
 		}
+		if(eventLoops!=null) eventLoops.shutDown();
 		log.info("terminated");
 	}
 	
@@ -272,6 +327,16 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		endpoint.start();
 	}
 	
+	/**
+	 * A new client has connected to the server, when using event loops.
+	 * The endpoint for the client is started on one of the event loops.
+	 * @param clientChannel the socket channel for the client.
+	 */
+	public void acceptClient(SocketChannel clientChannel) {
+		Endpoint endpoint = new Endpoint(clientChannel,this);
+		endpoint.startOn(eventLoops.next());
+	}
+	
 	/**
 	 * Called by a client endpoint to signal that it is now ready for
 	 * use, the server can send data and it may start receiving messages
@@ -345,6 +410,49 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 		synchronized(liveEndpoints) {
 			liveEndpoints.remove(endpoint);
 		}
+		ReplayBuffer buffer=endpoint.getReplayBuffer();
+		if(buffer!=null && sessions.get(buffer.getToken())==buffer) {
+			// forget the session unless the client resumes it in time
+			Utils.getInstance().setTimeout(()->{
+				if(buffer.getEndpoint()==endpoint) sessions.remove(buffer.getToken(),buffer);
+			}, getEndpointConfig().getResumeTimeout());
+		}
+	}
+	
+	/**
+	 * The client asked for a resumable session. If it is resuming one that
+	 * is still on an open connection, then the client has already given up
+	 * on that connection, so it is closed first.
+	 * @param endpoint
+	 * @param sessionToken
+	 * @param lastSeq
+	 * @return the replay buffer of the session
+	 */
+	@Override
+	public ReplayBuffer resumeSession(Endpoint endpoint, String sessionToken, long lastSeq) {
+		int size=getEndpointConfig().getReplayBufferSize();
+		if(size<=0) return null;
+		ReplayBuffer buffer = sessionToken!=null ? sessions.get(sessionToken) : null;
+		if(buffer!=null) {
+			Endpoint previous=buffer.getEndpoint();
+			boolean live;
+			synchronized(liveEndpoints) {
+				live=liveEndpoints.contains(previous);
+			}
+			if(live && previous!=endpoint) {
+				log.warning("client "+endpoint.getOtherEndpointId()+" resumed its session from "
+						+previous.getOtherEndpointId());
+				localEmit(sessionError,previous);
+				previous.close();
+			}
+			if(buffer.resume(endpoint, lastSeq)) return buffer;
+			log.warning("could not resume the session of client "+endpoint.getOtherEndpointId());
+			sessions.remove(sessionToken,buffer);
+		}
+		buffer=new ReplayBuffer(size);
+		buffer.attach(endpoint);
+		sessions.put(buffer.getToken(),buffer);
+		return buffer;
 	}
 
 	/**
@@ -388,6 +496,8 @@ public class ServerManager extends Manager implements ISessionProtocolHandler,
 	@Override
 	public void sessionStopped(Endpoint endpoint) {
 		log.info("session has stopped with client: "+endpoint.getOtherEndpointId());
+		ReplayBuffer buffer=endpoint.getReplayBuffer();
+		if(buffer!=null) sessions.remove(buffer.getToken(),buffer);
 		
 		localEmit(sessionStopped,endpoint);
 		
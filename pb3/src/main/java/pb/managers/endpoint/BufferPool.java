@@ -0,0 +1,253 @@
+package pb.managers.endpoint;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A pool of byte buffers, so that reading, writing and encoding frames
+ * doesn't allocate new buffers all the time. Buffers come in size classes
+ * that are powers of two, and a request gets a buffer from the smallest
+ * class that is large enough. Buffers larger than the largest class are
+ * not pooled. Any thread may acquire and release buffers.
+ * <br/>
+ * The event loops share a pool of direct buffers, which the channels can
+ * read into and write from without an extra copy. Blocking endpoints use
+ * {@link #getHeapPool()}, since streams need arrays.
+ * <br/>
+ * With leak detection on (the system property {@code pb.bufferPool.leakDetection})
+ * every buffer handed out is tracked, and if one is garbage collected
+ * without having been released then where it was acquired is logged.
+ *
+ * @see {@link pb.managers.endpoint.EventLoopGroup}
+ * @author aaron
+ *
+ */
+public class BufferPool {
+	private static Logger log = Logger.getLogger(BufferPool.class.getName());
+
+	/**
+	 * Smallest size class is 2^minShift bytes.
+	 */
+	private static final int minShift = 9;
+
+	/**
+	 * Largest size class is 2^maxShift bytes.
+	 */
+	private static final int maxShift = 22;
+
+	/**
+	 * Most buffers kept in a size class.
+	 */
+	private static final int maxPooledPerClass = 256;
+
+	/**
+	 * Most bytes kept in a size class.
+	 */
+	private static final int maxPooledBytesPerClass = 1024*1024;
+
+	private static final boolean leakDetection =
+			Boolean.getBoolean("pb.bufferPool.leakDetection");
+
+	private static final BufferPool heapPool = new BufferPool(false);
+
+	/**
+	 * @return the pool of heap buffers, for blocking endpoints
+	 */
+	public static BufferPool getHeapPool() {
+		return heapPool;
+	}
+
+	private final boolean direct;
+
+	private final Queue<ByteBuffer>[] classes;
+
+	private final AtomicInteger[] pooled;
+
+	private final AtomicLong hits=new AtomicLong();
+
+	private final AtomicLong misses=new AtomicLong();
+
+	private final AtomicLong outstanding=new AtomicLong();
+
+	/**
+	 * Buffers handed out, when leak detection is on.
+	 */
+	private final Set<Tracked> tracked;
+
+	private final ReferenceQueue<ByteBuffer> collected;
+
+	/**
+	 * Initialise an empty pool.
+	 * @param direct whether to hold direct buffers rather than heap buffers
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public BufferPool(boolean direct) {
+		this.direct=direct;
+		int n=maxShift-minShift+1;
+		classes=new Queue[n];
+		pooled=new AtomicInteger[n];
+		for(int i=0;i<n;i++) {
+			classes[i]=new ConcurrentLinkedQueue<>();
+			pooled[i]=new AtomicInteger();
+		}
+		tracked = leakDetection ? ConcurrentHashMap.newKeySet() : null;
+		collected = leakDetection ? new ReferenceQueue<>() : null;
+	}
+
+	/**
+	 * Get a cleared buffer with at least the given capacity. It should be
+	 * released when it is no longer needed.
+	 * @param capacity
+	 * @return the buffer
+	 */
+	public ByteBuffer acquire(int capacity) {
+		int c=sizeClass(capacity);
+		ByteBuffer buffer=null;
+		if(c!=-1) {
+			buffer=classes[c].poll();
+			if(buffer!=null) pooled[c].decrementAndGet();
+		}
+		if(buffer!=null) {
+			hits.incrementAndGet();
+			buffer.clear();
+		} else {
+			misses.incrementAndGet();
+			int size = c==-1 ? capacity : 1<<(c+minShift);
+			buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		outstanding.incrementAndGet();
+		if(leakDetection) track(buffer);
+		return buffer;
+	}
+
+	/**
+	 * Swap a buffer that is being written for a larger one that holds what
+	 * has been written so far, and release it. The buffer must not be used
+	 * after this.
+	 * @param buffer being written, up to its position
+	 * @param needed how many more bytes must fit
+	 * @return the larger buffer, at the same position
+	 */
+	public ByteBuffer grow(ByteBuffer buffer, int needed) {
+		ByteBuffer larger=acquire(Math.max(2*buffer.capacity(), buffer.position()+needed));
+		buffer.flip();
+		larger.put(buffer);
+		release(buffer);
+		return larger;
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used after this.
+	 * @param buffer may be null, in which case nothing happens
+	 */
+	public void release(ByteBuffer buffer) {
+		if(buffer==null) return;
+		outstanding.decrementAndGet();
+		if(leakDetection) untrack(buffer);
+		if(buffer.isDirect()!=direct) return;
+		int capacity=buffer.capacity();
+		int c=sizeClass(capacity);
+		if(c==-1 || 1<<(c+minShift)!=capacity) return;
+		if(pooled[c].incrementAndGet()>Math.min(maxPooledPerClass,maxPooledBytesPerClass/capacity)) {
+			// enough of these already
+			pooled[c].decrementAndGet();
+			return;
+		}
+		classes[c].add(buffer);
+	}
+
+	/**
+	 * @param capacity
+	 * @return the index of the smallest class that holds the capacity, or -1
+	 * if the capacity is too large to be pooled
+	 */
+	private static int sizeClass(int capacity) {
+		if(capacity<=1<<minShift) return 0;
+		int shift=32-Integer.numberOfLeadingZeros(capacity-1);
+		return shift>maxShift ? -1 : shift-minShift;
+	}
+
+	/**
+	 * @return true if this pool holds direct buffers
+	 */
+	public boolean isDirect() {
+		return direct;
+	}
+
+	/**
+	 * @return the number of buffers acquired from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of buffers that had to be allocated
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of buffers acquired and not yet released
+	 */
+	public long getOutstanding() {
+		return outstanding.get();
+	}
+
+	@Override
+	public String toString() {
+		return (direct?"direct":"heap")+" pool hits="+getHits()+" misses="+getMisses()
+			+" outstanding="+getOutstanding();
+	}
+
+	/*
+	 * Leak detection
+	 */
+
+	private static class Tracked extends WeakReference<ByteBuffer> {
+		final Throwable acquiredAt;
+
+		Tracked(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			acquiredAt=new Throwable("buffer acquired here");
+		}
+	}
+
+	private void track(ByteBuffer buffer) {
+		reportLeaks();
+		tracked.add(new Tracked(buffer,collected));
+	}
+
+	private void untrack(ByteBuffer buffer) {
+		Iterator<Tracked> it=tracked.iterator();
+		while(it.hasNext()) {
+			Tracked t=it.next();
+			if(t.get()==buffer) {
+				it.remove();
+				return;
+			}
+		}
+		log.warning("released a buffer that was not acquired from this pool, or twice");
+	}
+
+	private void reportLeaks() {
+		Tracked t;
+		while((t=(Tracked)collected.poll())!=null) {
+			if(tracked.remove(t)) {
+				outstanding.decrementAndGet();
+				log.log(Level.SEVERE, "buffer was garbage collected without being released", t.acquiredAt);
+			}
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package pb.managers.endpoint;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Runs the event callbacks of one {@link Endpoint} on a shared executor,
+ * one at a time and in the order they were queued, so the thread reading
+ * the socket never waits for the application.
+ * <br/>
+ * Only one task per endpoint is ever on the executor. The first callback
+ * queued when the queue is empty submits a task that runs callbacks until
+ * the queue is empty again. After {@link #maxRunsPerTask} callbacks the
+ * task gives the executor back and submits itself again, so a busy
+ * endpoint can't keep an executor thread from the others.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig#setCallbackExecutor(Executor)}
+ * @author aaron
+ *
+ */
+final class CallbackQueue {
+	private static Logger log = Logger.getLogger(CallbackQueue.class.getName());
+
+	private static final int maxRunsPerTask = 64;
+
+	private static final class Callback {
+		final Runnable task;
+		final long queuedAt;
+
+		Callback(Runnable task) {
+			this.task=task;
+			this.queuedAt=System.nanoTime();
+		}
+	}
+
+	private final Executor executor;
+
+	private final EndpointMetrics metrics;
+
+	private final Queue<Callback> queue=new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Callbacks queued and not yet run, including the one running. Whoever
+	 * makes it non zero submits the drain task.
+	 */
+	private final AtomicInteger size=new AtomicInteger();
+
+	CallbackQueue(Executor executor, EndpointMetrics metrics) {
+		this.executor=executor;
+		this.metrics=metrics;
+	}
+
+	/**
+	 * Queue a callback to run after those already queued.
+	 * @param task
+	 */
+	void execute(Runnable task) {
+		queue.add(new Callback(task));
+		int depth=size.incrementAndGet();
+		metrics.callbackQueued(depth);
+		if(depth==1) submit();
+	}
+
+	/**
+	 * @return the number of callbacks waiting or running
+	 */
+	int size() {
+		return size.get();
+	}
+
+	private void submit() {
+		try {
+			executor.execute(this::drain);
+		} catch (RejectedExecutionException e) {
+			// the executor is shut down, so run them here rather than lose them
+			log.warning("callback executor rejected the callbacks, running them in place");
+			drain();
+		}
+	}
+
+	private void drain() {
+		for(int i=0;i<maxRunsPerTask;i++) {
+			Callback callback=queue.poll();
+			long start=System.nanoTime();
+			try {
+				callback.task.run();
+			} catch (RuntimeException e) {
+				log.severe("event callback failed: "+e);
+			}
+			metrics.callbackRun(start-callback.queuedAt,System.nanoTime()-start);
+			if(size.decrementAndGet()==0) return;
+		}
+		submit();
+	}
+}
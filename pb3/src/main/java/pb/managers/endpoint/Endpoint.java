@@ -1,38 +1,80 @@
 package pb.managers.endpoint;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
-import java.util.HashMap;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
+import pb.managers.Manager;
 import pb.utils.Eventable;
 import pb.utils.Utils;
+import pb.utils.Worker;
+import pb.protocols.BinaryReader;
+import pb.protocols.BinaryWriter;
+import pb.protocols.Document;
+import pb.protocols.IMessageReader;
+import pb.protocols.IMessageWriter;
 import pb.protocols.InvalidMessage;
+import pb.protocols.JsonReader;
+import pb.protocols.JsonWriter;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
-import pb.protocols.event.EventProtocol;
-import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.ProtocolRegistry;
+import pb.protocols.event.Delivery;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.ReplayBuffer;
 import pb.protocols.ICallback;
+import pb.protocols.IReplyCallback;
 import pb.protocols.IRequestReplyProtocol;
-import pb.protocols.keepalive.IKeepAliveProtocolHandler;
-import pb.protocols.keepalive.KeepAliveProtocol;
-import pb.protocols.session.ISessionProtocolHandler;
-import pb.protocols.session.SessionProtocol;
 
 /**
  * The endpoint is a thread that blocking reads incoming messages (on a socket)
  * and sends them to the appropriate protocol for processing; thus a
- * thread-per-connection model is being used. It also provides a synchronized
- * method to send data to the socket which will be sent to the other endpoint.
+ * thread-per-connection model is being used. The thread can be a platform
+ * or a virtual thread, see {@link pb.utils.ThreadMode}. It also provides a
+ * thread safe method to send data to the socket which will be sent to the
+ * other endpoint. Sending never blocks on the network: messages are encoded
+ * and put on a bounded {@link OutboundQueue}, and a separate writer thread
+ * writes them to the socket. The capacity of the queue and what happens
+ * when it is full are given by the manager's {@link EndpointConfig}.
+ * The queue has a lane for each {@link Priority}, and the config says which
+ * lane each protocol, or event name, uses, so that the session and keep
+ * alive messages are never stuck behind bulk events.
+ * Messages are framed with writeUTF framing until the session starts,
+ * and then with varint framing if both endpoints agree, see {@link Framing}.
+ * Locks
+ * are used rather than synchronized, so that a virtual thread blocked on
+ * the socket does not pin its carrier thread.
  * Any number of protocols can be handled by the endpoint, but there can be only
- * one instance of each protocol running at a time.
+ * one instance of each protocol running at a time on each stream. When the
+ * other endpoint starts using a protocol, the endpoint creates it from the
+ * {@link ProtocolRegistry}, and messages are dispatched to their protocol
+ * by its id in the registry, without locking.
+ * Received events are given to their callbacks on the thread that reads
+ * the socket, unless the config has a callback executor, in which case
+ * they run on it one at a time, in the order they were received.
+ * <br/>
+ * Alternatively the endpoint can be created on a {@link java.nio.channels.SocketChannel}
+ * and started on an {@link EventLoop} using {@link #startOn(EventLoop)}, in
+ * which case no thread is used for the endpoint at all. The messages and
+ * callbacks are the same in both cases.
  * 
  * @see {@link pb.managers.Manager}
+ * @see {@link pb.managers.endpoint.EventLoop}
  * @see {@link pb.protocols.session.SessionProtocol}
  * @see {@link pb.protocols.keepalive.KeepAliveProtocol}
  * @author aaron
@@ -41,6 +83,34 @@ import pb.protocols.session.SessionProtocol;
 public class Endpoint extends Eventable {
 	private static Logger log = Logger.getLogger(Endpoint.class.getName());
 	
+	/**
+	 * Events emitted by the Endpoint, locally only
+	 */
+	
+	/**
+	 * Emitted when the endpoint becomes unwritable, because the bytes queued
+	 * for sending have reached the high watermark, and when it becomes
+	 * writable again, because they have fallen to the low watermark, see
+	 * {@link EndpointConfig#setHighWatermark(int)}. Producers that can send
+	 * faster than the other endpoint reads should pause while the endpoint
+	 * is unwritable. Messages sent while unwritable are still queued. It is
+	 * emitted on a timer thread.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Boolean} true if now writable</li>
+	 * </ul>
+	 */
+	public static final String writableChanged="WRITABLE_CHANGED";
+	
+	/**
+	 * Emitted when a stream that had to wait for the other endpoint to
+	 * process what was sent on it is writable again, see {@link #isWritable(int)}.
+	 * It is emitted on a timer thread.
+	 * <ul>
+	 * <li>{@code args[0] instanceof Integer} the stream id</li>
+	 * </ul>
+	 */
+	public static final String streamWritable="STREAM_WRITABLE";
+	
 	/**
 	 * The socket this endpoint is wrapped around.
 	 */
@@ -52,29 +122,222 @@ public class Endpoint extends Eventable {
 	private IEndpointHandler manager;
 	
 	/**
-	 * The input data stream on the socket.
+	 * The input stream on the socket.
+	 */
+	private InputStream in=null;
+	
+	/**
+	 * Writes the queued messages to the socket, if this endpoint is not
+	 * driven by an event loop.
+	 */
+	private EndpointWriter writer=null;
+	
+	/**
+	 * Encoded messages waiting to be written to the socket.
+	 */
+	private final OutboundQueue<OutboundFrame> outboundQueue;
+	
+	/**
+	 * Buffers for encoding and decoding, heap buffers for a blocking
+	 * socket or the event loop's direct buffers for a channel.
+	 */
+	private BufferPool pool=BufferPool.getHeapPool();
+	
+	/**
+	 * Frames the queued messages, used by whatever writes to the socket.
+	 * Created when the endpoint starts, along with the decoder.
+	 */
+	private FrameEncoder encoder;
+	
+	/**
+	 * Decodes the frames, used by whatever reads from the socket.
+	 */
+	private FrameDecoder decoder;
+	
+	/**
+	 * The framing that messages queued now will be written with.
+	 */
+	private volatile Framing outputFraming=Framing.LEGACY;
+	
+	/**
+	 * The largest frame the other endpoint accepts, once varint framing
+	 * has been agreed.
+	 */
+	private volatile int otherMaxFrameSize=Framing.maxLegacyLength;
+	
+	/**
+	 * The dictionary of the header strings sent, once both endpoints have
+	 * agreed to it, only used while the output framing is varint.
+	 */
+	private volatile HeaderTable headerTable=null;
+	
+	/**
+	 * Whether messages are sent in the binary encoding, once both
+	 * endpoints have agreed to it, only while the output framing is varint.
+	 */
+	private volatile boolean binaryCodec=false;
+	
+	/**
+	 * The only kind of binary encoding there is.
+	 */
+	private static final String codecBinary="binary";
+	
+	/**
+	 * The buffer a message is first encoded into, in bytes, which grows if
+	 * the message needs more.
+	 */
+	private static final int initialPayloadSize=512;
+	
+	/**
+	 * Whether the other endpoint knows about the modes of event delivery
+	 * other than acking each event, see {@link #getEventDelivery(String)}.
+	 */
+	private volatile boolean eventDelivery=false;
+	
+	/**
+	 * Whether the other endpoint accepts batches of events, see
+	 * {@link #getEventBatchDelay()}.
+	 */
+	private volatile boolean eventBatch=false;
+	
+	/**
+	 * Whether the other endpoint accepts events with typed arguments, see
+	 * {@link #getEventArgs()}.
+	 */
+	private volatile boolean eventArgs=false;
+	
+	/**
+	 * When bytes were last received from the other endpoint, in ms, see
+	 * {@link #getLastReceived()}.
+	 */
+	private volatile long lastReceived=System.currentTimeMillis();
+	
+	/**
+	 * When a frame was last queued to send, in ms, see {@link #getLastSent()}.
+	 */
+	private volatile long lastSent=System.currentTimeMillis();
+	
+	/**
+	 * The only kind of compression there is.
+	 */
+	private static final String compressionDeflate="deflate";
+	
+	/**
+	 * The streams other than the control stream 0, by id.
+	 */
+	private final Map<Integer,Stream> streams=new ConcurrentHashMap<>();
+	
+	/**
+	 * The window the other endpoint gives each stream, or 0 if streams
+	 * have not been agreed.
+	 */
+	private volatile long otherStreamWindow=0;
+	
+	/**
+	 * The next id for a stream opened by this endpoint. The client uses odd
+	 * ids and the server even ids, so they never open the same one.
+	 */
+	private final AtomicInteger nextStreamId=new AtomicInteger();
+	
+	/**
+	 * The highest stream id opened by the other endpoint, only used by the
+	 * thread reading the socket.
+	 */
+	private int otherStreamId=0;
+	
+	/**
+	 * The framing to switch to after the session start reply, as the server.
+	 */
+	private Framing acceptedFraming=null;
+	
+	/**
+	 * Changes of writability waiting to be emitted, in order.
 	 */
-	private DataInputStream in=null;
+	private final Queue<Boolean> writabilityChanges=new ConcurrentLinkedQueue<>();
 	
 	/**
-	 * The output data stream on the socket.
+	 * Set while emitting the changes is scheduled on the timer.
 	 */
-	private DataOutputStream out=null;
+	private final AtomicBoolean emittingWritability=new AtomicBoolean(false);
 	
 	/**
-	 * A protocol name to protocol map, of protocols in use.
+	 * Settings from the manager.
 	 */
-	private Map<String,Protocol> protocols;
+	private final EndpointConfig config;
 	
 	/**
-	 * Timeout id to use.
+	 * Counters for what has been written.
 	 */
-	private long timeoutId=1;
+	private final EndpointMetrics metrics=new EndpointMetrics();
 	
 	/**
-	 * Oustanding ids
+	 * The round trip time to the other endpoint, and the timeout of requests.
 	 */
-	private Set<Long> outstandingIds;
+	private final RoundTripTime roundTripTime;
+	
+	/**
+	 * The replay buffer of the session on the endpoint, if it can be
+	 * resumed, see {@link #getReplayBuffer()}.
+	 */
+	private volatile ReplayBuffer replayBuffer=null;
+	
+	/**
+	 * Whether the session carries on one from an earlier connection.
+	 */
+	private volatile boolean sessionResumed=false;
+	
+	/**
+	 * Event callbacks waiting to run on the callback executor, or null if
+	 * they run on the reading thread.
+	 */
+	private final CallbackQueue callbackQueue;
+	
+	/**
+	 * The socket channel, if this endpoint was created on one.
+	 */
+	private SocketChannel channel=null;
+	
+	/**
+	 * The non-blocking channel I/O, if this endpoint is driven by an
+	 * event loop, or null otherwise.
+	 */
+	private EndpointChannel endpointChannel=null;
+	
+	/**
+	 * The protocols in use on stream 0, indexed by their id in the
+	 * {@link ProtocolRegistry}. The array is replaced, never changed, so
+	 * it is read without locking.
+	 */
+	private volatile Protocol[] protocols=new Protocol[0];
+	
+	/**
+	 * Serializes changes to the protocols in use, on any stream.
+	 */
+	private final ReentrantLock protocolLock=new ReentrantLock();
+	
+	/**
+	 * The id agreed for each protocol when the session started, indexed by
+	 * the protocol's id in the {@link ProtocolRegistry}, or null if the
+	 * other endpoint did not say which protocols it has.
+	 */
+	private volatile int[] sessionProtocolIds=null;
+	
+	/**
+	 * Serializes closing the endpoint.
+	 */
+	private final ReentrantLock closeLock=new ReentrantLock();
+	
+	/**
+	 * Read the messages received, only used by the reading thread.
+	 */
+	private final JsonReader jsonReader=new JsonReader();
+	
+	private final BinaryReader binaryReader=new BinaryReader();
+	
+	/**
+	 * Requests waiting for their replies, by timeout id.
+	 */
+	private final PendingRequests pendingRequests=new PendingRequests(16);
 	
 	/**
 	 * stopped flag
@@ -89,30 +352,468 @@ public class Endpoint extends Eventable {
 	public Endpoint(Socket socket, IEndpointHandler manager) {
 		this.socket = socket;
 		this.manager = manager;
-		protocols = new HashMap<>();
-		outstandingIds = new HashSet<>();
 		setName("Endpoint"); // name the thread
+		if(manager instanceof Worker) {
+			// run on the same kind of thread as the manager
+			setThreadMode(((Worker)manager).getThreadMode());
+		}
+		if(manager instanceof Manager) {
+			config = ((Manager)manager).getEndpointConfig();
+		} else {
+			config = new EndpointConfig();
+		}
+		outboundQueue = new OutboundQueue<>(config.getOutboundQueueCapacity(),
+				config.getOverflowPolicy(),(frame)->frame.payload.remaining(),
+				Priority.values().length,(frame)->frame.priority.ordinal());
+		outboundQueue.setWatermarks(config.getHighWatermark(),config.getLowWatermark(),
+				this::writabilityChanged);
+		callbackQueue = config.getCallbackExecutor()==null ? null
+				: new CallbackQueue(config.getCallbackExecutor(),metrics);
+		roundTripTime = new RoundTripTime(config);
 	}
 	
 	/**
-	 * Send a Message on the socket for this endpoint. This is synchronized
-	 * to avoid multiple concurrent messages overwriting each other on the socket.
-	 * @param msg
-	 * @return true if the message was sent, false otherwise
+	 * Create the encoder and decoder, with buffers from the given pool.
+	 * @param pool
 	 */
-	public synchronized boolean send(Message msg) {
-		if(stopped) return false;
+	private void startFraming(BufferPool pool) {
+		this.pool=pool;
+		encoder = new FrameEncoder(pool,config.getCompressionLevel(),config.getCompressionThreshold());
+		decoder = new FrameDecoder(this,pool,config.getMaxFrameSize());
+	}
+	
+	/**
+	 * Initialise the endpoint with a socket channel and a manager. The
+	 * endpoint must be started using {@link #startOn(EventLoop)} rather than
+	 * {@link #start()}.
+	 * @param channel
+	 * @param manager
+	 */
+	public Endpoint(SocketChannel channel, IEndpointHandler manager) {
+		this(channel.socket(),manager);
+		this.channel=channel;
+	}
+	
+	/**
+	 * Start the endpoint on an event loop, instead of as a thread. The
+	 * manager is told when the endpoint is ready, on the event loop thread.
+	 * @param eventLoop
+	 */
+	public void startOn(EventLoop eventLoop) {
+		setTcpNoDelay();
+		startFraming(eventLoop.getBufferPool());
+		endpointChannel = new EndpointChannel(this,channel,eventLoop,
+				outboundQueue,encoder,decoder,config,metrics);
 		try {
-			log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
-			out.writeUTF(msg.toJsonString());
-			out.flush();
+			endpointChannel.start();
 		} catch (IOException e) {
 			manager.endpointDisconnectedAbruptly(this);
+		}
+	}
+	
+	/**
+	 * Send a Message on the socket for this endpoint. The message is queued
+	 * and written to the socket by the writer, so this only waits if the
+	 * queue is full and the overflow policy is {@link OverflowPolicy#BLOCK},
+	 * and never on an event loop or timer worker thread.
+	 * @param msg
+	 * @return true if the message was queued, false otherwise
+	 */
+	public boolean send(Message msg) {
+		return send(msg,null);
+	}
+	
+	/**
+	 * Send a message, and then switch the framing of the messages sent after
+	 * it, if given.
+	 * @param msg
+	 * @param switchTo the framing to use after this message, or null
+	 * @return true if the message was queued, false otherwise
+	 */
+	private boolean send(Message msg, Framing switchTo) {
+		if(stopped) return false;
+		if(!otherHasProtocol(msg)) {
+			log.warning(getOtherEndpointId()+" does not have protocol "+msg.getProtocolName()+", dropped "+msg.getName());
 			return false;
 		}
+		int streamId=msg.getStreamId();
+		Stream stream=null;
+		if(streamId!=0) {
+			stream=streams.get(streamId);
+			if(stream==null) {
+				log.warning("no stream "+streamId+" to send "+msg.getName()+" on to "+getOtherEndpointId());
+				return false;
+			}
+		}
+		// read once, so that the whole message is encoded for the same framing
+		Framing framing=outputFraming;
+		// the names go in a header coded against the dictionary, if agreed
+		HeaderTable table = framing==Framing.VARINT ? headerTable : null;
+		HeaderTable.Header names=null;
+		String[] fields=null;
+		if(table!=null) {
+			fields=msg.getHeader();
+			names=table.header(fields);
+		}
+		boolean binary = framing==Framing.VARINT && binaryCodec;
+		// messages on other streams start with the stream id
+		int header = (names==null ? 0 : names.length) + (streamId==0 ? 0 : Framing.varintSize(streamId));
+		// encoded once, straight into a pooled buffer that grows as needed, which the writer releases
+		ByteBuffer payload=pool.acquire(header+initialPayloadSize);
+		if(names!=null) names.put(payload);
+		if(streamId!=0) Framing.putVarint(payload, streamId);
+		IMessageWriter writer = binary ? new BinaryWriter(payload,pool) : new JsonWriter(payload,pool);
+		msg.write(writer, fields);
+		payload=writer.getBuffer();
+		payload.flip();
+		// legacy frames are written in modified UTF-8, which may be longer
+		int length = framing==Framing.LEGACY ? Framing.legacyLength(payload) : payload.remaining();
+		int maxLength = framing==Framing.LEGACY ? Framing.maxLegacyLength : otherMaxFrameSize-1;
+		if(length>maxLength) {
+			pool.release(payload);
+			log.warning(msg.getName()+" of "+length+" bytes is too large to send to "+getOtherEndpointId());
+			return false;
+		}
+		log.info("sending "+msg.getName()+" for protocol "+msg.getProtocolName()+" to "+getOtherEndpointId());
+		Priority priority=priorityOf(msg);
+		int flags = (names==null ? 0 : Framing.flagIndexed) | (binary ? Framing.flagBinary : 0);
+		HeaderTable.Entry[] defines = names==null ? null : names.defines();
+		if(stream==null) return queue(new OutboundFrame(Framing.typeJson | flags,payload,priority,switchTo,defines),
+				msg.getName());
+		return sendOnStream(stream,new OutboundFrame(Framing.typeStreamJson | flags,payload,priority,null,defines),
+				msg.getName());
+	}
+	
+	/**
+	 * The lane of the outbound queue for a message: its own priority if it
+	 * has one, else the priority of its event name for an event, else the
+	 * priority of its protocol.
+	 * @param msg
+	 * @return the lane to send the message in
+	 */
+	private Priority priorityOf(Message msg) {
+		if(msg.getPriority()!=null) return msg.getPriority();
+		if(msg instanceof EventRequest) {
+			Priority priority=config.getEventPriority(((EventRequest)msg).getEventName());
+			if(priority!=null) return priority;
+		}
+		return config.getProtocolPriority(msg.getProtocolName());
+	}
+	
+	/**
+	 * @param eventName
+	 * @return how to deliver events with the name: as the endpoint's
+	 * config says if the other endpoint agreed to the modes of delivery
+	 * when the session started, else {@link Delivery#ACKED}
+	 */
+	public Delivery getEventDelivery(String eventName) {
+		return eventDelivery ? config.getEventDelivery(eventName) : Delivery.ACKED;
+	}
+	
+	/**
+	 * @return how long in ms an event may wait to be batched with others,
+	 * as the endpoint's config says if the other endpoint agreed to batches
+	 * when the session started, else 0 for not at all
+	 */
+	public int getEventBatchDelay() {
+		return eventBatch ? config.getEventBatchDelay() : 0;
+	}
+	
+	/**
+	 * @return true if the other endpoint agreed to events with any number
+	 * of typed arguments when the session started, else it only accepts
+	 * events with a single String argument
+	 */
+	public boolean getEventArgs() {
+		return eventArgs;
+	}
+	
+	/**
+	 * @return how many chars of event data a batch is sent at
+	 */
+	public int getEventBatchSize() {
+		return config.getEventBatchSize();
+	}
+	
+	/**
+	 * Queue a frame on a stream, or hold it until the stream's window opens.
+	 * @param stream
+	 * @param frame
+	 * @param name what the frame is, for logging
+	 * @return true if the frame was queued or is being held, false otherwise
+	 */
+	private boolean sendOnStream(Stream stream, OutboundFrame frame, String name) {
+		stream.lock.lock();
+		try {
+			if(stream.closed) {
+				pool.release(frame.payload);
+				return false;
+			}
+			if(!stream.canSend()) {
+				stream.pending.add(frame);
+				stream.blocked=true;
+				return true;
+			}
+			stream.sendWindow-=frame.payload.remaining();
+			return queue(frame,name);
+		} finally {
+			stream.lock.unlock();
+		}
+	}
+	
+	/**
+	 * Queue a frame for writing. The frame's payload is released if it
+	 * could not be queued.
+	 * @param frame
+	 * @param name what the frame is, for logging
+	 * @return true if the frame was queued, false otherwise
+	 */
+	private boolean queue(OutboundFrame frame, String name) {
+		if(!outboundQueue.offer(frame)) {
+			pool.release(frame.payload);
+			if(outboundQueue.isClosed()) return false;
+			switch(outboundQueue.policy()) {
+			case DROP:
+				log.warning("outbound queue is full, dropped "+name+" to "+getOtherEndpointId());
+				break;
+			case FAIL:
+				log.severe("outbound queue is full, "+getOtherEndpointId()+" is not keeping up");
+				manager.endpointDisconnectedAbruptly(this);
+				break;
+			case BLOCK:
+				if(!OutboundQueue.mayWait()) {
+					// an event loop or timer worker can't wait for the queue
+					log.severe("outbound queue is full, "+getOtherEndpointId()+" is not keeping up");
+					manager.endpointDisconnectedAbruptly(this);
+				}
+				// else interrupted while waiting
+				break;
+			}
+			return false;
+		}
+		if(frame.switchTo!=null) outputFraming=frame.switchTo;
+		lastSent=System.currentTimeMillis();
+		if(endpointChannel!=null) endpointChannel.flushLater();
 		return true;
 	}
 	
+	/**
+	 * Queue a frame of the given type whose payload is a stream id,
+	 * followed by a value if it is not negative.
+	 * @param type
+	 * @param streamId
+	 * @param value
+	 * @param priority the lane to queue the frame in
+	 */
+	private void queueStreamFrame(int type, int streamId, int value, Priority priority) {
+		ByteBuffer payload=pool.acquire(2*Framing.maxVarintSize);
+		Framing.putVarint(payload, streamId);
+		if(value>=0) Framing.putVarint(payload, value);
+		payload.flip();
+		queue(new OutboundFrame(type,payload,priority),"stream frame");
+	}
+	
+	/**
+	 * Open a new logical stream to the other endpoint. Messages sent on a
+	 * stream, see {@link Message#setStreamId(int)}, are flow controlled
+	 * separately from those on other streams, so a stream that sends a lot
+	 * does not hold up the others for long. A protocol can be handled on a
+	 * stream by setting its stream id before handling it, in which case the
+	 * other endpoint creates its own instance of the protocol for the stream
+	 * when the first message arrives. Streams are only available once the
+	 * session has started, and if both endpoints agreed to them.
+	 * @return the id of the new stream, or -1 if streams can't be used
+	 */
+	public int openStream() {
+		if(otherStreamWindow==0 || stopped) {
+			log.warning("streams are not available to "+getOtherEndpointId());
+			return -1;
+		}
+		int streamId=nextStreamId.getAndAdd(2);
+		streams.put(streamId, new Stream(streamId,otherStreamWindow));
+		log.info("opened stream "+streamId+" to "+getOtherEndpointId());
+		return streamId;
+	}
+	
+	/**
+	 * Close a stream, stopping the protocols on it. Messages held back by the
+	 * stream's window are dropped, and the other endpoint is told.
+	 * @param streamId
+	 */
+	public void closeStream(int streamId) {
+		// in the last lane, behind what was already queued on the stream
+		if(discardStream(streamId)) queueStreamFrame(Framing.typeStreamClose,streamId,-1,Priority.BULK);
+	}
+	
+	/**
+	 * @param streamId
+	 * @return true if the stream existed
+	 */
+	private boolean discardStream(int streamId) {
+		Stream stream=streams.remove(streamId);
+		if(stream==null) return false;
+		stream.lock.lock();
+		try {
+			stream.closed=true;
+			OutboundFrame frame;
+			while((frame=stream.pending.poll())!=null) pool.release(frame.payload);
+		} finally {
+			stream.lock.unlock();
+		}
+		stopProtocols(stream);
+		log.info("closed stream "+streamId+" to "+getOtherEndpointId());
+		return true;
+	}
+	
+	/**
+	 * @param streamId
+	 * @return false if messages sent on the stream now would have to wait
+	 * for the other endpoint to process what was sent before, until
+	 * {@link #streamWritable} is emitted, or if the stream is not open
+	 */
+	public boolean isWritable(int streamId) {
+		if(streamId==0) return isWritable();
+		Stream stream=streams.get(streamId);
+		if(stream==null) return false;
+		stream.lock.lock();
+		try {
+			return stream.canSend();
+		} finally {
+			stream.lock.unlock();
+		}
+	}
+	
+	/**
+	 * @return false if so much is queued for sending that producers should
+	 * pause until {@link #writableChanged} is emitted
+	 */
+	public boolean isWritable() {
+		return outboundQueue.isWritable();
+	}
+	
+	/**
+	 * The outbound queue crossed a watermark. The event is emitted on a
+	 * timer thread rather than on the thread that crossed it, which may be
+	 * the writer or an event loop, or a sender that holds the lock of an
+	 * emit in progress. Every change is emitted, in order, so the last one
+	 * emitted always matches {@link #isWritable()}.
+	 * @param writable
+	 */
+	private void writabilityChanged(boolean writable) {
+		if(outboundQueue.isClosed()) return;
+		writabilityChanges.add(writable);
+		if(!emittingWritability.compareAndSet(false, true)) return;
+		Utils.getInstance().setTimeout(()->{
+			do {
+				emittingWritability.set(false);
+				Boolean change;
+				while((change=writabilityChanges.poll())!=null) {
+					log.info("endpoint to "+getOtherEndpointId()+" is now "+(change?"writable":"unwritable"));
+					localEmit(writableChanged,change);
+				}
+				// a change may have been added after the last poll
+			} while(!writabilityChanges.isEmpty() && emittingWritability.compareAndSet(false, true));
+		}, 0);
+	}
+	
+	/**
+	 * @return the number of messages queued but not yet written to the socket
+	 */
+	public int getOutboundQueueDepth() {
+		return outboundQueue.depth();
+	}
+	
+	/**
+	 * @return the maximum number of messages that can be queued
+	 */
+	public int getOutboundQueueCapacity() {
+		return outboundQueue.capacity();
+	}
+	
+	/**
+	 * Give an event received from the other endpoint to its callbacks, on
+	 * the callback executor after the events received before it, or
+	 * straight away if there is no callback executor.
+	 * @param eventName
+	 * @param args
+	 */
+	public void receivedEvent(String eventName, Object... args) {
+		if(callbackQueue==null) {
+			localEmit(eventName,args);
+		} else {
+			callbackQueue.execute(()->localEmit(eventName,args));
+		}
+	}
+	
+	/**
+	 * @return the number of received events waiting for their callbacks to
+	 * run, or 0 if there is no callback executor
+	 */
+	public int getCallbackQueueSize() {
+		return callbackQueue==null ? 0 : callbackQueue.size();
+	}
+	
+	/**
+	 * @return the counters for what this endpoint has written
+	 */
+	public EndpointMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the round trip time to the other endpoint, as measured from
+	 * the replies to requests so far
+	 */
+	public RoundTripTime getRoundTripTime() {
+		return roundTripTime;
+	}
+	
+	/**
+	 * @return how long in ms protocols should wait for the reply to a
+	 * request, worked out from the round trip time
+	 */
+	public int getTimeout() {
+		return roundTripTime.getTimeout();
+	}
+	
+	/**
+	 * @return the replay buffer of the session on the endpoint, or null if
+	 * the session can't be resumed. Before the session starts, as the client,
+	 * it is the buffer of the session to try to resume, if any.
+	 */
+	public ReplayBuffer getReplayBuffer() {
+		return replayBuffer;
+	}
+	
+	/**
+	 * Set by the session protocol, and by the client manager to resume a
+	 * session.
+	 * @param replayBuffer
+	 * @param sessionResumed true if the session carries on one from an
+	 * earlier connection
+	 */
+	public void setReplayBuffer(ReplayBuffer replayBuffer, boolean sessionResumed) {
+		this.replayBuffer=replayBuffer;
+		this.sessionResumed=sessionResumed;
+	}
+	
+	/**
+	 * @return true if the session on the endpoint carries on one from an
+	 * earlier connection, whose events that were not received have been
+	 * sent again, so that the application does not need to start over
+	 */
+	public boolean isSessionResumed() {
+		return sessionResumed;
+	}
+	
+	private void setTcpNoDelay() {
+		try {
+			socket.setTcpNoDelay(config.getTcpNoDelay());
+		} catch (SocketException e) {
+			log.warning("could not set TCP_NODELAY: "+e.getMessage());
+		}
+	}
+	
 	/**
 	 * Send a message and attach a timeout identifier to it. The callback
 	 * is triggered if no reply to the message was seen within the given
@@ -122,23 +823,36 @@ public class Endpoint extends Eventable {
 	 * @param timeInterval
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendWithTimeout(Message msg,
+	public boolean sendWithTimeout(Message msg,
 			ICallback timeoutCallback,int timeInterval) {
-		long nextId = timeoutId++;
-		synchronized(outstandingIds) {
-			outstandingIds.add(nextId);
+		return sendWithTimeout(msg,timeoutCallback,timeInterval,null);
+	}
+	
+	/**
+	 * Send a message and attach a timeout identifier to it. If a reply is
+	 * received in time, it is given to the continuation rather than to the
+	 * protocol's {@link IRequestReplyProtocol#receiveReply(Message)}, on the
+	 * thread that reads the messages, otherwise the timeout callback is
+	 * triggered. A reply that arrives after the timeout goes to the protocol.
+	 * @param msg
+	 * @param timeoutCallback
+	 * @param timeInterval
+	 * @param continuation given the reply, or null to give it to the protocol
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendWithTimeout(Message msg,
+			ICallback timeoutCallback,int timeInterval,IReplyCallback continuation) {
+		PendingRequests.Request request=pendingRequests.add(continuation);
+		long id=request.id;
+		msg.setTimeoutId(id);
+		if(!send(msg)) {
+			pendingRequests.remove(id);
+			return false;
 		}
-		msg.setTimeoutId(nextId);
-		boolean sent=send(msg);
-		if(!sent) return false;
-		Utils.getInstance().setTimeout(()->{
-			boolean timedout;
-			synchronized(outstandingIds) {
-				timedout=outstandingIds.contains(nextId);
-			}
-			if(timedout) timeoutCallback.callback();
-		}, timeInterval);
-		return sent;
+		request.setTimeout(Utils.getInstance().setTimeout(()->{
+			if(pendingRequests.remove(id)!=null) timeoutCallback.callback();
+		}, timeInterval));
+		return true;
 	}
 	
 	/**
@@ -149,18 +863,257 @@ public class Endpoint extends Eventable {
 	 * @param replyingTo
 	 * @return true if the message was sent and false otherwise
 	 */
-	public synchronized boolean sendAndCancelTimeout(Message msg,
+	public boolean sendAndCancelTimeout(Message msg,
 			Message replyingTo) {
 		msg.setTimeoutId(replyingTo.getTimeoutId());
+		// replies go on the stream, and in the lane, of the request
+		msg.setStreamId(replyingTo.getStreamId());
+		if(msg.getPriority()==null) msg.setPriority(priorityOf(replyingTo));
 		return(send(msg));
 	}
 	
+	/**
+	 * The capabilities of this endpoint, that the client offers in its
+	 * session start request.
+	 * @return the capabilities
+	 */
+	public Document getCapabilities() {
+		Document capabilities = new Document();
+		capabilities.append("protocols", ProtocolRegistry.getInstance().getProtocolNames());
+		capabilities.append("eventDelivery", true);
+		capabilities.append("eventBatch", true);
+		capabilities.append("eventArgs", true);
+		if(config.getFraming()==Framing.VARINT) {
+			capabilities.append("framing", Framing.VARINT.toString());
+			capabilities.append("maxFrameSize", config.getMaxFrameSize());
+			if(config.getCompression()) capabilities.append("compression", compressionDeflate);
+			if(config.getStreamWindow()>0) capabilities.append("streamWindow", config.getStreamWindow());
+			if(config.getHeaderTableSize()>0) capabilities.append("headerTable", config.getHeaderTableSize());
+			if(config.getBinaryCodec()) capabilities.append("codec", codecBinary);
+		}
+		return capabilities;
+	}
+	
+	/**
+	 * Choose which of the capabilities offered by a client to use, as
+	 * the server. The chosen capabilities must be sent back to the client
+	 * in the session start reply, using {@link #sendAndUseCapabilities(Message, Message)}.
+	 * Must be called while receiving the session start request.
+	 * @param offered the capabilities the client offered
+	 * @return the chosen capabilities
+	 */
+	public Document acceptCapabilities(Document offered) {
+		Document accepted = new Document();
+		if(offered.get("protocols") instanceof ArrayList) {
+			ArrayList<String> agreed=new ArrayList<>();
+			for(Object name : (ArrayList<?>)offered.get("protocols")) {
+				if(name instanceof String && ProtocolRegistry.getInstance().getProtocolId((String)name)!=-1
+						&& !agreed.contains(name)) agreed.add((String)name);
+			}
+			accepted.append("protocols", agreed);
+			useProtocols(agreed);
+		}
+		if(Boolean.TRUE.equals(offered.get("eventDelivery"))) {
+			accepted.append("eventDelivery", true);
+			eventDelivery=true;
+		}
+		if(Boolean.TRUE.equals(offered.get("eventBatch"))) {
+			accepted.append("eventBatch", true);
+			eventBatch=true;
+		}
+		if(Boolean.TRUE.equals(offered.get("eventArgs"))) {
+			accepted.append("eventArgs", true);
+			eventArgs=true;
+		}
+		if(config.getFraming()==Framing.VARINT
+				&& Framing.VARINT.toString().equals(offered.get("framing"))
+				&& offered.get("maxFrameSize") instanceof Long) {
+			accepted.append("framing", Framing.VARINT.toString());
+			accepted.append("maxFrameSize", config.getMaxFrameSize());
+			otherMaxFrameSize=(int)Math.min(offered.getLong("maxFrameSize"),Integer.MAX_VALUE);
+			acceptedFraming=Framing.VARINT;
+			log.info("using varint framing with "+getOtherEndpointId());
+			// the client marks the switch with an empty legacy frame
+			decoder.switchOnMarker(Framing.VARINT);
+			if(config.getCompression() && compressionDeflate.equals(offered.get("compression"))) {
+				accepted.append("compression", compressionDeflate);
+				log.info("using compression with "+getOtherEndpointId());
+				// only frames after the reply are varint, so only they are compressed
+				encoder.compress();
+				decoder.inflate();
+			}
+			if(config.getStreamWindow()>0 && offered.get("streamWindow") instanceof Long
+					&& offered.getLong("streamWindow")>0) {
+				accepted.append("streamWindow", config.getStreamWindow());
+				useStreams(offered.getLong("streamWindow"),2);
+			}
+			if(config.getHeaderTableSize()>0 && offered.get("headerTable") instanceof Long
+					&& offered.getLong("headerTable")>0) {
+				// the same size both ways, so neither can be sent more than it holds
+				int size=(int)Math.min(offered.getLong("headerTable"),config.getHeaderTableSize());
+				accepted.append("headerTable", size);
+				useHeaderTable(size);
+			}
+			if(config.getBinaryCodec() && codecBinary.equals(offered.get("codec"))) {
+				accepted.append("codec", codecBinary);
+				useBinaryCodec();
+			}
+		}
+		return accepted;
+	}
+	
+	/**
+	 * Send the session start reply, as the server, and then use the
+	 * capabilities in it for every message sent after it.
+	 * @param msg the session start reply
+	 * @param replyingTo the session start request
+	 * @return true if the message was sent and false otherwise
+	 */
+	public boolean sendAndUseCapabilities(Message msg, Message replyingTo) {
+		msg.setTimeoutId(replyingTo.getTimeoutId());
+		return send(msg,acceptedFraming);
+	}
+	
+	/**
+	 * Use the capabilities chosen by the server, as the client. Must be
+	 * called while receiving the session start reply.
+	 * @param accepted the capabilities in the session start reply
+	 */
+	public void useCapabilities(Document accepted) {
+		if(accepted.get("protocols") instanceof ArrayList) {
+			ArrayList<String> agreed=new ArrayList<>();
+			for(Object name : (ArrayList<?>)accepted.get("protocols")) {
+				if(name instanceof String) agreed.add((String)name);
+			}
+			useProtocols(agreed);
+		}
+		if(Boolean.TRUE.equals(accepted.get("eventDelivery"))) eventDelivery=true;
+		if(Boolean.TRUE.equals(accepted.get("eventBatch"))) eventBatch=true;
+		if(Boolean.TRUE.equals(accepted.get("eventArgs"))) eventArgs=true;
+		if(!Framing.VARINT.toString().equals(accepted.get("framing"))
+				|| !(accepted.get("maxFrameSize") instanceof Long)) return;
+		otherMaxFrameSize=(int)Math.min(accepted.getLong("maxFrameSize"),Integer.MAX_VALUE);
+		log.info("using varint framing with "+getOtherEndpointId());
+		// everything after the reply is in varint framing
+		decoder.switchTo(Framing.VARINT);
+		if(compressionDeflate.equals(accepted.get("compression"))) {
+			log.info("using compression with "+getOtherEndpointId());
+			// only frames after the marker are varint, so only they are compressed
+			encoder.compress();
+			decoder.inflate();
+		}
+		if(accepted.get("streamWindow") instanceof Long && accepted.getLong("streamWindow")>0) {
+			useStreams(accepted.getLong("streamWindow"),1);
+		}
+		if(accepted.get("headerTable") instanceof Long && accepted.getLong("headerTable")>0
+				&& accepted.getLong("headerTable")<=config.getHeaderTableSize()) {
+			useHeaderTable((int)accepted.getLong("headerTable"));
+		}
+		if(config.getBinaryCodec() && codecBinary.equals(accepted.get("codec"))) {
+			useBinaryCodec();
+		}
+		// mark our own switch with an empty legacy frame
+		ByteBuffer marker=pool.acquire(0);
+		marker.flip();
+		if(outboundQueue.offer(new OutboundFrame(Framing.typeJson,marker,Priority.CONTROL,Framing.VARINT))) {
+			outputFraming=Framing.VARINT;
+			if(endpointChannel!=null) endpointChannel.flushLater();
+		} else {
+			pool.release(marker);
+		}
+	}
+	
+	/**
+	 * Number the protocols that both endpoints have, in the order agreed.
+	 * @param agreed the names of the protocols
+	 */
+	private void useProtocols(ArrayList<String> agreed) {
+		ProtocolRegistry registry=ProtocolRegistry.getInstance();
+		int[] ids=new int[registry.getNumProtocols()];
+		Arrays.fill(ids, -1);
+		for(int i=0;i<agreed.size();i++) {
+			int protocolId=registry.getProtocolId(agreed.get(i));
+			if(protocolId!=-1) ids[protocolId]=i;
+		}
+		log.info("using protocols "+agreed+" with "+getOtherEndpointId());
+		sessionProtocolIds=ids;
+	}
+	
+	/**
+	 * @param protocolName
+	 * @return the id both endpoints gave the protocol when the session
+	 * started, or -1 if the other endpoint does not have it or did not say
+	 * which protocols it has
+	 */
+	public int getSessionProtocolId(String protocolName) {
+		int[] ids=sessionProtocolIds;
+		int protocolId=ProtocolRegistry.getInstance().getProtocolId(protocolName);
+		if(ids==null || protocolId==-1 || protocolId>=ids.length) return -1;
+		return ids[protocolId];
+	}
+	
+	/**
+	 * @param msg
+	 * @return false if the other endpoint said which protocols it has when
+	 * the session started and the message's protocol is not one of them
+	 */
+	private boolean otherHasProtocol(Message msg) {
+		int[] ids=sessionProtocolIds;
+		if(ids==null) return true;
+		int protocolId=msg.getProtocolId();
+		return protocolId!=-1 && protocolId<ids.length && ids[protocolId]!=-1;
+	}
+	
+	/**
+	 * Allow streams, once both endpoints have agreed to them.
+	 * @param window the window the other endpoint gives each stream
+	 * @param firstStreamId the id of the first stream this endpoint opens
+	 */
+	private void useStreams(long window, int firstStreamId) {
+		log.info("using streams with "+getOtherEndpointId());
+		nextStreamId.set(firstStreamId);
+		decoder.streams();
+		otherStreamWindow=window;
+	}
+	
+	/**
+	 * Code message headers against a dictionary, once both endpoints have
+	 * agreed to it. Messages are only sent with it once the output framing
+	 * is varint.
+	 * @param size the most strings each direction's dictionary holds
+	 */
+	private void useHeaderTable(int size) {
+		log.info("using a header table of "+size+" with "+getOtherEndpointId());
+		decoder.index(new HeaderTable(size,true));
+		headerTable=new HeaderTable(size,false);
+	}
+	
+	/**
+	 * Send messages in the binary encoding, once both endpoints have
+	 * agreed to it. Messages are only sent with it once the output framing
+	 * is varint.
+	 */
+	private void useBinaryCodec() {
+		log.info("using the binary codec with "+getOtherEndpointId());
+		decoder.binary();
+		binaryCodec=true;
+	}
+	
 	/**
 	 * Closes the endpoint, which closes the socket. Both the endpoint thread
 	 * and the timer thread may end up attempting to do this in the event that
 	 * they detect problems.
 	 */
-	public synchronized void close() {
+	public void close() {
+		closeLock.lock();
+		try {
+			closeLocked();
+		} finally {
+			closeLock.unlock();
+		}
+	}
+	
+	private void closeLocked() {
 		// we are stopping this endpoint, the send method will return false always now.
 		stopped=true;
 		/* 
@@ -168,132 +1121,334 @@ public class Endpoint extends Eventable {
 		* their intended function however - and this should be flagged as an error
 		* if it is the case.
 		*/
-		Set<String> protocolNames;
-		synchronized(protocols) {
-			protocolNames = new HashSet<String>(protocols.keySet());
-		}
-		if(protocolNames!=null)
-			protocolNames.forEach((protocolName)->{stopProtocol(protocolName);});
+		stopProtocols(null);
+		new HashSet<Integer>(streams.keySet()).forEach(this::discardStream);
+		// no replies can arrive now
+		pendingRequests.clear();
 		
 		/*
-		 *  The endpoint thread itself will not process any more messages if we
-		 *  interrupt it.
-		 *  Note that it currently may be processing a message, indeed it may
-		 *  be this thread and interrupting itself.
-		 */
-		interrupt();
-		
-		/**
-		 * At this point there may be exactly one _currently executing_ timer
-		 * thread callback (which is a pain, but it can't be inside the
-		 * send methods because these methods are synchronized), plus there may
-		 * be pending timer thread callbacks that will want to use this endpoint
-		 * (which wont run since protocol stopped has been set in the protocols).
-		 * The endpoint is at this point just "closing", not closed.
+		 * No more messages can be queued. The messages that are already
+		 * queued, such as a final reply, are written and then the socket is
+		 * closed, or it is closed anyway after the close timeout. The endpoint
+		 * thread will not process any more messages, and terminates when the
+		 * socket is closed.
 		 */
-		
-		try {
-			if(out!=null) out.close();
-			out=null;
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
-		}
-		try {
-			socket.close();
-		} catch (IOException e) {
-			log.warning("socket did not close properly: "+e.getMessage());
+		log.info("closing endpoint to "+getOtherEndpointId()+", written "+metrics+", "+pool);
+		outboundQueue.close();
+		if(endpointChannel!=null) {
+			endpointChannel.close(config.getCloseTimeout());
+		} else if(writer!=null) {
+			writer.close(config.getCloseTimeout());
+		} else {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				log.warning("socket did not close properly: "+e.getMessage());
+			}
 		}
 		manager.endpointClosed(this);
 	}
 	
 	/**
-	 * Continue to read messages from the socket until interrupted.
+	 * Continue to read messages from the socket until the endpoint is closed.
 	 */
 	@Override
 	public void run() {
 		try {
-			in = new DataInputStream(socket.getInputStream());
-			out = new DataOutputStream(socket.getOutputStream());
+			in = socket.getInputStream();
+			startFraming(BufferPool.getHeapPool());
+			writer = new EndpointWriter(this,outboundQueue,encoder,pool,socket.getOutputStream(),socket,
+					config,metrics);
 		} catch (IOException e){
 			manager.endpointDisconnectedAbruptly(this);
 			return;
 		}
-		stopped=false; // allow use of the out stream
+		setTcpNoDelay();
+		writer.start();
+		stopped=false; // allow messages to be sent
 		manager.endpointReady(this);
 		log.info("endpoint has started to: "+getOtherEndpointId());
-		while(!isInterrupted()) {
+		while(!stopped) {
 			try {
-				String line=in.readUTF();
-				Message msg = Message.toMessage(line);
-				// cancel any related time out
-				if(msg.getType()==Message.Type.Reply) {
-					synchronized(outstandingIds) {
-						outstandingIds.remove(msg.getTimeoutId());
-					}
-				}
-				// find the protocol
-				Protocol protocol=null;
-				synchronized(protocols) {
-					protocol=protocols.get(msg.getProtocolName());
-				}
-				if(protocol==null) {
-					switch(msg.getProtocolName()) {
-					case SessionProtocol.protocolName:
-						protocol=new SessionProtocol(this,(ISessionProtocolHandler)manager);
-						break;
-					case KeepAliveProtocol.protocolName:
-						protocol=new KeepAliveProtocol(this,(IKeepAliveProtocolHandler)manager);
-						break;
-					case EventProtocol.protocolName:
-						protocol=new EventProtocol(this,(IEventProtocolHandler)manager);
-					}
-					if(!manager.protocolRequested(this,protocol)) {
-						log.info("message dropped due to no protocol available: "+line);
-						continue;
-					}
-				}
-				log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
-				switch(msg.getType()) {
-				case Request:
-					((IRequestReplyProtocol)protocol).receiveRequest(msg);
-					break;
-				case Reply:
-					((IRequestReplyProtocol)protocol).receiveReply(msg);
+				if(!decoder.readFrom(in)) {
+					channelFailed();
 					break;
 				}
 			} catch (IOException e) {
-				manager.endpointDisconnectedAbruptly(this);
+				channelFailed();
 				// we can't continue here
 				break;
-			} catch (InvalidMessage e) {
-				manager.endpointSentInvalidMessage(this);
-				// up to the client what to do
 			}
+			// stops early if the endpoint is closed
+			if(!decoder.decode()) break;
 		}
+		decoder.close();
 		try {
-			in.close();
-		} catch (IOException e) {
-			log.warning("connection did not close properly: "+e.getMessage());
+			// the writer closes the socket once the queue is written
+			writer.join();
+		} catch (InterruptedException e) {
+			writer.interrupt();
 		}
 		log.info("endpoint has terminated to: "+getOtherEndpointId());
 	}
 	
+	/**
+	 * Process a received message, in UTF-8 JSON or the binary encoding, by
+	 * passing it to the appropriate protocol. Called by the endpoint thread,
+	 * or by the event loop when the endpoint was started on one. The message
+	 * is read straight from the bytes, which are only valid during the call.
+	 * @param bytes
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @param header pairs of keys and values of the fields sent in the
+	 * frame's header, or null
+	 * @param binary true if it is in the binary encoding
+	 */
+	void receive(byte[] bytes, int offset, int length, String[] header, boolean binary) {
+		receive(bytes,offset,length,0,header,binary);
+	}
+	
+	/**
+	 * Process a message received on a stream other than 0, and give the
+	 * bytes back to the other endpoint once enough have been processed.
+	 * @param bytes
+	 * @param offset
+	 * @param length
+	 * @param streamId
+	 * @param size the bytes the frame took from the stream's window
+	 * @param header pairs of keys and values of the header fields, or null
+	 * @param binary true if it is in the binary encoding
+	 */
+	void receive(byte[] bytes, int offset, int length, int streamId, int size, String[] header, boolean binary) {
+		Stream stream=streams.get(streamId);
+		if(stream==null) {
+			if(streamId%2==nextStreamId.get()%2 || streamId<=otherStreamId) {
+				// one that has been closed, what was in flight is dropped
+				return;
+			}
+			// the other endpoint opened it
+			otherStreamId=streamId;
+			stream=new Stream(streamId,otherStreamWindow);
+			streams.put(streamId, stream);
+		}
+		receive(bytes,offset,length,streamId,header,binary);
+		stream.consumed+=size;
+		if(stream.consumed>=config.getStreamWindow()/2 && !stopped && streams.containsKey(streamId)) {
+			queueStreamFrame(Framing.typeWindowUpdate,streamId,stream.consumed,Priority.CONTROL);
+			stream.consumed=0;
+		}
+	}
+	
+	/**
+	 * The other endpoint has processed bytes sent on a stream, so send
+	 * what was waiting for them.
+	 * @param streamId
+	 * @param increment
+	 */
+	void windowUpdate(int streamId, int increment) {
+		Stream stream=streams.get(streamId);
+		if(stream==null) return;
+		boolean writable;
+		stream.lock.lock();
+		try {
+			stream.sendWindow+=increment;
+			while(!stream.pending.isEmpty() && stream.sendWindow>0 && !stream.closed) {
+				OutboundFrame frame=stream.pending.poll();
+				stream.sendWindow-=frame.payload.remaining();
+				queue(frame,"message");
+			}
+			writable=stream.blocked && stream.canSend();
+			if(writable) stream.blocked=false;
+		} finally {
+			stream.lock.unlock();
+		}
+		if(writable) {
+			Utils.getInstance().setTimeout(()->{
+				localEmit(streamWritable,streamId);
+			}, 0);
+		}
+	}
+	
+	/**
+	 * The other endpoint closed a stream.
+	 * @param streamId
+	 */
+	void streamClosedByOther(int streamId) {
+		discardStream(streamId);
+	}
+	
+	private void receive(byte[] bytes, int offset, int length, int streamId, String[] header, boolean binary) {
+		try {
+			IMessageReader reader = binary ? binaryReader : jsonReader;
+			Message msg = Message.toMessage(reader.reset(bytes,offset,length),header);
+			msg.setStreamId(streamId);
+			// cancel any related time out, and give the reply to whoever is waiting for it
+			if(msg.getType()==Message.Type.Reply) {
+				PendingRequests.Request request=pendingRequests.remove(msg.getTimeoutId());
+				if(request!=null) roundTripTime.sample(System.nanoTime()-request.made);
+				if(request!=null && request.continuation!=null) {
+					log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+					request.continuation.callback(msg);
+					return;
+				}
+			}
+			// find the protocol
+			int protocolId=msg.getProtocolId();
+			if(protocolId==-1) {
+				log.info("message dropped due to unknown protocol: "+msg.getProtocolName());
+				return;
+			}
+			Protocol protocol=getProtocol(protocolId,streamId);
+			if(protocol==null) {
+				protocol=ProtocolRegistry.getInstance().createProtocol(protocolId,this,manager,streamId);
+				if(protocol==null) {
+					log.info("message dropped due to no protocol for stream "+streamId+": "+msg.getProtocolName());
+					return;
+				}
+				if(!manager.protocolRequested(this,protocol)) {
+					log.info("message dropped due to no protocol available: "+msg.getProtocolName());
+					return;
+				}
+			}
+			log.info("received "+msg.getName()+" for protocol "+msg.getProtocolName()+" from "+getOtherEndpointId());
+			switch(msg.getType()) {
+			case Request:
+				((IRequestReplyProtocol)protocol).receiveRequest(msg);
+				break;
+			case Reply:
+				((IRequestReplyProtocol)protocol).receiveReply(msg);
+				break;
+			}
+		} catch (InvalidMessage e) {
+			manager.endpointSentInvalidMessage(this);
+			// up to the client what to do
+		}
+	}
+	
+	/**
+	 * @return when bytes were last received from the other endpoint, in ms
+	 * since the epoch, or when the endpoint was made if none have been.
+	 * Any frame shows that the other endpoint is alive, so keep alives are
+	 * only needed when there are none.
+	 */
+	public long getLastReceived() {
+		return lastReceived;
+	}
+	
+	/**
+	 * @return when a frame was last queued to send to the other endpoint,
+	 * in ms since the epoch, or when the endpoint was made if none have been
+	 */
+	public long getLastSent() {
+		return lastSent;
+	}
+	
+	/**
+	 * Note that bytes were received, by the thread reading them.
+	 */
+	void bytesReceived() {
+		lastReceived=System.currentTimeMillis();
+	}
+	
+	/**
+	 * @return true if the endpoint has not started or has been closed
+	 */
+	public boolean isStopped() {
+		return stopped;
+	}
+	
+	/**
+	 * The channel has been registered with its event loop.
+	 */
+	void channelReady() {
+		stopped=false; // allow use of the channel
+		manager.endpointReady(this);
+		log.info("endpoint has started to: "+getOtherEndpointId());
+	}
+	
+	/**
+	 * The socket or channel could not be read from or written to.
+	 */
+	void channelFailed() {
+		if(stopped) return;
+		manager.endpointDisconnectedAbruptly(this);
+	}
+	
+	/**
+	 * The channel received a frame that could not be decoded.
+	 */
+	void channelSentInvalidFrame() {
+		manager.endpointSentInvalidMessage(this);
+	}
+	
+	/**
+	 * @param streamId
+	 * @return the protocols in use on a stream, indexed by id, or null if
+	 * the stream is not open
+	 */
+	private Protocol[] protocolsOn(int streamId) {
+		if(streamId==0) return protocols;
+		Stream stream=streams.get(streamId);
+		return stream==null ? null : stream.protocols;
+	}
+	
+	/**
+	 * @param protocolId
+	 * @param streamId
+	 * @return the protocol with the id on the stream, or null if it is not
+	 * being handled
+	 */
+	private Protocol getProtocol(int protocolId, int streamId) {
+		Protocol[] table=protocolsOn(streamId);
+		return table==null || protocolId>=table.length ? null : table[protocolId];
+	}
+	
+	/**
+	 * Replace the protocol with the given id on a stream, must hold the
+	 * protocol lock.
+	 * @param protocolId
+	 * @param streamId
+	 * @param protocol the protocol, or null to remove it
+	 * @return false if the stream is not open
+	 */
+	private boolean setProtocol(int protocolId, int streamId, Protocol protocol) {
+		Protocol[] table=protocolsOn(streamId);
+		if(table==null) return false;
+		table=Arrays.copyOf(table, Math.max(table.length,protocolId+1));
+		table[protocolId]=protocol;
+		if(streamId==0) {
+			protocols=table;
+		} else {
+			streams.get(streamId).protocols=table;
+		}
+		return true;
+	}
+	
 	/**
 	 * Start handling a protocol. Only one instance of a protocol can be handled
-	 * at a time. Either client or server may start/initiate the use of the protocol.
+	 * at a time on each stream, see {@link Protocol#setStreamId(int)}. Either
+	 * client or server may start/initiate the use of the protocol. The
+	 * protocol must be in the {@link ProtocolRegistry}.
 	 * @see {@link pb.protocols.Protocol}
 	 * @param protocol the protocol to handle
 	 * @throws ProtocolAlreadyRunning if there is already an instance of this protocol
 	 * running on this endpoint
 	 */
 	public void handleProtocol(Protocol protocol) throws ProtocolAlreadyRunning {
-		synchronized(protocols) {
-			if(protocols.containsKey(protocol.getProtocolName())){
-				throw new ProtocolAlreadyRunning();
-			} else {
-				protocols.put(protocol.getProtocolName(),protocol);
-				log.info("now handling protocol: "+protocol.getProtocolName());
+		int protocolId=ProtocolRegistry.getInstance().getProtocolId(protocol.getProtocolName());
+		if(protocolId==-1)
+			throw new IllegalArgumentException("protocol is not registered: "+protocol.getProtocolName());
+		int streamId=protocol.getStreamId();
+		protocolLock.lock();
+		try {
+			if(getProtocol(protocolId,streamId)!=null) throw new ProtocolAlreadyRunning();
+			if(!setProtocol(protocolId,streamId,protocol)) {
+				log.warning("no stream "+streamId+" to handle protocol "+protocol.getProtocolName()+" on");
+				return;
 			}
+			log.info("now handling protocol: "+protocol.getProtocolName()+" on stream "+streamId);
+		} finally {
+			protocolLock.unlock();
 		}
 	}
 	
@@ -304,13 +1459,54 @@ public class Endpoint extends Eventable {
 	 * @param protocolName the protocol name to stop
 	 */
 	public void stopProtocol(String protocolName) {
-		synchronized(protocols) {
-			if(!protocols.containsKey(protocolName)) {
-				log.warning("no instance of protocol to stop: "+protocolName);
-				return;
+		stopProtocol(protocolName,0);
+	}
+	
+	/**
+	 * Stop a protocol that is being handled on a stream.
+	 * @param protocolName
+	 * @param streamId
+	 */
+	public void stopProtocol(String protocolName, int streamId) {
+		int protocolId=ProtocolRegistry.getInstance().getProtocolId(protocolName);
+		Protocol protocol=null;
+		if(protocolId!=-1) {
+			protocolLock.lock();
+			try {
+				protocol=getProtocol(protocolId,streamId);
+				if(protocol!=null) setProtocol(protocolId,streamId,null);
+			} finally {
+				protocolLock.unlock();
 			}
-			protocols.get(protocolName).stopProtocol();
-			protocols.remove(protocolName);
+		}
+		if(protocol==null) {
+			log.warning("no instance of protocol to stop: "+protocolName+" on stream "+streamId);
+			return;
+		}
+		protocol.stopProtocol();
+	}
+	
+	/**
+	 * Stop all of the protocols on a stream, which must no longer be open
+	 * unless it is stream 0.
+	 * @param stream the stream, or null for stream 0
+	 */
+	private void stopProtocols(Stream stream) {
+		Protocol[] table;
+		protocolLock.lock();
+		try {
+			if(stream==null) {
+				table=protocols;
+				protocols=new Protocol[0];
+			} else {
+				table=stream.protocols;
+				stream.protocols=new Protocol[0];
+			}
+		} finally {
+			protocolLock.unlock();
+		}
+		for(Protocol protocol : table) {
+			if(protocol!=null) protocol.stopProtocol();
 		}
 	}
 	
@@ -329,8 +1525,17 @@ public class Endpoint extends Eventable {
 	 * otherwise
 	 */
 	public Protocol getProtocol(String string) {
-		synchronized(protocols) {
-			return protocols.get(string);
-		}
+		return getProtocol(string,0);
+	}
+	
+	/**
+	 * @param protocolName
+	 * @param streamId
+	 * @return the protocol with the given name on the stream, if it is being
+	 * handled or null otherwise
+	 */
+	public Protocol getProtocol(String protocolName, int streamId) {
+		int protocolId=ProtocolRegistry.getInstance().getProtocolId(protocolName);
+		return protocolId==-1 ? null : getProtocol(protocolId,streamId);
 	}
 }
@@ -0,0 +1,267 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+
+/**
+ * The non-blocking I/O for an {@link Endpoint} that is driven by an
+ * {@link EventLoop}. Frames on the wire are exactly the same as those of
+ * a blocking endpoint, see {@link Framing}, so either side of a connection
+ * can use either model.
+ * <br/>
+ * Reads happen on the event loop thread and the {@link FrameDecoder} hands
+ * each complete frame to the endpoint. The endpoint queues frames from any
+ * thread on its
+ * {@link OutboundQueue} and the event loop writes them out when the
+ * channel is writable. Frames are written with gathering writes, as many as
+ * fit in the coalesce byte budget at a time, and with a coalesce delay the
+ * write waits that long for more frames to be queued, unless the budget is
+ * reached first. The frames are encoded into direct buffers from the event
+ * loop's {@link BufferPool}, so the channel writes them without copying,
+ * and each goes back to the pool once it has been written.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.EventLoop}
+ * @author aaron
+ *
+ */
+class EndpointChannel implements ISelectionHandler {
+	private static Logger log = Logger.getLogger(EndpointChannel.class.getName());
+
+	private final Endpoint endpoint;
+
+	private final SocketChannel channel;
+
+	private final EventLoop eventLoop;
+
+	private SelectionKey key;
+
+	/**
+	 * Only ever used on the event loop thread.
+	 */
+	private final FrameDecoder decoder;
+
+	/**
+	 * Frames waiting to be written.
+	 */
+	private final OutboundQueue<OutboundFrame> writeQueue;
+
+	/**
+	 * Only ever used on the event loop thread.
+	 */
+	private final FrameEncoder encoder;
+
+	/**
+	 * Most frames handed to one gathering write.
+	 */
+	private static final int maxGather = 64;
+
+	/**
+	 * Frames taken from the queue and being written, the first may have
+	 * been partly written.
+	 */
+	private final ArrayDeque<ByteBuffer> writing=new ArrayDeque<>();
+
+	/**
+	 * The bytes left to write in the frames being written.
+	 */
+	private long writingBytes=0;
+
+	/**
+	 * Reused for every gathering write.
+	 */
+	private final ByteBuffer[] gather=new ByteBuffer[maxGather];
+
+	private final EndpointMetrics metrics;
+
+	/**
+	 * The event loop's direct buffers, which the frames are encoded into.
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * How long in ms to wait for more frames before writing.
+	 */
+	private final int coalesceDelay;
+
+	/**
+	 * Write without waiting once this many bytes are queued.
+	 */
+	private final int coalesceBytes;
+
+	private static final int flushIdle=0;
+	private static final int flushDelayed=1;
+	private static final int flushNow=2;
+
+	/**
+	 * Avoid scheduling a flush for every send when one is already pending.
+	 */
+	private final AtomicInteger flushScheduled = new AtomicInteger(flushIdle);
+	
+	/**
+	 * Set when the channel should close once the queued frames are written.
+	 */
+	private volatile boolean closing=false;
+
+	EndpointChannel(Endpoint endpoint, SocketChannel channel, EventLoop eventLoop,
+			OutboundQueue<OutboundFrame> writeQueue, FrameEncoder encoder, FrameDecoder decoder,
+			EndpointConfig config, EndpointMetrics metrics) {
+		this.endpoint=endpoint;
+		this.channel=channel;
+		this.eventLoop=eventLoop;
+		this.writeQueue=writeQueue;
+		this.encoder=encoder;
+		this.decoder=decoder;
+		this.metrics=metrics;
+		pool=eventLoop.getBufferPool();
+		coalesceDelay=config.getCoalesceDelay();
+		coalesceBytes=config.getCoalesceBytes();
+	}
+
+	/**
+	 * Register the channel with the event loop, the endpoint is told
+	 * when it is ready.
+	 * @throws IOException
+	 */
+	void start() throws IOException {
+		eventLoop.register(channel, SelectionKey.OP_READ, this);
+	}
+
+	@Override
+	public void registered(SelectionKey key) {
+		this.key=key;
+		endpoint.channelReady();
+	}
+
+	@Override
+	public void selected(SelectionKey key) {
+		if(key.isReadable() && !closing) read();
+		if(key.isValid() && key.isWritable()) flush();
+	}
+
+	/**
+	 * A frame has been queued, make sure the event loop writes it.
+	 */
+	void flushLater() {
+		if(coalesceDelay==0 || writeQueue.bytes()>=coalesceBytes) {
+			if(flushScheduled.getAndSet(flushNow)!=flushNow) {
+				eventLoop.execute(this::scheduledFlush);
+			}
+		} else if(flushScheduled.compareAndSet(flushIdle, flushDelayed)) {
+			eventLoop.schedule(this::scheduledFlush, coalesceDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void scheduledFlush() {
+		flushScheduled.set(flushIdle);
+		flush();
+	}
+
+	/**
+	 * Write as much as the channel will take. If the socket buffer fills
+	 * then wait for the channel to become writable again.
+	 */
+	private void flush() {
+		if(key==null || !key.isValid()) return;
+		try {
+			while(true) {
+				while(writing.size()<maxGather && writingBytes<coalesceBytes) {
+					OutboundFrame frame=writeQueue.poll();
+					if(frame==null) break;
+					metrics.frameDequeued(frame);
+					ByteBuffer bytes=encoder.encode(frame);
+					if(bytes==null) continue;
+					writing.add(bytes);
+					writingBytes+=bytes.remaining();
+				}
+				if(writing.isEmpty()) break;
+				int n=writing.size();
+				writing.toArray(gather);
+				long written=channel.write(gather,0,n);
+				writingBytes-=written;
+				int completed=0;
+				while(!writing.isEmpty() && !writing.peek().hasRemaining()) {
+					pool.release(writing.poll());
+					completed++;
+				}
+				metrics.batchWritten(completed, written);
+				if(!writing.isEmpty()) {
+					key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+					return;
+				}
+			}
+			if(closing) closeNow();
+			else key.interestOps(SelectionKey.OP_READ);
+		} catch (IOException e) {
+			if(closing) closeNow();
+			else endpoint.channelFailed();
+		}
+	}
+
+	/**
+	 * Read what is available and hand over every complete frame.
+	 */
+	private void read() {
+		int n;
+		try {
+			n = channel.read(decoder.buffer());
+		} catch (IOException e) {
+			endpoint.channelFailed();
+			return;
+		}
+		if(n==-1) {
+			endpoint.channelFailed();
+			return;
+		}
+		if(!decoder.decode()) {
+			// can't make sense of anything more
+			closing=true;
+		}
+	}
+
+	/**
+	 * Close the channel once the frames that are already queued have been
+	 * written, so that a final reply is not lost. Nothing more is read.
+	 * @param closeTimeout how long in ms to wait for the queued frames to be
+	 * written before closing anyway
+	 */
+	void close(int closeTimeout) {
+		closing=true;
+		eventLoop.execute(()->{
+			if(key==null || !key.isValid()) closeNow();
+			else flush();
+		});
+		Utils.getInstance().setTimeout(()->{
+			eventLoop.execute(this::closeNow);
+		}, closeTimeout);
+	}
+	
+	/**
+	 * Close the channel, which also deregisters it from the event loop.
+	 */
+	private void closeNow() {
+		if(!channel.isOpen()) return;
+		if(key!=null) key.cancel();
+		try {
+			channel.close();
+		} catch (IOException e) {
+			log.warning("channel did not close properly: "+e.getMessage());
+		}
+		// whatever was not written goes back to the pool
+		ByteBuffer bytes;
+		while((bytes=writing.poll())!=null) pool.release(bytes);
+		writingBytes=0;
+		OutboundFrame frame;
+		while((frame=writeQueue.poll())!=null) encoder.discard(frame);
+		encoder.close();
+		decoder.close();
+	}
+}
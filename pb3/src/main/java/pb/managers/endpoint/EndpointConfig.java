@@ -0,0 +1,456 @@
+package pb.managers.endpoint;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.zip.Deflater;
+
+import pb.protocols.event.Delivery;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.session.SessionProtocol;
+
+/**
+ * Settings for the endpoints created by a manager. A manager shares its
+ * config with all of its endpoints, so it should be set up before the
+ * manager is started. The setters return the config for chaining.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.Manager#getEndpointConfig()}
+ * @author aaron
+ *
+ */
+public class EndpointConfig {
+
+	/**
+	 * Maximum number of messages queued for sending on an endpoint.
+	 */
+	private int outboundQueueCapacity = 10000;
+
+	/**
+	 * What to do when the outbound queue is full.
+	 */
+	private OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	/**
+	 * How long in ms a closing endpoint waits for its queued messages to
+	 * be written before the socket is closed anyway.
+	 */
+	private int closeTimeout = 5000;
+
+	/**
+	 * How long in ms requests wait for their replies before the round trip
+	 * time to the other endpoint has been measured, see {@link RoundTripTime}.
+	 */
+	private int initialTimeout = 40000;
+
+	/**
+	 * The least and most in ms that the timeout of requests may be, once
+	 * it is worked out from the round trip time.
+	 */
+	private int minTimeout = 2000;
+	private int maxTimeout = 120000;
+
+	/**
+	 * The most events that a session keeps until they are acked, so that
+	 * the session can be resumed if the connection fails, see
+	 * {@link pb.protocols.event.ReplayBuffer}. With 0 sessions are not
+	 * resumable.
+	 */
+	private int replayBufferSize = 1024;
+
+	/**
+	 * How long in ms the server keeps a session whose connection failed,
+	 * for the client to resume it.
+	 */
+	private int resumeTimeout = 60000;
+
+	/**
+	 * How long in ms a queued message may wait for more messages, so
+	 * that they can be written together. With 0 the messages that are
+	 * queued while a write is in progress are still written together, but
+	 * nothing waits.
+	 */
+	private int coalesceDelay = 0;
+
+	/**
+	 * Write as soon as this many bytes are queued, without waiting for
+	 * the coalesce delay, and write no more than about this much at once.
+	 */
+	private int coalesceBytes = 64*1024;
+
+	/**
+	 * Bytes queued at which the endpoint becomes unwritable, see
+	 * {@link Endpoint#writableChanged}.
+	 */
+	private int highWatermark = 1024*1024;
+
+	/**
+	 * Bytes queued at which the endpoint becomes writable again.
+	 */
+	private int lowWatermark = 256*1024;
+
+	/**
+	 * How many bytes the other endpoint may send on a stream before the
+	 * messages have been processed, see {@link Endpoint#openStream()}.
+	 * With 0 streams are not offered or accepted.
+	 */
+	private int streamWindow = 256*1024;
+
+	/**
+	 * The lane of the outbound queue for the messages of each protocol.
+	 */
+	private final Map<String,Priority> protocolPriorities = new ConcurrentHashMap<>();
+
+	/**
+	 * The lane for events with each name, which overrides the lane of the
+	 * event protocol.
+	 */
+	private final Map<String,Priority> eventPriorities = new ConcurrentHashMap<>();
+
+	/**
+	 * How events with each name are delivered, if not {@link Delivery#ACKED}.
+	 */
+	private final Map<String,Delivery> eventDeliveries = new ConcurrentHashMap<>();
+
+	/**
+	 * How long in ms an event may wait for others to be sent with it in
+	 * one batch. With 0 events are not batched.
+	 */
+	private int eventBatchDelay = 0;
+
+	/**
+	 * A batch is sent as soon as its events have this many chars of data.
+	 */
+	private int eventBatchSize = 16*1024;
+
+	/**
+	 * The lane for messages of protocols that have not been given one.
+	 */
+	private Priority defaultPriority = Priority.INTERACTIVE;
+
+	{
+		protocolPriorities.put(SessionProtocol.protocolName, Priority.CONTROL);
+		protocolPriorities.put(KeepAliveProtocol.protocolName, Priority.CONTROL);
+		protocolPriorities.put(EventProtocol.protocolName, Priority.INTERACTIVE);
+	}
+
+	/**
+	 * Whether to disable Nagle's algorithm on the socket. Writes are
+	 * already coalesced, so Nagle would only add latency.
+	 */
+	private boolean tcpNoDelay = true;
+
+	/**
+	 * The framing to offer or accept when a session starts. With
+	 * {@link Framing#LEGACY} the endpoint always uses writeUTF framing.
+	 */
+	private Framing framing = Framing.VARINT;
+
+	/**
+	 * Largest frame in bytes that will be accepted with varint framing.
+	 */
+	private int maxFrameSize = 16*1024*1024;
+
+	/**
+	 * Whether to offer or accept compression when a session starts, which
+	 * also needs varint framing.
+	 */
+	private boolean compression = true;
+
+	/**
+	 * The deflate level, from 1 (fastest) to 9 (smallest).
+	 */
+	private int compressionLevel = Deflater.BEST_SPEED;
+
+	/**
+	 * Messages smaller than this many bytes are not compressed.
+	 */
+	private int compressionThreshold = 256;
+
+	/**
+	 * How many strings the dictionary of message header strings can hold,
+	 * for each direction of a session, see {@link HeaderTable}. With 0 it
+	 * is not offered or accepted. It also needs varint framing.
+	 */
+	private int headerTableSize = 256;
+
+	/**
+	 * Whether to offer and accept the binary encoding of messages rather
+	 * than JSON, see {@link pb.protocols.BinaryWriter}. It also needs
+	 * varint framing.
+	 */
+	private boolean binaryCodec = true;
+
+	/**
+	 * The executor that event callbacks run on, in order for each endpoint,
+	 * or null to run them on the thread that reads the socket, see
+	 * {@link pb.utils.ThreadMode#sharedExecutor(String)}.
+	 */
+	private Executor callbackExecutor = null;
+
+	public int getOutboundQueueCapacity() {
+		return outboundQueueCapacity;
+	}
+
+	public EndpointConfig setOutboundQueueCapacity(int outboundQueueCapacity) {
+		this.outboundQueueCapacity = outboundQueueCapacity;
+		return this;
+	}
+
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	public EndpointConfig setOverflowPolicy(OverflowPolicy overflowPolicy) {
+		this.overflowPolicy = overflowPolicy;
+		return this;
+	}
+
+	public int getCloseTimeout() {
+		return closeTimeout;
+	}
+
+	public EndpointConfig setCloseTimeout(int closeTimeout) {
+		this.closeTimeout = closeTimeout;
+		return this;
+	}
+
+	public int getInitialTimeout() {
+		return initialTimeout;
+	}
+
+	public EndpointConfig setInitialTimeout(int initialTimeout) {
+		this.initialTimeout = initialTimeout;
+		return this;
+	}
+
+	public int getMinTimeout() {
+		return minTimeout;
+	}
+
+	public EndpointConfig setMinTimeout(int minTimeout) {
+		this.minTimeout = minTimeout;
+		return this;
+	}
+
+	public int getMaxTimeout() {
+		return maxTimeout;
+	}
+
+	public EndpointConfig setMaxTimeout(int maxTimeout) {
+		this.maxTimeout = maxTimeout;
+		return this;
+	}
+
+	public int getReplayBufferSize() {
+		return replayBufferSize;
+	}
+
+	public EndpointConfig setReplayBufferSize(int replayBufferSize) {
+		this.replayBufferSize = replayBufferSize;
+		return this;
+	}
+
+	public int getResumeTimeout() {
+		return resumeTimeout;
+	}
+
+	public EndpointConfig setResumeTimeout(int resumeTimeout) {
+		this.resumeTimeout = resumeTimeout;
+		return this;
+	}
+
+	public Framing getFraming() {
+		return framing;
+	}
+
+	public EndpointConfig setFraming(Framing framing) {
+		this.framing = framing;
+		return this;
+	}
+
+	public int getMaxFrameSize() {
+		return maxFrameSize;
+	}
+
+	public EndpointConfig setMaxFrameSize(int maxFrameSize) {
+		this.maxFrameSize = maxFrameSize;
+		return this;
+	}
+
+	public int getCoalesceDelay() {
+		return coalesceDelay;
+	}
+
+	public EndpointConfig setCoalesceDelay(int coalesceDelay) {
+		this.coalesceDelay = coalesceDelay;
+		return this;
+	}
+
+	public int getCoalesceBytes() {
+		return coalesceBytes;
+	}
+
+	public EndpointConfig setCoalesceBytes(int coalesceBytes) {
+		this.coalesceBytes = coalesceBytes;
+		return this;
+	}
+
+	public int getHighWatermark() {
+		return highWatermark;
+	}
+
+	public EndpointConfig setHighWatermark(int highWatermark) {
+		this.highWatermark = highWatermark;
+		return this;
+	}
+
+	public int getLowWatermark() {
+		return lowWatermark;
+	}
+
+	public EndpointConfig setLowWatermark(int lowWatermark) {
+		this.lowWatermark = lowWatermark;
+		return this;
+	}
+
+	public int getStreamWindow() {
+		return streamWindow;
+	}
+
+	public EndpointConfig setStreamWindow(int streamWindow) {
+		this.streamWindow = streamWindow;
+		return this;
+	}
+
+	/**
+	 * @param protocolName
+	 * @return the lane for the messages of the protocol
+	 */
+	public Priority getProtocolPriority(String protocolName) {
+		return protocolPriorities.getOrDefault(protocolName, defaultPriority);
+	}
+
+	public EndpointConfig setProtocolPriority(String protocolName, Priority priority) {
+		protocolPriorities.put(protocolName, priority);
+		return this;
+	}
+
+	/**
+	 * @param eventName
+	 * @return the lane for events with the name, or null if they use the
+	 * lane of the event protocol
+	 */
+	public Priority getEventPriority(String eventName) {
+		return eventPriorities.get(eventName);
+	}
+
+	public EndpointConfig setEventPriority(String eventName, Priority priority) {
+		eventPriorities.put(eventName, priority);
+		return this;
+	}
+
+	/**
+	 * @param eventName
+	 * @return how events with the name are delivered
+	 */
+	public Delivery getEventDelivery(String eventName) {
+		return eventDeliveries.getOrDefault(eventName, Delivery.ACKED);
+	}
+
+	public EndpointConfig setEventDelivery(String eventName, Delivery delivery) {
+		eventDeliveries.put(eventName, delivery);
+		return this;
+	}
+
+	public int getEventBatchDelay() {
+		return eventBatchDelay;
+	}
+
+	public EndpointConfig setEventBatchDelay(int eventBatchDelay) {
+		this.eventBatchDelay = eventBatchDelay;
+		return this;
+	}
+
+	public int getEventBatchSize() {
+		return eventBatchSize;
+	}
+
+	public EndpointConfig setEventBatchSize(int eventBatchSize) {
+		this.eventBatchSize = eventBatchSize;
+		return this;
+	}
+
+	public Priority getDefaultPriority() {
+		return defaultPriority;
+	}
+
+	public EndpointConfig setDefaultPriority(Priority defaultPriority) {
+		this.defaultPriority = defaultPriority;
+		return this;
+	}
+
+	public boolean getTcpNoDelay() {
+		return tcpNoDelay;
+	}
+
+	public EndpointConfig setTcpNoDelay(boolean tcpNoDelay) {
+		this.tcpNoDelay = tcpNoDelay;
+		return this;
+	}
+
+	public boolean getCompression() {
+		return compression;
+	}
+
+	public EndpointConfig setCompression(boolean compression) {
+		this.compression = compression;
+		return this;
+	}
+
+	public int getCompressionLevel() {
+		return compressionLevel;
+	}
+
+	public EndpointConfig setCompressionLevel(int compressionLevel) {
+		this.compressionLevel = compressionLevel;
+		return this;
+	}
+
+	public int getCompressionThreshold() {
+		return compressionThreshold;
+	}
+
+	public EndpointConfig setCompressionThreshold(int compressionThreshold) {
+		this.compressionThreshold = compressionThreshold;
+		return this;
+	}
+
+	public int getHeaderTableSize() {
+		return headerTableSize;
+	}
+
+	public EndpointConfig setHeaderTableSize(int headerTableSize) {
+		this.headerTableSize = headerTableSize;
+		return this;
+	}
+
+	public boolean getBinaryCodec() {
+		return binaryCodec;
+	}
+
+	public EndpointConfig setBinaryCodec(boolean binaryCodec) {
+		this.binaryCodec = binaryCodec;
+		return this;
+	}
+
+	public Executor getCallbackExecutor() {
+		return callbackExecutor;
+	}
+
+	public EndpointConfig setCallbackExecutor(Executor callbackExecutor) {
+		this.callbackExecutor = callbackExecutor;
+		return this;
+	}
+}
@@ -0,0 +1,236 @@
+package pb.managers.endpoint;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters for what an {@link Endpoint} has written to its socket. A batch
+ * is the frames handed to the socket in one write, so the average batch
+ * size shows how well writes are being coalesced. How long frames waited
+ * in the outbound queue before being written is counted for each
+ * {@link Priority} lane. When event callbacks run on an executor, how
+ * deep the endpoint's queue of callbacks got, how long they waited and
+ * how long they took are counted too.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#getMetrics()}
+ * @author aaron
+ *
+ */
+public class EndpointMetrics {
+
+	private final AtomicLong batches=new AtomicLong();
+
+	private final AtomicLong framesWritten=new AtomicLong();
+
+	private final AtomicLong bytesWritten=new AtomicLong();
+
+	/**
+	 * Most frames written in one batch.
+	 */
+	private final AtomicLong largestBatch=new AtomicLong();
+
+	/**
+	 * Frames taken from each lane of the queue.
+	 */
+	private final AtomicLongArray laneFrames=new AtomicLongArray(Priority.values().length);
+
+	/**
+	 * Total ns that the frames of each lane waited.
+	 */
+	private final AtomicLongArray laneDelay=new AtomicLongArray(Priority.values().length);
+
+	/**
+	 * Longest ns that a frame of each lane waited.
+	 */
+	private final AtomicLongArray laneMaxDelay=new AtomicLongArray(Priority.values().length);
+
+	private final AtomicLong callbacks=new AtomicLong();
+
+	/**
+	 * Total and longest ns that callbacks waited to start.
+	 */
+	private final AtomicLong callbackDelay=new AtomicLong();
+	private final AtomicLong maxCallbackDelay=new AtomicLong();
+
+	/**
+	 * Total and longest ns that callbacks took to run.
+	 */
+	private final AtomicLong callbackTime=new AtomicLong();
+	private final AtomicLong maxCallbackTime=new AtomicLong();
+
+	/**
+	 * Most callbacks queued at once.
+	 */
+	private final AtomicLong maxCallbackQueueDepth=new AtomicLong();
+
+	/**
+	 * A batch was written.
+	 * @param frames the number of frames completed by the write
+	 * @param bytes the number of bytes written
+	 */
+	void batchWritten(int frames, long bytes) {
+		batches.incrementAndGet();
+		framesWritten.addAndGet(frames);
+		bytesWritten.addAndGet(bytes);
+		largestBatch.accumulateAndGet(frames, Math::max);
+	}
+
+	/**
+	 * A frame was taken from the queue to be written.
+	 * @param frame
+	 */
+	void frameDequeued(OutboundFrame frame) {
+		int lane=frame.priority.ordinal();
+		long delay=System.nanoTime()-frame.queuedAt;
+		laneFrames.incrementAndGet(lane);
+		laneDelay.addAndGet(lane, delay);
+		laneMaxDelay.accumulateAndGet(lane, delay, Math::max);
+	}
+
+	/**
+	 * A callback was queued.
+	 * @param depth the number of callbacks queued, including it
+	 */
+	void callbackQueued(int depth) {
+		if(depth>maxCallbackQueueDepth.get()) maxCallbackQueueDepth.accumulateAndGet(depth, Math::max);
+	}
+
+	/**
+	 * A callback was run.
+	 * @param delay ns from when it was queued until it started
+	 * @param time ns that it took
+	 */
+	void callbackRun(long delay, long time) {
+		callbacks.incrementAndGet();
+		callbackDelay.addAndGet(delay);
+		maxCallbackDelay.accumulateAndGet(delay, Math::max);
+		callbackTime.addAndGet(time);
+		maxCallbackTime.accumulateAndGet(time, Math::max);
+	}
+
+	/**
+	 * @return the number of writes to the socket
+	 */
+	public long getBatches() {
+		return batches.get();
+	}
+
+	/**
+	 * @return the number of frames written
+	 */
+	public long getFramesWritten() {
+		return framesWritten.get();
+	}
+
+	/**
+	 * @return the number of bytes written
+	 */
+	public long getBytesWritten() {
+		return bytesWritten.get();
+	}
+
+	/**
+	 * @return the most frames written in one batch
+	 */
+	public long getLargestBatch() {
+		return largestBatch.get();
+	}
+
+	/**
+	 * @return the average number of frames per batch
+	 */
+	public double getAverageBatchSize() {
+		long n=batches.get();
+		return n==0 ? 0 : (double)framesWritten.get()/n;
+	}
+
+	/**
+	 * @param priority
+	 * @return the number of frames taken from the lane
+	 */
+	public long getFramesDequeued(Priority priority) {
+		return laneFrames.get(priority.ordinal());
+	}
+
+	/**
+	 * @param priority
+	 * @return the average time in ms that the frames of the lane waited to
+	 * be written
+	 */
+	public double getAverageQueueDelay(Priority priority) {
+		long n=laneFrames.get(priority.ordinal());
+		return n==0 ? 0 : laneDelay.get(priority.ordinal())/1e6/n;
+	}
+
+	/**
+	 * @param priority
+	 * @return the longest time in ms that a frame of the lane waited to
+	 * be written
+	 */
+	public double getMaxQueueDelay(Priority priority) {
+		return laneMaxDelay.get(priority.ordinal())/1e6;
+	}
+
+	/**
+	 * @return the number of callbacks run on the callback executor
+	 */
+	public long getCallbacks() {
+		return callbacks.get();
+	}
+
+	/**
+	 * @return the average time in ms that callbacks waited to start
+	 */
+	public double getAverageCallbackDelay() {
+		long n=callbacks.get();
+		return n==0 ? 0 : callbackDelay.get()/1e6/n;
+	}
+
+	/**
+	 * @return the longest time in ms that a callback waited to start
+	 */
+	public double getMaxCallbackDelay() {
+		return maxCallbackDelay.get()/1e6;
+	}
+
+	/**
+	 * @return the average time in ms that callbacks took
+	 */
+	public double getAverageCallbackTime() {
+		long n=callbacks.get();
+		return n==0 ? 0 : callbackTime.get()/1e6/n;
+	}
+
+	/**
+	 * @return the longest time in ms that a callback took
+	 */
+	public double getMaxCallbackTime() {
+		return maxCallbackTime.get()/1e6;
+	}
+
+	/**
+	 * @return the most callbacks that were queued at once
+	 */
+	public long getMaxCallbackQueueDepth() {
+		return maxCallbackQueueDepth.get();
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder lanes=new StringBuilder();
+		for(Priority priority : Priority.values()) {
+			if(getFramesDequeued(priority)==0) continue;
+			lanes.append(" "+priority+"Delay="+String.format("%.2f/%.2fms",
+					getAverageQueueDelay(priority),getMaxQueueDelay(priority)));
+		}
+		if(getCallbacks()>0) {
+			lanes.append(" callbacks="+getCallbacks()+" callbackDelay="+String.format("%.2f/%.2fms",
+					getAverageCallbackDelay(),getMaxCallbackDelay())
+				+" callbackTime="+String.format("%.2f/%.2fms",getAverageCallbackTime(),getMaxCallbackTime())
+				+" callbackQueueDepth="+getMaxCallbackQueueDepth());
+		}
+		return "frames="+getFramesWritten()+" bytes="+getBytesWritten()
+			+" batches="+getBatches()+" averageBatch="+String.format("%.2f",getAverageBatchSize())
+			+" largestBatch="+getLargestBatch()+lanes;
+	}
+}
@@ -0,0 +1,141 @@
+package pb.managers.endpoint;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+import pb.utils.Utils;
+import pb.utils.Worker;
+
+/**
+ * The writer for an {@link Endpoint} that uses a blocking socket. It takes
+ * frames from the endpoint's {@link OutboundQueue}, frames them with the
+ * {@link FrameEncoder} and writes them to the socket through a buffer, so
+ * that threads sending messages never block on the network.
+ * <br/>
+ * Frames are written in batches: everything that is queued, up to the
+ * coalesce byte budget, is written before the buffer is flushed, so a burst
+ * of messages costs one write to the socket rather than one each. With a
+ * coalesce delay the writer also waits that long for more frames to join
+ * the batch, see {@link EndpointConfig#setCoalesceDelay(int)}.
+ * Frames come out of the queue in {@link Priority} order, so a batch
+ * starts with the most urgent frames.
+ * When the queue is closed the writer writes what is left and then closes
+ * the socket. Each frame's buffer goes back to the pool once it is in the
+ * output buffer.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.OutboundQueue}
+ * @author aaron
+ *
+ */
+class EndpointWriter extends Worker {
+	private static Logger log = Logger.getLogger(EndpointWriter.class.getName());
+
+	private final Endpoint endpoint;
+
+	private final OutboundQueue<OutboundFrame> queue;
+
+	private final FrameEncoder encoder;
+
+	private final OutputStream out;
+
+	private final Socket socket;
+
+	private final EndpointMetrics metrics;
+
+	/**
+	 * Where the encoded frames come from, and go back to once written.
+	 */
+	private final BufferPool pool;
+
+	/**
+	 * How long in ns to wait for more frames to join a batch.
+	 */
+	private final long coalesceDelay;
+
+	/**
+	 * Flush once a batch has this many bytes.
+	 */
+	private final int coalesceBytes;
+
+	EndpointWriter(Endpoint endpoint, OutboundQueue<OutboundFrame> queue,
+			FrameEncoder encoder, BufferPool pool, OutputStream out, Socket socket,
+			EndpointConfig config, EndpointMetrics metrics) {
+		this.endpoint=endpoint;
+		this.queue=queue;
+		this.encoder=encoder;
+		this.pool=pool;
+		this.socket=socket;
+		this.metrics=metrics;
+		coalesceDelay=TimeUnit.MILLISECONDS.toNanos(config.getCoalesceDelay());
+		coalesceBytes=config.getCoalesceBytes();
+		this.out=new BufferedOutputStream(out,Math.max(coalesceBytes,8*1024));
+		setName("EndpointWriter");
+		setThreadMode(endpoint.getThreadMode());
+	}
+
+	/**
+	 * Write frames until the queue is closed and empty, or the socket fails.
+	 */
+	@Override
+	public void run() {
+		try {
+			OutboundFrame frame;
+			while((frame=queue.take())!=null) {
+				long deadline=System.nanoTime()+coalesceDelay;
+				int batchFrames=0;
+				long batchBytes=0;
+				while(frame!=null) {
+					metrics.frameDequeued(frame);
+					ByteBuffer bytes=encoder.encode(frame);
+					if(bytes!=null) {
+						batchFrames++;
+						batchBytes+=bytes.remaining();
+						out.write(bytes.array(), bytes.arrayOffset()+bytes.position(), bytes.remaining());
+						pool.release(bytes);
+					}
+					if(batchBytes>=coalesceBytes) break;
+					frame=queue.poll();
+					if(frame==null && coalesceDelay>0) {
+						long wait=deadline-System.nanoTime();
+						if(wait>0) frame=queue.poll(wait,TimeUnit.NANOSECONDS);
+					}
+				}
+				out.flush();
+				if(batchFrames>0) metrics.batchWritten(batchFrames, batchBytes);
+			}
+		} catch (IOException e) {
+			endpoint.channelFailed();
+		} catch (InterruptedException e) {
+			// closing without writing the rest
+		}
+		// whatever was not written goes back to the pool
+		OutboundFrame frame;
+		while((frame=queue.poll())!=null) encoder.discard(frame);
+		encoder.close();
+		closeSocket();
+	}
+
+	/**
+	 * The queue has been closed, give the writer some time to write what
+	 * is left before closing the socket anyway.
+	 * @param timeout in ms
+	 */
+	void close(int timeout) {
+		Utils.getInstance().setTimeout(this::closeSocket, timeout);
+	}
+
+	private void closeSocket() {
+		if(socket.isClosed()) return;
+		try {
+			socket.close();
+		} catch (IOException e) {
+			log.warning("socket did not close properly: "+e.getMessage());
+		}
+	}
+}
@@ -0,0 +1,269 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An event loop is a single thread that multiplexes any number of channels
+ * using a {@link java.nio.channels.Selector}. This is the alternative to the
+ * thread-per-connection model, where each {@link Endpoint} is its own thread
+ * doing blocking reads. Channels are registered with an
+ * {@link ISelectionHandler} that is called whenever the channel is ready.
+ * Other threads can hand work to the loop using {@link #execute(Runnable)},
+ * which is how, for example, sends from other threads get onto the channel,
+ * or for later using {@link #schedule(Runnable, long, TimeUnit)}.
+ * <br/>
+ * Nothing that is called on the event loop thread should block, otherwise
+ * all of the channels on this loop will stall.
+ *
+ * @see {@link pb.managers.endpoint.EventLoopGroup}
+ * @see {@link pb.managers.endpoint.ISelectionHandler}
+ * @author aaron
+ *
+ */
+public class EventLoop extends Thread {
+	private static Logger log = Logger.getLogger(EventLoop.class.getName());
+
+	/**
+	 * The selector for all channels registered on this loop.
+	 */
+	private final Selector selector;
+
+	/**
+	 * Tasks handed to the loop by other threads.
+	 */
+	private final Queue<Runnable> tasks;
+
+	/**
+	 * Tasks to run later, in the order that they are due. Only used on
+	 * the event loop thread.
+	 */
+	private final PriorityQueue<ScheduledTask> scheduled;
+
+	/**
+	 * Keeps tasks that are due at the same time in the order they were
+	 * scheduled.
+	 */
+	private long scheduledCount=0;
+
+	/**
+	 * Direct buffers for the channels on this loop.
+	 */
+	private final BufferPool bufferPool;
+
+	/**
+	 * Set to false to terminate the loop.
+	 */
+	private volatile boolean running=true;
+
+	/**
+	 * Initialise the event loop, it must be started before use.
+	 * @param name the name of the thread
+	 * @throws IOException if the selector could not be opened
+	 */
+	public EventLoop(String name) throws IOException {
+		this(name,new BufferPool(true));
+	}
+
+	/**
+	 * Initialise the event loop with a pool of buffers that may be shared
+	 * with other loops, it must be started before use.
+	 * @param name the name of the thread
+	 * @param bufferPool the buffers for the channels on this loop
+	 * @throws IOException if the selector could not be opened
+	 */
+	public EventLoop(String name, BufferPool bufferPool) throws IOException {
+		this.bufferPool = bufferPool;
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+		scheduled = new PriorityQueue<>();
+		setName(name);
+	}
+
+	/**
+	 * @return the pool of direct buffers for the channels on this loop
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * @return true if the calling thread is this event loop
+	 */
+	public boolean inEventLoop() {
+		return Thread.currentThread()==this;
+	}
+
+	/**
+	 * @return true if the calling thread is any event loop, which must
+	 * never block
+	 */
+	public static boolean onEventLoop() {
+		return Thread.currentThread() instanceof EventLoop;
+	}
+
+	/**
+	 * Run a task on the event loop thread. If the caller is already
+	 * on the event loop then the task is queued behind the current work,
+	 * it is not run immediately.
+	 * @param task
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		if(!inEventLoop()) selector.wakeup();
+	}
+
+	/**
+	 * Run a task on the event loop thread after a delay. The task runs
+	 * no earlier than the delay, but may run later if the loop is busy.
+	 * @param task
+	 * @param delay
+	 * @param unit
+	 */
+	public void schedule(Runnable task, long delay, TimeUnit unit) {
+		long due = System.nanoTime()+unit.toNanos(delay);
+		execute(()->{
+			scheduled.add(new ScheduledTask(due,scheduledCount++,task));
+		});
+	}
+
+	/**
+	 * Register a channel with this loop. The channel is made non-blocking
+	 * and the registration itself happens on the event loop thread, after which
+	 * {@link ISelectionHandler#registered(SelectionKey)} is called.
+	 * @param channel the channel to register
+	 * @param ops the initial interest set
+	 * @param handler the handler for the channel
+	 * @throws IOException if the channel can't be made non-blocking
+	 */
+	public void register(SelectableChannel channel, int ops, ISelectionHandler handler)
+			throws IOException {
+		channel.configureBlocking(false);
+		execute(()->{
+			try {
+				SelectionKey key = channel.register(selector, ops, handler);
+				handler.registered(key);
+			} catch (ClosedChannelException e) {
+				log.warning("channel closed before it could be registered");
+			}
+		});
+	}
+
+	/**
+	 * Stop the loop and close the selector. Channels that are still
+	 * registered are not closed.
+	 */
+	public void shutDown() {
+		running=false;
+		selector.wakeup();
+	}
+
+	/**
+	 * @return the number of channels registered with this loop
+	 */
+	public int numChannels() {
+		return selector.keys().size();
+	}
+
+	/**
+	 * Select and dispatch ready channels, and run tasks, until shut down.
+	 */
+	@Override
+	public void run() {
+		log.info("event loop started");
+		while(running) {
+			try {
+				// don't block if tasks were queued from this thread,
+				// and don't block beyond when the next scheduled task is due
+				if(!tasks.isEmpty()) {
+					selector.selectNow();
+				} else if(!scheduled.isEmpty()) {
+					long wait = scheduled.peek().due-System.nanoTime();
+					if(wait>0) selector.select(TimeUnit.NANOSECONDS.toMillis(wait+999999));
+					else selector.selectNow();
+				} else {
+					selector.select();
+				}
+			} catch (IOException e) {
+				log.severe("selector failed: "+e.getMessage());
+				break;
+			}
+			Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+			while(it.hasNext()) {
+				SelectionKey key = it.next();
+				it.remove();
+				if(!key.isValid()) continue;
+				try {
+					((ISelectionHandler)key.attachment()).selected(key);
+				} catch (CancelledKeyException e) {
+					// the channel was closed while handling it
+				} catch (RuntimeException e) {
+					log.log(Level.SEVERE, "uncaught exception in event loop", e);
+				}
+			}
+			runTasks();
+			runScheduledTasks();
+		}
+		try {
+			selector.close();
+		} catch (IOException e) {
+			log.warning("selector did not close properly: "+e.getMessage());
+		}
+		log.info("event loop terminated");
+	}
+
+	private void runTasks() {
+		Runnable task;
+		while((task=tasks.poll())!=null) {
+			try {
+				task.run();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "uncaught exception in event loop task", e);
+			}
+		}
+	}
+
+	private void runScheduledTasks() {
+		long now = System.nanoTime();
+		while(!scheduled.isEmpty() && scheduled.peek().due-now<=0) {
+			try {
+				scheduled.poll().task.run();
+			} catch (RuntimeException e) {
+				log.log(Level.SEVERE, "uncaught exception in event loop task", e);
+			}
+		}
+	}
+
+	/**
+	 * A task to run when it is due.
+	 */
+	private static class ScheduledTask implements Comparable<ScheduledTask> {
+		final long due;
+		final long count;
+		final Runnable task;
+
+		ScheduledTask(long due, long count, Runnable task) {
+			this.due=due;
+			this.count=count;
+			this.task=task;
+		}
+
+		@Override
+		public int compareTo(ScheduledTask other) {
+			long diff = due-other.due;
+			if(diff!=0) return diff<0 ? -1 : 1;
+			return Long.compare(count,other.count);
+		}
+	}
+}
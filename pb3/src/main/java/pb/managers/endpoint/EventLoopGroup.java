@@ -0,0 +1,85 @@
+package pb.managers.endpoint;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * A small fixed pool of {@link EventLoop}s, by default one per core.
+ * New channels are spread over the loops round robin. The loops share one
+ * {@link BufferPool} of direct buffers.
+ *
+ * @see {@link pb.managers.endpoint.EventLoop}
+ * @author aaron
+ *
+ */
+public class EventLoopGroup {
+	private static Logger log = Logger.getLogger(EventLoopGroup.class.getName());
+
+	/**
+	 * The loops in this group.
+	 */
+	private final EventLoop[] loops;
+
+	/**
+	 * Direct buffers shared by the loops.
+	 */
+	private final BufferPool bufferPool = new BufferPool(true);
+
+	/**
+	 * Index of the next loop to hand out.
+	 */
+	private final AtomicInteger next = new AtomicInteger();
+
+	/**
+	 * Initialise a group with one loop per available processor.
+	 * @throws IOException if a selector could not be opened
+	 */
+	public EventLoopGroup() throws IOException {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Initialise and start a group with a given number of loops.
+	 * @param numLoops
+	 * @throws IOException if a selector could not be opened
+	 */
+	public EventLoopGroup(int numLoops) throws IOException {
+		loops = new EventLoop[numLoops];
+		for(int i=0;i<numLoops;i++) {
+			loops[i]=new EventLoop("EventLoop-"+i,bufferPool);
+		}
+		for(EventLoop loop : loops) loop.start();
+		log.info("started "+numLoops+" event loops");
+	}
+
+	/**
+	 * @return the next loop to use, round robin
+	 */
+	public EventLoop next() {
+		return loops[Math.floorMod(next.getAndIncrement(),loops.length)];
+	}
+
+	/**
+	 * @return the pool of direct buffers shared by the loops
+	 */
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * Shut down all of the loops and wait for them to terminate.
+	 */
+	public void shutDown() {
+		for(EventLoop loop : loops) loop.shutDown();
+		for(EventLoop loop : loops) {
+			if(loop.inEventLoop()) continue;
+			try {
+				loop.join();
+			} catch (InterruptedException e) {
+				log.warning("interrupted waiting for event loop to terminate");
+			}
+		}
+		log.info("event loops shut down, "+bufferPool);
+	}
+}
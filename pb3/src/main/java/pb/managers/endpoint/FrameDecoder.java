@@ -0,0 +1,396 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Splits the bytes read from a socket into frames and hands each message to
+ * the endpoint. Bytes are read a buffer at a time, whether from a blocking
+ * socket or from a channel, and the buffer grows when a frame larger than it
+ * arrives. Only the thread reading the socket uses the decoder, and the
+ * endpoint switches its framing from that thread while it is receiving a
+ * message, so the switch applies from the very next frame.
+ * <br/>
+ * The read buffer comes from the endpoint's {@link BufferPool}, so it is a
+ * direct buffer when a channel reads into it. Payloads are copied out of a
+ * direct buffer before they are decoded.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ * @see {@link pb.managers.endpoint.FrameEncoder}
+ * @author aaron
+ *
+ */
+class FrameDecoder {
+
+	/**
+	 * Initial size of the read buffer, it grows if a larger frame arrives.
+	 */
+	private static final int initialBufferSize = 8*1024;
+
+	private final Endpoint endpoint;
+
+	private final BufferPool pool;
+
+	/**
+	 * Largest frame that will be accepted.
+	 */
+	private final int maxFrameSize;
+
+	/**
+	 * Bytes read but not yet decoded, ready to be read into.
+	 */
+	private ByteBuffer buffer;
+
+	private Framing framing=Framing.LEGACY;
+
+	/**
+	 * If not null, the framing to switch to when an empty legacy frame
+	 * arrives, which the other endpoint sends to mark its own switch.
+	 */
+	private Framing switchOnMarker=null;
+
+	/**
+	 * Whether frames on streams other than 0 are accepted.
+	 */
+	private boolean streams=false;
+
+	/**
+	 * Whether compressed frames are accepted.
+	 */
+	private boolean inflate=false;
+
+	private Inflater inflater=null;
+
+	/**
+	 * The strings of the headers received, if indexed frames are accepted.
+	 */
+	private HeaderTable headerTable=null;
+
+	/**
+	 * Whether frames in the binary encoding are accepted.
+	 */
+	private boolean binary=false;
+
+	/**
+	 * Reused for decompressing, it grows as needed.
+	 */
+	private byte[] scratch=new byte[1024];
+
+	/**
+	 * Reused for copying payloads out of a direct buffer, it grows as needed.
+	 */
+	private byte[] copy=new byte[0];
+
+	FrameDecoder(Endpoint endpoint, BufferPool pool, int maxFrameSize) {
+		this.endpoint=endpoint;
+		this.pool=pool;
+		this.maxFrameSize=maxFrameSize;
+		buffer=pool.acquire(initialBufferSize);
+	}
+
+	/**
+	 * @return the buffer to read into
+	 */
+	ByteBuffer buffer() {
+		return buffer;
+	}
+
+	/**
+	 * Read what is available from a blocking stream into the buffer.
+	 * @param in
+	 * @return false if the end of the stream was reached
+	 * @throws IOException
+	 */
+	boolean readFrom(InputStream in) throws IOException {
+		int n=in.read(buffer.array(), buffer.arrayOffset()+buffer.position(), buffer.remaining());
+		if(n==-1) return false;
+		buffer.position(buffer.position()+n);
+		return true;
+	}
+
+	/**
+	 * Hand every complete frame in the buffer to the endpoint.
+	 * @return false if the bytes can no longer be decoded, in which case the
+	 * endpoint has been told and nothing more should be read
+	 */
+	boolean decode() {
+		endpoint.bytesReceived();
+		buffer.flip();
+		while(buffer.hasRemaining() && !endpoint.isStopped()) {
+			Framing current=framing;
+			int start=buffer.position();
+			int headerSize;
+			int length;
+			if(current==Framing.LEGACY) {
+				if(buffer.remaining()<2) break;
+				headerSize=2;
+				length=buffer.getShort(start) & 0xffff;
+			} else {
+				length=Framing.getVarint(buffer, start);
+				if(length==Framing.incomplete) break;
+				if(length==Framing.malformed || length>maxFrameSize) {
+					buffer.clear();
+					endpoint.channelSentInvalidFrame();
+					return false;
+				}
+				headerSize=Framing.varintSize(length);
+			}
+			int frameSize=headerSize+length;
+			if(buffer.remaining()<frameSize) {
+				if(buffer.capacity()<frameSize) {
+					// frame is too big for the buffer, so grow it
+					ByteBuffer bigger=pool.acquire(frameSize);
+					bigger.put(buffer);
+					pool.release(buffer);
+					buffer=bigger;
+					return true;
+				}
+				break;
+			}
+			buffer.position(start+frameSize);
+			if(current==Framing.LEGACY) {
+				receiveLegacy(start, length);
+			} else {
+				receiveVarint(start+headerSize, length);
+			}
+		}
+		if(!buffer.hasRemaining() && buffer.capacity()>initialBufferSize) {
+			// done with the large frame, don't hold on to the memory
+			pool.release(buffer);
+			buffer=pool.acquire(initialBufferSize);
+		} else {
+			buffer.compact();
+		}
+		return true;
+	}
+
+	private void receiveLegacy(int start, int length) {
+		if(length==0 && switchOnMarker!=null) {
+			framing=switchOnMarker;
+			switchOnMarker=null;
+			return;
+		}
+		byte[] bytes=bytes(start,2+length);
+		int offset=offset(start)+2;
+		// modified UTF-8 is the same as UTF-8 unless it has an encoded null
+		// or surrogates, which start with 0xc0 and 0xed, or bytes that are
+		// not allowed at all, so only those take the slow way
+		boolean plain=true;
+		for(int i=offset;i<offset+length;i++) {
+			int b=bytes[i] & 0xff;
+			if(b==0 || b==0xc0 || b>=0xed) {
+				plain=false;
+				break;
+			}
+		}
+		if(plain) {
+			endpoint.receive(bytes, offset, length, null, false);
+			return;
+		}
+		String line;
+		try {
+			line = DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(
+					bytes, offset-2, 2+length)));
+		} catch (IOException e) {
+			// not valid modified UTF-8
+			endpoint.channelSentInvalidFrame();
+			return;
+		}
+		byte[] utf8=line.getBytes(StandardCharsets.UTF_8);
+		endpoint.receive(utf8, 0, utf8.length, null, false);
+	}
+
+	private void receiveVarint(int start, int length) {
+		int type = length==0 ? -1 : buffer.get(start) & 0xff;
+		int baseType = type & ~(Framing.flagCompressed | Framing.flagIndexed | Framing.flagBinary);
+		boolean indexed = (type & Framing.flagIndexed)!=0;
+		boolean binary = (type & Framing.flagBinary)!=0;
+		if(type==-1 || (baseType!=Framing.typeJson && !(streams && baseType<=Framing.typeStreamClose))
+				|| (indexed && (headerTable==null || baseType>Framing.typeStreamJson))
+				|| (binary && (!this.binary || baseType>Framing.typeStreamJson))) {
+			endpoint.channelSentInvalidFrame();
+			return;
+		}
+		byte[] bytes;
+		int offset;
+		int size;
+		if((type & Framing.flagCompressed)==0) {
+			bytes=bytes(start+1,length-1);
+			offset=offset(start+1);
+			size=length-1;
+		} else {
+			int inflated;
+			try {
+				inflated = inflate ? inflate(bytes(start+1,length-1), offset(start+1), length-1) : -1;
+			} catch (DataFormatException e) {
+				inflated = -1;
+			}
+			if(inflated==-1) {
+				endpoint.channelSentInvalidFrame();
+				return;
+			}
+			bytes=scratch;
+			offset=0;
+			size=inflated;
+		}
+		// the window of a stream counts the whole payload
+		int windowSize=size;
+		String[] header=null;
+		if(indexed) {
+			ByteBuffer frame=ByteBuffer.wrap(bytes, offset, size);
+			header=headerTable.decode(frame);
+			if(header==null) {
+				endpoint.channelSentInvalidFrame();
+				return;
+			}
+			size-=frame.position()-offset;
+			offset=frame.position();
+		}
+		if(baseType==Framing.typeJson) {
+			endpoint.receive(bytes, offset, size, header, binary);
+			return;
+		}
+		// the rest start with the stream id
+		ByteBuffer frame=ByteBuffer.wrap(bytes, offset, size);
+		int stream=Framing.getVarint(frame, offset);
+		if(stream<=0) {
+			endpoint.channelSentInvalidFrame();
+			return;
+		}
+		int headerSize=Framing.varintSize(stream);
+		switch(baseType) {
+		case Framing.typeStreamJson:
+			endpoint.receive(bytes, offset+headerSize, size-headerSize, stream, windowSize, header, binary);
+			break;
+		case Framing.typeWindowUpdate:
+			int increment=Framing.getVarint(frame, offset+headerSize);
+			if(increment<=0) {
+				endpoint.channelSentInvalidFrame();
+				return;
+			}
+			endpoint.windowUpdate(stream, increment);
+			break;
+		case Framing.typeStreamClose:
+			endpoint.streamClosedByOther(stream);
+			break;
+		}
+	}
+
+	/**
+	 * @param start index in the buffer
+	 * @param length
+	 * @return an array holding the bytes, at {@link #offset(int)}: the
+	 * buffer's own array, or a copy if the buffer is direct
+	 */
+	private byte[] bytes(int start, int length) {
+		if(buffer.hasArray()) return buffer.array();
+		if(copy.length<length) copy=new byte[Math.max(length,copy.length*2)];
+		buffer.duplicate().position(start).get(copy, 0, length);
+		return copy;
+	}
+
+	/**
+	 * @param start index in the buffer
+	 * @return where the byte at the index is in the array from {@link #bytes(int, int)}
+	 */
+	private int offset(int start) {
+		return buffer.hasArray() ? buffer.arrayOffset()+start : 0;
+	}
+
+	/**
+	 * Decompress a payload into the scratch buffer, as a continuation of
+	 * the previous compressed frames.
+	 * @param input the array holding the payload
+	 * @param offset of the payload in the array
+	 * @param length of the payload
+	 * @return the length of the decompressed payload, or -1 if it is larger
+	 * than the maximum frame size
+	 * @throws DataFormatException
+	 */
+	private int inflate(byte[] input, int offset, int length) throws DataFormatException {
+		if(inflater==null) inflater=new Inflater(true);
+		int inflated=0;
+		// the payload, then the tail of the sync flush that was left off
+		inflater.setInput(input, offset, length);
+		for(int part=0;part<2;part++) {
+			while(true) {
+				if(inflated==scratch.length) {
+					if(scratch.length>=maxFrameSize) return -1;
+					scratch=Arrays.copyOf(scratch, Math.min(scratch.length*2,maxFrameSize));
+				}
+				int n=inflater.inflate(scratch, inflated, scratch.length-inflated);
+				inflated+=n;
+				if(inflater.finished() || inflater.needsDictionary()) return -1;
+				if(n==0) {
+					// done with this input, unless it is not making progress
+					if(inflater.needsInput()) break;
+					return -1;
+				}
+			}
+			if(part==0) inflater.setInput(Framing.syncFlushTail);
+		}
+		return inflated;
+	}
+
+	/**
+	 * Accept frames on streams from now on.
+	 */
+	void streams() {
+		streams=true;
+	}
+
+	/**
+	 * Accept indexed frames from now on.
+	 * @param headerTable for the strings of their headers
+	 */
+	void index(HeaderTable headerTable) {
+		this.headerTable=headerTable;
+	}
+
+	/**
+	 * Accept frames in the binary encoding from now on.
+	 */
+	void binary() {
+		binary=true;
+	}
+
+	/**
+	 * Accept compressed frames from now on.
+	 */
+	void inflate() {
+		inflate=true;
+	}
+
+	/**
+	 * Release the inflater and the buffer, the decoder can't be used after this.
+	 */
+	void close() {
+		if(inflater!=null) inflater.end();
+		pool.release(buffer);
+		buffer=null;
+	}
+
+	/**
+	 * Use a different framing from the next frame.
+	 * @param framing
+	 */
+	void switchTo(Framing framing) {
+		this.framing=framing;
+	}
+
+	/**
+	 * Use a different framing after the other endpoint sends an empty
+	 * legacy frame.
+	 * @param framing
+	 */
+	void switchOnMarker(Framing framing) {
+		switchOnMarker=framing;
+	}
+}
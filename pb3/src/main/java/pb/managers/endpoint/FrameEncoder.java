@@ -0,0 +1,231 @@
+package pb.managers.endpoint;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+
+/**
+ * Frames the payloads of outbound frames for the wire. Only the thread
+ * writing to the socket uses the encoder, in the order the frames are
+ * written, so a frame that switches the framing affects exactly the frames
+ * written after it. A frame that can only be varint framed may be taken
+ * from a later lane of the queue before the switch to varint framing that
+ * was queued ahead of it, so it is held until the switch and written
+ * straight after it.
+ * <br/>
+ * Once compression is on, varint frames with payloads of at least the
+ * threshold are compressed. The deflater is kept from frame to frame and
+ * sync flushed after each one, so later frames refer back to earlier ones,
+ * which is what makes small similar messages compress well.
+ * <br/>
+ * The bytes to write are in buffers from the endpoint's {@link BufferPool},
+ * and the payload of each frame is released back to the pool once it has
+ * been framed.
+ *
+ * @see {@link pb.managers.endpoint.Framing}
+ * @see {@link pb.managers.endpoint.FrameDecoder}
+ * @author aaron
+ *
+ */
+class FrameEncoder {
+	private static Logger log = Logger.getLogger(FrameEncoder.class.getName());
+
+	private Framing framing=Framing.LEGACY;
+
+	/**
+	 * Set by the endpoint when both endpoints have agreed to compression,
+	 * which only applies to varint frames.
+	 */
+	private volatile boolean compress=false;
+
+	private final int compressionLevel;
+
+	private final int compressionThreshold;
+
+	private final BufferPool pool;
+
+	private Deflater deflater=null;
+
+	/**
+	 * Frames that can only be varint framed, taken before the switch to it.
+	 */
+	private final ArrayDeque<OutboundFrame> held=new ArrayDeque<>();
+
+	FrameEncoder(BufferPool pool, int compressionLevel, int compressionThreshold) {
+		this.pool=pool;
+		this.compressionLevel=compressionLevel;
+		this.compressionThreshold=compressionThreshold;
+	}
+
+	/**
+	 * Compress varint frames from now on.
+	 */
+	void compress() {
+		compress=true;
+	}
+
+	/**
+	 * @param frame
+	 * @return the bytes to write, which should be released to the pool once
+	 * written, or null if there are none: the frame is held for the switch
+	 * to varint framing, or it can't be written and is dropped
+	 */
+	ByteBuffer encode(OutboundFrame frame) {
+		if(framing==Framing.LEGACY && frame.type!=Framing.typeJson) {
+			// the switch is in the control lane, so it is taken next
+			held.add(frame);
+			return null;
+		}
+		ByteBuffer buffer=encodeFrame(frame);
+		if(frame.switchTo==null || held.isEmpty()) return buffer;
+		// the frames held for the switch go straight after it
+		ArrayList<ByteBuffer> parts=new ArrayList<>(held.size()+1);
+		int length=0;
+		if(buffer!=null) {
+			parts.add(buffer);
+			length+=buffer.remaining();
+		}
+		OutboundFrame next;
+		while((next=held.poll())!=null) {
+			ByteBuffer part=encodeFrame(next);
+			if(part==null) continue;
+			parts.add(part);
+			length+=part.remaining();
+		}
+		ByteBuffer all=pool.acquire(length);
+		for(ByteBuffer part : parts) {
+			all.put(part);
+			pool.release(part);
+		}
+		all.flip();
+		return all;
+	}
+
+	private ByteBuffer encodeFrame(OutboundFrame frame) {
+		Framing current=framing;
+		if(frame.switchTo!=null) framing=frame.switchTo;
+		ByteBuffer payload=frame.payload;
+		int length=payload.remaining();
+		ByteBuffer buffer;
+		if(current==Framing.LEGACY) {
+			// only plain messages can be legacy framed
+			buffer = frame.type==Framing.typeJson ? encodeLegacy(payload) : null;
+		} else if(compress && length>=compressionThreshold) {
+			buffer=encodeCompressed(frame.type | Framing.flagCompressed, payload);
+		} else {
+			buffer=encodeVarint(frame.type,payload);
+		}
+		pool.release(payload);
+		if(buffer!=null && frame.defines!=null) {
+			// frames encoded after this one can refer to its strings
+			for(HeaderTable.Entry entry : frame.defines) entry.written=true;
+		}
+		if(buffer==null) log.severe("frame of "+length+" bytes can't be written with "+current+" framing, dropped");
+		return buffer;
+	}
+
+	/**
+	 * Release a frame that won't be written.
+	 * @param frame
+	 */
+	void discard(OutboundFrame frame) {
+		pool.release(frame.payload);
+	}
+
+	private ByteBuffer encodeVarint(int type, ByteBuffer payload) {
+		int length=payload.remaining()+1;
+		ByteBuffer buffer=pool.acquire(Framing.varintSize(length)+length);
+		Framing.putVarint(buffer, length);
+		buffer.put((byte)type);
+		buffer.put(payload);
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * Compress the payload, as a continuation of the previous frames. Room
+	 * is left for the largest frame length in front of the compressed bytes,
+	 * and the length is written right up against them once it is known.
+	 */
+	private ByteBuffer encodeCompressed(int type, ByteBuffer payload) {
+		if(deflater==null) deflater=new Deflater(compressionLevel,true);
+		int header=Framing.maxVarintSize+1;
+		ByteBuffer buffer=pool.acquire(header+payload.remaining()+payload.remaining()/8+64);
+		buffer.position(header);
+		deflater.setInput(payload);
+		while(true) {
+			deflater.deflate(buffer, Deflater.SYNC_FLUSH);
+			if(buffer.hasRemaining()) break;
+			// ran out of room
+			ByteBuffer bigger=pool.acquire(buffer.capacity()*2);
+			buffer.flip();
+			bigger.put(buffer);
+			pool.release(buffer);
+			buffer=bigger;
+		}
+		// leave off the tail that every sync flush ends with
+		int end=buffer.position();
+		int tail=Framing.syncFlushTail.length;
+		if(end-header>=tail) {
+			boolean matches=true;
+			for(int i=0;i<tail;i++) {
+				if(buffer.get(end-tail+i)!=Framing.syncFlushTail[i]) matches=false;
+			}
+			if(matches) end-=tail;
+		}
+		int length=end-header+1;
+		int start=header-1-Framing.varintSize(length);
+		buffer.position(start);
+		Framing.putVarint(buffer, length);
+		buffer.put((byte)type);
+		buffer.limit(end);
+		buffer.position(start);
+		return buffer;
+	}
+
+	/**
+	 * Release the frames held and the deflater, the encoder can't be used
+	 * after this.
+	 */
+	void close() {
+		OutboundFrame frame;
+		while((frame=held.poll())!=null) discard(frame);
+		if(deflater!=null) deflater.end();
+	}
+
+	/**
+	 * Modified UTF-8, as used by writeUTF, is the same as UTF-8 unless there
+	 * are null characters or characters outside of the basic multilingual
+	 * plane, so usually the payload can be used as is.
+	 */
+	private ByteBuffer encodeLegacy(ByteBuffer payload) {
+		int length=payload.remaining();
+		if(Framing.legacyLength(payload)!=length) return reencodeLegacy(payload);
+		if(length>Framing.maxLegacyLength) return null;
+		ByteBuffer buffer=pool.acquire(2+length);
+		buffer.putShort((short)length);
+		buffer.put(payload);
+		buffer.flip();
+		return buffer;
+	}
+
+	private ByteBuffer reencodeLegacy(ByteBuffer payload) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.remaining()+2);
+		try {
+			new DataOutputStream(bytes).writeUTF(StandardCharsets.UTF_8.decode(payload).toString());
+		} catch (IOException e) {
+			// too long
+			return null;
+		}
+		ByteBuffer buffer=pool.acquire(bytes.size());
+		buffer.put(bytes.toByteArray());
+		buffer.flip();
+		return buffer;
+	}
+}
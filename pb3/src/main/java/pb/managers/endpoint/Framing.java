@@ -0,0 +1,179 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * How frames are delimited on the wire.
+ * <br/>
+ * {@link #LEGACY} frames are those written by
+ * {@link java.io.DataOutputStream#writeUTF(String)}, a two byte length
+ * followed by modified UTF-8, so a message can be at most 64KB. Every
+ * connection starts out with legacy framing, so that peers that know
+ * nothing else can still talk to each other.
+ * <br/>
+ * {@link #VARINT} frames are a variable length unsigned integer (7 bits per
+ * byte, least significant first) giving the length of the rest of the frame,
+ * then a frame type byte, then the payload. Messages are plain UTF-8 JSON,
+ * and can be as large as the other endpoint's maximum frame size. Both
+ * endpoints switch to varint framing if they agree to when the session
+ * starts, see {@link Endpoint#acceptCapabilities(pb.protocols.Document)}.
+ * If they also agree to compression, payloads larger than a threshold are
+ * compressed with a single deflate stream per direction, so each frame is
+ * compressed using what came before it as the dictionary.
+ * <br/>
+ * If they also agree to streams, varint frames can belong to logical
+ * streams other than the control stream 0: a {@link #typeStreamJson} frame
+ * is a varint stream id followed by the message, and each side limits how
+ * much the other may send on a stream before it has been processed with
+ * {@link #typeWindowUpdate} frames, so that a bulk stream can't hold up the
+ * control stream or other streams for long. Compression applies to the
+ * whole of the frame after the type byte, whatever the type.
+ * <br/>
+ * If they also agree to a header table, the message, protocol and event
+ * names of a message are sent in a header in front of the rest of the
+ * payload, coded against a dictionary that is built up over the session,
+ * and the frame type has {@link #flagIndexed} set, see {@link HeaderTable}.
+ * <br/>
+ * If they also agree to the binary codec, messages are encoded by
+ * {@link pb.protocols.BinaryWriter} rather than as JSON, and the frame type
+ * has {@link #flagBinary} set.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig}
+ * @author aaron
+ *
+ */
+public enum Framing {
+	LEGACY,
+	VARINT;
+
+	/**
+	 * Frame type of a JSON message.
+	 */
+	static final int typeJson = 0;
+
+	/**
+	 * Frame type of a JSON message on a stream other than 0, the payload
+	 * is the varint stream id then the message.
+	 */
+	static final int typeStreamJson = 1;
+
+	/**
+	 * Frame type that gives the sender of a stream more window, the payload
+	 * is the varint stream id then the varint number of bytes.
+	 */
+	static final int typeWindowUpdate = 2;
+
+	/**
+	 * Frame type that closes a stream, the payload is the varint stream id.
+	 */
+	static final int typeStreamClose = 3;
+
+	/**
+	 * Set in the frame type byte if the payload is compressed.
+	 */
+	static final int flagCompressed = 0x80;
+
+	/**
+	 * Set in the frame type byte of a message if its payload starts with
+	 * a header coded against the {@link HeaderTable}.
+	 */
+	static final int flagIndexed = 0x40;
+
+	/**
+	 * Set in the frame type byte of a message if it is in the binary
+	 * encoding of {@link pb.protocols.BinaryWriter} rather than JSON.
+	 */
+	static final int flagBinary = 0x20;
+
+	/**
+	 * What a sync flush ends with, which is left off compressed payloads
+	 * since it is always there.
+	 */
+	static final byte[] syncFlushTail = {0, 0, (byte)0xff, (byte)0xff};
+
+	/**
+	 * Largest legacy frame payload.
+	 */
+	static final int maxLegacyLength = 0xffff;
+
+	/**
+	 * A frame length needs at most this many bytes as a varint.
+	 */
+	static final int maxVarintSize = 5;
+
+	/**
+	 * Returned by {@link #getVarint(ByteBuffer, int)} if there are not yet
+	 * enough bytes to read the varint.
+	 */
+	static final int incomplete = -1;
+
+	/**
+	 * Returned by {@link #getVarint(ByteBuffer, int)} if the bytes can't be
+	 * a frame length.
+	 */
+	static final int malformed = -2;
+
+	/**
+	 * Modified UTF-8, as written by writeUTF for legacy frames, takes two
+	 * bytes for a null character and six for a character outside of the
+	 * basic multilingual plane, where UTF-8 takes one and four.
+	 * @param utf8 UTF-8 bytes, between position and limit
+	 * @return the length of the bytes in modified UTF-8
+	 */
+	static int legacyLength(ByteBuffer utf8) {
+		int length=utf8.remaining();
+		for(int i=utf8.position();i<utf8.limit();i++) {
+			byte b=utf8.get(i);
+			if(b==0) {
+				length++;
+			} else if((b & 0xf8)==0xf0) {
+				length+=2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * @param value
+	 * @return the number of bytes needed to write the value as a varint
+	 */
+	static int varintSize(int value) {
+		int size=1;
+		while((value>>>=7)!=0) size++;
+		return size;
+	}
+
+	/**
+	 * Write a value as a varint at the buffer's position.
+	 * @param buffer
+	 * @param value must not be negative
+	 */
+	static void putVarint(ByteBuffer buffer, int value) {
+		while((value & ~0x7f)!=0) {
+			buffer.put((byte)((value & 0x7f) | 0x80));
+			value>>>=7;
+		}
+		buffer.put((byte)value);
+	}
+
+	/**
+	 * Read a varint from the buffer, without changing its position.
+	 * @param buffer
+	 * @param index where the varint starts
+	 * @return the value, or {@link #incomplete} or {@link #malformed}
+	 */
+	static int getVarint(ByteBuffer buffer, int index) {
+		long value=0;
+		for(int i=0;i<maxVarintSize;i++) {
+			if(index+i>=buffer.limit()) return incomplete;
+			int b=buffer.get(index+i);
+			value|=(long)(b & 0x7f)<<(7*i);
+			if((b & 0x80)==0) {
+				// only the shortest encoding of a value is allowed
+				if((b==0 && i>0) || value>Integer.MAX_VALUE) return malformed;
+				return (int)value;
+			}
+		}
+		return malformed;
+	}
+}
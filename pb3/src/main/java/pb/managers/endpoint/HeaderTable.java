@@ -0,0 +1,216 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A dictionary of the strings in message headers, such as the message,
+ * protocol and event names, for one direction of a session. Each endpoint
+ * has one for what it sends and one for what it receives. A string is
+ * sent in full the first time, along with the index it is given, and
+ * after that only its index is sent, in the spirit of HPACK. Entries are
+ * never evicted, so the table stops growing once it is full and strings
+ * that don't fit, or are too long to be worth it, are always sent in full.
+ * <br/>
+ * Since messages are encoded when they are sent but can be written in a
+ * different order, because of the lanes of the {@link OutboundQueue} and
+ * the windows of streams, an index is only referred to once a frame
+ * giving its string has been encoded for the wire, see
+ * {@link FrameEncoder#encode(OutboundFrame)}. Until then each message
+ * gives the string and its index again, which does no harm.
+ * <br/>
+ * A header is a varint count of strings, then each string as a varint:
+ * {@link #literal} followed by a varint index and the string, or
+ * {@link #literalNotIndexed} followed by the string, or the index plus
+ * {@link #firstIndex}. A string is a varint byte count then UTF-8.
+ *
+ * @see {@link pb.managers.endpoint.Framing#flagIndexed}
+ * @author aaron
+ *
+ */
+final class HeaderTable {
+
+	static final int literal = 0;
+	static final int literalNotIndexed = 1;
+	static final int firstIndex = 2;
+
+	/**
+	 * Longer strings are not put in the table.
+	 */
+	static final int maxIndexedLength = 64;
+
+	/**
+	 * A string in the table of what is sent.
+	 */
+	static final class Entry {
+		final int index;
+
+		/**
+		 * Set once a frame giving the string has been encoded, after which
+		 * the index alone can be sent.
+		 */
+		volatile boolean written=false;
+
+		Entry(int index) {
+			this.index=index;
+		}
+	}
+
+	/**
+	 * The strings of one message's header, coded against the table.
+	 */
+	final class Header {
+		final String[] strings;
+		final Entry[] entries;
+		final boolean[] refer;
+		final int length;
+
+		private Header(String[] strings) {
+			this.strings=strings;
+			entries=new Entry[strings.length];
+			refer=new boolean[strings.length];
+			int n=Framing.varintSize(strings.length);
+			for(int i=0;i<strings.length;i++) {
+				Entry entry=lookup(strings[i]);
+				entries[i]=entry;
+				if(entry!=null && entry.written) {
+					refer[i]=true;
+					n+=Framing.varintSize(entry.index+firstIndex);
+				} else {
+					int bytes=Utf8.length(strings[i]);
+					n+=1+Framing.varintSize(bytes)+bytes;
+					if(entry!=null) n+=Framing.varintSize(entry.index);
+				}
+			}
+			length=n;
+		}
+
+		/**
+		 * Write the header at the buffer's position.
+		 * @param buffer with {@link #length} bytes remaining
+		 */
+		void put(ByteBuffer buffer) {
+			Framing.putVarint(buffer, strings.length);
+			for(int i=0;i<strings.length;i++) {
+				if(refer[i]) {
+					Framing.putVarint(buffer, entries[i].index+firstIndex);
+					continue;
+				}
+				if(entries[i]!=null) {
+					Framing.putVarint(buffer, literal);
+					Framing.putVarint(buffer, entries[i].index);
+				} else {
+					Framing.putVarint(buffer, literalNotIndexed);
+				}
+				Framing.putVarint(buffer, Utf8.length(strings[i]));
+				Utf8.put(buffer, strings[i]);
+			}
+		}
+
+		/**
+		 * @return the entries that the header gives the strings of, which
+		 * can be referred to once it has been encoded, or null if none
+		 */
+		Entry[] defines() {
+			int n=0;
+			for(int i=0;i<strings.length;i++) if(entries[i]!=null && !refer[i]) n++;
+			if(n==0) return null;
+			Entry[] defines=new Entry[n];
+			n=0;
+			for(int i=0;i<strings.length;i++) if(entries[i]!=null && !refer[i]) defines[n++]=entries[i];
+			return defines;
+		}
+	}
+
+	private final int size;
+
+	/**
+	 * What is sent: the entries by string.
+	 */
+	private final ConcurrentHashMap<String,Entry> entries=new ConcurrentHashMap<>();
+
+	private final AtomicInteger nextIndex=new AtomicInteger();
+
+	/**
+	 * What is received: the strings by index, only used by the thread
+	 * reading the socket.
+	 */
+	private final String[] strings;
+
+	/**
+	 * @param size the most entries the table can have
+	 * @param receiving true for the table of what is received
+	 */
+	HeaderTable(int size, boolean receiving) {
+		this.size=size;
+		strings = receiving ? new String[size] : null;
+	}
+
+	/**
+	 * Code the strings of a header against the table of what is sent.
+	 * @param strings
+	 * @return the header
+	 */
+	Header header(String[] strings) {
+		return new Header(strings);
+	}
+
+	/**
+	 * @param s
+	 * @return the entry for the string, which is added if there is room,
+	 * or null if it is not in the table
+	 */
+	private Entry lookup(String s) {
+		Entry entry=entries.get(s);
+		if(entry!=null || s.length()>maxIndexedLength || nextIndex.get()>=size) return entry;
+		return entries.computeIfAbsent(s, (key)->{
+			int index=nextIndex.getAndIncrement();
+			return index<size ? new Entry(index) : null;
+		});
+	}
+
+	/**
+	 * Decode a header against the table of what is received, adding the
+	 * strings that it gives.
+	 * @param frame holding the header at its position, which is moved past
+	 * the header
+	 * @return the strings of the header, or null if it is malformed
+	 */
+	String[] decode(ByteBuffer frame) {
+		int index=frame.position();
+		int end=frame.limit();
+		int count=Framing.getVarint(frame, index);
+		// each string takes at least a byte
+		if(count<0 || count>end-index) return null;
+		String[] header=new String[count];
+		index+=Framing.varintSize(count);
+		for(int i=0;i<count;i++) {
+			int code=Framing.getVarint(frame, index);
+			if(code<0) return null;
+			index+=Framing.varintSize(code);
+			if(code>=firstIndex) {
+				int entry=code-firstIndex;
+				if(entry>=size || strings[entry]==null) return null;
+				header[i]=strings[entry];
+				continue;
+			}
+			int entry=-1;
+			if(code==literal) {
+				entry=Framing.getVarint(frame, index);
+				if(entry<0 || entry>=size) return null;
+				index+=Framing.varintSize(entry);
+			}
+			int length=Framing.getVarint(frame, index);
+			if(length<0 || length>end-index-Framing.varintSize(length)) return null;
+			index+=Framing.varintSize(length);
+			String s=new String(frame.array(), frame.arrayOffset()+index, length, StandardCharsets.UTF_8);
+			index+=length;
+			if(entry!=-1) strings[entry]=s;
+			header[i]=s;
+		}
+		frame.position(index);
+		return header;
+	}
+}
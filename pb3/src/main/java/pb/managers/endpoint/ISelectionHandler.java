@@ -0,0 +1,27 @@
+package pb.managers.endpoint;
+
+import java.nio.channels.SelectionKey;
+
+/**
+ * Anything that registers a channel with an {@link EventLoop} must provide
+ * a handler, which the event loop attaches to the selection key.
+ *
+ * @see {@link pb.managers.endpoint.EventLoop}
+ * @author aaron
+ *
+ */
+public interface ISelectionHandler {
+	/**
+	 * The channel has been registered with the event loop's selector.
+	 * Called on the event loop thread.
+	 * @param key the selection key for the channel
+	 */
+	public void registered(SelectionKey key);
+
+	/**
+	 * The channel is ready for one or more of the operations that it
+	 * is interested in. Called on the event loop thread.
+	 * @param key the selection key for the channel
+	 */
+	public void selected(SelectionKey key);
+}
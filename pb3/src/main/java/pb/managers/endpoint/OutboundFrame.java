@@ -0,0 +1,66 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A frame waiting on an endpoint's {@link OutboundQueue}. The payload is
+ * encoded when the frame is queued, but how it is framed is only decided
+ * when it is written, since that can change part way through the queue
+ * when the session starts. The payload is a buffer from the endpoint's
+ * {@link BufferPool}, released once the frame has been encoded.
+ *
+ * @see {@link pb.managers.endpoint.FrameEncoder}
+ * @author aaron
+ *
+ */
+final class OutboundFrame {
+
+	/**
+	 * The frame type, see {@link Framing}. Frames of types other than
+	 * {@link Framing#typeJson} can only be written with varint framing.
+	 */
+	final int type;
+
+	/**
+	 * The encoded message, between position and limit.
+	 */
+	final ByteBuffer payload;
+
+	/**
+	 * If not null, the framing to use for the frames written after this one.
+	 */
+	final Framing switchTo;
+
+	/**
+	 * The lane of the queue the frame waits in.
+	 */
+	final Priority priority;
+
+	/**
+	 * The strings of the {@link HeaderTable} that the frame gives, which can
+	 * be referred to by index once it has been encoded, or null.
+	 */
+	final HeaderTable.Entry[] defines;
+
+	/**
+	 * When the frame was created, in ns, for measuring how long it was queued.
+	 */
+	final long queuedAt=System.nanoTime();
+
+	OutboundFrame(int type, ByteBuffer payload, Priority priority) {
+		this(type,payload,priority,null);
+	}
+
+	OutboundFrame(int type, ByteBuffer payload, Priority priority, Framing switchTo) {
+		this(type,payload,priority,switchTo,null);
+	}
+
+	OutboundFrame(int type, ByteBuffer payload, Priority priority, Framing switchTo,
+			HeaderTable.Entry[] defines) {
+		this.type=type;
+		this.payload=payload;
+		this.priority=priority;
+		this.switchTo=switchTo;
+		this.defines=defines;
+	}
+}
@@ -0,0 +1,361 @@
+package pb.managers.endpoint;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.ToIntFunction;
+
+import pb.utils.TimerWheel;
+
+/**
+ * A bounded multi-producer single-consumer queue of outbound frames for an
+ * {@link Endpoint}. Any thread may offer frames, and a single writer (the
+ * endpoint's writer thread, or its event loop) takes them and writes them to
+ * the socket, so that senders never do network I/O themselves. What happens
+ * when the queue is full is given by its {@link OverflowPolicy}. The queue
+ * counts frames, which is what its capacity limits, and also bytes, so
+ * that the writer can tell how much is waiting.
+ * <br/>
+ * The bytes queued are also compared against a high and a low watermark.
+ * The queue becomes unwritable when the bytes reach the high watermark and
+ * writable again when they fall to the low watermark, and a listener is
+ * told of each change, so that producers can pause rather than fill the
+ * queue. Frames are still accepted while the queue is unwritable.
+ * <br/>
+ * The queue can have several lanes, and the lane of each frame is given by
+ * a function of the frame. Frames are taken from the first lane that is
+ * not empty, so lane 0 is always served first, and frames keep their order
+ * only within a lane. Frames in lane 0 are also accepted when the queue is
+ * full, so that they are never held up by a queue full of frames from the
+ * other lanes; they are expected to be few and small.
+ *
+ * @param <E> the type of frame queued
+ * @see {@link pb.managers.endpoint.Endpoint}
+ * @see {@link pb.managers.endpoint.OverflowPolicy}
+ * @author aaron
+ *
+ */
+public class OutboundQueue<E> {
+
+	/**
+	 * How often a blocked producer checks whether the queue was closed.
+	 */
+	private static final int blockedPollInterval = 100;
+
+	/**
+	 * The queue of each lane.
+	 */
+	private final Queue<E>[] lanes;
+
+	/**
+	 * The lane of a frame.
+	 */
+	private final ToIntFunction<E> laneOf;
+
+	/**
+	 * Free space in the queue.
+	 */
+	private final Semaphore space;
+
+	private final AtomicInteger depth;
+
+	/**
+	 * Total size of the frames queued.
+	 */
+	private final AtomicLong bytes;
+
+	/**
+	 * The size of a frame.
+	 */
+	private final ToIntFunction<E> sizeOf;
+
+	private final int capacity;
+
+	private final OverflowPolicy policy;
+
+	/**
+	 * The consumer thread, while it is parked waiting for a frame.
+	 */
+	private volatile Thread waiter=null;
+
+	private volatile boolean closed=false;
+
+	/**
+	 * Bytes at which the queue becomes unwritable.
+	 */
+	private long highWatermark=Long.MAX_VALUE;
+
+	/**
+	 * Bytes at which the queue becomes writable again.
+	 */
+	private long lowWatermark=Long.MAX_VALUE;
+
+	private volatile boolean writable=true;
+
+	/**
+	 * Told when the queue becomes writable or unwritable.
+	 */
+	private Consumer<Boolean> writabilityListener=null;
+
+	/**
+	 * Serializes changes of writability.
+	 */
+	private final ReentrantLock writabilityLock=new ReentrantLock();
+
+	/**
+	 * Initialise the queue with a single lane.
+	 * @param capacity the maximum number of frames that can be queued
+	 * @param policy what to do when the queue is full
+	 * @param sizeOf the size in bytes of a frame
+	 */
+	public OutboundQueue(int capacity, OverflowPolicy policy, ToIntFunction<E> sizeOf) {
+		this(capacity,policy,sizeOf,1,(frame)->0);
+	}
+
+	/**
+	 * Initialise the queue with lanes.
+	 * @param capacity the maximum number of frames that can be queued,
+	 * not counting lane 0 when there are several lanes
+	 * @param policy what to do when the queue is full
+	 * @param sizeOf the size in bytes of a frame
+	 * @param numLanes the number of lanes
+	 * @param laneOf the lane of a frame, from 0 (served first) to numLanes-1
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public OutboundQueue(int capacity, OverflowPolicy policy, ToIntFunction<E> sizeOf,
+			int numLanes, ToIntFunction<E> laneOf) {
+		this.capacity=capacity;
+		this.policy=policy;
+		this.sizeOf=sizeOf;
+		this.laneOf=laneOf;
+		lanes=new Queue[numLanes];
+		for(int i=0;i<numLanes;i++) lanes[i]=new ConcurrentLinkedQueue<>();
+		space=new Semaphore(capacity);
+		depth=new AtomicInteger();
+		bytes=new AtomicLong();
+	}
+
+	/**
+	 * Set the watermarks, which should be done before the queue is used.
+	 * @param highWatermark bytes queued at which the queue becomes unwritable
+	 * @param lowWatermark bytes queued at which it becomes writable again,
+	 * no more than the high watermark
+	 * @param listener called with the new writability on each change, in
+	 * order, on the thread that offered or took the frame, so it must not
+	 * block, see {@link #isWritable()}
+	 */
+	public void setWatermarks(long highWatermark, long lowWatermark, Consumer<Boolean> listener) {
+		if(lowWatermark>highWatermark) throw new IllegalArgumentException("low watermark is above high watermark");
+		this.highWatermark=highWatermark;
+		this.lowWatermark=lowWatermark;
+		this.writabilityListener=listener;
+	}
+
+	/**
+	 * Queue a frame. If the queue is full then the frame is dropped, or
+	 * refused, or the caller waits for space, depending on the policy. A
+	 * thread that may not wait, see {@link #mayWait()}, is refused instead.
+	 * @param frame
+	 * @return true if the frame was queued, false if it was not because the
+	 * queue is full or closed
+	 */
+	public boolean offer(E frame) {
+		if(closed) return false;
+		int lane=laneOf.applyAsInt(frame);
+		if(isBounded(lane) && !space.tryAcquire()) {
+			if(policy!=OverflowPolicy.BLOCK || !mayWait()) return false;
+			try {
+				while(!space.tryAcquire(blockedPollInterval, TimeUnit.MILLISECONDS)) {
+					if(closed) return false;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		long queued=bytes.addAndGet(sizeOf.applyAsInt(frame));
+		lanes[lane].add(frame);
+		depth.incrementAndGet();
+		Thread w=waiter;
+		if(w!=null) LockSupport.unpark(w);
+		if(writable && queued>=highWatermark) checkWritability();
+		return true;
+	}
+
+	/**
+	 * @return true if the calling thread may wait for space in a queue: not
+	 * an event loop, which may be the one that empties it, nor a timer
+	 * worker, which the timeouts of every endpoint wait behind
+	 */
+	public static boolean mayWait() {
+		return !EventLoop.onEventLoop() && !TimerWheel.onWorker();
+	}
+
+	/**
+	 * @return the next frame without removing it, or null if the queue is empty
+	 */
+	public E peek() {
+		for(Queue<E> lane : lanes) {
+			E frame=lane.peek();
+			if(frame!=null) return frame;
+		}
+		return null;
+	}
+
+	/**
+	 * @return the next frame from the first lane that has one, or null if
+	 * the queue is empty
+	 */
+	public E poll() {
+		E frame=null;
+		for(int i=0;i<lanes.length && frame==null;i++) frame=lanes[i].poll();
+		if(frame!=null) {
+			depth.decrementAndGet();
+			long queued=bytes.addAndGet(-sizeOf.applyAsInt(frame));
+			if(isBounded(laneOf.applyAsInt(frame))) space.release();
+			if(!writable && queued<=lowWatermark) checkWritability();
+		}
+		return frame;
+	}
+
+	/**
+	 * Change the writability if a watermark has been crossed. Every thread
+	 * that changes the bytes queued checks afterwards, so the writability
+	 * always ends up matching the bytes queued, even when producers and the
+	 * consumer race.
+	 */
+	private void checkWritability() {
+		writabilityLock.lock();
+		try {
+			long queued=bytes.get();
+			if(writable && queued>=highWatermark) {
+				writable=false;
+			} else if(!writable && queued<=lowWatermark) {
+				writable=true;
+			} else {
+				return;
+			}
+			if(writabilityListener!=null) writabilityListener.accept(writable);
+		} finally {
+			writabilityLock.unlock();
+		}
+	}
+
+	/**
+	 * Wait up to the given time for the next frame. Only the single
+	 * consumer may call this.
+	 * @param timeout
+	 * @param unit
+	 * @return the next frame, or null if there was none in time or the
+	 * queue has been closed and there are no frames left
+	 * @throws InterruptedException
+	 */
+	public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline=System.nanoTime()+unit.toNanos(timeout);
+		E frame;
+		while((frame=poll())==null) {
+			long wait=deadline-System.nanoTime();
+			if(closed || wait<=0) return null;
+			waiter=Thread.currentThread();
+			// check again now that producers can see the waiter
+			if(isEmpty() && !closed) LockSupport.parkNanos(this, wait);
+			waiter=null;
+			if(Thread.interrupted()) throw new InterruptedException();
+		}
+		return frame;
+	}
+
+	/**
+	 * Wait for the next frame. Only the single consumer may call this.
+	 * @return the next frame, or null if the queue has been closed and
+	 * there are no frames left
+	 * @throws InterruptedException
+	 */
+	public E take() throws InterruptedException {
+		E frame;
+		while((frame=poll())==null) {
+			if(closed) return null;
+			waiter=Thread.currentThread();
+			// check again now that producers can see the waiter
+			if(isEmpty() && !closed) LockSupport.park(this);
+			waiter=null;
+			if(Thread.interrupted()) throw new InterruptedException();
+		}
+		return frame;
+	}
+
+	/**
+	 * @param lane
+	 * @return true if the frames in the lane count against the capacity,
+	 * which is all of them when there is only one lane
+	 */
+	private boolean isBounded(int lane) {
+		return lane!=0 || lanes.length==1;
+	}
+
+	private boolean isEmpty() {
+		for(Queue<E> lane : lanes) {
+			if(!lane.isEmpty()) return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close the queue, no more frames are accepted but those already
+	 * queued can still be taken.
+	 */
+	public void close() {
+		closed=true;
+		Thread w=waiter;
+		if(w!=null) LockSupport.unpark(w);
+	}
+
+	/**
+	 * @return true if the queue has been closed
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return false if the bytes queued have reached the high watermark
+	 * and not yet fallen back to the low watermark
+	 */
+	public boolean isWritable() {
+		return writable;
+	}
+
+	/**
+	 * @return the number of frames currently queued
+	 */
+	public int depth() {
+		return depth.get();
+	}
+
+	/**
+	 * @return the total size in bytes of the frames currently queued
+	 */
+	public long bytes() {
+		return bytes.get();
+	}
+
+	/**
+	 * @return the maximum number of frames that can be queued
+	 */
+	public int capacity() {
+		return capacity;
+	}
+
+	/**
+	 * @return what happens when the queue is full
+	 */
+	public OverflowPolicy policy() {
+		return policy;
+	}
+}
@@ -0,0 +1,31 @@
+package pb.managers.endpoint;
+
+/**
+ * What an {@link Endpoint} does when a message is sent but its
+ * {@link OutboundQueue} is full, because the other endpoint is not
+ * reading as fast as messages are being sent.
+ *
+ * @see {@link pb.managers.endpoint.OutboundQueue}
+ * @author aaron
+ *
+ */
+public enum OverflowPolicy {
+	/**
+	 * Drop the message, and the send returns false.
+	 */
+	DROP,
+
+	/**
+	 * The sending thread waits until there is space in the queue. An event
+	 * loop thread can't wait, since it may be the one that has to empty the
+	 * queue, and nor can a timer worker, since every timeout waits behind it,
+	 * so when either sends the connection fails as for {@link #FAIL}.
+	 */
+	BLOCK,
+
+	/**
+	 * The other endpoint is too slow, so the connection is treated as having
+	 * failed and the manager is told it disconnected abruptly.
+	 */
+	FAIL
+}
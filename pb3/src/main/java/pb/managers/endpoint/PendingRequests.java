@@ -0,0 +1,217 @@
+package pb.managers.endpoint;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.protocols.IReplyCallback;
+import pb.utils.Cancellable;
+
+/**
+ * The requests an {@link Endpoint} has sent and is waiting for the replies
+ * to, by timeout id. Each holds the handle of its timeout, so that a reply
+ * cancels the timeout straight away, and maybe a continuation to give the
+ * reply to.
+ * <br/>
+ * The table is an open addressed array indexed by the low bits of the id,
+ * so ids are never boxed. Since the table hands out the ids itself, a new
+ * request does not probe for a free slot: it takes the next id whose slot
+ * is free instead, so every request is found in the slot of its id.
+ * Adding and removing are single compare and sets, and neither takes a
+ * lock. Only growing the table, when it becomes half full, takes a lock:
+ * the requests are copied to a table twice the size, where their slots
+ * are still distinct, and each old slot is then marked as moved so that
+ * anyone who finds the mark looks in the new table.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#sendWithTimeout(pb.protocols.Message, pb.protocols.ICallback, int, IReplyCallback)}
+ * @author aaron
+ *
+ */
+final class PendingRequests {
+
+	/**
+	 * A request waiting for its reply.
+	 */
+	static final class Request {
+		final long id;
+
+		/**
+		 * Given the reply instead of the protocol, if not null.
+		 */
+		final IReplyCallback continuation;
+
+		private volatile Cancellable timeout=null;
+
+		private volatile boolean done=false;
+
+		/**
+		 * When the request was made, in ns, to measure the round trip time.
+		 */
+		final long made=System.nanoTime();
+
+		Request(long id, IReplyCallback continuation) {
+			this.id=id;
+			this.continuation=continuation;
+		}
+
+		/**
+		 * Set the timeout of the request, which is cancelled straight away
+		 * if the request is already done.
+		 * @param timeout
+		 */
+		void setTimeout(Cancellable timeout) {
+			this.timeout=timeout;
+			if(done) timeout.cancel();
+		}
+
+		/**
+		 * The request has been removed, cancel its timeout if it is set.
+		 */
+		private void done() {
+			done=true;
+			Cancellable t=timeout;
+			if(t!=null) t.cancel();
+		}
+	}
+
+	/**
+	 * Marks a slot whose request, if any, has been copied to the next table.
+	 */
+	private static final Request moved=new Request(-1,null);
+
+	private static final class Table {
+		final AtomicReferenceArray<Request> slots;
+		final int mask;
+		volatile Table next=null;
+
+		Table(int size) {
+			slots=new AtomicReferenceArray<>(size);
+			mask=size-1;
+		}
+	}
+
+	private volatile Table table;
+
+	/**
+	 * Serializes growing the table.
+	 */
+	private final ReentrantLock growLock=new ReentrantLock();
+
+	private final AtomicInteger size=new AtomicInteger();
+
+	/**
+	 * The next id to try, ids start at 1 since 0 means no id.
+	 */
+	private final AtomicLong nextId=new AtomicLong(1);
+
+	/**
+	 * @param capacity the initial number of slots, a power of 2
+	 */
+	PendingRequests(int capacity) {
+		table=new Table(Integer.highestOneBit(Math.max(2,capacity)));
+	}
+
+	/**
+	 * Add a new request.
+	 * @param continuation to give the reply to, or null
+	 * @return the request, with its new id
+	 */
+	Request add(IReplyCallback continuation) {
+		if(size.incrementAndGet()>(table.mask+1)/2) grow();
+		Table t=table;
+		while(true) {
+			long id=nextId.getAndIncrement();
+			Request request=new Request(id,continuation);
+			int i=(int)(id & t.mask);
+			while(true) {
+				Request r=t.slots.get(i);
+				if(r==moved) {
+					t=t.next;
+					i=(int)(id & t.mask);
+				} else if(r!=null) {
+					// an older request is still waiting, try the next id
+					break;
+				} else if(t.slots.compareAndSet(i, null, request)) {
+					return request;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Remove a request, which cancels its timeout.
+	 * @param id
+	 * @return the request, or null if there is none with the id
+	 */
+	Request remove(long id) {
+		if(id<=0) return null;
+		Table t=table;
+		int i=(int)(id & t.mask);
+		while(true) {
+			Request r=t.slots.get(i);
+			if(r==moved) {
+				t=t.next;
+				i=(int)(id & t.mask);
+			} else if(r==null || r.id!=id) {
+				return null;
+			} else if(t.slots.compareAndSet(i, r, null)) {
+				size.decrementAndGet();
+				r.done();
+				return r;
+			}
+		}
+	}
+
+	/**
+	 * Remove all of the requests, cancelling their timeouts.
+	 */
+	void clear() {
+		growLock.lock();
+		try {
+			Table t=table;
+			for(int i=0;i<=t.mask;i++) {
+				Request r=t.slots.get(i);
+				if(r!=null && t.slots.compareAndSet(i, r, null)) {
+					size.decrementAndGet();
+					r.done();
+				}
+			}
+		} finally {
+			growLock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of requests waiting
+	 */
+	int size() {
+		return size.get();
+	}
+
+	/**
+	 * Double the size of the table if it is still at least half full.
+	 */
+	private void grow() {
+		growLock.lock();
+		try {
+			Table old=table;
+			if(size.get()<=(old.mask+1)/2) return;
+			Table next=new Table((old.mask+1)*2);
+			old.next=next;
+			for(int i=0;i<=old.mask;i++) {
+				while(true) {
+					Request r=old.slots.get(i);
+					// copied before the mark, so it is always in one table or the other
+					if(r!=null) next.slots.set((int)(r.id & next.mask), r);
+					if(old.slots.compareAndSet(i, r, moved)) break;
+					// removed meanwhile
+					if(r!=null) next.slots.compareAndSet((int)(r.id & next.mask), r, null);
+				}
+			}
+			table=next;
+		} finally {
+			growLock.unlock();
+		}
+	}
+}
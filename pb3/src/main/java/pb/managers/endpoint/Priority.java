@@ -0,0 +1,32 @@
+package pb.managers.endpoint;
+
+/**
+ * The lane of an {@link Endpoint}'s {@link OutboundQueue} that a message
+ * waits in. The lanes are served in strict priority: a frame is only
+ * written when every higher lane is empty, so a lower lane can be starved
+ * for as long as the higher lanes are kept busy.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig#setProtocolPriority(String, Priority)}
+ * @see {@link pb.managers.endpoint.EndpointConfig#setEventPriority(String, Priority)}
+ * @author aaron
+ *
+ */
+public enum Priority {
+	/**
+	 * Messages that keep the connection alive, such as the session and
+	 * keep alive protocols, and flow control.
+	 */
+	CONTROL,
+
+	/**
+	 * Messages that someone is waiting for, by default all events.
+	 */
+	INTERACTIVE,
+
+	/**
+	 * Messages that carry a lot of data and can wait, such as file contents,
+	 * and the session stop request and reply, which go after everything
+	 * that was queued before them.
+	 */
+	BULK
+}
@@ -0,0 +1,110 @@
+package pb.managers.endpoint;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The round trip time to the other endpoint of an {@link Endpoint},
+ * measured from each request that is answered before its timeout, and
+ * smoothed the way TCP does it (RFC 6298). Requests are given a timeout of
+ * the smoothed time plus four times its mean deviation, kept within the
+ * least and most that the endpoint's config allows, so that a dead peer on
+ * a fast network is found quickly while a slow or congested link is given
+ * longer. Until the first reply the timeout is the config's initial one.
+ * <br/>
+ * The time of a request runs from when it is queued to when its reply is
+ * read, so it includes waiting in the outbound queues at both ends as well
+ * as the network.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#getRoundTripTime()}
+ * @author aaron
+ *
+ */
+public class RoundTripTime {
+
+	private final EndpointConfig config;
+
+	/**
+	 * Guards updating the estimate, which is read without it.
+	 */
+	private final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * Smoothed round trip time, in ns.
+	 */
+	private volatile long smoothed=0;
+
+	/**
+	 * Smoothed mean deviation of the round trip time, in ns.
+	 */
+	private volatile long deviation=0;
+
+	private volatile long samples=0;
+
+	/**
+	 * The timeout for requests, in ms.
+	 */
+	private volatile int timeout;
+
+	RoundTripTime(EndpointConfig config) {
+		this.config=config;
+		timeout=config.getInitialTimeout();
+	}
+
+	/**
+	 * Add the time that a request took to be answered.
+	 * @param rtt in ns
+	 */
+	void sample(long rtt) {
+		lock.lock();
+		try {
+			if(samples==0) {
+				smoothed=rtt;
+				deviation=rtt/2;
+			} else {
+				long error=rtt-smoothed;
+				deviation+=(Math.abs(error)-deviation)/4;
+				smoothed+=error/8;
+			}
+			samples++;
+			long ms=(smoothed+4*deviation+999999)/1000000;
+			timeout=(int)Math.max(config.getMinTimeout(), Math.min(config.getMaxTimeout(), ms));
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the smoothed round trip time in ms, or 0 if none has been
+	 * measured
+	 */
+	public double getSmoothed() {
+		return smoothed/1e6;
+	}
+
+	/**
+	 * @return the smoothed mean deviation of the round trip time in ms
+	 */
+	public double getDeviation() {
+		return deviation/1e6;
+	}
+
+	/**
+	 * @return how many round trips have been measured
+	 */
+	public long getSamples() {
+		return samples;
+	}
+
+	/**
+	 * @return how long in ms to wait for the reply to a request
+	 */
+	public int getTimeout() {
+		return timeout;
+	}
+
+	@Override
+	public String toString() {
+		return "rtt="+String.format("%.2f/%.2fms",getSmoothed(),getDeviation())
+			+" samples="+getSamples()+" timeout="+getTimeout()+"ms";
+	}
+}
@@ -0,0 +1,84 @@
+package pb.managers.endpoint;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.protocols.Protocol;
+
+/**
+ * The flow control state of a logical stream on an {@link Endpoint}, other
+ * than the control stream 0 which is not flow controlled.
+ * <br/>
+ * The send window is how many more bytes the other endpoint will take on
+ * this stream. A frame is queued for writing only while the window is
+ * positive, otherwise it waits here until a window update arrives, so a
+ * stream never has more than about a window's worth of bytes on the
+ * endpoint's {@link OutboundQueue} ahead of the frames of other streams.
+ * A frame larger than the whole window is still sent once the window is
+ * positive, leaving the window negative, so that it can't get stuck.
+ * <br/>
+ * The receive side counts the bytes that have been processed and gives
+ * them back to the other endpoint as a window update once half of the
+ * window has been used.
+ *
+ * @see {@link pb.managers.endpoint.Endpoint#openStream()}
+ * @see {@link pb.managers.endpoint.Framing}
+ * @author aaron
+ *
+ */
+final class Stream {
+
+	final int id;
+
+	/**
+	 * Guards the send window and the frames waiting for it, and keeps the
+	 * frames of the stream in order.
+	 */
+	final ReentrantLock lock=new ReentrantLock();
+
+	/**
+	 * Bytes the other endpoint will still take.
+	 */
+	long sendWindow;
+
+	/**
+	 * Frames waiting for the send window to open, in order.
+	 */
+	final ArrayDeque<OutboundFrame> pending=new ArrayDeque<>();
+
+	/**
+	 * Set when a frame had to wait, so that the endpoint can say when the
+	 * stream is writable again.
+	 */
+	boolean blocked=false;
+
+	/**
+	 * Set once the stream is closed, after which nothing more is sent.
+	 */
+	boolean closed=false;
+
+	/**
+	 * The protocols in use on the stream, indexed by id, replaced rather
+	 * than changed under the endpoint's protocol lock.
+	 */
+	volatile Protocol[] protocols=new Protocol[0];
+
+	/**
+	 * Bytes processed since the last window update, only used by the
+	 * thread reading the socket.
+	 */
+	int consumed=0;
+
+	Stream(int id, long sendWindow) {
+		this.id=id;
+		this.sendWindow=sendWindow;
+	}
+
+	/**
+	 * @return true if a frame sent now would be queued for writing rather
+	 * than wait for the window, must hold the lock
+	 */
+	boolean canSend() {
+		return pending.isEmpty() && sendWindow>0 && !closed;
+	}
+}
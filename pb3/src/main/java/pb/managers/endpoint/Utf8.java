@@ -0,0 +1,72 @@
+package pb.managers.endpoint;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Encodes strings as UTF-8 straight into a buffer, so that sending a
+ * message doesn't need a byte array as well as the string. Unpaired
+ * surrogates are encoded as '?', the same as {@link String#getBytes(java.nio.charset.Charset)}.
+ *
+ * @author aaron
+ *
+ */
+public final class Utf8 {
+
+	private Utf8() {}
+
+	/**
+	 * @param s
+	 * @return the number of bytes needed to encode the string
+	 */
+	public static int length(String s) {
+		int n=s.length();
+		int length=n;
+		for(int i=0;i<n;i++) {
+			char c=s.charAt(i);
+			if(c<0x80) continue;
+			if(c<0x800) {
+				length++;
+			} else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				// four bytes for the two chars
+				length+=2;
+				i++;
+			} else if(Character.isSurrogate(c)) {
+				// encoded as '?'
+			} else {
+				length+=2;
+			}
+		}
+		return length;
+	}
+
+	/**
+	 * Encode the string at the buffer's position, which must have
+	 * {@link #length(String)} bytes remaining.
+	 * @param buffer
+	 * @param s
+	 */
+	public static void put(ByteBuffer buffer, String s) {
+		int n=s.length();
+		for(int i=0;i<n;i++) {
+			char c=s.charAt(i);
+			if(c<0x80) {
+				buffer.put((byte)c);
+			} else if(c<0x800) {
+				buffer.put((byte)(0xc0 | (c>>6)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			} else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp=Character.toCodePoint(c, s.charAt(++i));
+				buffer.put((byte)(0xf0 | (cp>>18)));
+				buffer.put((byte)(0x80 | ((cp>>12) & 0x3f)));
+				buffer.put((byte)(0x80 | ((cp>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (cp & 0x3f)));
+			} else if(Character.isSurrogate(c)) {
+				buffer.put((byte)'?');
+			} else {
+				buffer.put((byte)(0xe0 | (c>>12)));
+				buffer.put((byte)(0x80 | ((c>>6) & 0x3f)));
+				buffer.put((byte)(0x80 | (c & 0x3f)));
+			}
+		}
+	}
+}
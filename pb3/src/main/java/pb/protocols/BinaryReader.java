@@ -0,0 +1,160 @@
+package pb.protocols;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads messages in the binary encoding of {@link BinaryWriter}, straight
+ * from the bytes of a frame. Values are the same types that
+ * {@link JsonReader} gives, so the result can be used as a
+ * {@link Document}, along with byte arrays, which JSON does not have.
+ * Keys and short strings come from the {@link StringCache}.
+ * <br/>
+ * A reader is reused for frame after frame by one thread at a time, see
+ * {@link #reset(byte[], int, int)}.
+ *
+ * @see {@link pb.protocols.BinaryWriter}
+ * @see {@link pb.protocols.Message#toMessage(IMessageReader, String[])}
+ * @author aaron
+ *
+ */
+public final class BinaryReader implements IMessageReader {
+
+	private static final int maxDepth = 64;
+
+	private byte[] bytes;
+
+	private int pos;
+
+	private int end;
+
+	private int depth;
+
+	public BinaryReader() {
+		reset(new byte[0],0,0);
+	}
+
+	@Override
+	public BinaryReader reset(byte[] bytes, int offset, int length) {
+		this.bytes=bytes;
+		this.pos=offset;
+		this.end=offset+length;
+		this.depth=0;
+		return this;
+	}
+
+	/**
+	 * Read the only value, which must take all of the bytes.
+	 */
+	@Override
+	public Object readDocument() throws InvalidMessage {
+		Object value=readValue();
+		if(pos!=end) throw new InvalidMessage();
+		return value;
+	}
+
+	@Override
+	public void beginObject() throws InvalidMessage {
+		if(pos>=end || bytes[pos]!=BinaryWriter.tagObject) throw new InvalidMessage();
+		pos++;
+		depth=1;
+	}
+
+	@Override
+	public String nextKey() throws InvalidMessage {
+		int key=length();
+		if(key==0) {
+			depth=0;
+			if(pos!=end) throw new InvalidMessage();
+			return null;
+		}
+		return readUtf8(key-1);
+	}
+
+	/**
+	 * @return the next value, of any type
+	 * @throws InvalidMessage if it is malformed
+	 */
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object readValue() throws InvalidMessage {
+		if(pos>=end) throw new InvalidMessage();
+		int tag=bytes[pos++];
+		switch(tag) {
+		case BinaryWriter.tagNull:
+			return null;
+		case BinaryWriter.tagFalse:
+			return Boolean.FALSE;
+		case BinaryWriter.tagTrue:
+			return Boolean.TRUE;
+		case BinaryWriter.tagLong:
+			long zigzag=readVarint();
+			return (zigzag>>>1) ^ -(zigzag & 1);
+		case BinaryWriter.tagDouble:
+			if(end-pos<8) throw new InvalidMessage();
+			long bits=0;
+			for(int i=0;i<8;i++) bits=(bits<<8) | (bytes[pos++] & 0xff);
+			return Double.longBitsToDouble(bits);
+		case BinaryWriter.tagString:
+			return readUtf8(length());
+		case BinaryWriter.tagBytes:
+			int length=length();
+			byte[] value=new byte[length];
+			System.arraycopy(bytes, pos, value, 0, length);
+			pos+=length;
+			return value;
+		case BinaryWriter.tagObject:
+			if(++depth>maxDepth) throw new InvalidMessage();
+			JSONObject obj=new JSONObject();
+			while(true) {
+				int key=length();
+				if(key==0) break;
+				obj.put(readUtf8(key-1), readValue());
+			}
+			depth--;
+			return obj;
+		case BinaryWriter.tagArray:
+			if(++depth>maxDepth) throw new InvalidMessage();
+			JSONArray array=new JSONArray();
+			while(true) {
+				if(pos>=end) throw new InvalidMessage();
+				if(bytes[pos]==BinaryWriter.tagEnd) {
+					pos++;
+					break;
+				}
+				array.add(readValue());
+			}
+			depth--;
+			return array;
+		default:
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * @return a varint that is a count of bytes, which must all be there
+	 */
+	private int length() throws InvalidMessage {
+		long length=readVarint();
+		if(length<0 || length>end-pos) throw new InvalidMessage();
+		return (int)length;
+	}
+
+	private String readUtf8(int length) throws InvalidMessage {
+		if(length>end-pos) throw new InvalidMessage();
+		String s=StringCache.get(bytes, pos, length);
+		pos+=length;
+		return s;
+	}
+
+	private long readVarint() throws InvalidMessage {
+		long value=0;
+		for(int shift=0;shift<64;shift+=7) {
+			if(pos>=end) throw new InvalidMessage();
+			int b=bytes[pos++];
+			value|=(long)(b & 0x7f)<<shift;
+			if((b & 0x80)==0) return value;
+		}
+		throw new InvalidMessage();
+	}
+}
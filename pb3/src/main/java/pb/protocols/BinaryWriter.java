@@ -0,0 +1,257 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import pb.managers.endpoint.BufferPool;
+import pb.managers.endpoint.Utf8;
+
+/**
+ * Writes messages in a compact binary encoding, in the style of CBOR,
+ * which endpoints use instead of JSON when they agree to it at the start
+ * of the session. Each value starts with a tag byte:
+ * <ul>
+ * <li>{@link #tagNull}, {@link #tagFalse} and {@link #tagTrue} on their own;</li>
+ * <li>{@link #tagLong} then a zigzag varint;</li>
+ * <li>{@link #tagDouble} then the 8 bytes of the double, big endian;</li>
+ * <li>{@link #tagString} then a varint byte count and UTF-8, with no
+ * escaping;</li>
+ * <li>{@link #tagBytes} then a varint byte count and the raw bytes;</li>
+ * <li>{@link #tagObject} then each field as a varint of the key's byte
+ * count plus 1, the key in UTF-8 and the value, then a varint 0;</li>
+ * <li>{@link #tagArray} then each value, then {@link #tagEnd}.</li>
+ * </ul>
+ * Varints are 7 bits per byte, least significant first. Like
+ * {@link JsonWriter}, a writer made without a buffer only counts the bytes,
+ * and one made with a pool grows its buffer as needed.
+ *
+ * @see {@link pb.protocols.BinaryReader}
+ * @see {@link pb.protocols.Message#write(IMessageWriter, String[])}
+ * @author aaron
+ *
+ */
+public final class BinaryWriter implements IMessageWriter {
+
+	static final int tagNull = 0;
+	static final int tagFalse = 1;
+	static final int tagTrue = 2;
+	static final int tagLong = 3;
+	static final int tagDouble = 4;
+	static final int tagString = 5;
+	static final int tagBytes = 6;
+	static final int tagObject = 7;
+	static final int tagArray = 8;
+	static final int tagEnd = 9;
+
+	/**
+	 * Where to write, or null to only count.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Where to get a larger buffer from when it fills up, or null if it
+	 * must have room for what is written.
+	 */
+	private final BufferPool pool;
+
+	private int length=0;
+
+	private int depth=0;
+
+	/**
+	 * A writer that only counts the bytes.
+	 */
+	public BinaryWriter() {
+		this(null,null);
+	}
+
+	/**
+	 * A writer into a buffer, at its position.
+	 * @param buffer which must have room for what is written
+	 */
+	public BinaryWriter(ByteBuffer buffer) {
+		this(buffer,null);
+	}
+
+	/**
+	 * A writer into a buffer from a pool, at its position, which is
+	 * swapped for a larger one from the pool when it fills up.
+	 * @param buffer
+	 * @param pool
+	 */
+	public BinaryWriter(ByteBuffer buffer, BufferPool pool) {
+		this.buffer=buffer;
+		this.pool=pool;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Make room in the buffer, if it can grow.
+	 * @param bytes about to be written
+	 */
+	private void ensure(int bytes) {
+		if(pool!=null && buffer.remaining()<bytes) buffer=pool.grow(buffer,bytes);
+	}
+
+	@Override
+	public BinaryWriter beginObject() {
+		put(tagObject);
+		nest();
+		return this;
+	}
+
+	@Override
+	public BinaryWriter endObject() {
+		depth--;
+		put(0);
+		return this;
+	}
+
+	@Override
+	public BinaryWriter beginArray() {
+		put(tagArray);
+		nest();
+		return this;
+	}
+
+	@Override
+	public BinaryWriter endArray() {
+		depth--;
+		put(tagEnd);
+		return this;
+	}
+
+	@Override
+	public BinaryWriter key(String key) {
+		int bytes=Utf8.length(key);
+		putVarint(bytes+1);
+		putUtf8(key,bytes);
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(String value) {
+		if(value==null) {
+			put(tagNull);
+		} else {
+			put(tagString);
+			int bytes=Utf8.length(value);
+			putVarint(bytes);
+			putUtf8(value,bytes);
+		}
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(long value) {
+		put(tagLong);
+		putVarint((value<<1) ^ (value>>63));
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(boolean value) {
+		put(value ? tagTrue : tagFalse);
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(double value) {
+		put(tagDouble);
+		if(buffer!=null) {
+			ensure(8);
+			buffer.putDouble(value);
+		}
+		length+=8;
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(byte[] value) {
+		if(value==null) {
+			put(tagNull);
+		} else {
+			put(tagBytes);
+			putVarint(value.length);
+			if(buffer!=null) {
+				ensure(value.length);
+				buffer.put(value);
+			}
+			length+=value.length;
+		}
+		return this;
+	}
+
+	@Override
+	public BinaryWriter value(Object value) {
+		if(value==null) {
+			put(tagNull);
+		} else if(value instanceof String) {
+			value((String)value);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			value(((Number)value).longValue());
+		} else if(value instanceof Number) {
+			value(((Number)value).doubleValue());
+		} else if(value instanceof Boolean) {
+			value(((Boolean)value).booleanValue());
+		} else if(value instanceof byte[]) {
+			value((byte[])value);
+		} else if(value instanceof Document) {
+			value(((Document)value).obj);
+		} else if(value instanceof Map) {
+			beginObject();
+			for(Map.Entry<?,?> field : ((Map<?,?>)value).entrySet()) {
+				key(String.valueOf(field.getKey()));
+				value(field.getValue());
+			}
+			endObject();
+		} else if(value instanceof List) {
+			beginArray();
+			for(Object item : (List<?>)value) value(item);
+			endArray();
+		} else {
+			value(value.toString());
+		}
+		return this;
+	}
+
+	private void nest() {
+		if(depth==64) throw new IllegalStateException("message nested too deeply");
+		depth++;
+	}
+
+	private void put(int b) {
+		if(buffer!=null) {
+			ensure(1);
+			buffer.put((byte)b);
+		}
+		length++;
+	}
+
+	private void putVarint(long value) {
+		while((value & ~0x7fL)!=0) {
+			put((int)((value & 0x7f) | 0x80));
+			value>>>=7;
+		}
+		put((int)value);
+	}
+
+	private void putUtf8(String s, int bytes) {
+		if(buffer!=null) {
+			ensure(bytes);
+			Utf8.put(buffer, s);
+		}
+		length+=bytes;
+	}
+}
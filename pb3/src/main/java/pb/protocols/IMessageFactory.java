@@ -0,0 +1,12 @@
+package pb.protocols;
+
+@FunctionalInterface
+public interface IMessageFactory {
+	/**
+	 * Create a message of this kind for a received message, whose fields
+	 * are then read into it, usually its constructor without parameters.
+	 * @see {@link Message#toMessage(IMessageReader, String[])}
+	 * @return the message
+	 */
+	public Message create();
+}
@@ -0,0 +1,53 @@
+package pb.protocols;
+
+/**
+ * Reads a message from the bytes of a frame, in one of the encodings that
+ * endpoints can agree on, as the same values that json-simple gives, so
+ * the result can be used as a {@link Document}. A reader is reused for
+ * frame after frame by one thread at a time.
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @see {@link pb.protocols.BinaryReader}
+ * @see {@link pb.protocols.Message#toMessage(IMessageReader, String[])}
+ * @author aaron
+ *
+ */
+public interface IMessageReader {
+
+	/**
+	 * Read from the given bytes next.
+	 * @param bytes
+	 * @param offset where the message starts
+	 * @param length of the message
+	 * @return this reader
+	 */
+	public IMessageReader reset(byte[] bytes, int offset, int length);
+
+	/**
+	 * Read the only value, which must take up all of the bytes.
+	 * @return the value
+	 * @throws InvalidMessage if it is not validly encoded
+	 */
+	public Object readDocument() throws InvalidMessage;
+
+	/**
+	 * Start reading the fields of the object that takes up all of the
+	 * bytes, one at a time with {@link #nextKey()} and {@link #readValue()},
+	 * rather than all at once with {@link #readDocument()}.
+	 * @throws InvalidMessage if it is not an object
+	 */
+	public void beginObject() throws InvalidMessage;
+
+	/**
+	 * @return the key of the next field of the object, whose value must be
+	 * read next, or null if there are no more and nothing follows the object
+	 * @throws InvalidMessage if it is not validly encoded
+	 */
+	public String nextKey() throws InvalidMessage;
+
+	/**
+	 * @return the next value, of any type
+	 * @throws InvalidMessage if it is not validly encoded
+	 */
+	public Object readValue() throws InvalidMessage;
+}
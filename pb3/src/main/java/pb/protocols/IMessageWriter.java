@@ -0,0 +1,63 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the fields of a message in one of the encodings that endpoints
+ * can agree on, see {@link Message#write(IMessageWriter, String[])}. Each
+ * writer either writes into a buffer or only counts the bytes it would
+ * write, so that a message can be written straight into a buffer of the
+ * right size. A writer given a pool as well swaps its buffer for a larger
+ * one from the pool when it fills up, so the message is only written once.
+ *
+ * @see {@link pb.protocols.JsonWriter}
+ * @see {@link pb.protocols.BinaryWriter}
+ * @author aaron
+ *
+ */
+public interface IMessageWriter {
+
+	/**
+	 * @return the number of bytes written, or that would have been
+	 */
+	public int length();
+
+	/**
+	 * @return the buffer written into, which may have been swapped for a
+	 * larger one, or null if the writer only counts
+	 */
+	public ByteBuffer getBuffer();
+
+	public IMessageWriter beginObject();
+
+	public IMessageWriter endObject();
+
+	public IMessageWriter beginArray();
+
+	public IMessageWriter endArray();
+
+	/**
+	 * Write the key of the next field of an object.
+	 * @param key
+	 * @return this writer
+	 */
+	public IMessageWriter key(String key);
+
+	public IMessageWriter value(String value);
+
+	public IMessageWriter value(long value);
+
+	public IMessageWriter value(boolean value);
+
+	public IMessageWriter value(double value);
+
+	public IMessageWriter value(byte[] value);
+
+	/**
+	 * Write any value that a {@link Document} can hold: strings, numbers,
+	 * booleans, byte arrays, null, maps and lists.
+	 * @param value
+	 * @return this writer
+	 */
+	public IMessageWriter value(Object value);
+}
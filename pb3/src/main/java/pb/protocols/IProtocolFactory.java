@@ -0,0 +1,16 @@
+package pb.protocols;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+
+@FunctionalInterface
+public interface IProtocolFactory {
+	/**
+	 * Create an instance of a protocol for an endpoint, when the other
+	 * endpoint starts using it.
+	 * @param endpoint
+	 * @param manager the endpoint's manager, which handles the protocol's callbacks
+	 * @return the new protocol
+	 */
+	public Protocol create(Endpoint endpoint, IEndpointHandler manager);
+}
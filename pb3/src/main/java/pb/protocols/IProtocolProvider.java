@@ -0,0 +1,20 @@
+package pb.protocols;
+
+/**
+ * A provider of protocols, which registers them with the
+ * {@link ProtocolRegistry}. Providers are found with
+ * {@link java.util.ServiceLoader}, by listing the class in
+ * META-INF/services/pb.protocols.IProtocolProvider, so a new protocol can be
+ * added without changing the endpoint or the message factory.
+ *
+ * @see {@link pb.protocols.ProtocolRegistry}
+ * @author aaron
+ *
+ */
+public interface IProtocolProvider {
+	/**
+	 * Register the protocols and their messages.
+	 * @param registry
+	 */
+	public void register(ProtocolRegistry registry);
+}
@@ -0,0 +1,10 @@
+package pb.protocols;
+
+@FunctionalInterface
+public interface IReplyCallback {
+	/**
+	 * Handle the reply to a request.
+	 * @param reply
+	 */
+	public void callback(Message reply);
+}
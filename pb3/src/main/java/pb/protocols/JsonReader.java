@@ -0,0 +1,366 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * Reads JSON straight from the UTF-8 bytes of a frame, without making a
+ * string of the whole frame and without a lexer. Values are the same
+ * types that json-simple gives, so the result can be used as a
+ * {@link Document}: objects are JSONObjects, arrays are JSONArrays, whole
+ * numbers are Longs and other numbers are Doubles.
+ * <br/>
+ * Short strings that need no unescaping, such as the keys of a message and
+ * its names, come from the {@link StringCache}, so that reading the same
+ * names over and over does not make new strings.
+ * <br/>
+ * A reader is reused for frame after frame by one thread at a time, see
+ * {@link #reset(byte[], int, int)}.
+ *
+ * @see {@link pb.protocols.JsonWriter}
+ * @see {@link pb.protocols.Message#toMessage(IMessageReader, String[])}
+ * @author aaron
+ *
+ */
+public final class JsonReader implements IMessageReader {
+
+	private static final int maxDepth = 64;
+
+	private byte[] bytes;
+
+	private int pos;
+
+	private int end;
+
+	private int depth;
+
+	/**
+	 * Whether no field of the object begun by {@link #beginObject()} has
+	 * been read yet.
+	 */
+	private boolean firstKey;
+
+	/**
+	 * Reused for strings that need unescaping, it grows as needed.
+	 */
+	private char[] chars=new char[64];
+
+	public JsonReader() {
+		reset(new byte[0],0,0);
+	}
+
+	@Override
+	public JsonReader reset(byte[] bytes, int offset, int length) {
+		this.bytes=bytes;
+		this.pos=offset;
+		this.end=offset+length;
+		this.depth=0;
+		return this;
+	}
+
+	/**
+	 * Read the only value, which must be followed by nothing but whitespace.
+	 */
+	@Override
+	public Object readDocument() throws InvalidMessage {
+		Object value=readValue();
+		skipWhitespace();
+		if(pos!=end) throw new InvalidMessage();
+		return value;
+	}
+
+	@Override
+	public void beginObject() throws InvalidMessage {
+		skipWhitespace();
+		consume('{');
+		depth=1;
+		firstKey=true;
+	}
+
+	@Override
+	public String nextKey() throws InvalidMessage {
+		skipWhitespace();
+		if(peek()=='}') {
+			pos++;
+			depth=0;
+			skipWhitespace();
+			if(pos!=end) throw new InvalidMessage();
+			return null;
+		}
+		if(!firstKey) {
+			consume(',');
+			skipWhitespace();
+		}
+		firstKey=false;
+		String key=readString();
+		skipWhitespace();
+		consume(':');
+		return key;
+	}
+
+	/**
+	 * @return the next value, of any type
+	 * @throws InvalidMessage if it is not valid JSON
+	 */
+	@Override
+	public Object readValue() throws InvalidMessage {
+		skipWhitespace();
+		if(pos>=end) throw new InvalidMessage();
+		byte b=bytes[pos];
+		switch(b) {
+		case '{':
+			return readObject();
+		case '[':
+			return readArray();
+		case '"':
+			return readString();
+		case 't':
+			expect("true");
+			return Boolean.TRUE;
+		case 'f':
+			expect("false");
+			return Boolean.FALSE;
+		case 'n':
+			expect("null");
+			return null;
+		default:
+			return readNumber();
+		}
+	}
+
+	/**
+	 * @return the next value, which must be an object
+	 * @throws InvalidMessage if it is not valid JSON
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONObject readObject() throws InvalidMessage {
+		skipWhitespace();
+		consume('{');
+		if(++depth>maxDepth) throw new InvalidMessage();
+		JSONObject obj=new JSONObject();
+		skipWhitespace();
+		if(peek()=='}') {
+			pos++;
+		} else {
+			while(true) {
+				skipWhitespace();
+				String key=readString();
+				skipWhitespace();
+				consume(':');
+				obj.put(key, readValue());
+				skipWhitespace();
+				if(peek()==',') {
+					pos++;
+				} else {
+					consume('}');
+					break;
+				}
+			}
+		}
+		depth--;
+		return obj;
+	}
+
+	/**
+	 * @return the next value, which must be an array
+	 * @throws InvalidMessage if it is not valid JSON
+	 */
+	@SuppressWarnings("unchecked")
+	public JSONArray readArray() throws InvalidMessage {
+		skipWhitespace();
+		consume('[');
+		if(++depth>maxDepth) throw new InvalidMessage();
+		JSONArray array=new JSONArray();
+		skipWhitespace();
+		if(peek()==']') {
+			pos++;
+		} else {
+			while(true) {
+				array.add(readValue());
+				skipWhitespace();
+				if(peek()==',') {
+					pos++;
+				} else {
+					consume(']');
+					break;
+				}
+			}
+		}
+		depth--;
+		return array;
+	}
+
+	/**
+	 * @return the next value, which must be a string
+	 * @throws InvalidMessage if it is not valid JSON
+	 */
+	public String readString() throws InvalidMessage {
+		skipWhitespace();
+		consume('"');
+		int start=pos;
+		while(pos<end) {
+			byte b=bytes[pos];
+			if(b=='"') {
+				pos++;
+				return StringCache.get(bytes,start,pos-1-start);
+			}
+			if(b=='\\') return escapedString(start);
+			if(b>=0 && b<0x20) throw new InvalidMessage();
+			pos++;
+		}
+		throw new InvalidMessage();
+	}
+
+	/**
+	 * @return the next value, which must be a whole number
+	 * @throws InvalidMessage if it is not valid JSON or not a whole number
+	 */
+	public long readLong() throws InvalidMessage {
+		Object number=readNumber();
+		if(!(number instanceof Long)) throw new InvalidMessage();
+		return (Long)number;
+	}
+
+	private Object readNumber() throws InvalidMessage {
+		int start=pos;
+		boolean negative=false;
+		if(peek()=='-') {
+			negative=true;
+			pos++;
+		}
+		int digitsStart=pos;
+		// accumulated negatively, as Long.parseLong does, so that
+		// Long.MIN_VALUE is whole too
+		long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+		long value=0;
+		boolean overflow=false;
+		while(pos<end && bytes[pos]>='0' && bytes[pos]<='9') {
+			int digit=bytes[pos]-'0';
+			if(value<limit/10 || value*10<limit+digit) overflow=true;
+			if(!overflow) value=value*10-digit;
+			pos++;
+		}
+		int digits=pos-digitsStart;
+		if(digits==0 || (digits>1 && bytes[digitsStart]=='0')) throw new InvalidMessage();
+		boolean whole=true;
+		if(pos<end && bytes[pos]=='.') {
+			whole=false;
+			pos++;
+			int fraction=pos;
+			while(pos<end && bytes[pos]>='0' && bytes[pos]<='9') pos++;
+			if(pos==fraction) throw new InvalidMessage();
+		}
+		if(pos<end && (bytes[pos]=='e' || bytes[pos]=='E')) {
+			whole=false;
+			pos++;
+			if(pos<end && (bytes[pos]=='+' || bytes[pos]=='-')) pos++;
+			int exponent=pos;
+			while(pos<end && bytes[pos]>='0' && bytes[pos]<='9') pos++;
+			if(pos==exponent) throw new InvalidMessage();
+		}
+		if(whole && !overflow) return negative ? value : -value;
+		try {
+			return Double.valueOf(new String(bytes, start, pos-start, StandardCharsets.US_ASCII));
+		} catch (NumberFormatException e) {
+			throw new InvalidMessage();
+		}
+	}
+
+	/**
+	 * A string that has escapes, from the start of its bytes, which are
+	 * decoded into chars as they are unescaped.
+	 */
+	private String escapedString(int start) throws InvalidMessage {
+		// the part before the first escape
+		String head=new String(bytes, start, pos-start, StandardCharsets.UTF_8);
+		int n=head.length();
+		ensure(n);
+		head.getChars(0, n, chars, 0);
+		while(true) {
+			if(pos>=end) throw new InvalidMessage();
+			int b=bytes[pos] & 0xff;
+			if(b=='"') {
+				pos++;
+				return new String(chars, 0, n);
+			}
+			ensure(n+2);
+			if(b=='\\') {
+				if(pos+1>=end) throw new InvalidMessage();
+				byte e=bytes[pos+1];
+				pos+=2;
+				switch(e) {
+				case '"': chars[n++]='"'; break;
+				case '\\': chars[n++]='\\'; break;
+				case '/': chars[n++]='/'; break;
+				case 'b': chars[n++]='\b'; break;
+				case 'f': chars[n++]='\f'; break;
+				case 'n': chars[n++]='\n'; break;
+				case 'r': chars[n++]='\r'; break;
+				case 't': chars[n++]='\t'; break;
+				case 'u':
+					if(pos+4>end) throw new InvalidMessage();
+					int c=0;
+					for(int i=0;i<4;i++) {
+						int d=Character.digit(bytes[pos+i], 16);
+						if(d<0) throw new InvalidMessage();
+						c=(c<<4)|d;
+					}
+					pos+=4;
+					chars[n++]=(char)c;
+					break;
+				default:
+					throw new InvalidMessage();
+				}
+			} else if(b<0x20) {
+				throw new InvalidMessage();
+			} else if(b<0x80) {
+				chars[n++]=(char)b;
+				pos++;
+			} else {
+				// a run of multibyte characters, up to the next quote or escape
+				int run=pos;
+				while(pos<end && bytes[pos]!='"' && bytes[pos]!='\\' && (bytes[pos] & 0x80)!=0) pos++;
+				String s=new String(bytes, run, pos-run, StandardCharsets.UTF_8);
+				ensure(n+s.length());
+				s.getChars(0, s.length(), chars, n);
+				n+=s.length();
+			}
+		}
+	}
+
+	private void ensure(int capacity) {
+		if(chars.length<capacity) {
+			char[] bigger=new char[Math.max(capacity,chars.length*2)];
+			System.arraycopy(chars, 0, bigger, 0, chars.length);
+			chars=bigger;
+		}
+	}
+
+	private void expect(String literal) throws InvalidMessage {
+		if(end-pos<literal.length()) throw new InvalidMessage();
+		for(int i=0;i<literal.length();i++) {
+			if(bytes[pos+i]!=literal.charAt(i)) throw new InvalidMessage();
+		}
+		pos+=literal.length();
+	}
+
+	private int peek() throws InvalidMessage {
+		if(pos>=end) throw new InvalidMessage();
+		return bytes[pos];
+	}
+
+	private void consume(char c) throws InvalidMessage {
+		if(peek()!=c) throw new InvalidMessage();
+		pos++;
+	}
+
+	private void skipWhitespace() {
+		while(pos<end) {
+			byte b=bytes[pos];
+			if(b!=' ' && b!='\t' && b!='\n' && b!='\r') return;
+			pos++;
+		}
+	}
+}
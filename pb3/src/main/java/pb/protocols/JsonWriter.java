@@ -0,0 +1,337 @@
+package pb.protocols;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+
+import pb.managers.endpoint.BufferPool;
+
+/**
+ * Writes JSON as UTF-8 straight into a buffer, without building a string
+ * first. A writer made without a buffer only counts the bytes, so a
+ * message can be written twice: once to find how large a buffer it needs,
+ * and then into the buffer, with the same calls both times. Or it is
+ * written once into a pooled buffer that grows as needed.
+ * <br/>
+ * The JSON is byte for byte what {@link Document#toJson()} gives for the
+ * same fields in the same order, so peers that still build their messages
+ * as documents see no difference. Characters are escaped as json-simple
+ * escapes them, everything else is written as UTF-8, and numbers that are
+ * not finite are written as null. Byte arrays, which JSON does not have,
+ * are written as Base64 strings.
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @see {@link pb.protocols.Message#write(IMessageWriter, String[])}
+ * @author aaron
+ *
+ */
+public final class JsonWriter implements IMessageWriter {
+
+	private static final byte[] hex = "0123456789ABCDEF".getBytes();
+
+	/**
+	 * Where to write, or null to only count.
+	 */
+	private ByteBuffer buffer;
+
+	/**
+	 * Where to get a larger buffer from when it fills up, or null if it
+	 * must have room for what is written.
+	 */
+	private final BufferPool pool;
+
+	private int length=0;
+
+	/**
+	 * One bit per level of nesting, set while nothing has been written at
+	 * that level yet.
+	 */
+	private long first=0;
+
+	private int depth=0;
+
+	/**
+	 * A writer that only counts the bytes.
+	 */
+	public JsonWriter() {
+		this(null,null);
+	}
+
+	/**
+	 * A writer into a buffer, at its position.
+	 * @param buffer which must have room for what is written
+	 */
+	public JsonWriter(ByteBuffer buffer) {
+		this(buffer,null);
+	}
+
+	/**
+	 * A writer into a buffer from a pool, at its position, which is
+	 * swapped for a larger one from the pool when it fills up.
+	 * @param buffer
+	 * @param pool
+	 */
+	public JsonWriter(ByteBuffer buffer, BufferPool pool) {
+		this.buffer=buffer;
+		this.pool=pool;
+	}
+
+	@Override
+	public int length() {
+		return length;
+	}
+
+	@Override
+	public ByteBuffer getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Make room in the buffer, if it can grow.
+	 * @param bytes about to be written
+	 */
+	private void ensure(int bytes) {
+		if(pool!=null && buffer.remaining()<bytes) buffer=pool.grow(buffer,bytes);
+	}
+
+	@Override
+	public JsonWriter beginObject() {
+		separate();
+		put('{');
+		nest();
+		return this;
+	}
+
+	@Override
+	public JsonWriter endObject() {
+		depth--;
+		put('}');
+		return this;
+	}
+
+	@Override
+	public JsonWriter beginArray() {
+		separate();
+		put('[');
+		nest();
+		return this;
+	}
+
+	@Override
+	public JsonWriter endArray() {
+		depth--;
+		put(']');
+		return this;
+	}
+
+	@Override
+	public JsonWriter key(String key) {
+		separate();
+		string(key);
+		put(':');
+		// the value follows without a comma
+		first|=1L<<(depth-1);
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(String value) {
+		separate();
+		if(value==null) {
+			literal("null");
+		} else {
+			string(value);
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(long value) {
+		separate();
+		if(value==Long.MIN_VALUE) {
+			literal(Long.toString(value));
+			return this;
+		}
+		if(value<0) {
+			put('-');
+			value=-value;
+		}
+		int digits=1;
+		for(long v=value;v>=10;v/=10) digits++;
+		if(buffer!=null) {
+			ensure(digits);
+			int end=buffer.position()+digits;
+			for(int i=1;i<=digits;i++) {
+				buffer.put(end-i, (byte)('0'+value%10));
+				value/=10;
+			}
+			buffer.position(end);
+		}
+		length+=digits;
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(boolean value) {
+		separate();
+		literal(value ? "true" : "false");
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(double value) {
+		separate();
+		literal(Double.isInfinite(value) || Double.isNaN(value) ? "null" : Double.toString(value));
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(byte[] value) {
+		separate();
+		if(value==null) {
+			literal("null");
+		} else {
+			literal("\"");
+			literal(Base64.getEncoder().encodeToString(value));
+			literal("\"");
+		}
+		return this;
+	}
+
+	@Override
+	public JsonWriter value(Object value) {
+		if(value==null) {
+			separate();
+			literal("null");
+		} else if(value instanceof String) {
+			value((String)value);
+		} else if(value instanceof Long || value instanceof Integer
+				|| value instanceof Short || value instanceof Byte) {
+			value(((Number)value).longValue());
+		} else if(value instanceof Double) {
+			value(((Double)value).doubleValue());
+		} else if(value instanceof Float) {
+			separate();
+			Float f=(Float)value;
+			literal(f.isInfinite() || f.isNaN() ? "null" : f.toString());
+		} else if(value instanceof Number) {
+			separate();
+			literal(value.toString());
+		} else if(value instanceof Boolean) {
+			value(((Boolean)value).booleanValue());
+		} else if(value instanceof byte[]) {
+			value((byte[])value);
+		} else if(value instanceof Document) {
+			value(((Document)value).obj);
+		} else if(value instanceof Map) {
+			beginObject();
+			for(Map.Entry<?,?> field : ((Map<?,?>)value).entrySet()) {
+				key(String.valueOf(field.getKey()));
+				value(field.getValue());
+			}
+			endObject();
+		} else if(value instanceof List) {
+			beginArray();
+			for(Object item : (List<?>)value) value(item);
+			endArray();
+		} else {
+			value(value.toString());
+		}
+		return this;
+	}
+
+	/**
+	 * Write a comma if this is not the first value at this level.
+	 */
+	private void separate() {
+		if(depth==0) return;
+		long bit=1L<<(depth-1);
+		if((first & bit)!=0) {
+			first&=~bit;
+		} else {
+			put(',');
+		}
+	}
+
+	private void nest() {
+		if(depth==64) throw new IllegalStateException("JSON nested too deeply");
+		first|=1L<<depth;
+		depth++;
+	}
+
+	private void put(char c) {
+		if(buffer!=null) {
+			ensure(1);
+			buffer.put((byte)c);
+		}
+		length++;
+	}
+
+	private void literal(String s) {
+		for(int i=0;i<s.length();i++) put(s.charAt(i));
+	}
+
+	private void string(String s) {
+		put('"');
+		int n=s.length();
+		for(int i=0;i<n;i++) {
+			char c=s.charAt(i);
+			if(c<0x80) {
+				switch(c) {
+				case '"': put('\\'); put('"'); break;
+				case '\\': put('\\'); put('\\'); break;
+				case '\n': put('\\'); put('n'); break;
+				case '\r': put('\\'); put('r'); break;
+				case '\t': put('\\'); put('t'); break;
+				case '\b': put('\\'); put('b'); break;
+				case '\f': put('\\'); put('f'); break;
+				case '/': put('\\'); put('/'); break;
+				default:
+					if(c<0x20 || c==0x7f) {
+						escape(c);
+					} else {
+						put(c);
+					}
+				}
+			} else if(c<=0x9f || (c>=0x2000 && c<=0x20ff)) {
+				escape(c);
+			} else if(c<0x800) {
+				putByte(0xc0 | (c>>6));
+				putByte(0x80 | (c & 0x3f));
+			} else if(Character.isHighSurrogate(c) && i+1<n && Character.isLowSurrogate(s.charAt(i+1))) {
+				int cp=Character.toCodePoint(c, s.charAt(++i));
+				putByte(0xf0 | (cp>>18));
+				putByte(0x80 | ((cp>>12) & 0x3f));
+				putByte(0x80 | ((cp>>6) & 0x3f));
+				putByte(0x80 | (cp & 0x3f));
+			} else if(Character.isSurrogate(c)) {
+				// unpaired, as String.getBytes does
+				put('?');
+			} else {
+				putByte(0xe0 | (c>>12));
+				putByte(0x80 | ((c>>6) & 0x3f));
+				putByte(0x80 | (c & 0x3f));
+			}
+		}
+		put('"');
+	}
+
+	/**
+	 * Write a character as a unicode escape.
+	 * @param c
+	 */
+	private void escape(char c) {
+		put('\\'); put('u');
+		put((char)hex[c>>12]); put((char)hex[(c>>8) & 0xf]);
+		put((char)hex[(c>>4) & 0xf]); put((char)hex[c & 0xf]);
+	}
+
+	private void putByte(int b) {
+		if(buffer!=null) {
+			ensure(1);
+			buffer.put((byte)b);
+		}
+		length++;
+	}
+}
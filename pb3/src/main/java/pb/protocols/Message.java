@@ -1,19 +1,26 @@
 package pb.protocols;
 
-import pb.protocols.event.EventReply;
-import pb.protocols.event.EventRequest;
-import pb.protocols.keepalive.KeepAliveReply;
-import pb.protocols.keepalive.KeepAliveRequest;
-import pb.protocols.session.SessionStartReply;
-import pb.protocols.session.SessionStartRequest;
-import pb.protocols.session.SessionStopReply;
-import pb.protocols.session.SessionStopRequest;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import org.json.simple.JSONObject;
+
+import pb.managers.endpoint.Priority;
 
 /**
- * Message super class and factory for all protocol messages, to parse a
- * received UTF-8 line of text in JSON format, as an object that represents the
- * message.
- * 
+ * Message super class and factory for all protocol messages, to read a
+ * received message, in JSON or the binary encoding, as an object that
+ * represents the message. The kinds of message are looked up in the
+ * {@link ProtocolRegistry}.
+ * <br/>
+ * The parameters of a message are plain fields of its class, which are
+ * written one by one by {@link #write(IMessageWriter, String[])} and read
+ * one by one by {@link #readField(String, Object)}, so that the name, type
+ * and timeout id of a received message are at hand without looking them up
+ * or parsing them. The name, protocol name and type of each kind of message
+ * never change, they are only checked when a message is read.
+ *
  * @see {@link pb.protocols.Protocol}
  * @author aaron
  *
@@ -28,9 +35,43 @@ public class Message {
 	}
 	
 	/**
-	 * All of the message parameters are wrapped up in a Document class.
+	 * What {@link #setField(String, Object)} returns for each of the fields
+	 * that every message must have.
+	 */
+	private static final int nameField = 1;
+	private static final int protocolNameField = 2;
+	private static final int typeField = 4;
+	private static final int allFields = nameField | protocolNameField | typeField;
+	
+	private final String name;
+	
+	private final String protocolName;
+	
+	private final Message.Type type;
+	
+	/**
+	 * The id of the request that a reply is for, 0 if it has none, which
+	 * is not sent.
+	 */
+	private long timeoutId=0;
+	
+	/**
+	 * The stream the message is sent or was received on, which is not part
+	 * of the message itself but of its frame.
 	 */
-	protected Document doc;
+	private int streamId=0;
+	
+	/**
+	 * The lane of the outbound queue to send the message in, or null to
+	 * use the endpoint's config. Like the stream it is not part of the message.
+	 */
+	private Priority priority=null;
+	
+	/**
+	 * The id of the message's protocol in the {@link ProtocolRegistry},
+	 * looked up when first needed.
+	 */
+	private int protocolId=-1;
 	
 	/**
 	 * Initialiser when given parameters explicitly.
@@ -39,41 +80,49 @@ public class Message {
 	 * @param type whether its a Request or a Reply message
 	 */
 	public Message(String name, String protocolName, Message.Type type) {
-		doc = new Document();
-		doc.append("name", name);
-		doc.append("protocolName", protocolName);
-		doc.append("type", type.toString());
+		this.name=name;
+		this.protocolName=protocolName;
+		this.type=type;
 	}
 	
-	static public void validateStringValue(String key,String val,Document doc) throws InvalidMessage {
-		if(!doc.containsKey(key)) throw new InvalidMessage();
-		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString(key);
-		if(!msg.equals(val)) throw new InvalidMessage();
+	/**
+	 * @param value of a field that was read
+	 * @return the value, which must be a string
+	 * @throws InvalidMessage if it is not a string
+	 */
+	static protected String stringValue(Object value) throws InvalidMessage {
+		if(!(value instanceof String)) throw new InvalidMessage();
+		return (String)value;
 	}
 	
-	static public void validateLongType(String key,Document doc) throws InvalidMessage {
-		if(!doc.containsKey(key)) throw new InvalidMessage();
-		if(!(doc.get(key) instanceof Long)) throw new InvalidMessage();
+	/**
+	 * @param value of a field that was read
+	 * @return the value, which must be a whole number
+	 * @throws InvalidMessage if it is not a whole number
+	 */
+	static protected long longValue(Object value) throws InvalidMessage {
+		if(!(value instanceof Long)) throw new InvalidMessage();
+		return (Long)value;
 	}
 	
-	static public void validateStringType(String key,Document doc) throws InvalidMessage {
-		if(!doc.containsKey(key)) throw new InvalidMessage();
-		if(!(doc.get(key) instanceof String)) throw new InvalidMessage();
+	/**
+	 * @param value of a field that was read
+	 * @return the value, which must be true or false
+	 * @throws InvalidMessage if it is not true or false
+	 */
+	static protected boolean booleanValue(Object value) throws InvalidMessage {
+		if(!(value instanceof Boolean)) throw new InvalidMessage();
+		return (Boolean)value;
 	}
 	
 	/**
-	 * Initialiser when given parameters in a doc.
-	 * @param name the name of the message that is being initialised
-	 * @param doc with the message details
-	 * @throws InvalidMessage when the name of the message in the doc is incorrect
+	 * @param value of a field that was read
+	 * @return the value, which must be an object
+	 * @throws InvalidMessage if it is not an object
 	 */
-	public Message(String name, String protocolName, 
-			Message.Type type, Document doc) throws InvalidMessage {
-		validateStringValue("name",name,doc);
-		validateStringValue("protocolName",protocolName,doc);
-		validateStringValue("type",type.toString(),doc);
-		if(doc.containsKey("timeoutId")) validateLongType("timeoutId",doc);
+	static protected Document documentValue(Object value) throws InvalidMessage {
+		if(!(value instanceof JSONObject)) throw new InvalidMessage();
+		return new Document((JSONObject)value);
 	}
 	
 	/**
@@ -83,51 +132,205 @@ public class Message {
 	 * @throws InvalidMessage if no message object matches the message
 	 */
 	static public Message toMessage(String json) throws InvalidMessage {
-		Document doc = Document.parse(json);
-		// the following test is somewhat repetitive, but it avoids having
-		// to test each message type, handling exceptions for those that are
-		// not the matching message type
-		if(!doc.containsKey("name")) throw new InvalidMessage();
-		if(!(doc.get("name") instanceof String)) throw new InvalidMessage();
-		String msg = doc.getString("name");
-		switch(msg) {
-			case KeepAliveRequest.name: return new KeepAliveRequest(doc);
-			case KeepAliveReply.name: return new KeepAliveReply(doc);
-			case SessionStartRequest.name: return new SessionStartRequest(doc);
-			case SessionStartReply.name: return new SessionStartReply(doc);
-			case SessionStopRequest.name: return new SessionStopRequest(doc);
-			case SessionStopReply.name: return new SessionStopReply(doc);
-			case EventRequest.name: return new EventRequest(doc);
-			case EventReply.name: return new EventReply(doc);
-			// put more message cases here
-			
-			// if nothing matches, its invalid
-			default: throw new InvalidMessage();
+		return toMessage(json,null);
+	}
+	
+	/**
+	 * Turn a json string and the fields that were sent in its header into
+	 * an appropriate message object.
+	 * @param json the string to parse, must be in JSON format
+	 * @param header pairs of keys and values of the fields that were sent
+	 * in the header, or null
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if no message object matches the message
+	 */
+	static public Message toMessage(String json, String[] header) throws InvalidMessage {
+		byte[] bytes=json.getBytes(StandardCharsets.UTF_8);
+		return toMessage(new JsonReader().reset(bytes, 0, bytes.length),header);
+	}
+	
+	/**
+	 * Read a message straight from the bytes of a frame, see {@link IMessageReader}.
+	 * The fields are read one at a time into the message, which is made as
+	 * soon as its name is known: from the header, or from the first field,
+	 * which is where this class writes it. Messages with the name further
+	 * on are read whole first.
+	 * @param reader reset to the message
+	 * @param header pairs of keys and values of the fields that were sent
+	 * in the header, or null
+	 * @return the appropriate message object
+	 * @throws InvalidMessage if it can't be read or no message object matches the message
+	 */
+	static public Message toMessage(IMessageReader reader, String[] header) throws InvalidMessage {
+		if(header!=null && header.length%2!=0) throw new InvalidMessage();
+		String name=null;
+		if(header!=null) {
+			for(int i=0;i<header.length;i+=2) {
+				if(header[i].equals("name")) name=header[i+1];
+			}
+		}
+		reader.beginObject();
+		String key=reader.nextKey();
+		JSONObject fields=null;
+		if(name==null) {
+			if("name".equals(key)) {
+				name=stringValue(reader.readValue());
+				key=reader.nextKey();
+			} else {
+				fields=readFields(reader,key);
+				name=stringValue(fields.get("name"));
+			}
+		}
+		IMessageFactory factory = ProtocolRegistry.getInstance().getMessageFactory(name);
+		// if nothing matches, its invalid
+		if(factory==null) throw new InvalidMessage();
+		Message msg = factory.create();
+		int present=msg.setField("name",name);
+		if(header!=null) {
+			for(int i=0;i<header.length;i+=2) present|=msg.setField(header[i], header[i+1]);
+		}
+		if(fields!=null) {
+			for(Object field : fields.entrySet()) {
+				Map.Entry<?,?> entry=(Map.Entry<?,?>)field;
+				present|=msg.setField((String)entry.getKey(), entry.getValue());
+			}
+		} else {
+			for(;key!=null;key=reader.nextKey()) present|=msg.setField(key, reader.readValue());
+		}
+		if(present!=allFields) throw new InvalidMessage();
+		msg.validate();
+		return msg;
+	}
+	
+	@SuppressWarnings("unchecked")
+	static private JSONObject readFields(IMessageReader reader, String key) throws InvalidMessage {
+		JSONObject fields=new JSONObject();
+		for(;key!=null;key=reader.nextKey()) fields.put(key, reader.readValue());
+		return fields;
+	}
+	
+	/**
+	 * Set a field of the message that was read.
+	 * @param key
+	 * @param value
+	 * @return which of the fields that every message has it was, or 0
+	 * @throws InvalidMessage if the value is not valid for the field
+	 */
+	private int setField(String key, Object value) throws InvalidMessage {
+		switch(key) {
+		case "name":
+			if(!name.equals(value)) throw new InvalidMessage();
+			return nameField;
+		case "protocolName":
+			if(!protocolName.equals(value)) throw new InvalidMessage();
+			return protocolNameField;
+		case "type":
+			if(!type.name().equals(value)) throw new InvalidMessage();
+			return typeField;
+		case "timeoutId":
+			timeoutId=longValue(value);
+			return 0;
+		default:
+			readField(key,value);
+			return 0;
 		}
 	}
 	
+	/**
+	 * Set a field of a received message, other than the name, protocol
+	 * name, type and timeout id. Subclasses with parameters override it,
+	 * and ignore fields that they don't know about.
+	 * @param key
+	 * @param value a String, Long, Double, Boolean, byte[], JSONObject,
+	 * JSONArray or null
+	 * @throws InvalidMessage if the value is not valid for the field
+	 */
+	protected void readField(String key, Object value) throws InvalidMessage {
+	}
+	
+	/**
+	 * Check a received message once all of its fields have been read.
+	 * Subclasses with parameters override it.
+	 * @throws InvalidMessage if a parameter that is needed is missing
+	 */
+	protected void validate() throws InvalidMessage {
+	}
+	
 	/**
 	 * Convert the message to a string for transmission.
 	 * @return
 	 */
 	public String toJsonString() {
-		return doc.toJson();
+		JsonWriter counter=new JsonWriter();
+		write(counter,null);
+		ByteBuffer buffer=ByteBuffer.allocate(counter.length());
+		write(new JsonWriter(buffer),null);
+		return new String(buffer.array(), StandardCharsets.UTF_8);
+	}
+	
+	/**
+	 * Write the message for transmission, without the fields that are sent
+	 * in the header, if any. The name is written first.
+	 * @param writer for the encoding to use
+	 * @param header from {@link #getHeader()}, or null
+	 */
+	public final void write(IMessageWriter writer, String[] header) {
+		writer.beginObject();
+		if(!inHeader("name",header)) writer.key("name").value(name);
+		if(!inHeader("protocolName",header)) writer.key("protocolName").value(protocolName);
+		if(!inHeader("type",header)) writer.key("type").value(type.name());
+		if(timeoutId!=0) writer.key("timeoutId").value(timeoutId);
+		writeFields(writer,header);
+		writer.endObject();
+	}
+	
+	/**
+	 * Write the fields of the message other than the name, protocol name,
+	 * type and timeout id. Subclasses with parameters override it.
+	 * @param writer
+	 * @param header from {@link #getHeader()}, or null
+	 */
+	protected void writeFields(IMessageWriter writer, String[] header) {
+	}
+	
+	/**
+	 * @param key
+	 * @param header pairs of keys and values, or null
+	 * @return true if the field is sent in the header
+	 */
+	protected static boolean inHeader(String key, String[] header) {
+		if(header==null) return false;
+		for(int i=0;i<header.length;i+=2) {
+			if(header[i].equals(key)) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Get the header, the fields that are sent in a header when the
+	 * endpoints have agreed to a dictionary of header strings, rather than
+	 * in the message, whose values are short strings that are often
+	 * repeated. Subclasses can add theirs.
+	 * @return pairs of keys and values of the header fields
+	 */
+	public String[] getHeader() {
+		return new String[] {"name",name,"protocolName",protocolName,"type",type.name()};
 	}
 	
 	/**
 	 * Return the protocol name
 	 * @return
 	 */
-	public String getProtocolName() {
-		return doc.getString("protocolName");
+	public final String getProtocolName() {
+		return protocolName;
 	}
 	
 	/**
 	 * Return the message name
 	 * @return
 	 */
-	public String getName() {
-		return doc.getString("name");
+	public final String getName() {
+		return name;
 	}
 	
 	/**
@@ -135,7 +338,7 @@ public class Message {
 	 * @return
 	 */
 	public final Message.Type getType() {
-		return Message.Type.valueOf(doc.getString("type"));
+		return type;
 	}
 	
 	/**
@@ -143,7 +346,7 @@ public class Message {
 	 * @param id
 	 */
 	public final void setTimeoutId(long id) {
-		doc.append("timeoutId", id);
+		timeoutId=id;
 	}
 	
 	/**
@@ -151,8 +354,51 @@ public class Message {
 	 * @return id
 	 */
 	public final long getTimeoutId() {
-		if(doc.containsKey("timeoutId"))
-			return doc.getLong("timeoutId");
-		else return 0;
+		return timeoutId;
+	}
+	
+	/**
+	 * Set the stream to send the message on, 0 by default.
+	 * @see {@link pb.managers.endpoint.Endpoint#openStream()}
+	 * @param streamId
+	 */
+	public final void setStreamId(int streamId) {
+		this.streamId=streamId;
+	}
+	
+	/**
+	 * Get the stream id
+	 * @return the stream the message is sent or was received on
+	 */
+	public final int getStreamId() {
+		return streamId;
+	}
+	
+	/**
+	 * Set the lane of the outbound queue to send the message in, rather
+	 * than the lane the endpoint's config gives it.
+	 * @see {@link pb.managers.endpoint.EndpointConfig#setProtocolPriority(String, Priority)}
+	 * @param priority
+	 */
+	public final void setPriority(Priority priority) {
+		this.priority=priority;
+	}
+	
+	/**
+	 * Get the priority
+	 * @return the lane the message is sent in, or null if not set
+	 */
+	public final Priority getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * Get the protocol id
+	 * @return the id of the message's protocol in the {@link ProtocolRegistry},
+	 * or -1 if the protocol is not registered
+	 */
+	public final int getProtocolId() {
+		if(protocolId==-1) protocolId=ProtocolRegistry.getInstance().getProtocolId(protocolName);
+		return protocolId;
 	}
 }
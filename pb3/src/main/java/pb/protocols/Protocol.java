@@ -29,6 +29,12 @@ public class Protocol {
 	 */
 	protected Manager manager;
 	
+	/**
+	 * The stream the protocol runs on, 0 unless set otherwise before
+	 * the protocol is handled.
+	 */
+	protected int streamId=0;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -48,6 +54,24 @@ public class Protocol {
 		
 	}
 
+	/**
+	 * Run the protocol on a stream other than the control stream 0, which
+	 * must be done before the endpoint handles it. Messages the protocol
+	 * sends should be given the same stream id.
+	 * @see {@link pb.managers.endpoint.Endpoint#openStream()}
+	 * @param streamId
+	 */
+	public void setStreamId(int streamId) {
+		this.streamId=streamId;
+	}
+	
+	/**
+	 * @return the stream the protocol runs on
+	 */
+	public int getStreamId() {
+		return streamId;
+	}
+
 	/**
 	 * Sometimes the static string reference is not reachable, so
 	 * this method provides access.
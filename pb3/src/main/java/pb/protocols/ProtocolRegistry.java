@@ -0,0 +1,215 @@
+package pb.protocols;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.IEndpointHandler;
+import pb.protocols.event.EventBatchRequest;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.EventReply;
+import pb.protocols.event.EventRequest;
+import pb.protocols.event.IEventProtocolHandler;
+import pb.protocols.keepalive.IKeepAliveProtocolHandler;
+import pb.protocols.keepalive.KeepAliveProtocol;
+import pb.protocols.keepalive.KeepAliveReply;
+import pb.protocols.keepalive.KeepAliveRequest;
+import pb.protocols.session.ISessionProtocolHandler;
+import pb.protocols.session.SessionProtocol;
+import pb.protocols.session.SessionStartReply;
+import pb.protocols.session.SessionStartRequest;
+import pb.protocols.session.SessionStopReply;
+import pb.protocols.session.SessionStopRequest;
+
+/**
+ * A singleton registry of the protocols that endpoints can handle, and of
+ * the messages of each protocol. It must always be accessed statically as
+ * ProtocolRegistry.getInstance()...
+ * <br/>
+ * Each protocol is given a small integer id, in the order they are
+ * registered, so that an endpoint can keep its protocols in an array
+ * indexed by id. The registry is copy on write: registering takes a lock
+ * and replaces the tables, and lookups read the current tables without
+ * locking. The built in protocols are registered first, then those of the
+ * {@link IProtocolProvider}s found by the {@link ServiceLoader}, and more
+ * can be registered at any time.
+ * <br/>
+ * The ids are local to this process. The endpoints agree on which protocols
+ * they both have when the session starts, see
+ * {@link pb.managers.endpoint.Endpoint#getSessionProtocolId(String)}.
+ *
+ * @see {@link pb.protocols.IProtocolProvider}
+ * @see {@link pb.protocols.Message#toMessage(String)}
+ * @author aaron
+ *
+ */
+public final class ProtocolRegistry {
+	private static Logger log = Logger.getLogger(ProtocolRegistry.class.getName());
+
+	private static ProtocolRegistry registry;
+
+	/**
+	 * A registered protocol.
+	 */
+	private static final class ProtocolType {
+		final int id;
+		final String name;
+		final IProtocolFactory factory;
+		final boolean connectionOnly;
+
+		ProtocolType(int id, String name, IProtocolFactory factory, boolean connectionOnly) {
+			this.id=id;
+			this.name=name;
+			this.factory=factory;
+			this.connectionOnly=connectionOnly;
+		}
+	}
+
+	/**
+	 * The protocols by id, replaced on each registration.
+	 */
+	private volatile ProtocolType[] protocols=new ProtocolType[0];
+
+	/**
+	 * Protocol ids by name, replaced on each registration.
+	 */
+	private volatile Map<String,Integer> protocolIds=new HashMap<>();
+
+	/**
+	 * Message factories by message name, replaced on each registration.
+	 */
+	private volatile Map<String,IMessageFactory> messages=new HashMap<>();
+
+	private ProtocolRegistry() {
+		register(SessionProtocol.protocolName,
+				(endpoint,manager)->new SessionProtocol(endpoint,(ISessionProtocolHandler)manager),true);
+		registerMessage(SessionStartRequest.name,SessionStartRequest::new);
+		registerMessage(SessionStartReply.name,SessionStartReply::new);
+		registerMessage(SessionStopRequest.name,SessionStopRequest::new);
+		registerMessage(SessionStopReply.name,SessionStopReply::new);
+		register(KeepAliveProtocol.protocolName,
+				(endpoint,manager)->new KeepAliveProtocol(endpoint,(IKeepAliveProtocolHandler)manager),true);
+		registerMessage(KeepAliveRequest.name,KeepAliveRequest::new);
+		registerMessage(KeepAliveReply.name,KeepAliveReply::new);
+		register(EventProtocol.protocolName,
+				(endpoint,manager)->new EventProtocol(endpoint,(IEventProtocolHandler)manager),false);
+		registerMessage(EventRequest.name,EventRequest::new);
+		registerMessage(EventReply.name,EventReply::new);
+		registerMessage(EventBatchRequest.name,EventBatchRequest::new);
+	}
+
+	public static synchronized ProtocolRegistry getInstance() {
+		if(registry==null) {
+			registry=new ProtocolRegistry();
+			try {
+				for(IProtocolProvider provider : ServiceLoader.load(IProtocolProvider.class)) {
+					provider.register(registry);
+				}
+			} catch (ServiceConfigurationError e) {
+				log.severe("could not load protocol providers: "+e.getMessage());
+			}
+		}
+		return registry;
+	}
+
+	/**
+	 * Register a protocol.
+	 * @param protocolName the name of the protocol, as in its messages
+	 * @param factory creates the protocol when the other endpoint starts it
+	 * @param connectionOnly true if the protocol is for the whole connection,
+	 * so it is only created on stream 0, like the session and keep alive
+	 * @return the id of the protocol
+	 * @throws IllegalArgumentException if the name is already registered
+	 */
+	public synchronized int register(String protocolName, IProtocolFactory factory, boolean connectionOnly) {
+		if(protocolIds.containsKey(protocolName))
+			throw new IllegalArgumentException("protocol already registered: "+protocolName);
+		int id=protocols.length;
+		ProtocolType[] newProtocols=Arrays.copyOf(protocols, id+1);
+		newProtocols[id]=new ProtocolType(id,protocolName,factory,connectionOnly);
+		Map<String,Integer> newIds=new HashMap<>(protocolIds);
+		newIds.put(protocolName, id);
+		protocols=newProtocols;
+		protocolIds=newIds;
+		log.info("registered protocol "+protocolName+" as "+id);
+		return id;
+	}
+
+	/**
+	 * Register a message, which a received message with the name is
+	 * created by.
+	 * @param messageName the name of the message
+	 * @param factory creates an empty message for a received one
+	 * @throws IllegalArgumentException if the name is already registered
+	 */
+	public synchronized void registerMessage(String messageName, IMessageFactory factory) {
+		if(messages.containsKey(messageName))
+			throw new IllegalArgumentException("message already registered: "+messageName);
+		Map<String,IMessageFactory> newMessages=new HashMap<>(messages);
+		newMessages.put(messageName, factory);
+		messages=newMessages;
+	}
+
+	/**
+	 * @param messageName
+	 * @return the factory for the message, or null if there is none
+	 */
+	public IMessageFactory getMessageFactory(String messageName) {
+		return messages.get(messageName);
+	}
+
+	/**
+	 * @param protocolName
+	 * @return the id of the protocol, or -1 if it is not registered
+	 */
+	public int getProtocolId(String protocolName) {
+		Integer id=protocolIds.get(protocolName);
+		return id==null ? -1 : id;
+	}
+
+	/**
+	 * @param id
+	 * @return the name of the protocol with the id
+	 */
+	public String getProtocolName(int id) {
+		return protocols[id].name;
+	}
+
+	/**
+	 * @return the number of protocols registered, which is one more than
+	 * the highest id
+	 */
+	public int getNumProtocols() {
+		return protocols.length;
+	}
+
+	/**
+	 * @return the names of the protocols, in order of id
+	 */
+	public ArrayList<String> getProtocolNames() {
+		ArrayList<String> names=new ArrayList<>();
+		for(ProtocolType protocol : protocols) names.add(protocol.name);
+		return names;
+	}
+
+	/**
+	 * Create a protocol that the other endpoint has started using.
+	 * @param id the id of the protocol
+	 * @param endpoint
+	 * @param manager
+	 * @param streamId the stream the protocol is for
+	 * @return the new protocol, or null if the protocol can't be used on the stream
+	 */
+	public Protocol createProtocol(int id, Endpoint endpoint, IEndpointHandler manager, int streamId) {
+		ProtocolType protocol=protocols[id];
+		if(protocol.connectionOnly && streamId!=0) return null;
+		Protocol instance=protocol.factory.create(endpoint, manager);
+		instance.setStreamId(streamId);
+		return instance;
+	}
+}
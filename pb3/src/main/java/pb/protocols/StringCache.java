@@ -0,0 +1,68 @@
+package pb.protocols;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A cache of the short strings that messages are read with, such as the
+ * keys of a message and its names, shared by all of the readers, so that
+ * reading the same names over and over does not make new strings. An
+ * entry of the cache is never changed once made, only replaced, so the
+ * cache needs no locking.
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @see {@link pb.protocols.BinaryReader}
+ * @author aaron
+ *
+ */
+final class StringCache {
+
+	/**
+	 * Longest string that is cached.
+	 */
+	private static final int maxCachedLength = 32;
+
+	private static final int cacheSize = 1024;
+
+	private static final class Cached {
+		final byte[] bytes;
+		final String string;
+
+		Cached(byte[] bytes, String string) {
+			this.bytes=bytes;
+			this.string=string;
+		}
+	}
+
+	private static final Cached[] cache = new Cached[cacheSize];
+
+	private StringCache() {}
+
+	/**
+	 * @param bytes
+	 * @param start
+	 * @param length
+	 * @return the UTF-8 bytes as a string, from the cache if it is short
+	 */
+	static String get(byte[] bytes, int start, int length) {
+		if(length>maxCachedLength) return new String(bytes, start, length, StandardCharsets.UTF_8);
+		int hash=length;
+		for(int i=start;i<start+length;i++) hash=31*hash+bytes[i];
+		int slot=(hash ^ (hash>>>16)) & (cacheSize-1);
+		Cached cached=cache[slot];
+		if(cached!=null && cached.bytes.length==length) {
+			boolean same=true;
+			for(int i=0;i<length;i++) {
+				if(cached.bytes[i]!=bytes[start+i]) {
+					same=false;
+					break;
+				}
+			}
+			if(same) return cached.string;
+		}
+		byte[] copy=new byte[length];
+		System.arraycopy(bytes, start, copy, 0, length);
+		String string=new String(copy, StandardCharsets.UTF_8);
+		cache[slot]=new Cached(copy,string);
+		return string;
+	}
+}
@@ -0,0 +1,31 @@
+package pb.protocols.event;
+
+/**
+ * How the {@link EventProtocol} makes sure that events with a given name
+ * arrive. Other than {@link #ACKED}, the modes are only used once both
+ * endpoints have agreed to them when the session started, otherwise every
+ * event is acked.
+ *
+ * @see {@link pb.managers.endpoint.EndpointConfig#setEventDelivery(String, Delivery)}
+ * @author aaron
+ *
+ */
+public enum Delivery {
+	/**
+	 * Each event is answered with a reply, and has its own timeout.
+	 */
+	ACKED,
+
+	/**
+	 * Events are not answered, they rely on TCP to arrive and on the keep
+	 * alive protocol to notice that the other endpoint has gone.
+	 */
+	UNACKED,
+
+	/**
+	 * Events are numbered, and the other endpoint acks the highest number
+	 * it has received in a row every so often, so that there is one reply
+	 * and one timeout for a window of events rather than for each.
+	 */
+	WINDOWED
+}
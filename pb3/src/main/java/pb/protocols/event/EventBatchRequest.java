@@ -0,0 +1,89 @@
+package pb.protocols.event;
+
+import java.util.List;
+
+import pb.protocols.IMessageWriter;
+import pb.protocols.InvalidMessage;
+import pb.protocols.Message;
+
+/**
+ * Many events in one request, which the other endpoint receives in order
+ * and answers, if at all, with a single reply. The events are sent as one
+ * array of their names and data in turn.
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+public class EventBatchRequest extends Message {
+	static final public String name = "EventBatchRequest";
+	
+	/**
+	 * Pairs of the name and data of each event.
+	 */
+	private String[] events;
+	
+	/**
+	 * The number of the batch if it is {@link Delivery#WINDOWED}, else 0,
+	 * which is not sent.
+	 */
+	private long seq=0;
+	
+	/**
+	 * @param events pairs of the name and data of each event
+	 */
+	public EventBatchRequest(String[] events) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.events=events;
+	}
+	
+	/**
+	 * A request whose parameters are read from a received message.
+	 */
+	public EventBatchRequest() {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+	}
+	
+	@Override
+	protected void readField(String key, Object value) throws InvalidMessage {
+		switch(key) {
+		case "events":
+			if(!(value instanceof List)) throw new InvalidMessage();
+			List<?> list=(List<?>)value;
+			if(list.size()%2!=0) throw new InvalidMessage();
+			events=new String[list.size()];
+			for(int i=0;i<events.length;i++) events[i]=Message.stringValue(list.get(i));
+			break;
+		case "seq":
+			seq=Message.longValue(value);
+			break;
+		}
+	}
+	
+	@Override
+	protected void validate() throws InvalidMessage {
+		if(events==null) throw new InvalidMessage();
+	}
+	
+	@Override
+	protected void writeFields(IMessageWriter writer, String[] header) {
+		writer.key("events").beginArray();
+		for(String s : events) writer.value(s);
+		writer.endArray();
+		if(seq!=0) writer.key("seq").value(seq);
+	}
+	
+	/**
+	 * @return pairs of the name and data of each event
+	 */
+	public String[] getEvents() {
+		return events;
+	}
+	
+	public long getSeq() {
+		return seq;
+	}
+	
+	public void setSeq(long seq) {
+		this.seq=seq;
+	}
+}
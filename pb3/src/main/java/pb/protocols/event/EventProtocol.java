@@ -1,17 +1,48 @@
 package pb.protocols.event;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.OutboundQueue;
+import pb.managers.endpoint.Priority;
 import pb.protocols.IRequestReplyProtocol;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Cancellable;
+import pb.utils.Utils;
 
 /**
  * An event protocol for applications communicate using an asynchronous
- * event system. Each event can include a simple parameter that must
- * be a String. Complex data should be marshaled into a String.
+ * event system. Each event can include a simple parameter that is a
+ * String, or, if the other endpoint agreed to them, any number of typed
+ * arguments, see {@link EventRequest#argType(Object)}. Byte arrays among
+ * them are sent as they are when the endpoints use the binary encoding.
+ * <br/>
+ * How each event is made sure of depends on its name, see {@link Delivery}:
+ * by default each is answered with an {@link EventReply} before its own
+ * timeout, but events can also be sent without a reply, or numbered and
+ * acked a window at a time, with a single timeout for the window. The
+ * timeouts are the endpoint's, from the round trip time it has measured,
+ * see {@link Endpoint#getTimeout()}. Numbered events may go in different
+ * lanes, see {@link Priority}, and overtake each other, so they are acked up
+ * to the last one received in a row.
+ * <br/>
+ * If the endpoint's config gives a batch delay, events sent close together
+ * are sent as one {@link EventBatchRequest}, which is made sure of as a
+ * whole, in the strictest way that any of its events needs.
+ * <br/>
+ * In a resumable session, see {@link ReplayBuffer}, every event is numbered
+ * and kept until it is acked, however it is delivered, and the events
+ * without a reply of their own are acked a window at a time. When the session
+ * resumes on a new connection the events that were not received are sent
+ * again, and those received twice are dropped.
  * @author aaron
  *
  */
@@ -20,10 +51,132 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	
 	public static final String protocolName = "EventProtocol";
 	
-	public int eventTimeout = 40000;
+	/**
+	 * Windowed events are acked once this many have been received since
+	 * the last ack.
+	 */
+	public int ackEvery = 32;
+	
+	/**
+	 * Or once the first windowed event since the last ack has waited this
+	 * long, in ms.
+	 */
+	public int ackDelay = 200;
 	
 	public volatile boolean stopped=false;
 	
+	/**
+	 * An event, or batch of events, waiting to be sent.
+	 */
+	private static final class Outgoing {
+		final Message request;
+		final Delivery delivery;
+		
+		/**
+		 * True if it is numbered already, to be sent again as the session
+		 * resumes.
+		 */
+		final boolean again;
+		
+		Outgoing(Message request, Delivery delivery, boolean again) {
+			this.request=request;
+			this.delivery=delivery;
+			this.again=again;
+		}
+	}
+	
+	/**
+	 * The events waiting to be sent, in order.
+	 */
+	private final Queue<Outgoing> outgoing=new ConcurrentLinkedQueue<>();
+	
+	/**
+	 * Held by the thread sending the events waiting to be sent, while it
+	 * may wait for space in the outbound queue, so that they are numbered
+	 * and sent in order. Nothing else waits for it, so that a full queue
+	 * can't hold up the acks, see {@link #sendOutgoing()}.
+	 */
+	private final ReentrantLock orderLock=new ReentrantLock();
+	
+	/**
+	 * Guards the numbering of windowed events sent and their timeout, and
+	 * is never held while sending.
+	 */
+	private final ReentrantLock sendLock=new ReentrantLock();
+	
+	/**
+	 * The number of the last windowed event sent.
+	 */
+	private long sentSeq=0;
+	
+	/**
+	 * The number of the last windowed event the other endpoint acked.
+	 */
+	private long ackedSeq=0;
+	
+	/**
+	 * The timeout of the window of events that have not been acked, or
+	 * null if they all have been.
+	 */
+	private Cancellable windowTimeout=null;
+	
+	/**
+	 * Guards the windowed events received and when to ack them.
+	 */
+	private final ReentrantLock ackLock=new ReentrantLock();
+	
+	/**
+	 * The numbers of the windowed events received.
+	 */
+	private ReceivedSeqs received=new ReceivedSeqs();
+	
+	/**
+	 * The number of the last windowed event that has been acked.
+	 */
+	private long sentAck=0;
+	
+	/**
+	 * When the windowed events received will be acked, or null if there
+	 * are none to ack.
+	 */
+	private Cancellable ackTimeout=null;
+	
+	/**
+	 * Guards the batch of events waiting to be sent.
+	 */
+	private final ReentrantLock batchLock=new ReentrantLock();
+	
+	/**
+	 * Pairs of the name and data of the events waiting to be sent.
+	 */
+	private final ArrayList<String> batch=new ArrayList<>();
+	
+	/**
+	 * The chars of data of the events waiting to be sent.
+	 */
+	private int batchChars=0;
+	
+	/**
+	 * How the batch will be delivered, or null if it is empty.
+	 */
+	private Delivery batchDelivery=null;
+	
+	/**
+	 * When the batch will be sent, or null if it is empty.
+	 */
+	private Cancellable batchTimeout=null;
+	
+	/**
+	 * The replay buffer of a resumable session, as the protocol on stream 0,
+	 * else null. Set when the protocol starts.
+	 */
+	private volatile ReplayBuffer replay=null;
+	
+	/**
+	 * The "*" callback on the endpoint, removed when the protocol stops.
+	 */
+	private final Cancellable forwarding;
+	
 	/**
 	 * Event protocol will listen to all events emitted on the endpoint and
 	 * transmit them over the endpoint.
@@ -33,16 +186,18 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	public EventProtocol(Endpoint endpoint, IEventProtocolHandler manager) {
 		super(endpoint, (Manager)manager);	
 		// Register an event to listen for all events ("*") emitted on this endpoint and
-		// send them to the remote end point; making sure thats events have
-		// only a String argument
-		endpoint.on("*", (args)->{
+		// send them to the remote end point
+		forwarding=endpoint.subscribe("*", (args)->{
+			// only the protocol on stream 0 forwards emits, protocols on
+			// other streams send with sendEvent
+			if(streamId!=0) return;
 			String eventName = (String) args[0];
 			if(args.length==2 && args[1] instanceof String) {
 				String eventData = (String) args[1];
 				sendEvent(eventName,eventData);
 			} else {
-				log.warning("emitted event must have only a single String data argument: "+eventName);
-			}			
+				sendEvent(eventName,Arrays.copyOfRange(args, 1, args.length));
+			}
 		});
 	}
 	
@@ -53,47 +208,503 @@ public class EventProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public void sendEvent(String eventName, String eventData) {
 		if(stopped)return;
-		sendRequest(new EventRequest(eventName,eventData));
+		Delivery delivery=endpoint.getEventDelivery(eventName);
+		int delay=endpoint.getEventBatchDelay();
+		if(delay<=0) {
+			send(new EventRequest(eventName,eventData),delivery);
+			return;
+		}
+		batchLock.lock();
+		try {
+			if(batch.isEmpty()) batchTimeout=Utils.getInstance().setTimeout(this::flushBatch, delay);
+			batch.add(eventName);
+			batch.add(eventData);
+			batchChars+=eventData.length();
+			batchDelivery=stricter(batchDelivery,delivery);
+			if(batchChars>=endpoint.getEventBatchSize()) queueBatch();
+		} finally {
+			batchLock.unlock();
+		}
+		sendOutgoing();
+	}
+	
+	/**
+	 * Send an event with typed arguments, if the other endpoint agreed to
+	 * them. Such events are not batched, but they are sent after any events
+	 * that are waiting to be, to keep them in order.
+	 * @param eventName
+	 * @param eventArgs each of which must have an {@link EventRequest#argType(Object)}
+	 */
+	public void sendEvent(String eventName, Object... eventArgs) {
+		if(stopped)return;
+		if(!endpoint.getEventArgs()) {
+			log.warning("other endpoint only accepts events with a single String data argument: "+eventName);
+			return;
+		}
+		for(Object arg : eventArgs) {
+			if(EventRequest.argType(arg)==0) {
+				log.warning("emitted event arguments must be String, long, double, byte[] or Document: "+eventName);
+				return;
+			}
+		}
+		Delivery delivery=endpoint.getEventDelivery(eventName);
+		batchLock.lock();
+		try {
+			if(!batch.isEmpty()) queueBatch();
+			queue(new EventRequest(eventName,eventArgs),delivery);
+		} finally {
+			batchLock.unlock();
+		}
+		sendOutgoing();
+	}
+	
+	/**
+	 * @param a
+	 * @param b
+	 * @return the stricter of two ways to deliver events, either of which may be null
+	 */
+	private static Delivery stricter(Delivery a, Delivery b) {
+		if(a==Delivery.ACKED || b==Delivery.ACKED) return Delivery.ACKED;
+		if(a==Delivery.WINDOWED || b==Delivery.WINDOWED) return Delivery.WINDOWED;
+		return Delivery.UNACKED;
+	}
+	
+	/**
+	 * Send the events waiting for a batch now, such as before the session
+	 * stops.
+	 */
+	public void flush() {
+		flushBatch();
+	}
+	
+	/**
+	 * Send the events waiting to be sent, once the first has waited long enough.
+	 */
+	private void flushBatch() {
+		batchLock.lock();
+		try {
+			batchTimeout=null;
+			if(!batch.isEmpty()) queueBatch();
+		} finally {
+			batchLock.unlock();
+		}
+		sendOutgoing();
+	}
+	
+	/**
+	 * Queue the events waiting for a batch to be sent, as a plain request
+	 * if there is only one. Called holding the batch lock, so that batches
+	 * are queued in order, but they are sent after it is let go, see
+	 * {@link #sendOutgoing()}, as sending may wait.
+	 */
+	private void queueBatch() {
+		if(batchTimeout!=null) batchTimeout.cancel();
+		batchTimeout=null;
+		Message request = batch.size()==2 ? new EventRequest(batch.get(0),batch.get(1))
+				: new EventBatchRequest(batch.toArray(new String[batch.size()]));
+		Delivery delivery=batchDelivery;
+		batch.clear();
+		batchChars=0;
+		batchDelivery=null;
+		queue(request,delivery);
+	}
+	
+	/**
+	 * Send an event or batch of events, after those already waiting to be
+	 * sent.
+	 * @param request
+	 * @param delivery how to make sure of it
+	 */
+	private void send(Message request, Delivery delivery) {
+		queue(request,delivery);
+		sendOutgoing();
+	}
+	
+	/**
+	 * Queue an event or batch of events to be sent, after those already
+	 * waiting to be sent.
+	 * @param request
+	 * @param delivery how to make sure of it
+	 */
+	private void queue(Message request, Delivery delivery) {
+		outgoing.add(new Outgoing(request,delivery,false));
+	}
+	
+	/**
+	 * Send the events waiting to be sent, in order, holding the order lock.
+	 * A thread that must not wait for the lock leaves them to the thread
+	 * holding it, which sends them before it lets go.
+	 */
+	private void sendOutgoing() {
+		do {
+			if(OutboundQueue.mayWait()) {
+				orderLock.lock();
+			} else if(!orderLock.tryLock()) {
+				return;
+			}
+			try {
+				Outgoing next;
+				while((next=outgoing.poll())!=null) sendNow(next);
+			} finally {
+				orderLock.unlock();
+			}
+			// one may have been added after the last poll, by a thread that couldn't get the lock
+		} while(!outgoing.isEmpty());
+	}
+	
+	/**
+	 * Send an event, or batch of events, as its delivery says. Called
+	 * holding the order lock.
+	 * @param next
+	 */
+	private void sendNow(Outgoing next) {
+		if(next.again) {
+			transmit(next.request,next.delivery);
+			return;
+		}
+		if(replay!=null) {
+			sendNumbered(next.request,next.delivery);
+			return;
+		}
+		switch(next.delivery) {
+		case ACKED:
+			sendRequest(next.request);
+			break;
+		case UNACKED:
+			next.request.setStreamId(streamId);
+			endpoint.send(next.request);
+			break;
+		case WINDOWED:
+			sendWindowed(next.request);
+			break;
+		}
+	}
+	
+	private static void setSeq(Message request, long seq) {
+		if(request instanceof EventBatchRequest) {
+			((EventBatchRequest)request).setSeq(seq);
+		} else {
+			((EventRequest)request).setSeq(seq);
+		}
+	}
+	
+	/**
+	 * Number an event, or batch of events, before it is sent, so that its
+	 * ack is expected as soon as it can arrive. Called holding the order
+	 * lock, so that they are sent in the order of their numbers.
+	 * @param request
+	 * @return its number
+	 */
+	private long number(Message request) {
+		sendLock.lock();
+		try {
+			setSeq(request,++sentSeq);
+			return sentSeq;
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * The last event numbered was not sent, so its number goes to the next
+	 * one, and the other endpoint doesn't wait for it. Called holding the
+	 * order lock.
+	 */
+	private void unnumber() {
+		sendLock.lock();
+		try {
+			sentSeq--;
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * Number an event, or batch of events, and send it, timing the window
+	 * out if it is the first that has not been acked.
+	 * @param request
+	 */
+	private void sendWindowed(Message request) {
+		request.setStreamId(streamId);
+		number(request);
+		if(!endpoint.send(request)) {
+			unnumber();
+			return;
+		}
+		windowSent();
+	}
+	
+	/**
+	 * Number an event, or batch of events, of a resumable session, send it
+	 * and keep it until it is acked. It is kept if it can't be sent because
+	 * the connection is lost, to be sent again when the session resumes. If
+	 * the endpoint refused it, such as for being too large, its number is
+	 * not used, so that the other endpoint doesn't wait for it.
+	 * @param request
+	 * @param delivery
+	 */
+	private void sendNumbered(Message request, Delivery delivery) {
+		// the session has moved on to another endpoint
+		if(!replay.isAttached(endpoint)) return;
+		long seq=number(request);
+		if(!transmit(request,delivery) && !stopped && !endpoint.isStopped()) {
+			unnumber();
+			return;
+		}
+		replay.sent(endpoint, seq, request, delivery);
+	}
+	
+	/**
+	 * Send a numbered event, or batch of events, of a resumable session.
+	 * Called holding the order lock.
+	 * @param request
+	 * @param delivery
+	 * @return true if it was queued
+	 */
+	private boolean transmit(Message request, Delivery delivery) {
+		if(delivery==Delivery.ACKED) return sendAcked(request);
+		request.setStreamId(streamId);
+		if(!endpoint.send(request)) return false;
+		if(delivery==Delivery.WINDOWED) windowSent();
+		return true;
+	}
+	
+	/**
+	 * A windowed event was sent, so the window times out if it is the first
+	 * that has not been acked.
+	 */
+	private void windowSent() {
+		sendLock.lock();
+		try {
+			if(windowTimeout==null && ackedSeq<sentSeq) windowTimeout=startWindowTimeout();
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	private Cancellable startWindowTimeout() {
+		return Utils.getInstance().setTimeout(()->{
+			boolean timedOut;
+			sendLock.lock();
+			try {
+				windowTimeout=null;
+				timedOut = ackedSeq<sentSeq;
+			} finally {
+				sendLock.unlock();
+			}
+			if(timedOut && !stopped) manager.endpointTimedOut(endpoint, this);
+		}, endpoint.getTimeout()+ackDelay);
+	}
+	
+	/**
+	 * The other endpoint acked the windowed events up to one, so the
+	 * timeout starts again for those still to be acked, if any.
+	 * @param ack the number of the event
+	 */
+	private void windowAcked(long ack) {
+		sendLock.lock();
+		try {
+			if(ack<=ackedSeq || ack>sentSeq) return;
+			ackedSeq=ack;
+			if(replay!=null) replay.acked(endpoint, ack);
+			if(windowTimeout!=null) {
+				windowTimeout.cancel();
+				windowTimeout = ackedSeq<sentSeq ? startWindowTimeout() : null;
+			}
+		} finally {
+			sendLock.unlock();
+		}
+	}
+	
+	/**
+	 * A numbered event was received: a windowed event, or any event of a
+	 * resumable session. Unless it is replied to by itself, it is acked
+	 * straight away if enough have been received since the last ack, else
+	 * after a delay.
+	 * @param seq its number
+	 * @param replied true if its reply acks it
+	 * @return false if it was received before, such as before the session
+	 * resumed
+	 */
+	private boolean receivedNumbered(long seq, boolean replied) {
+		long ack=0;
+		ackLock.lock();
+		try {
+			// it may have overtaken others in a lower lane
+			if(!received.add(seq)) return false;
+			long receivedSeq=received.last();
+			if(replay!=null) replay.received(endpoint, seq);
+			if(replied) {
+				sentAck=receivedSeq;
+				if(ackTimeout!=null) ackTimeout.cancel();
+				ackTimeout=null;
+			} else if(receivedSeq-sentAck>=ackEvery) {
+				ack=receivedSeq;
+				sentAck=ack;
+				if(ackTimeout!=null) ackTimeout.cancel();
+				ackTimeout=null;
+			} else if(ackTimeout==null) {
+				ackTimeout=Utils.getInstance().setTimeout(this::ackReceived, ackDelay);
+			}
+		} finally {
+			ackLock.unlock();
+		}
+		if(ack!=0) sendAck(ack);
+		return true;
+	}
+	
+	/**
+	 * Ack the windowed events received since the last ack.
+	 */
+	private void ackReceived() {
+		long ack=0;
+		ackLock.lock();
+		try {
+			ackTimeout=null;
+			if(received.last()>sentAck) {
+				ack=received.last();
+				sentAck=ack;
+			}
+		} finally {
+			ackLock.unlock();
+		}
+		if(ack!=0) sendAck(ack);
+	}
+	
+	/**
+	 * @return the number of the last event received in a row, which is what
+	 * a reply acks, as an event may be received before others sent ahead of it
+	 */
+	private long receivedAck() {
+		ackLock.lock();
+		try {
+			return received.last();
+		} finally {
+			ackLock.unlock();
+		}
+	}
+	
+	private void sendAck(long ack) {
+		if(stopped) return;
+		EventReply reply=new EventReply(ack);
+		reply.setStreamId(streamId);
+		// like flow control, it must not wait behind the events
+		reply.setPriority(Priority.CONTROL);
+		endpoint.send(reply);
 	}
 	
 	@Override
 	public void stopProtocol() {
+		// events waiting for a batch go while they still can
+		flushBatch();
 		stopped=true;
+		forwarding.cancel();
+		sendLock.lock();
+		try {
+			if(windowTimeout!=null) windowTimeout.cancel();
+			windowTimeout=null;
+		} finally {
+			sendLock.unlock();
+		}
+		ackLock.lock();
+		try {
+			if(ackTimeout!=null) ackTimeout.cancel();
+			ackTimeout=null;
+		} finally {
+			ackLock.unlock();
+		}
 	}
 
 	@Override
 	public void startAsClient() {
-		
-		
+		resume();
 	}
 
 	@Override
 	public void startAsServer() {
-		
-		
+		resume();
+	}
+	
+	/**
+	 * In a resumable session, carry on from where the session got to,
+	 * sending again the events that the other endpoint has not received.
+	 */
+	private void resume() {
+		ReplayBuffer buffer=endpoint.getReplayBuffer();
+		if(streamId!=0 || buffer==null) return;
+		ackLock.lock();
+		try {
+			received=buffer.getReceived();
+			sentAck=received.last();
+		} finally {
+			ackLock.unlock();
+		}
+		List<ReplayBuffer.Entry> unacked;
+		sendLock.lock();
+		try {
+			replay=buffer;
+			sentSeq=buffer.getSentSeq();
+			ackedSeq=buffer.getAckedSeq();
+			unacked=buffer.getUnacked();
+		} finally {
+			sendLock.unlock();
+		}
+		if(!unacked.isEmpty()) {
+			log.info("sending "+unacked.size()+" events again to "+endpoint.getOtherEndpointId());
+		}
+		for(ReplayBuffer.Entry entry : unacked) outgoing.add(new Outgoing(entry.request,entry.delivery,true));
+		sendOutgoing();
 	}
 
 	@Override
 	public void sendRequest(Message msg) {
-		if(stopped)return;
-		endpoint.sendWithTimeout(msg, ()->{
+		sendAcked(msg);
+	}
+
+	/**
+	 * Send a request, timing out the endpoint if it is not replied to.
+	 * @param msg
+	 * @return true if it was queued
+	 */
+	private boolean sendAcked(Message msg) {
+		if(stopped) return false;
+		msg.setStreamId(streamId);
+		// the reply comes straight back here, without looking up the protocol
+		return endpoint.sendWithTimeout(msg, ()->{
 			if(!stopped) manager.endpointTimedOut(endpoint, this);
-		}, eventTimeout);
-		
+		}, endpoint.getTimeout(), this::receiveReply);
 	}
 
 	@Override
 	public void receiveReply(Message msg) {
-		
-		
+		// only acks of windowed events have a number
+		long ack=((EventReply)msg).getAck();
+		if(ack!=0) windowAcked(ack);
 	}
 
 	@Override
 	public void receiveRequest(Message msg) {
 		if(stopped)return;
-		EventRequest eventRequest = (EventRequest)msg;
-		endpoint.sendAndCancelTimeout(new EventReply(), msg);
-		endpoint.localEmit(eventRequest.getEventName(),eventRequest.getEventData());	
+		EventBatchRequest batchRequest = msg instanceof EventBatchRequest ? (EventBatchRequest)msg : null;
+		EventRequest eventRequest = batchRequest==null ? (EventRequest)msg : null;
+		long seq = batchRequest!=null ? batchRequest.getSeq() : eventRequest.getSeq();
+		boolean replied = msg.getTimeoutId()!=0;
+		// in a resumable session every event is numbered, and the reply acks those received in a row
+		boolean isNew = seq==0 || receivedNumbered(seq, replied && replay!=null);
+		// a batch is acked as a whole
+		if(replied) {
+			endpoint.sendAndCancelTimeout(replay!=null ? new EventReply(receivedAck()) : new EventReply(), msg);
+		}
+		if(replay!=null && !isNew) {
+			log.fine("dropped event "+seq+" received again from "+endpoint.getOtherEndpointId());
+			return;
+		}
+		if(batchRequest==null) {
+			endpoint.receivedEvent(eventRequest.getEventName(),eventRequest.getEventArgs());
+			return;
+		}
+		String[] events=batchRequest.getEvents();
+		for(int i=0;i<events.length;i+=2) endpoint.receivedEvent(events[i],events[i+1]);
 	}
 
 	@Override
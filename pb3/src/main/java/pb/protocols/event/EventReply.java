@@ -1,18 +1,43 @@
 package pb.protocols.event;
 
-import pb.protocols.Document;
+import pb.protocols.IMessageWriter;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 public class EventReply extends Message {
 	static final public String name = "EventReply";
 	
+	/**
+	 * The number of the last {@link Delivery#WINDOWED} event received in
+	 * a row, if the reply acks a window of events rather than one event
+	 * with its timeout id, else 0, which is not sent.
+	 */
+	private long ack=0;
+	
 	public EventReply() {
 		super(name, EventProtocol.protocolName, Message.Type.Reply);
 	}
-
-	public EventReply(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+	
+	/**
+	 * A reply that acks all of the windowed events up to and including one.
+	 * @param ack the number of the event
+	 */
+	public EventReply(long ack) {
+		this();
+		this.ack=ack;
+	}
+	
+	@Override
+	protected void readField(String key, Object value) throws InvalidMessage {
+		if(key.equals("ack")) ack=Message.longValue(value);
+	}
+	
+	@Override
+	protected void writeFields(IMessageWriter writer, String[] header) {
+		if(ack!=0) writer.key("ack").value(ack);
+	}
+	
+	public long getAck() {
+		return ack;
 	}
 }
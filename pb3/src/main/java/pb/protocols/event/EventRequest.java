@@ -1,30 +1,222 @@
 package pb.protocols.event;
 
+import java.util.Base64;
+import java.util.List;
+
 import pb.protocols.Document;
+import pb.protocols.IMessageWriter;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
+/**
+ * An event, with either a single String of data, which every endpoint
+ * understands, or any number of typed arguments, see {@link #argType(Object)}.
+ * Typed arguments are sent as an array, along with a string of their types,
+ * so that they are read back as the same types: byte arrays go as they are
+ * in the binary encoding, and as Base64 in JSON.
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
 public class EventRequest extends Message {
 	static final public String name = "EventRequest";
 	
+	/**
+	 * The types of typed arguments, one char each.
+	 */
+	private static final char typeString = 's';
+	private static final char typeLong = 'l';
+	private static final char typeDouble = 'd';
+	private static final char typeBytes = 'b';
+	private static final char typeDocument = 'o';
+	
+	private String eventName;
+	
+	/**
+	 * The single String argument, or null if the event has typed arguments.
+	 */
+	private String eventData;
+	
+	/**
+	 * The typed arguments, or null if the event has a single String argument.
+	 */
+	private Object[] eventArgs;
+	
+	/**
+	 * The types of the typed arguments, as read, which are checked once
+	 * the arguments have been read too.
+	 */
+	private String eventTypes;
+	
+	/**
+	 * The number of a {@link Delivery#WINDOWED} event, 0 for others,
+	 * which is not sent.
+	 */
+	private long seq=0;
+	
 	public EventRequest(String eventName, String eventData) {
 		super(name, EventProtocol.protocolName, Message.Type.Request);
-		doc.append("eventName", eventName);
-		doc.append("eventData", eventData);
+		this.eventName=eventName;
+		this.eventData=eventData;
 	}
-
-	public EventRequest(Document doc) throws InvalidMessage {
-		super(name,EventProtocol.protocolName,Message.Type.Request,doc);
-		Message.validateStringType("eventName", doc);
-		Message.validateStringType("eventData", doc);
-		this.doc=doc;
+	
+	/**
+	 * @param eventName
+	 * @param eventArgs each of which must have an {@link #argType(Object)}
+	 */
+	public EventRequest(String eventName, Object[] eventArgs) {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+		this.eventName=eventName;
+		this.eventArgs=eventArgs;
+	}
+	
+	/**
+	 * A request whose parameters are read from a received message.
+	 */
+	public EventRequest() {
+		super(name, EventProtocol.protocolName, Message.Type.Request);
+	}
+	
+	/**
+	 * @param arg
+	 * @return the type that a typed argument is sent as: a String, a whole
+	 * number, which is received as a Long, a Double or Float, which is
+	 * received as a Double, a byte[] or a {@link Document}; or 0 if it
+	 * can't be sent
+	 */
+	public static char argType(Object arg) {
+		if(arg instanceof String) return typeString;
+		if(arg instanceof Long || arg instanceof Integer
+				|| arg instanceof Short || arg instanceof Byte) return typeLong;
+		if(arg instanceof Double || arg instanceof Float) return typeDouble;
+		if(arg instanceof byte[]) return typeBytes;
+		if(arg instanceof Document) return typeDocument;
+		return 0;
+	}
+	
+	@Override
+	protected void readField(String key, Object value) throws InvalidMessage {
+		switch(key) {
+		case "eventName":
+			eventName=Message.stringValue(value);
+			break;
+		case "eventData":
+			eventData=Message.stringValue(value);
+			break;
+		case "eventArgs":
+			if(!(value instanceof List)) throw new InvalidMessage();
+			eventArgs=((List<?>)value).toArray();
+			break;
+		case "eventTypes":
+			eventTypes=Message.stringValue(value);
+			break;
+		case "seq":
+			seq=Message.longValue(value);
+			break;
+		}
+	}
+	
+	@Override
+	protected void validate() throws InvalidMessage {
+		if(eventName==null || (eventData==null)==(eventArgs==null)) throw new InvalidMessage();
+		if(eventArgs==null) return;
+		if(eventTypes==null || eventTypes.length()!=eventArgs.length) throw new InvalidMessage();
+		for(int i=0;i<eventArgs.length;i++) eventArgs[i]=readArg(eventTypes.charAt(i),eventArgs[i]);
+	}
+	
+	/**
+	 * @param type
+	 * @param value as read
+	 * @return the typed argument
+	 * @throws InvalidMessage if the value is not of the type
+	 */
+	private static Object readArg(char type, Object value) throws InvalidMessage {
+		switch(type) {
+		case typeString:
+			return Message.stringValue(value);
+		case typeLong:
+			return Message.longValue(value);
+		case typeDouble:
+			// JSON may give a double that is a whole number as a Long
+			if(value instanceof Long) return ((Long)value).doubleValue();
+			if(!(value instanceof Double)) throw new InvalidMessage();
+			return value;
+		case typeBytes:
+			if(value instanceof byte[]) return value;
+			try {
+				return Base64.getDecoder().decode(Message.stringValue(value));
+			} catch (IllegalArgumentException e) {
+				throw new InvalidMessage();
+			}
+		case typeDocument:
+			return Message.documentValue(value);
+		default:
+			throw new InvalidMessage();
+		}
+	}
+	
+	@Override
+	protected void writeFields(IMessageWriter writer, String[] header) {
+		if(!Message.inHeader("eventName", header)) writer.key("eventName").value(eventName);
+		if(eventArgs==null) {
+			writer.key("eventData").value(eventData);
+		} else {
+			StringBuilder types=new StringBuilder(eventArgs.length);
+			for(Object arg : eventArgs) types.append(argType(arg));
+			writer.key("eventTypes").value(types.toString());
+			writer.key("eventArgs").beginArray();
+			for(Object arg : eventArgs) writeArg(writer,arg);
+			writer.endArray();
+		}
+		if(seq!=0) writer.key("seq").value(seq);
+	}
+	
+	private static void writeArg(IMessageWriter writer, Object arg) {
+		switch(argType(arg)) {
+		case typeLong:
+			writer.value(((Number)arg).longValue());
+			break;
+		case typeDouble:
+			writer.value(((Number)arg).doubleValue());
+			break;
+		case typeBytes:
+			writer.value((byte[])arg);
+			break;
+		default:
+			writer.value(arg);
+		}
+	}
+	
+	@Override
+	public String[] getHeader() {
+		return new String[] {"name",name,"protocolName",EventProtocol.protocolName,
+				"type",Message.Type.Request.name(),"eventName",eventName};
 	}
 	
 	public String getEventName() {
-		return doc.getString("eventName");
+		return eventName;
 	}
 	
+	/**
+	 * @return the single String argument, or null if the event has typed
+	 * arguments
+	 */
 	public String getEventData() {
-		return doc.getString("eventData");
+		return eventData;
+	}
+	
+	/**
+	 * @return the arguments of the event, typed or the single String
+	 */
+	public Object[] getEventArgs() {
+		return eventArgs!=null ? eventArgs : new Object[] {eventData};
+	}
+	
+	public long getSeq() {
+		return seq;
+	}
+	
+	public void setSeq(long seq) {
+		this.seq=seq;
 	}
 }
@@ -0,0 +1,60 @@
+package pb.protocols.event;
+
+import java.util.TreeSet;
+
+/**
+ * The numbers of the events received from the other endpoint. Events that
+ * go in different lanes of the outbound queue can overtake each other, see
+ * {@link pb.managers.endpoint.Priority}, so they may arrive out of order.
+ * The events received in a row are counted by the number of the last one,
+ * which is what is acked, and the numbers received ahead of a missing one
+ * are kept until it arrives, so that an event received twice is known.
+ * It is not thread safe.
+ *
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @author aaron
+ *
+ */
+final class ReceivedSeqs {
+
+	/**
+	 * The number of the last event received in a row.
+	 */
+	private long last=0;
+
+	/**
+	 * The numbers received after a missing one.
+	 */
+	private final TreeSet<Long> ahead=new TreeSet<>();
+
+	ReceivedSeqs() {
+	}
+
+	/**
+	 * A copy of the numbers received.
+	 * @param other
+	 */
+	ReceivedSeqs(ReceivedSeqs other) {
+		last=other.last;
+		ahead.addAll(other.ahead);
+	}
+
+	/**
+	 * @param seq the number of an event that was received
+	 * @return false if it had been received already
+	 */
+	boolean add(long seq) {
+		if(seq<=last) return false;
+		if(seq!=last+1) return ahead.add(seq);
+		last=seq;
+		while(!ahead.isEmpty() && ahead.first()==last+1) last=ahead.pollFirst();
+		return true;
+	}
+
+	/**
+	 * @return the number of the last event received in a row
+	 */
+	long last() {
+		return last;
+	}
+}
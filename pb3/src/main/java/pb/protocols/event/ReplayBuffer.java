@@ -0,0 +1,313 @@
+package pb.protocols.event;
+
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import pb.managers.endpoint.Endpoint;
+import pb.protocols.Message;
+
+/**
+ * What an endpoint keeps of a resumable session, so that the session can
+ * carry on over a new connection after the old one fails. Every event sent
+ * in the session is numbered, and kept here until the other endpoint acks
+ * it; the numbers of the events received are kept too. When the
+ * client reconnects it presents the session's token and the last event it
+ * received, the server answers with the last event it received, and each
+ * then sends again only the events that the other has not received. Events
+ * received twice, because they were in flight when the connection failed,
+ * are dropped by their numbers.
+ * <br/>
+ * The buffer holds at most a given number of events. Once it overflows the
+ * session can't be resumed, although it carries on as it is. The buffer is
+ * attached to the endpoint the session is on, and only the event protocol
+ * of that endpoint uses it, so that one that is closing can't interfere
+ * after the session has moved on.
+ *
+ * @see {@link pb.protocols.event.EventProtocol}
+ * @see {@link pb.protocols.session.SessionProtocol}
+ * @author aaron
+ *
+ */
+public class ReplayBuffer {
+
+	private static final SecureRandom random = new SecureRandom();
+
+	/**
+	 * An event, or batch of events, that has not been acked.
+	 */
+	static final class Entry {
+		final long seq;
+		final Message request;
+		final Delivery delivery;
+
+		Entry(long seq, Message request, Delivery delivery) {
+			this.seq=seq;
+			this.request=request;
+			this.delivery=delivery;
+		}
+	}
+
+	private final String token;
+
+	private final int capacity;
+
+	private final ReentrantLock lock=new ReentrantLock();
+
+	private final ArrayDeque<Entry> entries=new ArrayDeque<>();
+
+	/**
+	 * The number of the last event sent.
+	 */
+	private long sentSeq=0;
+
+	/**
+	 * The number of the last event the other endpoint acked.
+	 */
+	private long ackedSeq=0;
+
+	/**
+	 * The numbers of the events received.
+	 */
+	private final ReceivedSeqs received=new ReceivedSeqs();
+
+	/**
+	 * Set once more events than the capacity were waiting to be acked.
+	 */
+	private boolean overflowed=false;
+
+	/**
+	 * The endpoint the session is on, or null before it is first attached.
+	 */
+	private Endpoint endpoint=null;
+
+	/**
+	 * A buffer for a new session, with a new token, as the server.
+	 * @param capacity the most events to keep
+	 */
+	public ReplayBuffer(int capacity) {
+		this(newToken(),capacity);
+	}
+
+	/**
+	 * A buffer for a new session, with the token the server gave it.
+	 * @param token
+	 * @param capacity the most events to keep
+	 */
+	public ReplayBuffer(String token, int capacity) {
+		this.token=token;
+		this.capacity=capacity;
+	}
+
+	private static String newToken() {
+		byte[] bytes=new byte[16];
+		random.nextBytes(bytes);
+		StringBuilder token=new StringBuilder(32);
+		for(byte b : bytes) token.append(String.format("%02x", b));
+		return token.toString();
+	}
+
+	/**
+	 * @return the token that identifies the session
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * @return the number of the last event received in a row
+	 */
+	public long getReceivedSeq() {
+		lock.lock();
+		try {
+			return received.last();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return a copy of the numbers of the events received
+	 */
+	ReceivedSeqs getReceived() {
+		lock.lock();
+		try {
+			return new ReceivedSeqs(received);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return true if the session can still be resumed
+	 */
+	public boolean isResumable() {
+		lock.lock();
+		try {
+			return !overflowed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the endpoint the session is on, or null if it has not been
+	 * attached to one
+	 */
+	public Endpoint getEndpoint() {
+		lock.lock();
+		try {
+			return endpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Attach the buffer to the endpoint of a new session.
+	 * @param endpoint
+	 */
+	public void attach(Endpoint endpoint) {
+		lock.lock();
+		try {
+			this.endpoint=endpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Move the session to a new endpoint, dropping the events that the
+	 * other endpoint has already received.
+	 * @param endpoint
+	 * @param otherReceivedSeq the number of the last event the other
+	 * endpoint received in a row
+	 * @return true if the session was resumed, false if it can't be
+	 */
+	public boolean resume(Endpoint endpoint, long otherReceivedSeq) {
+		lock.lock();
+		try {
+			if(overflowed || otherReceivedSeq>sentSeq || otherReceivedSeq<ackedSeq) return false;
+			acked(otherReceivedSeq);
+			this.endpoint=endpoint;
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @param endpoint
+	 * @return true if the buffer is attached to the endpoint
+	 */
+	boolean isAttached(Endpoint endpoint) {
+		lock.lock();
+		try {
+			return this.endpoint==endpoint;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of the last event sent
+	 */
+	long getSentSeq() {
+		lock.lock();
+		try {
+			return sentSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the number of the last event the other endpoint acked
+	 */
+	long getAckedSeq() {
+		lock.lock();
+		try {
+			return ackedSeq;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return the events to send again, in order
+	 */
+	List<Entry> getUnacked() {
+		lock.lock();
+		try {
+			return new ArrayList<>(entries);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Keep an event, or batch of events, that has been sent, or that is to be
+	 * sent again because the connection was lost.
+	 * @param endpoint sending it
+	 * @param seq its number, the next one
+	 * @param request
+	 * @param delivery
+	 * @return false if the buffer is not attached to the endpoint
+	 */
+	boolean sent(Endpoint endpoint, long seq, Message request, Delivery delivery) {
+		lock.lock();
+		try {
+			if(this.endpoint!=endpoint) return false;
+			sentSeq=seq;
+			// acked already, as it is kept once it has been sent
+			if(seq<=ackedSeq) return true;
+			if(overflowed) return true;
+			if(entries.size()>=capacity) {
+				// can't be resumed now, so there is no point keeping any
+				overflowed=true;
+				entries.clear();
+				return true;
+			}
+			entries.add(new Entry(seq,request,delivery));
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * The other endpoint acked the events up to one, which are dropped.
+	 * @param endpoint that received the ack
+	 * @param ack the number of the event
+	 */
+	void acked(Endpoint endpoint, long ack) {
+		lock.lock();
+		try {
+			if(this.endpoint==endpoint) acked(ack);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void acked(long ack) {
+		if(ack<=ackedSeq) return;
+		ackedSeq=ack;
+		while(!entries.isEmpty() && entries.peek().seq<=ack) entries.poll();
+	}
+
+	/**
+	 * An event that had not been received before was received.
+	 * @param endpoint that received it
+	 * @param seq its number
+	 */
+	void received(Endpoint endpoint, long seq) {
+		lock.lock();
+		try {
+			if(this.endpoint==endpoint) received.add(seq);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -1,30 +1,38 @@
 package pb.protocols.keepalive;
 
 import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.utils.Cancellable;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
 /**
  * Provides all of the protocol logic for both client and server to undertake
- * the KeepAlive protocol. In the KeepAlive protocol, the client sends a
- * KeepAlive request to the server every {@link #keepAliveInterval} seconds using
+ * the KeepAlive protocol. Any frame received shows that the other endpoint
+ * is alive, see {@link Endpoint#getLastReceived()}, so KeepAlive requests
+ * are only sent when the connection is idle: the client sends one to the
+ * server once it has received nothing, or sent nothing, for
+ * {@link #keepAliveRequestInterval} ms, checking using
  * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}. The server must
  * send a KeepAlive response to the client upon receiving the request. If the
- * client does not receive the response within {@link #keepAliveTimeout} seconds
- * it will assume the server is dead
+ * client receives nothing within the endpoint's timeout of sending a request,
+ * see {@link Endpoint#getTimeout()}, it will assume the server is dead
  * and signal its manager using
- * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. If the server does
- * not receive a KeepAlive request at least every {@link #keepAliveTimeout} seconds (again using
- * {@link pb.utils.Utils#setTimeout(pb.protocols.ICallback, long)}), it will assume
- * the client is dead and signal its manager. Upon initialisation, the client
- * should send the KeepAlive request immediately, whereas the server will wait
- * up to {@link #keepAliveTimeout} seconds before it assumes the client is dead. The protocol stops
+ * {@link pb.managers.Manager#endpointTimedOut(Endpoint,Protocol)}. The replies
+ * to the requests measure the round trip time, that the timeout comes from.
+ * If the server does not receive anything for {@link #keepAliveRequestInterval}
+ * ms plus its endpoint's timeout it will assume
+ * the client is dead and signal its manager. The server side protocols
+ * of all endpoints are checked by a single sweep every {@link #sweepInterval} ms,
+ * rather than each with timeouts of its own. The protocol stops
  * when a timeout occurs.
  * 
  * @see {@link pb.managers.Manager}
@@ -52,23 +60,28 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private int keepAliveRequestInterval = 20000;
 	
 	/**
-	 * Default keep alive timeout
+	 * How often the server side protocols are checked for timing out.
 	 */
-	private int keepAliveTimeout = 40000;
+	private static final int sweepInterval = 10000;
 	
-	// Use of volatile is because the timer thread is different to the endpoint thread
-	// and they make use of the same flags/variables.
+	/**
+	 * The protocols acting as the server, which the sweep checks.
+	 */
+	private static final Set<KeepAliveProtocol> servers = ConcurrentHashMap.newKeySet();
 	
 	/**
-	 * Time that a request was last sent.
+	 * Guards the sweep.
 	 */
-	private volatile long timeReplySeen;
+	private static final ReentrantLock sweepLock = new ReentrantLock();
 	
 	/**
-	 * Time that a request was last seen.
+	 * The next sweep, or null if there are no protocols acting as the
+	 * server to check.
 	 */
-	private volatile long timeRequestSeen;
+	private static Cancellable sweep=null;
 	
+	// Use of volatile is because the timer threads are different to the endpoint thread
+	// and they make use of the same flags/variables.
 	
 	/**
 	 * Set to true to avoid any further timeouts. 
@@ -76,9 +89,10 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	private volatile boolean stopped=false;
 	
 	/**
-	 * Whether we should timeout or not.
+	 * The next check for whether to send a request, as the client,
+	 * cancelled when the protocol stops.
 	 */
-	private volatile boolean timeout=false; 
+	private volatile Cancellable nextTimer=null;
 	
 	/**
 	 * Initialise the protocol with an endopint and a manager.
@@ -98,11 +112,18 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	}
 
 	/**
-	 * Just set a flag to avoid any further timeout callbacks.
+	 * Set a flag to avoid any further timeout callbacks, and cancel the
+	 * ones that are scheduled.
 	 */
 	@Override
 	public void stopProtocol() {
 		stopped=true;
+		servers.remove(this);
+		cancel(nextTimer);
+	}
+	
+	private static void cancel(Cancellable timer) {
+		if(timer!=null) timer.cancel();
 	}
 	
 	/*
@@ -111,111 +132,136 @@ public class KeepAliveProtocol extends Protocol implements IRequestReplyProtocol
 	
 	/**
 	 * Called by the manager that is acting as the server. Basically
-	 * just wait for {@link #keepAliveTimeout} seconds and if no (new) request has been seen
-	 * then timeout. Keep doing this until cancelled.
+	 * let the sweep check every so often whether anything has been received
+	 * since the client should have sent a request, and if not then timeout.
+	 * Keep doing this until cancelled.
 	 */
 	public void startAsServer() {
-		timeRequestSeen = Instant.now().toEpochMilli();
-		// set a timeout callback
-		Utils.getInstance().setTimeout(()->{
-			checkClientTimeout();
-		}, keepAliveTimeout);
+		servers.add(this);
+		sweepLock.lock();
+		try {
+			if(sweep==null) sweep=Utils.getInstance().setTimeout(KeepAliveProtocol::sweepServers, sweepInterval);
+		} finally {
+			sweepLock.unlock();
+		}
 	}
 	
 	/**
-	 * callback to check for client timeout
+	 * callback to check all of the protocols acting as the server for
+	 * client timeout, and sweep again later if there are any left
+	 */
+	private static void sweepServers() {
+		sweepLock.lock();
+		try {
+			sweep=null;
+		} finally {
+			sweepLock.unlock();
+		}
+		for(KeepAliveProtocol server : servers) server.checkClientTimeout();
+		sweepLock.lock();
+		try {
+			if(sweep==null && !servers.isEmpty()) {
+				sweep=Utils.getInstance().setTimeout(KeepAliveProtocol::sweepServers, sweepInterval);
+			}
+		} finally {
+			sweepLock.unlock();
+		}
+	}
+	
+	/**
+	 * check for client timeout
 	 */
 	public void checkClientTimeout() {
 		if(stopped)return;
 		long now = Instant.now().toEpochMilli();
-		if(now-timeRequestSeen > keepAliveTimeout) {
+		if(now-endpoint.getLastReceived() > keepAliveRequestInterval+endpoint.getTimeout()) {
 			// timeout :-(
 			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
-		} else {
-			// set a timeout callback
-			Utils.getInstance().setTimeout(()->{
-				checkClientTimeout();
-			}, keepAliveTimeout);
 		}
 	}
 	
 	/**
 	 * Called by the manager that is acting as the client. Basically
-	 * send a keep alive immediately and timeout if no response within
-	 * {@link #keepAliveTimeout} seconds.
-	 * Keep doing this every {@link #keepAliveRequestInterval} seconds until cancelled.
+	 * send a keep alive once the connection has been idle for
+	 * {@link #keepAliveRequestInterval} ms, and timeout if nothing is received
+	 * within the endpoint's timeout. Keep doing this until cancelled.
 	 */
 	public void startAsClient() {
-		// assume we saw a reply already
-		timeReplySeen = Instant.now().toEpochMilli();
-		// send a request straight away
-		sendAnotherRequest();	
+		sendAnotherRequest();
 	}
 	
 	/**
-	 * callback to send new request
+	 * callback to send a new request if the connection has been idle,
+	 * either way, for long enough, and to check again when it next could be
 	 */
 	public void sendAnotherRequest() {
 		if(stopped)return;
+		long now = Instant.now().toEpochMilli();
+		long active = Math.min(endpoint.getLastReceived(), endpoint.getLastSent());
+		long idle = now-active;
+		if(idle<keepAliveRequestInterval) {
+			nextTimer=Utils.getInstance().setTimeout(()->{
+				sendAnotherRequest();
+			}, keepAliveRequestInterval-idle);
+			return;
+		}
 		sendRequest(new KeepAliveRequest());
-		final long timeSent = Instant.now().toEpochMilli();
-		Utils.getInstance().setTimeout(()->{
+		nextTimer=Utils.getInstance().setTimeout(()->{
 			sendAnotherRequest();
 		}, keepAliveRequestInterval);
-		Utils.getInstance().setTimeout(()->{
-			checkServerTimeout(timeSent);
-		}, keepAliveTimeout);
 	}
 	
 	/**
-	 * callback to check for server timeout
+	 * callback to check for server timeout, if nothing has been received
+	 * since a request was sent
 	 */
 	public void checkServerTimeout(long timeSent) {
 		if(stopped)return;
-		if(timeout) {
+		if(endpoint.getLastReceived()<timeSent) {
+			//we timed out :-(
 			manager.endpointTimedOut(endpoint,this);
 			stopProtocol();
-		} else {
-			if(timeReplySeen-timeSent > keepAliveTimeout) {
-				//we timed out :-(
-				timeout=true;
-				manager.endpointDisconnectedAbruptly(endpoint);				
-			} 
 		}
 	}
 
 	/**
-	 * Send a keep alive request.
+	 * Send a keep alive request, checking for server timeout if the reply
+	 * does not come in time.
 	 * @param msg
 	 */
 	@Override
 	public void sendRequest(Message msg) {
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		endpoint.send(keepAliveRequest);
+		final long timeSent = Instant.now().toEpochMilli();
+		endpoint.sendWithTimeout(keepAliveRequest, ()->{
+			checkServerTimeout(timeSent);
+		}, endpoint.getTimeout(), this::receiveReply);
 	}
 
 	/**
-	 * If we receive a keep alive reply, make a note of the time.
+	 * A keep alive reply, like anything else received, was noted by the
+	 * endpoint when it arrived.
 	 * @param msg
 	 */
 	@Override
 	public void receiveReply(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveReply keepAliveResponse = (KeepAliveReply) msg;
-		timeReplySeen = Instant.now().toEpochMilli();
 	}
-
+	
 	/**
-	 * Received a keep alive request so make a note of when that was.
+	 * Received a keep alive request so reply to it.
 	 * @param msg
 	 */
 	@Override
 	public void receiveRequest(Message msg) {
 		@SuppressWarnings("unused")
 		KeepAliveRequest keepAliveRequest = (KeepAliveRequest) msg;
-		timeRequestSeen = Instant.now().toEpochMilli();
-		sendReply(new KeepAliveReply());
+		KeepAliveReply keepAliveReply = new KeepAliveReply();
+		// so that the client can time the round trip
+		keepAliveReply.setTimeoutId(keepAliveRequest.getTimeoutId());
+		sendReply(keepAliveReply);
 	}
 
 	/**
@@ -1,6 +1,7 @@
 package pb.protocols.session;
 
 import pb.managers.endpoint.Endpoint;
+import pb.protocols.event.ReplayBuffer;
 
 public interface ISessionProtocolHandler {
 	/**
@@ -14,4 +15,16 @@ public interface ISessionProtocolHandler {
 	 * @param endpoint
 	 */
 	public void sessionStopped(Endpoint endpoint);
+	
+	/**
+	 * The client asked for a resumable session, as the server.
+	 * @param endpoint
+	 * @param sessionToken of the session to resume, or null for a new session
+	 * @param lastSeq the number of the last event the client received in a
+	 * row in the session to resume
+	 * @return the replay buffer of the session, attached to the endpoint:
+	 * of the session asked for if it was resumed, else of a new session, or
+	 * null if sessions are not resumable
+	 */
+	public ReplayBuffer resumeSession(Endpoint endpoint, String sessionToken, long lastSeq);
 }
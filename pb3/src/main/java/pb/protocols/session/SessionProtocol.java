@@ -4,8 +4,13 @@ import java.util.logging.Logger;
 
 import pb.managers.Manager;
 import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Priority;
+import pb.protocols.Document;
 import pb.protocols.Message;
 import pb.protocols.Protocol;
+import pb.protocols.event.EventProtocol;
+import pb.protocols.event.ReplayBuffer;
+import pb.utils.Cancellable;
 import pb.utils.Utils;
 import pb.protocols.IRequestReplyProtocol;
 
@@ -18,6 +23,16 @@ import pb.protocols.IRequestReplyProtocol;
  * session stop request to the client if it wants (needs) to stop the session,
  * e.g. perhaps the server is becoming overloaded and needs to shed some
  * clients.
+ * <br/>
+ * The client may ask for a resumable session, and the server gives it a
+ * token for it. If the connection fails, the client presents the token
+ * when it reconnects, and the events that either side had not received
+ * are sent again, see {@link ReplayBuffer}.
+ * <br/>
+ * The protocol's messages go in the control lane, ahead of everything
+ * else, except for the session stop request and reply. They go in the
+ * last lane, behind the messages already queued in any lane, so that the
+ * events sent before the session stops are received before it stops.
  * 
  * @see {@link pb.managers.Manager}
  * @see {@link pb.managers.endpoint.Endpoint}
@@ -38,11 +53,6 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	public static final String protocolName="SessionProtocol";
 	
-	/**
-	 * Default request timeout
-	 */
-	private int sessionTimeout = 40000;
-	
 	// Use of volatile is in case the thread that calls stopProtocol is different
 	// to the endpoint thread, although in this case it hardly needed.
 	
@@ -57,6 +67,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	private volatile boolean stopped=false;
 	
+	/**
+	 * The server's timeout for the session to start.
+	 */
+	private volatile Cancellable startTimeout=null;
+	
 	/**
 	 * Initialise the protocol with an endpoint and manager.
 	 * @param endpoint
@@ -84,6 +99,12 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			log.severe("protocol stopped while it is still underway");
 		}
 		stopped=true;
+		cancelStartTimeout();
+	}
+	
+	private void cancelStartTimeout() {
+		Cancellable timeout=startTimeout;
+		if(timeout!=null) timeout.cancel();
 	}
 	
 	/*
@@ -97,8 +118,19 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	@Override
 	public void startAsClient() {
-		//  send the server a start session request
-		sendRequest(new SessionStartRequest());
+		//  send the server a start session request, offering what we can do
+		SessionStartRequest request = new SessionStartRequest();
+		request.setCapabilities(endpoint.getCapabilities());
+		if(manager.getEndpointConfig().getReplayBufferSize()>0) {
+			// the client manager gives the endpoint the session to resume, if any
+			ReplayBuffer previous = endpoint.getReplayBuffer();
+			if(previous!=null && previous.isResumable()) {
+				request.setResume(previous.getToken(), previous.getReceivedSeq());
+			} else {
+				request.setResume(null, 0);
+			}
+		}
+		sendRequest(request);
 	}
 
 	/**
@@ -106,19 +138,32 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 	 */
 	@Override
 	public void startAsServer() {
-		Utils.getInstance().setTimeout(()->{
+		startTimeout=Utils.getInstance().setTimeout(()->{
 			if(!stopped && !protocolRunning) {
 				// we timed out
 				manager.endpointTimedOut(endpoint, this);
 			}
-		}, sessionTimeout);
+		}, endpoint.getTimeout());
 	}
 	
 	/**
-	 * Generic stop session call, for either client or server.
+	 * Generic stop session call, for either client or server. The events
+	 * sent before it are received first.
 	 */
 	public void stopSession() {
-		sendRequest(new SessionStopRequest());
+		flushEvents();
+		SessionStopRequest request = new SessionStopRequest();
+		request.setPriority(Priority.BULK);
+		sendRequest(request);
+	}
+	
+	/**
+	 * Queue the events that are waiting for a batch, so that they go
+	 * before the session stops.
+	 */
+	private void flushEvents() {
+		Protocol events = endpoint.getProtocol(EventProtocol.protocolName);
+		if(events instanceof EventProtocol) ((EventProtocol)events).flush();
 	}
 	
 	/**
@@ -131,7 +176,7 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 			// the message timed out
 			if(!stopped)
 			manager.endpointTimedOut(endpoint, this);
-		},sessionTimeout);
+		},endpoint.getTimeout(),this::receiveReply);
 	}
 
 	/**
@@ -150,6 +195,13 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
+			// must be done before the next message is received
+			endpoint.useCapabilities(((SessionStartReply)msg).getCapabilities());
+			if(!useReplayBuffer((SessionStartReply)msg)) {
+				// the server resumed the session, but we can't
+				manager.protocolViolation(endpoint,this);
+				return;
+			}
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopReply) {
 			if(!protocolRunning) {
@@ -162,6 +214,29 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 		}
 	}
 
+	/**
+	 * As the client, resume the session the server says it resumed, or
+	 * start a new one with the token it gave, if any.
+	 * @param reply
+	 * @return false if the session can't be resumed after all
+	 */
+	private boolean useReplayBuffer(SessionStartReply reply) {
+		ReplayBuffer previous = endpoint.getReplayBuffer();
+		String token = reply.getSessionToken();
+		if(token==null) {
+			endpoint.setReplayBuffer(null, false);
+		} else if(previous!=null && token.equals(previous.getToken())) {
+			if(!previous.resume(endpoint, reply.getLastSeq())) return false;
+			log.info("resumed session with "+endpoint.getOtherEndpointId());
+			endpoint.setReplayBuffer(previous, true);
+		} else {
+			ReplayBuffer buffer = new ReplayBuffer(token, manager.getEndpointConfig().getReplayBufferSize());
+			buffer.attach(endpoint);
+			endpoint.setReplayBuffer(buffer, false);
+		}
+		return true;
+	}
+	
 	/**
 	 * If the received request is a session start request then reply and
 	 * tell the manager that the session has started. If the received request
@@ -178,7 +253,21 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=true;
-			endpoint.sendAndCancelTimeout(new SessionStartReply(),msg);
+			cancelStartTimeout();
+			SessionStartRequest request = (SessionStartRequest)msg;
+			Document accepted = endpoint.acceptCapabilities(request.getCapabilities());
+			SessionStartReply reply = new SessionStartReply();
+			reply.setCapabilities(accepted);
+			if(request.isResumable()) {
+				ReplayBuffer buffer = ((ISessionProtocolHandler)manager).resumeSession(endpoint,
+						request.getSessionToken(), request.getLastSeq());
+				if(buffer!=null) {
+					boolean resumed = buffer.getToken().equals(request.getSessionToken());
+					reply.setResume(buffer.getToken(), resumed ? buffer.getReceivedSeq() : 0);
+					endpoint.setReplayBuffer(buffer, resumed);
+				}
+			}
+			endpoint.sendAndUseCapabilities(reply,msg);
 			((ISessionProtocolHandler)manager).sessionStarted(endpoint);
 		} else if(msg instanceof SessionStopRequest) {
 			if(!protocolRunning) {
@@ -187,7 +276,11 @@ public class SessionProtocol extends Protocol implements IRequestReplyProtocol {
 				return;
 			}
 			protocolRunning=false;
-			endpoint.sendAndCancelTimeout(new SessionStopReply(),msg);
+			// the other endpoint closes when it has the reply
+			flushEvents();
+			SessionStopReply reply = new SessionStopReply();
+			reply.setPriority(Priority.BULK);
+			endpoint.sendAndCancelTimeout(reply,msg);
 			((ISessionProtocolHandler)manager).sessionStopped(endpoint);
 		}
 		
@@ -1,6 +1,7 @@
 package pb.protocols.session;
 
 import pb.protocols.Document;
+import pb.protocols.IMessageWriter;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
@@ -14,22 +15,91 @@ public class SessionStartReply extends Message {
 	static final public String name = "SessionStartReply";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The capabilities, or null if there are none.
+	 */
+	private Document capabilities=null;
+	
+	/**
+	 * The token of the session if it can be resumed, or null.
+	 */
+	private String sessionToken=null;
+	
+	/**
+	 * The number of the last event the server received in a row, if the
+	 * session was resumed.
+	 */
+	private long lastSeq=0;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, and for a
+	 * received message. The capabilities are set separately.
 	 */
 	public SessionStartReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
 	
 	/**
-	 * Initialiser when given message parameters in a doc. Must throw
-	 * InvalidMessag if any of the required parameters are not
-	 * in the doc, including the appropriate msg parameter.
-	 * @param doc with the message details
-	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 * Set the capabilities that the server chose to use. Peers that don't know about
+	 * capabilities just ignore them.
+	 * @see {@link pb.managers.endpoint.Endpoint#getCapabilities()}
+	 * @param capabilities
 	 */
-	public SessionStartReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+	public void setCapabilities(Document capabilities) {
+		this.capabilities=capabilities;
+	}
+	
+	/**
+	 * @return the capabilities that the server chose to use, empty if there are none
+	 */
+	public Document getCapabilities() {
+		if(capabilities==null) return new Document();
+		return capabilities;
+	}
+	
+	/**
+	 * Give the token of a resumable session, see {@link pb.protocols.event.ReplayBuffer}.
+	 * @param sessionToken the token the client asked to resume if the
+	 * session was resumed, else a new one
+	 * @param lastSeq the number of the last event received in a row, if
+	 * the session was resumed
+	 */
+	public void setResume(String sessionToken, long lastSeq) {
+		this.sessionToken=sessionToken;
+		this.lastSeq=lastSeq;
+	}
+	
+	/**
+	 * @return the token of the session, or null if it can't be resumed
+	 */
+	public String getSessionToken() {
+		return sessionToken;
+	}
+	
+	public long getLastSeq() {
+		return lastSeq;
+	}
+	
+	@Override
+	protected void readField(String key, Object value) throws InvalidMessage {
+		switch(key) {
+		case "capabilities":
+			capabilities=Message.documentValue(value);
+			break;
+		case "sessionToken":
+			sessionToken=Message.stringValue(value);
+			break;
+		case "lastSeq":
+			lastSeq=Message.longValue(value);
+			break;
+		}
+	}
+	
+	@Override
+	protected void writeFields(IMessageWriter writer, String[] header) {
+		if(capabilities!=null) writer.key("capabilities").value(capabilities);
+		if(sessionToken!=null) {
+			writer.key("sessionToken").value(sessionToken);
+			writer.key("lastSeq").value(lastSeq);
+		}
 	}
 }
@@ -1,6 +1,7 @@
 package pb.protocols.session;
 
 import pb.protocols.Document;
+import pb.protocols.IMessageWriter;
 import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
@@ -14,22 +15,109 @@ public class SessionStartRequest extends Message {
 	static final public String name = "SessionStartRequest";
 	
 	/**
-	 * Initialiser when given message parameters explicitly. Note that
-	 * in this message there are no additional parameters.
+	 * The capabilities, or null if there are none.
+	 */
+	private Document capabilities=null;
+	
+	/**
+	 * Whether the client keeps a replay buffer, so that the session can be
+	 * resumed, not sent if false.
+	 */
+	private boolean resumable=false;
+	
+	/**
+	 * The token of the session to resume, or null for a new session.
+	 */
+	private String sessionToken=null;
+	
+	/**
+	 * The number of the last event the client received in a row in the
+	 * session to resume.
+	 */
+	private long lastSeq=0;
+	
+	/**
+	 * Initialiser when given message parameters explicitly, and for a
+	 * received message. The capabilities are set separately.
 	 */
 	public SessionStartRequest() {
 		super(name,SessionProtocol.protocolName,Message.Type.Request);
 	}
 	
 	/**
-	 * Initialiser when given message parameters in a doc. Must throw
-	 * InvalidMessag if any of the required parameters are not
-	 * in the doc, including the appropriate msg parameter.
-	 * @param doc with the message details
-	 * @throws InvalidMessage when the doc does not contain all of the required parameters
+	 * Set the capabilities that the client offers. Peers that don't know about
+	 * capabilities just ignore them.
+	 * @see {@link pb.managers.endpoint.Endpoint#getCapabilities()}
+	 * @param capabilities
+	 */
+	public void setCapabilities(Document capabilities) {
+		this.capabilities=capabilities;
+	}
+	
+	/**
+	 * @return the capabilities that the client offers, empty if there are none
+	 */
+	public Document getCapabilities() {
+		if(capabilities==null) return new Document();
+		return capabilities;
+	}
+	
+	/**
+	 * Ask for a resumable session, see {@link pb.protocols.event.ReplayBuffer}.
+	 * Servers that don't know about resuming sessions just ignore it.
+	 * @param sessionToken of the session to resume, or null for a new session
+	 * @param lastSeq the number of the last event received in a row in the
+	 * session to resume
 	 */
-	public SessionStartRequest(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Request,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
+	public void setResume(String sessionToken, long lastSeq) {
+		this.resumable=true;
+		this.sessionToken=sessionToken;
+		this.lastSeq=lastSeq;
+	}
+	
+	/**
+	 * @return true if the client asked for a resumable session
+	 */
+	public boolean isResumable() {
+		return resumable;
+	}
+	
+	/**
+	 * @return the token of the session to resume, or null for a new session
+	 */
+	public String getSessionToken() {
+		return sessionToken;
+	}
+	
+	public long getLastSeq() {
+		return lastSeq;
+	}
+	
+	@Override
+	protected void readField(String key, Object value) throws InvalidMessage {
+		switch(key) {
+		case "capabilities":
+			capabilities=Message.documentValue(value);
+			break;
+		case "resumable":
+			resumable=Message.booleanValue(value);
+			break;
+		case "sessionToken":
+			sessionToken=Message.stringValue(value);
+			break;
+		case "lastSeq":
+			lastSeq=Message.longValue(value);
+			break;
+		}
+	}
+	
+	@Override
+	protected void writeFields(IMessageWriter writer, String[] header) {
+		if(capabilities!=null) writer.key("capabilities").value(capabilities);
+		if(resumable) writer.key("resumable").value(true);
+		if(sessionToken!=null) {
+			writer.key("sessionToken").value(sessionToken);
+			writer.key("lastSeq").value(lastSeq);
+		}
 	}
 }
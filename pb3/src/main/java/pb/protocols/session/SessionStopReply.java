@@ -1,7 +1,5 @@
 package pb.protocols.session;
 
-import pb.protocols.Document;
-import pb.protocols.InvalidMessage;
 import pb.protocols.Message;
 
 /**
@@ -20,16 +18,4 @@ public class SessionStopReply extends Message {
 	public SessionStopReply() {
 		super(name,SessionProtocol.protocolName,Message.Type.Reply);
 	}
-	
-	/**
-	 * Initialiser when given message parameters in a doc. Must throw
-	 * InvalidMessag if any of the required parameters are not
-	 * in the doc, including the appropriate msg parameter.
-	 * @param doc with the message details
-	 * @throws InvalidMessage when the doc does not contain all of the required parameters
-	 */
-	public SessionStopReply(Document doc) throws InvalidMessage {
-		super(name,SessionProtocol.protocolName,Message.Type.Reply,doc); // really just testing the name, otherwise nothing more to test
-		this.doc=doc;
-	}
 }
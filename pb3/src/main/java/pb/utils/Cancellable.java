@@ -0,0 +1,20 @@
+package pb.utils;
+
+/**
+ * A handle to something that has been scheduled, such as a timeout set
+ * with {@link Utils#setTimeout(pb.protocols.ICallback, long)}, that can be
+ * cancelled before it happens.
+ *
+ * @see {@link pb.utils.TimerWheel}
+ * @author aaron
+ *
+ */
+@FunctionalInterface
+public interface Cancellable {
+	/**
+	 * Cancel it, if it has not happened yet.
+	 * @return true if it was cancelled, false if it has already happened
+	 * or was already cancelled
+	 */
+	public boolean cancel();
+}
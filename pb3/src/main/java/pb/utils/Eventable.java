@@ -1,59 +1,61 @@
 package pb.utils;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 
 import pb.protocols.event.IEventCallback;
 
 /**
- * Simple eventable object. Does not provide for
- * canceling event callbacks.
+ * Simple eventable object. The callbacks of each event are kept in an
+ * array that is replaced, never changed, when a callback is added or
+ * removed, so emitting reads the current array without taking a lock.
+ * Callbacks can do socket I/O, so holding a lock while calling them would
+ * serialize every thread emitting on the object behind the slowest one.
+ * A callback that is added or removed while an event is being emitted
+ * may or may not receive that event.
  * @author aaron
  *
  */
-public class Eventable extends Thread {
+public class Eventable extends Worker {
 	private static Logger log = Logger.getLogger(Eventable.class.getName());
-	
+
 	/**
-	 * Event callbacks
+	 * Event callbacks, each array is copied on write.
 	 */
-	private Map<String,List<IEventCallback>> callbacks;
-	
+	private final ConcurrentHashMap<String,IEventCallback[]> callbacks;
+
 	/**
 	 * Initializer
 	 */
 	public Eventable() {
-		callbacks=new HashMap<>();
+		callbacks=new ConcurrentHashMap<>();
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name, and to all callbacks registered for special
-	 * event "*".
+	 * event "*", which receive the event name as their first arg.
 	 * @param eventName event name
 	 * @param args event arguments
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean emit(String eventName, Object... args) {
+	public boolean emit(String eventName, Object... args) {
 		boolean hit=false;
-		if(callbacks.containsKey("*")) {
-			callbacks.get("*").forEach((callback)->{
-				// TODO: make this little bit of code more efficient
-				Object[] newargs=new Object[args.length+1];
-				newargs[0]=eventName;
-				for(int i=0;i<args.length;i++) newargs[i+1]=args[i];
-				callback.callback(newargs);
-			});
+		IEventCallback[] all=callbacks.get("*");
+		if(all!=null) {
+			// one array shared by all of the "*" callbacks
+			Object[] newargs=new Object[args.length+1];
+			newargs[0]=eventName;
+			System.arraycopy(args, 0, newargs, 1, args.length);
+			for(IEventCallback callback : all) callback.callback(newargs);
 			hit=true;
 		}
 		if(localEmit(eventName,args)) hit=true;
 		if(!hit)log.warning("no callbacks for event: "+eventName);
 		return hit;
 	}
-	
+
 	/**
 	 * Send event args to all of the callbacks registered
 	 * for event name.
@@ -61,17 +63,13 @@ public class Eventable extends Thread {
 	 * @param args
 	 * @return true if at least one callback received the event
 	 */
-	public synchronized boolean localEmit(String eventName, Object... args) {
-		boolean hit=false;
-		if(callbacks.containsKey(eventName)) {
-			callbacks.get(eventName).forEach((callback)->{
-				callback.callback(args);
-			});
-			hit=true;
-		}
-		return hit;
+	public boolean localEmit(String eventName, Object... args) {
+		IEventCallback[] list=callbacks.get(eventName);
+		if(list==null) return false;
+		for(IEventCallback callback : list) callback.callback(args);
+		return true;
 	}
-	
+
 	/**
 	 * Add a new callback for an event. The special event name "*" is used
 	 * for callbacks that want to receive all events.
@@ -79,11 +77,52 @@ public class Eventable extends Thread {
 	 * @param callback callback to handle event
 	 * @return this event handler for chaining
 	 */
-	public synchronized Eventable on(String eventName, IEventCallback callback) {
-		if(!callbacks.containsKey(eventName)) {
-			callbacks.put(eventName,new ArrayList<IEventCallback>());
-		}
-		callbacks.get(eventName).add(callback);
+	public Eventable on(String eventName, IEventCallback callback) {
+		callbacks.compute(eventName, (name,list)->{
+			if(list==null) return new IEventCallback[] {callback};
+			IEventCallback[] newList=Arrays.copyOf(list, list.length+1);
+			newList[list.length]=callback;
+			return newList;
+		});
 		return this;
 	}
+
+	/**
+	 * Add a new callback for an event, like {@link #on(String, IEventCallback)},
+	 * and return a handle that removes it. Callbacks that are only needed for
+	 * as long as something else, such as a connection, should be added this
+	 * way and removed when it goes, otherwise they accumulate.
+	 * @param eventName event name
+	 * @param callback callback to handle event
+	 * @return a handle to remove the callback with
+	 */
+	public Cancellable subscribe(String eventName, IEventCallback callback) {
+		on(eventName,callback);
+		return ()->off(eventName,callback);
+	}
+
+	/**
+	 * Remove a callback for an event. If the callback was added more than
+	 * once, only one of them is removed.
+	 * @param eventName event name
+	 * @param callback the callback that was added
+	 * @return true if the callback was removed, false if it was not there
+	 */
+	public boolean off(String eventName, IEventCallback callback) {
+		boolean[] removed=new boolean[1];
+		callbacks.computeIfPresent(eventName, (name,list)->{
+			for(int i=0;i<list.length;i++) {
+				if(list[i]==callback) {
+					removed[0]=true;
+					if(list.length==1) return null;
+					IEventCallback[] newList=new IEventCallback[list.length-1];
+					System.arraycopy(list, 0, newList, 0, i);
+					System.arraycopy(list, i+1, newList, i, list.length-i-1);
+					return newList;
+				}
+			}
+			return list;
+		});
+		return removed[0];
+	}
 }
@@ -0,0 +1,116 @@
+package pb.utils;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.logging.Logger;
+
+/**
+ * The kind of thread that a {@link Worker} runs on. Platform threads are
+ * the usual operating system threads. Virtual threads are scheduled by the
+ * JVM onto a small number of carrier threads, so that thousands of blocked
+ * endpoints and client managers cost very little.
+ * <br/>
+ * Virtual threads are only available on Java 21 or later. On earlier
+ * runtimes {@link #VIRTUAL} falls back to platform threads, with a warning.
+ * Note that virtual threads are always daemon threads, so the JVM will not
+ * wait for them to terminate: the main thread should join with the manager
+ * it started.
+ *
+ * @see {@link pb.utils.Worker}
+ * @author aaron
+ *
+ */
+public enum ThreadMode {
+	/**
+	 * One operating system thread per worker.
+	 */
+	PLATFORM,
+
+	/**
+	 * One virtual thread per worker, when the runtime supports them.
+	 */
+	VIRTUAL;
+
+	private static Logger log = Logger.getLogger(ThreadMode.class.getName());
+
+	/**
+	 * Thread.ofVirtual().name(name).unstarted(task), looked up reflectively,
+	 * or null if the runtime does not have virtual threads.
+	 */
+	private static final MethodHandle ofVirtual;
+	private static final MethodHandle builderName;
+	private static final MethodHandle builderUnstarted;
+
+	static {
+		MethodHandle of=null, name=null, unstarted=null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			Class<?> ofVirtualBuilder = Class.forName("java.lang.Thread$Builder$OfVirtual");
+			of = lookup.findStatic(Thread.class, "ofVirtual", MethodType.methodType(ofVirtualBuilder));
+			name = lookup.findVirtual(builder, "name", MethodType.methodType(builder, String.class));
+			unstarted = lookup.findVirtual(builder, "unstarted",
+					MethodType.methodType(Thread.class, Runnable.class));
+		} catch (ReflectiveOperationException e) {
+			of=null;
+		}
+		ofVirtual=of;
+		builderName=name;
+		builderUnstarted=unstarted;
+	}
+
+	/**
+	 * Only warn once about falling back to platform threads.
+	 */
+	private static volatile boolean warned=false;
+
+	/**
+	 * @return true if virtual threads are available on this runtime
+	 */
+	public static boolean virtualThreadsAvailable() {
+		return ofVirtual!=null;
+	}
+
+	/**
+	 * Create an unstarted thread of this kind.
+	 * @param task the task for the thread to run
+	 * @param name the name of the thread
+	 * @return the new thread
+	 */
+	public Thread newThread(Runnable task, String name) {
+		if(this==VIRTUAL) {
+			if(ofVirtual!=null) {
+				try {
+					Object builder = builderName.invoke(ofVirtual.invoke(), name);
+					return (Thread) builderUnstarted.invoke(builder, task);
+				} catch (Throwable e) {
+					log.warning("could not create a virtual thread: "+e);
+				}
+			} else if(!warned) {
+				warned=true;
+				log.warning("virtual threads need Java 21 or later, using platform threads");
+			}
+		}
+		Thread thread = new Thread(task);
+		thread.setName(name);
+		return thread;
+	}
+
+	/**
+	 * An executor for short tasks, such as event callbacks, that are run
+	 * off the thread that produced them. For platform threads this is the
+	 * common fork join pool, and for virtual threads each task gets a new
+	 * virtual thread.
+	 * @param name the name of the threads, when they are created per task
+	 * @return the executor
+	 */
+	public Executor sharedExecutor(String name) {
+		if(this==VIRTUAL && ofVirtual!=null) {
+			return (task)->newThread(task,name).start();
+		}
+		return ForkJoinPool.commonPool();
+	}
+}
@@ -0,0 +1,330 @@
+package pb.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+import pb.protocols.ICallback;
+
+/**
+ * A hashed timing wheel, which schedules and cancels timeouts in constant
+ * time however many are pending, unlike {@link java.util.Timer} which keeps
+ * them all in a heap and only forgets a cancelled one when it is due.
+ * <br/>
+ * The wheel is a ring of buckets, each covering one tick of time. A
+ * timeout goes in the bucket of the tick it is due on, counting how many
+ * times around the wheel that is. A single tick thread advances one bucket
+ * per tick and expires the timeouts in it that are on their last round, so
+ * a timeout fires up to one tick late but never early. Scheduling and
+ * cancelling only add the timeout to a queue, which the tick thread drains
+ * on each tick, so that callers never contend on the buckets. A cancelled
+ * timeout is unlinked from its bucket on the next tick.
+ * <br/>
+ * Callbacks run on a pool of worker threads, not on the tick thread, so a
+ * slow callback does not delay the others. A callback with no delay goes
+ * straight to the workers. The workers are shared by every timeout, so a
+ * callback must not wait long, see {@link #onWorker()}.
+ *
+ * @see {@link pb.utils.Utils#setTimeout(ICallback, long)}
+ * @author aaron
+ *
+ */
+public class TimerWheel {
+	private static Logger log = Logger.getLogger(TimerWheel.class.getName());
+
+	/**
+	 * Most new timeouts moved into the wheel per tick, so that a flood of
+	 * them can't stall the tick thread.
+	 */
+	private static final int maxTransferPerTick = 100000;
+
+	private static final int stateWaiting = 0;
+	private static final int stateCancelled = 1;
+	private static final int stateExpired = 2;
+
+	/**
+	 * A scheduled callback, linked into the bucket of the tick it is due on.
+	 */
+	private final class Timeout implements Cancellable {
+		final ICallback callback;
+
+		/**
+		 * When it is due, in ns since the wheel started.
+		 */
+		final long deadline;
+
+		final AtomicInteger state=new AtomicInteger(stateWaiting);
+
+		// only used by the tick thread
+
+		long remainingRounds;
+		Bucket bucket;
+		Timeout next;
+		Timeout prev;
+
+		Timeout(ICallback callback, long deadline) {
+			this.callback=callback;
+			this.deadline=deadline;
+		}
+
+		@Override
+		public boolean cancel() {
+			if(!state.compareAndSet(stateWaiting, stateCancelled)) return false;
+			cancelled.add(this);
+			pending.decrementAndGet();
+			return true;
+		}
+
+		void expire() {
+			if(!state.compareAndSet(stateWaiting, stateExpired)) return;
+			pending.decrementAndGet();
+			run(callback);
+		}
+	}
+
+	/**
+	 * A doubly linked list of the timeouts due on one tick of the wheel,
+	 * only used by the tick thread.
+	 */
+	private static final class Bucket {
+		Timeout head;
+		Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket=this;
+			if(head==null) {
+				head=tail=timeout;
+			} else {
+				tail.next=timeout;
+				timeout.prev=tail;
+				tail=timeout;
+			}
+		}
+
+		Timeout remove(Timeout timeout) {
+			Timeout next=timeout.next;
+			if(timeout.prev!=null) timeout.prev.next=next;
+			if(timeout.next!=null) timeout.next.prev=timeout.prev;
+			if(timeout==head) head=next;
+			if(timeout==tail) tail=timeout.prev;
+			timeout.prev=null;
+			timeout.next=null;
+			timeout.bucket=null;
+			return next;
+		}
+
+		/**
+		 * Expire the timeouts that are due by the deadline, and count down
+		 * the rounds of the others.
+		 * @param deadline
+		 */
+		void expire(long deadline) {
+			Timeout timeout=head;
+			while(timeout!=null) {
+				if(timeout.remainingRounds<=0) {
+					Timeout next=remove(timeout);
+					if(timeout.deadline<=deadline) timeout.expire();
+					timeout=next;
+				} else {
+					timeout.remainingRounds--;
+					timeout=timeout.next;
+				}
+			}
+		}
+	}
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	/**
+	 * Length of a tick in ns.
+	 */
+	private final long tickDuration;
+
+	/**
+	 * A thread that runs callbacks, so that it can be told apart.
+	 */
+	private static final class WorkerThread extends Thread {
+		WorkerThread(Runnable task) {
+			super(task);
+		}
+	}
+
+	/**
+	 * Timeouts scheduled but not yet in a bucket.
+	 */
+	private final Queue<Timeout> scheduled=new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Timeouts cancelled but maybe still in a bucket.
+	 */
+	private final Queue<Timeout> cancelled=new ConcurrentLinkedQueue<>();
+
+	/**
+	 * Timeouts neither expired nor cancelled.
+	 */
+	private final AtomicLong pending=new AtomicLong();
+
+	private final ExecutorService workers;
+
+	private final Thread tickThread;
+
+	private final long startTime;
+
+	private volatile boolean stopped=false;
+
+	/**
+	 * Create and start a wheel.
+	 * @param tickDuration the length of a tick in ms, the precision of the timeouts
+	 * @param ticksPerWheel the number of buckets, rounded up to a power of 2
+	 * @param numWorkers the number of threads that run the callbacks
+	 */
+	public TimerWheel(long tickDuration, int ticksPerWheel, int numWorkers) {
+		if(tickDuration<=0) throw new IllegalArgumentException("tick duration must be positive");
+		int size=Integer.highestOneBit(Math.max(1,ticksPerWheel-1))<<1;
+		wheel=new Bucket[size];
+		for(int i=0;i<size;i++) wheel[i]=new Bucket();
+		mask=size-1;
+		this.tickDuration=TimeUnit.MILLISECONDS.toNanos(tickDuration);
+		AtomicInteger workerId=new AtomicInteger();
+		ThreadFactory factory=(task)->{
+			Thread thread=new WorkerThread(task);
+			thread.setName("TimerWorker-"+workerId.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+		workers=Executors.newFixedThreadPool(numWorkers, factory);
+		startTime=System.nanoTime();
+		// like java.util.Timer, the tick thread keeps the JVM running until stopped
+		tickThread=new Thread(this::tick);
+		tickThread.setName("TimerWheel");
+		tickThread.start();
+	}
+
+	/**
+	 * Schedule a callback.
+	 * @param callback the method to call on a worker thread
+	 * @param delay the delay in ms before calling it
+	 * @return a handle to cancel the callback with
+	 * @throws IllegalStateException if the wheel has been stopped
+	 */
+	public Cancellable schedule(ICallback callback, long delay) {
+		if(stopped) throw new IllegalStateException("timer wheel is stopped");
+		Timeout timeout=new Timeout(callback,
+				System.nanoTime()-startTime+TimeUnit.MILLISECONDS.toNanos(Math.max(0,delay)));
+		pending.incrementAndGet();
+		if(delay<=0) {
+			timeout.expire();
+		} else {
+			scheduled.add(timeout);
+		}
+		return timeout;
+	}
+
+	/**
+	 * @return true if the calling thread is a worker of any wheel, which
+	 * must not wait, since every timeout waits behind it
+	 */
+	public static boolean onWorker() {
+		return Thread.currentThread() instanceof WorkerThread;
+	}
+
+	/**
+	 * @return the number of callbacks that are scheduled and not yet
+	 * called or cancelled
+	 */
+	public long pending() {
+		return pending.get();
+	}
+
+	/**
+	 * Stop the wheel. Callbacks that are scheduled are not called, and no
+	 * more can be scheduled.
+	 */
+	public void stop() {
+		stopped=true;
+		tickThread.interrupt();
+		workers.shutdown();
+	}
+
+	private void run(ICallback callback) {
+		try {
+			workers.execute(()->{
+				try {
+					callback.callback();
+				} catch (RuntimeException e) {
+					log.severe("timeout callback failed: "+e);
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			// stopped
+		}
+	}
+
+	/**
+	 * The tick thread.
+	 */
+	private void tick() {
+		long tick=0;
+		while(!stopped) {
+			long deadline=waitForTick(tick);
+			if(deadline<0) break;
+			removeCancelled();
+			transferScheduled(tick);
+			wheel[(int)(tick & mask)].expire(deadline);
+			tick++;
+		}
+	}
+
+	/**
+	 * Sleep until the end of the given tick.
+	 * @param tick
+	 * @return the time in ns since the start at the end of the tick, or -1
+	 * if the wheel was stopped
+	 */
+	private long waitForTick(long tick) {
+		long deadline=tickDuration*(tick+1);
+		while(true) {
+			long now=System.nanoTime()-startTime;
+			long sleep=deadline-now;
+			if(sleep<=0) return now;
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleep);
+			} catch (InterruptedException e) {
+				if(stopped) return -1;
+			}
+		}
+	}
+
+	private void removeCancelled() {
+		Timeout timeout;
+		while((timeout=cancelled.poll())!=null) {
+			if(timeout.bucket!=null) timeout.bucket.remove(timeout);
+		}
+	}
+
+	/**
+	 * Put new timeouts into the buckets of the ticks they are due on.
+	 * @param tick the current tick
+	 */
+	private void transferScheduled(long tick) {
+		for(int i=0;i<maxTransferPerTick;i++) {
+			Timeout timeout=scheduled.poll();
+			if(timeout==null) break;
+			if(timeout.state.get()!=stateWaiting) continue;
+			long due=timeout.deadline/tickDuration;
+			timeout.remainingRounds=(due-tick)/wheel.length;
+			// one that is already due goes in the current tick
+			long dueTick=Math.max(due,tick);
+			wheel[(int)(dueTick & mask)].add(timeout);
+		}
+	}
+}
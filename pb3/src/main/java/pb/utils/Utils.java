@@ -1,8 +1,5 @@
 package pb.utils;
 
-import java.util.Timer;
-import java.util.TimerTask;
-
 import pb.protocols.ICallback;
 
 /**
@@ -35,14 +32,28 @@ public class Utils {
 	 */
 	public static final int chunkSize = 16*1024;
 	
+	/**
+	 * Length in ms of a tick of the timer, which is the precision of
+	 * the timeouts.
+	 */
+	public static final int timerTick = 10;
+	
+	/**
+	 * Buckets in the timer wheel, a wheel goes round every
+	 * {@link #timerTick}*{@link #timerWheelSize} ms.
+	 */
+	public static final int timerWheelSize = 512;
+	
 	/**
 	 * Use of a single timer object over the entire system helps
-	 * to reduce thread usage.
+	 * to reduce thread usage. Its callbacks run on a few worker
+	 * threads, see {@link TimerWheel}.
 	 */
-	private Timer timer = new Timer();
+	private TimerWheel timer;
 	
 	public Utils() {
-		timer=new Timer();
+		timer=new TimerWheel(timerTick,timerWheelSize,
+				Math.max(2,Runtime.getRuntime().availableProcessors()));
 	}
 	
 	public static synchronized Utils getInstance() {
@@ -58,25 +69,23 @@ public class Utils {
 	 * <code>
 	 * Utils.getInstance().setTimeout(()->{doSomething();},10000);
 	 * </code>
+	 * The callback is made on one of the timer's worker threads, and
+	 * callbacks due at the same time may be made concurrently.
 	 * @param callback the method to call
 	 * @param delay the delay in ms before calling the method
+	 * @return a handle to cancel the callback, which should be used
+	 * when it is no longer needed so that it does not take up space
+	 * until it is due
 	 */
-	public void setTimeout(ICallback callback,long delay) {
+	public Cancellable setTimeout(ICallback callback,long delay) {
 		// nicely, this is thread safe
-		timer.schedule(new TimerTask() {
-			@Override
-			public void run() {
-				callback.callback();
-			}
-			
-		}, delay);
+		return timer.schedule(callback, delay);
 	}
 	
 	/**
 	 * Call before the system exits.
 	 */
 	public void cleanUp() {
-		timer.cancel();
-		System.gc(); // need to do this to cleanup timer tasks and allow jvm to quit
+		timer.stop();
 	}
 }
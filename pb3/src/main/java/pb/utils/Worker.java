@@ -0,0 +1,116 @@
+package pb.utils;
+
+/**
+ * Something that runs on its own thread, but is not itself a
+ * {@link java.lang.Thread}. The thread is only created when the worker is
+ * started, and its kind is given by the worker's {@link ThreadMode}, so the
+ * same worker can run on a platform thread or on a virtual thread. The
+ * methods mirror those of {@link java.lang.Thread} that the managers and
+ * endpoints use.
+ *
+ * @see {@link pb.utils.ThreadMode}
+ * @author aaron
+ *
+ */
+public class Worker implements Runnable {
+
+	/**
+	 * The thread, once started.
+	 */
+	private volatile Thread thread=null;
+
+	/**
+	 * The name to give the thread.
+	 */
+	private volatile String name=getClass().getSimpleName();
+
+	/**
+	 * The kind of thread to start.
+	 */
+	private volatile ThreadMode threadMode=ThreadMode.PLATFORM;
+
+	/**
+	 * Start the worker's thread, which calls {@link #run()}.
+	 * @throws IllegalThreadStateException if the worker was already started
+	 */
+	public synchronized void start() {
+		if(thread!=null) throw new IllegalThreadStateException();
+		thread=threadMode.newThread(this, name);
+		thread.start();
+	}
+
+	/**
+	 * Override to do the work.
+	 */
+	@Override
+	public void run() {
+
+	}
+
+	/**
+	 * Wait for the worker's thread to terminate. Returns immediately if
+	 * the worker was never started.
+	 * @throws InterruptedException
+	 */
+	public void join() throws InterruptedException {
+		Thread t=thread;
+		if(t!=null) t.join();
+	}
+
+	/**
+	 * Interrupt the worker's thread, if it has been started.
+	 */
+	public void interrupt() {
+		Thread t=thread;
+		if(t!=null) t.interrupt();
+	}
+
+	/**
+	 * @return true if the worker's thread has been interrupted
+	 */
+	public boolean isInterrupted() {
+		Thread t=thread;
+		return t!=null && t.isInterrupted();
+	}
+
+	/**
+	 * @return true if the worker's thread has started and not yet terminated
+	 */
+	public boolean isAlive() {
+		Thread t=thread;
+		return t!=null && t.isAlive();
+	}
+
+	/**
+	 * Set the name of the worker's thread.
+	 * @param name
+	 */
+	public void setName(String name) {
+		this.name=name;
+		Thread t=thread;
+		if(t!=null) t.setName(name);
+	}
+
+	/**
+	 * @return the name of the worker's thread
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Set the kind of thread to use, which must be done before the
+	 * worker is started.
+	 * @param threadMode
+	 */
+	public void setThreadMode(ThreadMode threadMode) {
+		this.threadMode=threadMode;
+	}
+
+	/**
+	 * @return the kind of thread this worker uses
+	 */
+	public ThreadMode getThreadMode() {
+		return threadMode;
+	}
+}
@@ -0,0 +1,161 @@
+package pb;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.CommandLineParser;
+import org.apache.commons.cli.DefaultParser;
+import org.apache.commons.cli.HelpFormatter;
+import org.apache.commons.cli.Options;
+import org.apache.commons.cli.ParseException;
+
+import pb.protocols.BinaryReader;
+import pb.protocols.BinaryWriter;
+import pb.protocols.Document;
+import pb.protocols.IMessageWriter;
+import pb.protocols.InvalidMessage;
+import pb.protocols.JsonReader;
+import pb.protocols.JsonWriter;
+import pb.protocols.Message;
+import pb.protocols.event.EventRequest;
+
+/**
+ * Benchmark of encoding and decoding messages, comparing json-simple, as
+ * messages were once kept in a {@link Document}, with the streaming
+ * {@link JsonWriter} and {@link JsonReader} that the endpoints use, and
+ * with the {@link BinaryWriter} and {@link BinaryReader} that they use
+ * once they agree to the binary codec. Decoding into a map, as
+ * {@link JsonReader#readDocument()} does, is also measured against reading
+ * the fields of the message one by one. Reports the bytes allocated and
+ * the time taken per message for each, measured on the benchmark thread,
+ * which needs a HotSpot JVM. It is kept with the tests, out of the
+ * application jar, and run from the test classpath.
+ *
+ * @see {@link pb.protocols.JsonReader}
+ * @see {@link pb.protocols.JsonWriter}
+ * @see {@link pb.protocols.BinaryWriter}
+ * @author aaron
+ *
+ */
+public class CodecBenchmark {
+	private static int messages=200000;
+	private static int dataSize=64;
+
+	private static void help(Options options){
+		String header = "PB Codec Benchmark for Unimelb COMP90015\n\n";
+		String footer = "\ncontact aharwood@unimelb.edu.au for issues.";
+		HelpFormatter formatter = new HelpFormatter();
+		formatter.printHelp("pb.CodecBenchmark", header, options, footer, true);
+		System.exit(-1);
+	}
+
+	/**
+	 * One way of encoding or decoding a message.
+	 */
+	private interface Codec {
+		void run(Message msg, ByteBuffer buffer) throws InvalidMessage;
+	}
+
+	/**
+	 * Encode a document of the message's fields with json-simple, then
+	 * copy into the buffer as the endpoint did.
+	 */
+	private static void encodeJsonSimple(Document doc, ByteBuffer buffer) {
+		String json=doc.toJson();
+		buffer.clear();
+		for(int i=0;i<json.length();i++) buffer.put((byte)json.charAt(i));
+		buffer.flip();
+	}
+
+	private static void encodeStreaming(Message msg, ByteBuffer buffer) {
+		JsonWriter counter=new JsonWriter();
+		msg.write(counter, null);
+		buffer.clear();
+		msg.write(new JsonWriter(buffer), null);
+		buffer.flip();
+	}
+
+	private static void encodeBinary(Message msg, ByteBuffer buffer) {
+		IMessageWriter counter=new BinaryWriter();
+		msg.write(counter, null);
+		buffer.clear();
+		msg.write(new BinaryWriter(buffer), null);
+		buffer.flip();
+	}
+
+	private static double[] measure(Codec codec, Message msg, ByteBuffer buffer) throws InvalidMessage {
+		com.sun.management.ThreadMXBean threads=
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		long thread=Thread.currentThread().getId();
+		// warm up
+		for(int i=0;i<messages;i++) codec.run(msg, buffer);
+		long allocated=threads.getThreadAllocatedBytes(thread);
+		long start=System.nanoTime();
+		for(int i=0;i<messages;i++) codec.run(msg, buffer);
+		long time=System.nanoTime()-start;
+		allocated=threads.getThreadAllocatedBytes(thread)-allocated;
+		return new double[] {(double)allocated/messages, (double)time/messages};
+	}
+
+	private static void report(String name, double[] result) {
+		System.out.println(String.format("%-24s %8.1f bytes/message %8.1f ns/message",
+				name, result[0], result[1]));
+	}
+
+	public static void main( String[] args ) throws InvalidMessage
+	{
+		// parse command line options
+		Options options = new Options();
+		options.addOption("messages",true,"messages per measurement, an integer");
+		options.addOption("size",true,"characters of event data, an integer");
+
+		CommandLineParser parser = new DefaultParser();
+		CommandLine cmd = null;
+		try {
+			cmd = parser.parse( options, args);
+		} catch (ParseException e1) {
+			help(options);
+		}
+		try {
+			if(cmd.hasOption("messages")) messages=Integer.parseInt(cmd.getOptionValue("messages"));
+			if(cmd.hasOption("size")) dataSize=Integer.parseInt(cmd.getOptionValue("size"));
+		} catch (NumberFormatException e) {
+			help(options);
+		}
+
+		StringBuilder data=new StringBuilder();
+		for(int i=0;i<dataSize;i++) data.append((char)('a'+i%26));
+		Message msg=new EventRequest("BOARD_PATH_ACCEPTED",data.toString());
+		msg.setTimeoutId(123456);
+		ByteBuffer buffer=ByteBuffer.allocate(4*dataSize+256);
+		encodeStreaming(msg, buffer);
+		byte[] bytes=new byte[buffer.remaining()];
+		buffer.get(bytes);
+		JsonReader reader=new JsonReader();
+		encodeBinary(msg, buffer);
+		byte[] binary=new byte[buffer.remaining()];
+		buffer.get(binary);
+		BinaryReader binaryReader=new BinaryReader();
+
+		System.out.println("EventRequest of "+bytes.length+" bytes as JSON, "+binary.length
+				+" bytes binary, "+messages+" messages");
+		Document doc=Document.parse(new String(bytes, StandardCharsets.UTF_8));
+		report("encode json-simple", measure((m,b)->encodeJsonSimple(doc, b), msg, buffer));
+		report("encode streaming", measure(CodecBenchmark::encodeStreaming, msg, buffer));
+		report("encode binary", measure(CodecBenchmark::encodeBinary, msg, buffer));
+		report("decode json-simple", measure((m,b)->{
+			Document.parse(new String(bytes, StandardCharsets.UTF_8));
+		}, msg, buffer));
+		report("decode map", measure((m,b)->{
+			reader.reset(bytes, 0, bytes.length).readDocument();
+		}, msg, buffer));
+		report("decode streaming", measure((m,b)->{
+			Message.toMessage(reader.reset(bytes, 0, bytes.length), null);
+		}, msg, buffer));
+		report("decode binary", measure((m,b)->{
+			Message.toMessage(binaryReader.reset(binary, 0, binary.length), null);
+		}, msg, buffer));
+	}
+}
@@ -0,0 +1,102 @@
+package pb.managers.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Framing the frames of an endpoint as the framing switches from legacy to
+ * varint, with frames taken from the lanes out of the order they were
+ * queued in.
+ * @author aaron
+ *
+ */
+public class FrameEncoderTest {
+
+	private final BufferPool pool=new BufferPool(false);
+
+	private final FrameEncoder encoder=new FrameEncoder(pool,6,Integer.MAX_VALUE);
+
+	private ByteBuffer payload(String text) {
+		ByteBuffer payload=pool.acquire(text.length());
+		for(int i=0;i<text.length();i++) payload.put((byte)text.charAt(i));
+		payload.flip();
+		return payload;
+	}
+
+	private static String bytes(ByteBuffer buffer) {
+		StringBuilder text=new StringBuilder();
+		while(buffer.hasRemaining()) {
+			int b=buffer.get() & 0xff;
+			text.append(b>' ' && b<127 ? String.valueOf((char)b) : "["+b+"]");
+		}
+		return text.toString();
+	}
+
+	@Test
+	public void legacy() {
+		ByteBuffer bytes=encoder.encode(new OutboundFrame(Framing.typeJson,payload("{}"),Priority.BULK));
+		assertEquals("[0][2]{}",bytes(bytes));
+	}
+
+	@Test
+	public void switchToVarint() {
+		ByteBuffer marker=pool.acquire(0);
+		marker.flip();
+		assertEquals("[0][0]",bytes(encoder.encode(
+				new OutboundFrame(Framing.typeJson,marker,Priority.CONTROL,Framing.VARINT))));
+		ByteBuffer bytes=encoder.encode(new OutboundFrame(Framing.typeJson,payload("{}"),Priority.BULK));
+		assertEquals("[3][0]{}",bytes(bytes));
+	}
+
+	/**
+	 * A binary frame queued after the switch, but taken first from a later
+	 * lane, is written straight after the switch rather than dropped.
+	 */
+	@Test
+	public void heldForSwitch() {
+		int type=Framing.typeJson | Framing.flagBinary;
+		assertNull(encoder.encode(new OutboundFrame(type,payload("ab"),Priority.BULK)));
+		assertNull(encoder.encode(new OutboundFrame(Framing.typeStreamJson,payload("c"),Priority.INTERACTIVE)));
+		ByteBuffer marker=pool.acquire(0);
+		marker.flip();
+		ByteBuffer bytes=encoder.encode(new OutboundFrame(Framing.typeJson,marker,Priority.CONTROL,Framing.VARINT));
+		assertEquals("[0][0][3]["+type+"]ab[2][1]c",bytes(bytes));
+	}
+
+	/**
+	 * Null characters and characters outside of the basic multilingual
+	 * plane are longer in modified UTF-8.
+	 */
+	@Test
+	public void legacyLength() {
+		assertEquals(3,Framing.legacyLength(ByteBuffer.wrap("abc".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(4,Framing.legacyLength(ByteBuffer.wrap("a\0b".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(3,Framing.legacyLength(ByteBuffer.wrap("\u00e9a".getBytes(StandardCharsets.UTF_8))));
+		assertEquals(6,Framing.legacyLength(ByteBuffer.wrap("\ud83d\ude00".getBytes(StandardCharsets.UTF_8))));
+	}
+
+	@Test
+	public void legacyModifiedUtf8() {
+		String text="a\0\ud83d\ude00";
+		ByteBuffer utf8=pool.acquire(16);
+		utf8.put(text.getBytes(StandardCharsets.UTF_8));
+		utf8.flip();
+		ByteBuffer bytes=encoder.encode(new OutboundFrame(Framing.typeJson,utf8,Priority.BULK));
+		assertEquals(2+9,bytes.remaining());
+		assertEquals(9,bytes.getShort());
+	}
+
+	@Test
+	public void closeReleasesHeld() {
+		long before=pool.getOutstanding();
+		encoder.encode(new OutboundFrame(Framing.typeStreamJson,payload("c"),Priority.BULK));
+		assertEquals(before+1,pool.getOutstanding());
+		encoder.close();
+		assertEquals(before,pool.getOutstanding());
+	}
+}
@@ -0,0 +1,186 @@
+package pb.managers.endpoint;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.Test;
+
+/**
+ * Headers coded against the table of what one endpoint sends and decoded
+ * against the table of what the other receives, which must stay in step
+ * whatever order the frames are encoded in and once the table is full.
+ * @author aaron
+ *
+ */
+public class HeaderTableTest {
+
+	private final HeaderTable sent=new HeaderTable(4,false);
+	private final HeaderTable received=new HeaderTable(4,true);
+
+	/**
+	 * @param header
+	 * @return the header as written to a frame
+	 */
+	private static ByteBuffer put(HeaderTable.Header header) {
+		ByteBuffer buffer=ByteBuffer.allocate(header.length+3);
+		buffer.put((byte)1);
+		header.put(buffer);
+		assertEquals(header.length+1,buffer.position());
+		// what follows the header in the frame
+		buffer.put((byte)2).put((byte)3);
+		buffer.flip();
+		buffer.position(1);
+		return buffer;
+	}
+
+	/**
+	 * As the frame encoder does once the frame is encoded for the wire.
+	 * @param header
+	 */
+	private static void encoded(HeaderTable.Header header) {
+		HeaderTable.Entry[] defines=header.defines();
+		if(defines!=null) for(HeaderTable.Entry entry : defines) entry.written=true;
+	}
+
+	/**
+	 * Code, encode and decode a header.
+	 * @param strings
+	 * @return the header's length
+	 */
+	private int roundTrip(String... strings) {
+		HeaderTable.Header header=sent.header(strings);
+		ByteBuffer frame=put(header);
+		encoded(header);
+		assertArrayEquals(strings,received.decode(frame));
+		assertEquals(1+header.length,frame.position());
+		return header.length;
+	}
+
+	@Test
+	public void referredOnceWritten() {
+		int first=roundTrip("message","protocol","event");
+		int again=roundTrip("message","protocol","event");
+		// a count and three one byte indexes
+		assertEquals(4,again);
+		assertTrue(again<first);
+	}
+
+	@Test
+	public void mixed() {
+		roundTrip("a","b");
+		roundTrip("b","c","a");
+		assertEquals(1+3,roundTrip("c","a","b"));
+		roundTrip();
+		roundTrip("");
+		roundTrip("événement","消息","😀");
+		roundTrip("événement","消息","😀");
+	}
+
+	/**
+	 * Headers coded before the first of them is encoded all give the
+	 * string, so they decode whatever order they are written in.
+	 */
+	@Test
+	public void encodedOutOfOrder() {
+		HeaderTable.Header[] headers=new HeaderTable.Header[3];
+		for(int i=0;i<headers.length;i++) headers[i]=sent.header(new String[]{"name",""+i});
+		for(HeaderTable.Header header : headers) assertTrue(header.defines()!=null);
+		for(int i=headers.length-1;i>=0;i--) {
+			ByteBuffer frame=put(headers[i]);
+			encoded(headers[i]);
+			assertArrayEquals(new String[]{"name",""+i},received.decode(frame));
+		}
+		HeaderTable.Header header=sent.header(new String[]{"name"});
+		assertNull(header.defines());
+		assertArrayEquals(new String[]{"name"},received.decode(put(header)));
+	}
+
+	/**
+	 * Nothing is evicted from a full table, strings that don't fit are
+	 * always given in full and those in it are still referred to.
+	 */
+	@Test
+	public void full() {
+		roundTrip("a","b","c","d");
+		int full=roundTrip("a","b","c","d","e","f");
+		// count, four indexes, then two strings not indexed
+		assertEquals(1+4+2*3,full);
+		assertEquals(full,roundTrip("a","b","c","d","e","f"));
+		HeaderTable.Header header=sent.header(new String[]{"e"});
+		assertNull(header.defines());
+		assertArrayEquals(new String[]{"e"},received.decode(put(header)));
+	}
+
+	@Test
+	public void longNotIndexed() {
+		char[] chars=new char[HeaderTable.maxIndexedLength+1];
+		Arrays.fill(chars,'x');
+		String s=new String(chars);
+		int first=roundTrip(s);
+		assertEquals(first,roundTrip(s));
+		// there is still room for short strings
+		roundTrip("short");
+		assertEquals(2,roundTrip("short"));
+	}
+
+	/**
+	 * Threads coding the same strings at once are given the same entries,
+	 * and no more entries than the table holds.
+	 */
+	@Test
+	public void concurrent() throws InterruptedException {
+		HeaderTable table=new HeaderTable(16,false);
+		Set<Integer> indexes=ConcurrentHashMap.newKeySet();
+		ConcurrentHashMap<String,HeaderTable.Entry> seen=new ConcurrentHashMap<>();
+		List<Thread> threads=new ArrayList<>();
+		List<Throwable> failures=new ArrayList<>();
+		for(int t=0;t<8;t++) {
+			Thread thread=new Thread(()->{
+				for(int i=0;i<1000;i++) {
+					String s="s"+(i%32);
+					HeaderTable.Header header=table.header(new String[]{s});
+					HeaderTable.Entry entry=header.entries[0];
+					if(entry==null) continue;
+					indexes.add(entry.index);
+					HeaderTable.Entry previous=seen.putIfAbsent(s,entry);
+					if(previous!=null && previous!=entry) {
+						synchronized(failures) {
+							failures.add(new AssertionError(s+" has two entries"));
+						}
+					}
+				}
+			});
+			threads.add(thread);
+			thread.start();
+		}
+		for(Thread thread : threads) thread.join();
+		assertEquals(new ArrayList<Throwable>(),failures);
+		Set<Integer> expected=new HashSet<>();
+		for(int i=0;i<16;i++) expected.add(i);
+		assertEquals(expected,indexes);
+	}
+
+	@Test
+	public void malformed() {
+		// an index that was never given
+		assertNull(received.decode(ByteBuffer.wrap(new byte[]{1,HeaderTable.firstIndex})));
+		// outside the table
+		assertNull(received.decode(ByteBuffer.wrap(new byte[]{1,HeaderTable.literal,4,1,'x'})));
+		// string longer than the frame
+		assertNull(received.decode(ByteBuffer.wrap(new byte[]{1,HeaderTable.literalNotIndexed,5,'x'})));
+		// more strings than bytes
+		assertNull(received.decode(ByteBuffer.wrap(new byte[]{3,HeaderTable.literalNotIndexed,0})));
+		// truncated
+		assertNull(received.decode(ByteBuffer.wrap(new byte[]{1})));
+	}
+}
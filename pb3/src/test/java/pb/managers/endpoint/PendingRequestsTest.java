@@ -0,0 +1,204 @@
+package pb.managers.endpoint;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import pb.protocols.IReplyCallback;
+import pb.utils.Cancellable;
+
+/**
+ * Adding and removing the requests waiting for replies, as the table
+ * grows, from one thread and from several.
+ * @author aaron
+ *
+ */
+public class PendingRequestsTest {
+
+	/**
+	 * A timeout that counts how often it is cancelled.
+	 */
+	private static final class Timeout implements Cancellable {
+		final AtomicInteger cancels=new AtomicInteger();
+
+		@Override
+		public boolean cancel() {
+			return cancels.incrementAndGet()==1;
+		}
+	}
+
+	@Test
+	public void addAndRemove() {
+		PendingRequests pending=new PendingRequests(4);
+		IReplyCallback continuation=(msg)->{};
+		PendingRequests.Request a=pending.add(continuation);
+		PendingRequests.Request b=pending.add(null);
+		assertEquals(1,a.id);
+		assertEquals(2,b.id);
+		assertSame(continuation,a.continuation);
+		assertNull(b.continuation);
+		assertEquals(2,pending.size());
+		assertSame(a,pending.remove(a.id));
+		assertNull(pending.remove(a.id));
+		assertSame(b,pending.remove(b.id));
+		assertEquals(0,pending.size());
+	}
+
+	@Test
+	public void noSuchRequest() {
+		PendingRequests pending=new PendingRequests(4);
+		pending.add(null);
+		assertNull(pending.remove(0));
+		assertNull(pending.remove(-1));
+		// in the same slot as request 1, but not it
+		assertNull(pending.remove(5));
+		assertNull(pending.remove(2));
+		assertEquals(1,pending.size());
+	}
+
+	/**
+	 * An id whose slot is taken by an older request that is still waiting
+	 * is skipped.
+	 */
+	@Test
+	public void skipsTakenSlot() {
+		PendingRequests pending=new PendingRequests(4);
+		PendingRequests.Request old=pending.add(null);
+		for(int i=0;i<10;i++) {
+			PendingRequests.Request r=pending.add(null);
+			assertNotEquals(old.id & 3,r.id & 3);
+			assertSame(r,pending.remove(r.id));
+		}
+		assertSame(old,pending.remove(old.id));
+	}
+
+	@Test
+	public void grows() {
+		PendingRequests pending=new PendingRequests(2);
+		List<PendingRequests.Request> requests=new ArrayList<>();
+		Set<Long> ids=new HashSet<>();
+		for(int i=0;i<1000;i++) {
+			PendingRequests.Request r=pending.add(null);
+			assertTrue(ids.add(r.id));
+			requests.add(r);
+		}
+		assertEquals(1000,pending.size());
+		for(PendingRequests.Request r : requests) assertSame(r,pending.remove(r.id));
+		assertEquals(0,pending.size());
+	}
+
+	@Test
+	public void removeCancelsTimeout() {
+		PendingRequests pending=new PendingRequests(4);
+		PendingRequests.Request r=pending.add(null);
+		Timeout timeout=new Timeout();
+		r.setTimeout(timeout);
+		assertEquals(0,timeout.cancels.get());
+		pending.remove(r.id);
+		assertEquals(1,timeout.cancels.get());
+	}
+
+	/**
+	 * The reply can arrive, and remove the request, before the sender has
+	 * set its timeout, which is then cancelled as soon as it is set.
+	 */
+	@Test
+	public void timeoutSetAfterReply() {
+		PendingRequests pending=new PendingRequests(4);
+		PendingRequests.Request r=pending.add(null);
+		pending.remove(r.id);
+		Timeout timeout=new Timeout();
+		r.setTimeout(timeout);
+		assertEquals(1,timeout.cancels.get());
+	}
+
+	@Test
+	public void timeoutSetRacingReply() throws InterruptedException {
+		PendingRequests pending=new PendingRequests(4);
+		for(int i=0;i<2000;i++) {
+			PendingRequests.Request r=pending.add(null);
+			Timeout timeout=new Timeout();
+			CountDownLatch start=new CountDownLatch(1);
+			Thread reply=new Thread(()->{
+				try {
+					start.await();
+				} catch (InterruptedException e) {
+					return;
+				}
+				pending.remove(r.id);
+			});
+			reply.start();
+			start.countDown();
+			r.setTimeout(timeout);
+			reply.join();
+			assertTrue("timeout left running",timeout.cancels.get()>=1);
+		}
+		assertEquals(0,pending.size());
+	}
+
+	@Test
+	public void clear() {
+		PendingRequests pending=new PendingRequests(2);
+		List<Timeout> timeouts=new ArrayList<>();
+		for(int i=0;i<10;i++) {
+			Timeout timeout=new Timeout();
+			pending.add(null).setTimeout(timeout);
+			timeouts.add(timeout);
+		}
+		pending.clear();
+		assertEquals(0,pending.size());
+		for(Timeout timeout : timeouts) assertEquals(1,timeout.cancels.get());
+		assertNull(pending.remove(1));
+	}
+
+	/**
+	 * Threads add and remove their own requests while the table grows, and
+	 * each finds exactly the request it added.
+	 */
+	@Test
+	public void concurrent() throws InterruptedException {
+		PendingRequests pending=new PendingRequests(2);
+		int threads=8;
+		int each=20000;
+		Set<Long> ids=ConcurrentHashMap.newKeySet();
+		AtomicInteger failures=new AtomicInteger();
+		List<Thread> running=new ArrayList<>();
+		for(int t=0;t<threads;t++) {
+			Thread thread=new Thread(()->{
+				List<PendingRequests.Request> mine=new ArrayList<>();
+				for(int i=0;i<each;i++) {
+					PendingRequests.Request r=pending.add(null);
+					if(!ids.add(r.id)) failures.incrementAndGet();
+					mine.add(r);
+					// keep some waiting, so the table grows
+					if(i%3!=0) {
+						PendingRequests.Request m=mine.remove(mine.size()-1);
+						if(pending.remove(m.id)!=m) failures.incrementAndGet();
+					}
+				}
+				for(PendingRequests.Request m : mine) {
+					if(pending.remove(m.id)!=m) failures.incrementAndGet();
+				}
+			});
+			running.add(thread);
+			thread.start();
+		}
+		for(Thread thread : running) thread.join();
+		assertEquals(0,failures.get());
+		assertEquals(0,pending.size());
+		assertFalse(ids.contains(0L));
+	}
+}
@@ -0,0 +1,251 @@
+package pb.protocols;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import pb.managers.endpoint.BufferPool;
+import pb.protocols.event.EventRequest;
+
+/**
+ * Values and messages written by the {@link BinaryWriter} and read back by
+ * the {@link BinaryReader}, and bytes that are not validly encoded.
+ * @author aaron
+ *
+ */
+public class BinaryCodecTest {
+
+	/**
+	 * @param value
+	 * @return the value as written, checking that counting and writing agree
+	 */
+	private static byte[] write(Object value) {
+		BinaryWriter counter=new BinaryWriter();
+		counter.value(value);
+		ByteBuffer buffer=ByteBuffer.allocate(counter.length());
+		BinaryWriter writer=new BinaryWriter(buffer);
+		writer.value(value);
+		assertEquals(counter.length(),writer.length());
+		assertEquals(buffer.capacity(),buffer.position());
+		return buffer.array();
+	}
+
+	private static Object read(byte[] bytes) throws InvalidMessage {
+		return new BinaryReader().reset(bytes, 0, bytes.length).readDocument();
+	}
+
+	private static Object roundTrip(Object value) throws InvalidMessage {
+		return read(write(value));
+	}
+
+	@Test
+	public void longs() throws InvalidMessage {
+		long[] values={0,1,-1,63,-64,64,-65,127,128,8191,8192,-8193,
+				Integer.MAX_VALUE,Integer.MIN_VALUE,Long.MAX_VALUE,Long.MIN_VALUE};
+		for(long value : values) assertEquals(value,roundTrip(value));
+		assertEquals(1,write(0L).length-1);
+		assertEquals(1,write(-64L).length-1);
+		assertEquals(2,write(64L).length-1);
+		assertEquals(10,write(Long.MIN_VALUE).length-1);
+		// as json-simple gives whole numbers
+		assertEquals(5L,roundTrip(5));
+		assertEquals(5L,roundTrip((short)5));
+		assertEquals(-5L,roundTrip((byte)-5));
+	}
+
+	@Test
+	public void doubles() throws InvalidMessage {
+		double[] values={0.0,-0.0,0.1,-1.5e300,Double.MIN_VALUE,Double.MAX_VALUE,
+				Double.POSITIVE_INFINITY,Double.NEGATIVE_INFINITY,Double.NaN};
+		for(double value : values) {
+			assertEquals(Double.doubleToRawLongBits(value),Double.doubleToRawLongBits((Double)roundTrip(value)));
+		}
+		assertEquals((double)0.1f,roundTrip(0.1f));
+	}
+
+	@Test
+	public void scalars() throws InvalidMessage {
+		assertNull(roundTrip(null));
+		assertEquals(Boolean.TRUE,roundTrip(true));
+		assertEquals(Boolean.FALSE,roundTrip(false));
+		assertNull(roundTrip((String)null));
+		assertNull(roundTrip((byte[])null));
+	}
+
+	@Test
+	public void strings() throws InvalidMessage {
+		char[] chars=new char[300];
+		Arrays.fill(chars,'é');
+		String[] values={"","a","quotes \" and \\ need no escaping\n\u0000",
+				"消息 😀  ",new String(chars)};
+		for(String value : values) assertEquals(value,roundTrip(value));
+		// byte count then UTF-8
+		assertEquals(1+2+600,write(new String(chars)).length);
+	}
+
+	@Test
+	public void bytes() throws InvalidMessage {
+		byte[] none=new byte[0];
+		assertArrayEquals(none,(byte[])roundTrip(none));
+		byte[] bytes=new byte[300];
+		for(int i=0;i<bytes.length;i++) bytes[i]=(byte)i;
+		assertArrayEquals(bytes,(byte[])roundTrip(bytes));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void nested() throws InvalidMessage {
+		Document inner=new Document();
+		inner.append("host","localhost");
+		inner.append("port",8111L);
+		JSONArray array=new JSONArray();
+		array.add(inner.obj);
+		array.add("text");
+		array.add(null);
+		array.add(new JSONArray());
+		array.add(Arrays.asList(1L,2L));
+		JSONObject obj=new JSONObject();
+		obj.put("array",array);
+		obj.put("doc",inner);
+		obj.put("empty",new JSONObject());
+		obj.put("é",true);
+		Object read=roundTrip(obj);
+		assertTrue(read instanceof JSONObject);
+		// a Document is written as its fields
+		obj.put("doc",inner.obj);
+		assertEquals(obj,read);
+		assertTrue(((JSONObject)read).get("array") instanceof JSONArray);
+	}
+
+	@Test
+	public void grows() throws InvalidMessage {
+		BufferPool pool=new BufferPool(false);
+		JSONArray array=new JSONArray();
+		for(int i=0;i<5000;i++) {
+			array.add("value "+i);
+			array.add((long)i*i);
+			array.add(new byte[i%7]);
+		}
+		ByteBuffer buffer=pool.acquire(16);
+		BinaryWriter writer=new BinaryWriter(buffer,pool);
+		writer.value((Object)array);
+		ByteBuffer written=writer.getBuffer();
+		written.flip();
+		byte[] bytes=new byte[written.remaining()];
+		written.get(bytes);
+		pool.release(written);
+		assertEquals(bytes.length,writer.length());
+		assertArrayEquals(write(array),bytes);
+		List<?> read=(List<?>)read(bytes);
+		assertEquals(array.size(),read.size());
+		for(int i=0;i<read.size();i+=3) {
+			assertEquals(array.get(i),read.get(i));
+			assertEquals(array.get(i+1),read.get(i+1));
+			assertArrayEquals((byte[])array.get(i+2),(byte[])read.get(i+2));
+		}
+		assertEquals(0,pool.getOutstanding());
+	}
+
+	/**
+	 * Reading from the middle of a larger array, as frames are.
+	 */
+	@Test
+	public void offset() throws InvalidMessage {
+		byte[] value=write("framed");
+		byte[] frame=new byte[value.length+4];
+		System.arraycopy(value, 0, frame, 2, value.length);
+		assertEquals("framed",new BinaryReader().reset(frame, 2, value.length).readDocument());
+	}
+
+	private static void assertInvalid(byte[] bytes) {
+		try {
+			read(bytes);
+			fail("read "+Arrays.toString(bytes));
+		} catch (InvalidMessage e) {
+			// expected
+		}
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void malformed() {
+		JSONObject obj=new JSONObject();
+		obj.put("string","value");
+		obj.put("long",1L<<40);
+		obj.put("double",1.5);
+		obj.put("bytes",new byte[3]);
+		obj.put("array",new JSONArray());
+		byte[] bytes=write(obj);
+		for(int n=0;n<bytes.length;n++) assertInvalid(Arrays.copyOf(bytes, n));
+		// anything after the value
+		assertInvalid(Arrays.copyOf(bytes, bytes.length+1));
+		assertInvalid(new byte[] {(byte)(BinaryWriter.tagEnd+1)});
+		assertInvalid(new byte[] {BinaryWriter.tagEnd});
+		// a varint longer than 64 bits
+		byte[] varint=new byte[12];
+		Arrays.fill(varint,(byte)0x80);
+		varint[0]=BinaryWriter.tagLong;
+		assertInvalid(varint);
+		// more bytes than there are
+		assertInvalid(new byte[] {BinaryWriter.tagString,5,'a'});
+		assertInvalid(new byte[] {BinaryWriter.tagBytes,(byte)0xff,(byte)0xff,(byte)0xff,(byte)0xff,0x0f});
+	}
+
+	@Test
+	public void tooDeep() throws InvalidMessage {
+		Object value="bottom";
+		for(int i=0;i<64;i++) value=Arrays.asList(value);
+		assertEquals("[".repeat(64)+"\"bottom\""+"]".repeat(64),((JSONArray)roundTrip(value)).toJSONString());
+		byte[] deeper=new byte[65+1+65];
+		Arrays.fill(deeper, 0, 65, (byte)BinaryWriter.tagArray);
+		deeper[65]=BinaryWriter.tagNull;
+		Arrays.fill(deeper, 66, deeper.length, (byte)BinaryWriter.tagEnd);
+		assertInvalid(deeper);
+		try {
+			write(Arrays.asList(value));
+			fail("wrote a value nested too deeply");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+	}
+
+	/**
+	 * A message read straight from its fields, with the fields sent in the
+	 * header left out.
+	 */
+	@Test
+	public void message() throws InvalidMessage {
+		byte[] data={1,2,3};
+		Document doc=new Document();
+		doc.append("x",3);
+		EventRequest request=new EventRequest("shape", new Object[] {"line",42,2.5,data,doc});
+		request.setSeq(9);
+		String[] header=request.getHeader();
+		for(String[] sent : new String[][] {null,header}) {
+			BinaryWriter counter=new BinaryWriter();
+			request.write(counter,sent);
+			ByteBuffer buffer=ByteBuffer.allocate(counter.length());
+			request.write(new BinaryWriter(buffer),sent);
+			byte[] bytes=buffer.array();
+			EventRequest read=(EventRequest)Message.toMessage(new BinaryReader().reset(bytes, 0, bytes.length),sent);
+			assertEquals("shape",read.getEventName());
+			assertEquals(9,read.getSeq());
+			Object[] args=read.getEventArgs();
+			assertEquals("line",args[0]);
+			assertEquals(42L,args[1]);
+			assertEquals(2.5,args[2]);
+			assertArrayEquals(data,(byte[])args[3]);
+			assertEquals(3L,((Document)args[4]).obj.get("x"));
+		}
+	}
+}
@@ -0,0 +1,162 @@
+package pb.protocols;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.junit.Test;
+
+import pb.managers.endpoint.BufferPool;
+
+/**
+ * Documents written by the {@link JsonWriter} come out byte for byte as
+ * {@link Document#toJson()} writes them, so peers that still build their
+ * messages as documents see the same JSON on the wire, and read back the
+ * same with the {@link JsonReader}.
+ * @author aaron
+ *
+ */
+public class JsonWriterTest {
+
+	/**
+	 * @param doc
+	 * @return the document as the writer writes it, checking that counting
+	 * and writing agree
+	 */
+	private static String write(Document doc) {
+		JsonWriter counter=new JsonWriter();
+		counter.value(doc);
+		ByteBuffer buffer=ByteBuffer.allocate(counter.length());
+		JsonWriter writer=new JsonWriter(buffer);
+		writer.value(doc);
+		assertEquals(counter.length(),writer.length());
+		assertEquals(buffer.capacity(),buffer.position());
+		return new String(buffer.array(), StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Written the same as toJson, and read back the same.
+	 * @param doc
+	 */
+	private static void assertSame(Document doc) throws InvalidMessage {
+		String json=doc.toJson();
+		String written=write(doc);
+		assertEquals(json,written);
+		byte[] bytes=written.getBytes(StandardCharsets.UTF_8);
+		Object read=new JsonReader().reset(bytes, 0, bytes.length).readDocument();
+		assertEquals(Document.parse(json).toJson(),new Document((JSONObject)read).toJson());
+	}
+
+	@Test
+	public void fields() throws InvalidMessage {
+		Document doc=new Document();
+		doc.append("host","localhost");
+		doc.append("port",8111);
+		doc.append("long",Long.MIN_VALUE);
+		doc.append("max",Long.MAX_VALUE);
+		doc.append("yes",true);
+		doc.append("no",false);
+		doc.append("nothing",(String)null);
+		doc.append("empty","");
+		assertSame(doc);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void numbers() throws InvalidMessage {
+		JSONObject obj=new JSONObject();
+		obj.put("double",0.1);
+		obj.put("negative",-1.5e300);
+		obj.put("tiny",4.9e-324);
+		obj.put("zero",-0.0);
+		obj.put("whole",3.0);
+		obj.put("float",0.1f);
+		assertSame(new Document(obj));
+		// too large for a long
+		byte[] bytes="[9223372036854775807,-9223372036854775808,9223372036854775808]".getBytes(StandardCharsets.US_ASCII);
+		assertEquals(Arrays.asList(Long.MAX_VALUE,Long.MIN_VALUE,9223372036854775808.0),
+			new JsonReader().reset(bytes, 0, bytes.length).readDocument());
+		obj.clear();
+		obj.put("infinite",Double.POSITIVE_INFINITY);
+		obj.put("nan",Double.NaN);
+		obj.put("floatInfinite",Float.NEGATIVE_INFINITY);
+		Document doc=new Document(obj);
+		assertEquals(doc.toJson(),write(doc));
+	}
+
+	@Test
+	public void nested() throws InvalidMessage {
+		Document inner=new Document();
+		inner.append("host","localhost");
+		inner.append("port",8111);
+		ArrayList<Object> list=new ArrayList<>();
+		list.add(inner);
+		list.add(inner);
+		list.add("text");
+		list.add(7L);
+		list.add(null);
+		list.add(new ArrayList<>(Arrays.asList("a","b")));
+		Document doc=new Document();
+		doc.append("docList",list);
+		doc.append("doc",inner);
+		doc.append("none",new ArrayList<>());
+		doc.append("nothing",new Document());
+		assertSame(doc);
+		assertEquals("{\"docList\":[{\"port\":8111,\"host\":\"localhost\"}]}",
+			write(Document.parse("{\"docList\":[{\"host\":\"localhost\",\"port\":8111}]}")));
+	}
+
+	/**
+	 * Every character, escaped or not, as json-simple does it.
+	 */
+	@Test
+	public void everyCharacter() throws InvalidMessage {
+		StringBuilder s=new StringBuilder();
+		for(int c=0;c<=0xffff;c++) {
+			if(!Character.isSurrogate((char)c)) s.append((char)c);
+		}
+		s.appendCodePoint(0x1f600).appendCodePoint(0x10ffff).appendCodePoint(0x10000);
+		Document doc=new Document();
+		doc.append("all",s.toString());
+		doc.append("slash /\\ \"quoted\"   \u007f","key");
+		assertSame(doc);
+	}
+
+	/**
+	 * A surrogate without its pair is written as '?', as toJson's string
+	 * is when it is encoded as UTF-8.
+	 */
+	@Test
+	public void unpairedSurrogate() {
+		Document doc=new Document();
+		doc.append("s","a\ud800b\udc00c\ud83d");
+		assertEquals(new String(doc.toJson().getBytes(StandardCharsets.UTF_8),StandardCharsets.UTF_8),write(doc));
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void grows() throws InvalidMessage {
+		BufferPool pool=new BufferPool(false);
+		JSONArray array=new JSONArray();
+		for(int i=0;i<5000;i++) array.add("value "+i+" é消");
+		JSONObject obj=new JSONObject();
+		obj.put("array",array);
+		Document doc=new Document(obj);
+		ByteBuffer buffer=pool.acquire(16);
+		JsonWriter writer=new JsonWriter(buffer,pool);
+		writer.value(doc);
+		ByteBuffer written=writer.getBuffer();
+		written.flip();
+		byte[] bytes=new byte[written.remaining()];
+		written.get(bytes);
+		pool.release(written);
+		assertEquals(doc.toJson(),new String(bytes,StandardCharsets.UTF_8));
+		assertEquals(bytes.length,writer.length());
+		assertEquals(0,pool.getOutstanding());
+	}
+}
@@ -0,0 +1,60 @@
+package pb.protocols.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * The numbers of the events received, as they arrive out of order from
+ * different lanes.
+ * @author aaron
+ *
+ */
+public class ReceivedSeqsTest {
+
+	@Test
+	public void inOrder() {
+		ReceivedSeqs received=new ReceivedSeqs();
+		for(long seq=1;seq<=5;seq++) assertTrue(received.add(seq));
+		assertEquals(5,received.last());
+	}
+
+	@Test
+	public void overtaken() {
+		ReceivedSeqs received=new ReceivedSeqs();
+		assertTrue(received.add(1));
+		assertTrue(received.add(3));
+		assertTrue(received.add(4));
+		// acked only up to the missing one
+		assertEquals(1,received.last());
+		assertTrue(received.add(2));
+		assertEquals(4,received.last());
+	}
+
+	@Test
+	public void receivedTwice() {
+		ReceivedSeqs received=new ReceivedSeqs();
+		assertTrue(received.add(1));
+		assertTrue(received.add(3));
+		assertFalse(received.add(1));
+		assertFalse(received.add(3));
+		assertTrue(received.add(2));
+		assertFalse(received.add(2));
+		assertFalse(received.add(3));
+		assertEquals(3,received.last());
+	}
+
+	@Test
+	public void copy() {
+		ReceivedSeqs received=new ReceivedSeqs();
+		received.add(1);
+		received.add(3);
+		ReceivedSeqs copy=new ReceivedSeqs(received);
+		assertFalse(copy.add(3));
+		assertTrue(copy.add(2));
+		assertEquals(3,copy.last());
+		assertEquals(1,received.last());
+	}
+}
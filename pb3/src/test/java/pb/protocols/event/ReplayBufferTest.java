@@ -0,0 +1,93 @@
+package pb.protocols.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Keeping the events of a resumable session until they are acked, on a
+ * buffer that is not attached to an endpoint.
+ * @author aaron
+ *
+ */
+public class ReplayBufferTest {
+
+	private static void send(ReplayBuffer buffer, int events) {
+		for(int i=0;i<events;i++) {
+			long seq=buffer.getSentSeq()+1;
+			assertTrue(buffer.sent(null, seq, new EventRequest("x",""+seq), Delivery.ACKED));
+		}
+	}
+
+	@Test
+	public void keptUntilAcked() {
+		ReplayBuffer buffer=new ReplayBuffer(10);
+		send(buffer,5);
+		assertEquals(5,buffer.getSentSeq());
+		assertEquals(5,buffer.getUnacked().size());
+		buffer.acked(null, 3);
+		assertEquals(3,buffer.getAckedSeq());
+		List<ReplayBuffer.Entry> unacked=buffer.getUnacked();
+		assertEquals(2,unacked.size());
+		assertEquals(4,unacked.get(0).seq);
+		assertEquals(5,unacked.get(1).seq);
+		// an older ack changes nothing
+		buffer.acked(null, 2);
+		assertEquals(3,buffer.getAckedSeq());
+		assertEquals(2,buffer.getUnacked().size());
+	}
+
+	@Test
+	public void resume() {
+		ReplayBuffer buffer=new ReplayBuffer(10);
+		send(buffer,5);
+		buffer.acked(null, 1);
+		// the other endpoint received more than was acked before the connection failed
+		assertTrue(buffer.resume(null, 3));
+		assertEquals(3,buffer.getAckedSeq());
+		assertEquals(2,buffer.getUnacked().size());
+		assertEquals(4,buffer.getUnacked().get(0).seq);
+	}
+
+	@Test
+	public void resumeRefused() {
+		ReplayBuffer buffer=new ReplayBuffer(10);
+		send(buffer,5);
+		buffer.acked(null, 2);
+		// more than was sent, or less than was acked
+		assertFalse(buffer.resume(null, 6));
+		assertFalse(buffer.resume(null, 1));
+		assertTrue(buffer.resume(null, 2));
+	}
+
+	@Test
+	public void overflow() {
+		ReplayBuffer buffer=new ReplayBuffer(3);
+		send(buffer,3);
+		assertTrue(buffer.isResumable());
+		send(buffer,1);
+		assertFalse(buffer.isResumable());
+		assertEquals(0,buffer.getUnacked().size());
+		assertEquals(4,buffer.getSentSeq());
+		assertFalse(buffer.resume(null, 4));
+	}
+
+	@Test
+	public void received() {
+		ReplayBuffer buffer=new ReplayBuffer(10);
+		buffer.received(null, 1);
+		buffer.received(null, 3);
+		assertEquals(1,buffer.getReceivedSeq());
+		// received again after the session resumes
+		ReceivedSeqs received=buffer.getReceived();
+		assertFalse(received.add(1));
+		assertFalse(received.add(3));
+		assertTrue(received.add(2));
+		buffer.received(null, 2);
+		assertEquals(3,buffer.getReceivedSeq());
+	}
+}
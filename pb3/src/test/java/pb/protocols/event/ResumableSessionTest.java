@@ -0,0 +1,259 @@
+package pb.protocols.event;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BooleanSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import pb.managers.ClientManager;
+import pb.managers.ServerManager;
+import pb.managers.endpoint.Endpoint;
+import pb.managers.endpoint.Priority;
+
+/**
+ * Events of a resumable session between a client and a server on this
+ * host, with events of different priorities that overtake each other.
+ * The client connects through a proxy, which is cut in the middle of the
+ * events to make the session resume on a new connection.
+ * @author aaron
+ *
+ */
+public class ResumableSessionTest {
+
+	private static final int events=2000;
+
+	private static final long wait=20000;
+
+	/**
+	 * Passes bytes both ways between the client and the server, until it is
+	 * cut.
+	 */
+	private static class Proxy extends Thread {
+		private final ServerSocket serverSocket;
+		private final int serverPort;
+		private final List<Socket> sockets=new CopyOnWriteArrayList<>();
+
+		Proxy(int serverPort) throws IOException {
+			this.serverPort=serverPort;
+			serverSocket=new ServerSocket(0);
+			setDaemon(true);
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while(true) {
+					Socket client=serverSocket.accept();
+					Socket server=new Socket("localhost",serverPort);
+					sockets.add(client);
+					sockets.add(server);
+					pump(client,server);
+					pump(server,client);
+				}
+			} catch (IOException e) {
+				// closed
+			}
+		}
+
+		private void pump(Socket from, Socket to) {
+			Thread thread=new Thread(()->{
+				byte[] bytes=new byte[4096];
+				try {
+					InputStream in=from.getInputStream();
+					OutputStream out=to.getOutputStream();
+					int n;
+					while((n=in.read(bytes))>0) out.write(bytes,0,n);
+				} catch (IOException e) {
+					// cut
+				}
+				close(from);
+				close(to);
+			});
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		/**
+		 * Drop the connections, as if the network failed.
+		 */
+		void cut() {
+			for(Socket socket : sockets) close(socket);
+			sockets.clear();
+		}
+
+		void shutdown() {
+			try {
+				serverSocket.close();
+			} catch (IOException e) {
+				// closed
+			}
+			cut();
+		}
+
+		private static void close(Socket socket) {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// closed
+			}
+		}
+	}
+
+	/**
+	 * The values of the events received with a name, in order.
+	 */
+	private static class Received {
+		private final List<Integer> values=new CopyOnWriteArrayList<>();
+
+		void add(String value) {
+			values.add(Integer.parseInt(value));
+		}
+
+		int size() {
+			return values.size();
+		}
+
+		/**
+		 * Each of the events sent, exactly once and in order.
+		 * @param count
+		 */
+		void assertExactlyOnce(int count) {
+			List<Integer> expected=new ArrayList<>(count);
+			for(int i=0;i<count;i++) expected.add(i);
+			assertEquals(expected,new ArrayList<>(values));
+		}
+	}
+
+	private ServerManager serverManager;
+	private ClientManager clientManager;
+	private Proxy proxy;
+	private final AtomicReference<Endpoint> serverEndpoint=new AtomicReference<>();
+	private final AtomicReference<Endpoint> clientEndpoint=new AtomicReference<>();
+	private final Received high=new Received();
+	private final Received low=new Received();
+
+	@Before
+	public void setUp() throws Exception {
+		Logger.getLogger("").setLevel(Level.SEVERE);
+		int port;
+		try(ServerSocket socket=new ServerSocket(0)) {
+			port=socket.getLocalPort();
+		}
+		serverManager=new ServerManager(port);
+		serverManager.on(ServerManager.sessionStarted, (args)->{
+			Endpoint endpoint=(Endpoint)args[0];
+			endpoint.on("high", (event)->high.add((String)event[0]));
+			endpoint.on("low", (event)->low.add((String)event[0]));
+			serverEndpoint.set(endpoint);
+		});
+		serverManager.start();
+		proxy=new Proxy(port);
+		proxy.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(clientManager!=null) clientManager.shutdown();
+		proxy.shutdown();
+		serverManager.shutdown();
+		serverManager.join();
+	}
+
+	private void startClient(Delivery delivery) throws Exception {
+		clientManager=new ClientManager("localhost",proxy.getPort());
+		clientManager.getEndpointConfig()
+			.setEventDelivery("high", delivery)
+			.setEventDelivery("low", delivery)
+			.setEventPriority("high", Priority.INTERACTIVE)
+			.setEventPriority("low", Priority.BULK);
+		clientManager.on(ClientManager.sessionStarted, (args)->clientEndpoint.set((Endpoint)args[0]));
+		clientManager.start();
+		waitFor(()->clientEndpoint.get()!=null && serverEndpoint.get()!=null);
+	}
+
+	private static void waitFor(BooleanSupplier done) throws InterruptedException {
+		long deadline=System.currentTimeMillis()+wait;
+		while(!done.getAsBoolean() && System.currentTimeMillis()<deadline) Thread.sleep(10);
+		assertTrue("timed out",done.getAsBoolean());
+	}
+
+	/**
+	 * Emit events alternately of high and low priority, on the endpoint the
+	 * session is on, cutting the connection half way through.
+	 */
+	private void emitAcrossCut() throws InterruptedException {
+		Endpoint first=clientEndpoint.get();
+		for(int i=0;i<events;i++) {
+			if(i==events/2) {
+				proxy.cut();
+				waitFor(()->clientEndpoint.get()!=first);
+			}
+			clientEndpoint.get().emit(i%2==0 ? "high" : "low", ""+i/2);
+			if(i%50==0) Thread.sleep(1);
+		}
+		waitFor(()->high.size()+low.size()>=events);
+		// anything received twice arrives after the last event
+		Thread.sleep(500);
+		assertTrue(clientEndpoint.get().isSessionResumed());
+		high.assertExactlyOnce(events/2);
+		low.assertExactlyOnce(events/2);
+	}
+
+	@Test
+	public void acked() throws Exception {
+		startClient(Delivery.ACKED);
+		emitAcrossCut();
+	}
+
+	@Test
+	public void windowed() throws Exception {
+		startClient(Delivery.WINDOWED);
+		emitAcrossCut();
+	}
+
+	@Test
+	public void unacked() throws Exception {
+		startClient(Delivery.UNACKED);
+		emitAcrossCut();
+	}
+
+	/**
+	 * An event too large to send is not numbered, so the others are still
+	 * acked, and none are left to send again.
+	 */
+	@Test
+	public void tooLarge() throws Exception {
+		serverManager.getEndpointConfig().setMaxFrameSize(4096);
+		startClient(Delivery.ACKED);
+		char[] large=new char[20000];
+		Arrays.fill(large,'x');
+		Endpoint endpoint=clientEndpoint.get();
+		for(int i=0;i<11;i++) endpoint.emit("high", i==5 ? new String(large) : ""+i);
+		waitFor(()->high.size()>=10);
+		ReplayBuffer buffer=endpoint.getReplayBuffer();
+		waitFor(()->buffer.getAckedSeq()==10);
+		assertEquals(10,buffer.getSentSeq());
+		assertEquals(0,buffer.getUnacked().size());
+		assertEquals(Arrays.asList(0,1,2,3,4,6,7,8,9,10),new ArrayList<>(high.values));
+	}
+}
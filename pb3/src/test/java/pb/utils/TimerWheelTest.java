@@ -0,0 +1,149 @@
+package pb.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Timeouts on a small wheel with short ticks, so that the longer ones go
+ * around it several times.
+ * @author aaron
+ *
+ */
+public class TimerWheelTest {
+
+	private static final long tick=5;
+
+	private static final int ticksPerWheel=8;
+
+	private final TimerWheel wheel=new TimerWheel(tick,ticksPerWheel,2);
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	/**
+	 * @param delay in ms
+	 * @return how long the callback took to be called, in ms
+	 */
+	private long timeOf(long delay) throws InterruptedException {
+		CountDownLatch called=new CountDownLatch(1);
+		AtomicLong at=new AtomicLong();
+		long start=System.nanoTime();
+		wheel.schedule(()->{
+			at.set(System.nanoTime());
+			called.countDown();
+		}, delay);
+		assertTrue(called.await(delay+2000, TimeUnit.MILLISECONDS));
+		return TimeUnit.NANOSECONDS.toMillis(at.get()-start);
+	}
+
+	@Test
+	public void neverEarly() throws InterruptedException {
+		long took=timeOf(30);
+		assertTrue("called after "+took+"ms", took>=30);
+	}
+
+	/**
+	 * Due after several rounds of the wheel, which is 40ms around.
+	 */
+	@Test
+	public void rounds() throws InterruptedException {
+		long took=timeOf(130);
+		assertTrue("called after "+took+"ms", took>=130 && took<130+500);
+	}
+
+	/**
+	 * Due a whole number of rounds from now, in the bucket of the current
+	 * tick.
+	 */
+	@Test
+	public void wholeRounds() throws InterruptedException {
+		long took=timeOf(tick*ticksPerWheel*2);
+		assertTrue("called after "+took+"ms", took>=tick*ticksPerWheel*2);
+	}
+
+	@Test
+	public void noDelay() throws InterruptedException {
+		CountDownLatch called=new CountDownLatch(1);
+		AtomicInteger onWorker=new AtomicInteger();
+		wheel.schedule(()->{
+			if(TimerWheel.onWorker()) onWorker.incrementAndGet();
+			called.countDown();
+		}, 0);
+		assertTrue(called.await(1, TimeUnit.SECONDS));
+		assertEquals(1,onWorker.get());
+		assertFalse(TimerWheel.onWorker());
+	}
+
+	@Test
+	public void cancel() throws InterruptedException {
+		AtomicInteger calls=new AtomicInteger();
+		Cancellable timeout=wheel.schedule(calls::incrementAndGet, 20);
+		assertEquals(1,wheel.pending());
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		assertEquals(0,wheel.pending());
+		Thread.sleep(100);
+		assertEquals(0,calls.get());
+	}
+
+	@Test
+	public void cancelAfterCalled() throws InterruptedException {
+		CountDownLatch called=new CountDownLatch(1);
+		Cancellable timeout=wheel.schedule(called::countDown, 10);
+		assertTrue(called.await(1, TimeUnit.SECONDS));
+		assertFalse(timeout.cancel());
+		assertEquals(0,wheel.pending());
+	}
+
+	/**
+	 * Cancelled and scheduled again, as a timeout that is put off is.
+	 */
+	@Test
+	public void reschedule() throws InterruptedException {
+		AtomicInteger first=new AtomicInteger();
+		CountDownLatch second=new CountDownLatch(1);
+		Cancellable timeout=wheel.schedule(first::incrementAndGet, 20);
+		Thread.sleep(10);
+		timeout.cancel();
+		long start=System.nanoTime();
+		wheel.schedule(second::countDown, 60);
+		assertTrue(second.await(1, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime()-start)>=60);
+		assertEquals(0,first.get());
+	}
+
+	@Test
+	public void many() throws InterruptedException {
+		int count=1000;
+		CountDownLatch called=new CountDownLatch(count/2);
+		AtomicInteger cancelledCalls=new AtomicInteger();
+		for(int i=0;i<count;i++) {
+			if(i%2==0) {
+				wheel.schedule(called::countDown, i%97);
+			} else {
+				wheel.schedule(cancelledCalls::incrementAndGet, 50+i%97).cancel();
+			}
+		}
+		assertTrue(called.await(2, TimeUnit.SECONDS));
+		Thread.sleep(200);
+		assertEquals(0,cancelledCalls.get());
+		assertEquals(0,wheel.pending());
+	}
+
+	@Test(expected=IllegalStateException.class)
+	public void stopped() {
+		wheel.stop();
+		wheel.schedule(()->{}, 10);
+	}
+}